@@ -0,0 +1,27 @@
+package btree;
+
+/**
+ * AppendSplitPolicy.java The median split, except for an append: a new entry
+ * that lands in the last tenth or so of the right-most page of its level.
+ * Ascending keys never come back to the pages they leave behind, so an append
+ * keeps BTreeBuilder.DEFAULT_FILL_FACTOR of the bytes on the split page, as a
+ * bulk load would, and the new page starts nearly empty. Keys that arrive
+ * slightly out of order still count as appends, and the room left on the split
+ * page takes the ones that come late. This is the policy of a BTreeFile unless
+ * another one is set.
+ */
+class AppendSplitPolicy extends MedianSplitPolicy {
+
+	public int splitPoint(Entries page) {
+		if (page.isRightMost()) {
+			int point = fillPoint(page, BTreeBuilder.DEFAULT_FILL_FACTOR);
+			if (page.insertPosition() >= point)
+				return point;
+		}
+		return super.splitPoint(page);
+	}
+
+	public String getName() {
+		return APPEND;
+	}
+}
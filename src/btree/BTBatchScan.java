@@ -0,0 +1,223 @@
+package btree;
+
+import java.util.*;
+import java.util.stream.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTBatchScan.java A range scan of a BTreeFile of integer keys that returns
+ * entries in batches, made by BTreeFile.new_batch_scan. nextBatch copies the
+ * keys, page numbers and slot numbers of the entries straight from the leaf
+ * pages into the caller's arrays, so that a scan allocates nothing per entry.
+ * The end of the range is checked once per leaf: a leaf whose last key is in
+ * range is taken whole, and only the last leaf of the range is binary-searched
+ * for its end.
+ *
+ * In a file with posting lists, the rids of a list are returned as entries of
+ * their key.
+ *
+ * Like a BTFileScan, it walks the leaf chain without latches, so it must not
+ * run alongside writers of the file, and it calls the buffer manager directly,
+ * so it must not run alongside any other operation unless the buffer manager is
+ * a ConcurrentBufMgr. The current leaf stays pinned until the scan is done or
+ * closed.
+ */
+public class BTBatchScan implements GlobalConst {
+
+	private final BTreeFile bfile;
+	// the first key beyond the range, kept as a long so that the range may end
+	// after Integer.MAX_VALUE or before Integer.MIN_VALUE
+	private final long endkey;
+
+	private final PageId pageno = new PageId();
+	// the pinned leaf, or null when the scan is done
+	private byte[] data;
+	private int slot;
+	// the slots of the leaf that are in range
+	private int limit;
+
+	// the posting list being returned, and its key
+	private PostingScan postings;
+	private int postingKey;
+	private final RID rid = new RID(new PageId(), 0);
+
+	/**
+	 * @param leafPage
+	 *            the pinned leaf the scan starts on, or null for an empty scan.
+	 *            Input parameter.
+	 * @param slot
+	 *            the first slot of the leaf in range. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, or null. Input parameter.
+	 */
+	BTBatchScan(BTreeFile bfile, BTLeafPage leafPage, int slot, IntegerKey hi_key) {
+		this(bfile, leafPage, slot, hi_key == null ? Long.MAX_VALUE : hi_key.getKey().intValue() + 1L);
+	}
+
+	/**
+	 * @param leafPage
+	 *            the pinned leaf the scan starts on, or null for an empty scan.
+	 *            Input parameter.
+	 * @param slot
+	 *            the first slot of the leaf in range. Input parameter.
+	 * @param end
+	 *            the first key beyond the range. Input parameter.
+	 */
+	BTBatchScan(BTreeFile bfile, BTLeafPage leafPage, int slot, long end) {
+		this.bfile = bfile;
+		endkey = end;
+		if (leafPage != null) {
+			data = leafPage.getpage();
+			pageno.pid = BTPageSearch.getInt(data, HFPage.CUR_PAGE);
+			this.slot = slot;
+			limit = limitOf(data);
+		}
+	}
+
+	/**
+	 * Copy the next entries of the range into the given arrays, as many as fit.
+	 *
+	 * @param keys
+	 *            receives the keys. Output parameter.
+	 * @param pageNos
+	 *            receives the page numbers of the rids. Output parameter.
+	 * @param slotNos
+	 *            receives the slot numbers of the rids. Output parameter.
+	 * @return the number of entries copied, 0 once the scan is done
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int nextBatch(int[] keys, int[] pageNos, int[] slotNos) throws PinPageException, UnpinPageException {
+		int max = Math.min(keys.length, Math.min(pageNos.length, slotNos.length));
+		int n = 0;
+		while (n < max) {
+			if (postings != null) {
+				while (n < max && postings.next(rid)) {
+					keys[n] = postingKey;
+					pageNos[n] = rid.pageNo.pid;
+					slotNos[n] = rid.slotNo;
+					n++;
+				}
+				if (n == max)
+					break;
+				postings = null;
+			}
+			if (data == null)
+				break;
+			if (slot >= limit) {
+				nextLeaf();
+				continue;
+			}
+
+			// leaf data is the rid's slot number then its page number
+			int offset = BTPageSearch.slotOffset(data, slot);
+			int end = offset + BTPageSearch.slotLength(data, slot);
+			int key = BTPageSearch.getInt(data, offset);
+			int slotNo = BTPageSearch.getInt(data, end - 8);
+			int pageNo = BTPageSearch.getInt(data, end - 4);
+			slot++;
+			if (slotNo == PostingList.REF_SLOT && bfile.hasPostingLists()) {
+				rid.pageNo.pid = pageNo;
+				rid.slotNo = slotNo;
+				postings = bfile.postings(rid);
+				postingKey = key;
+				continue;
+			}
+			keys[n] = key;
+			pageNos[n] = pageNo;
+			slotNos[n] = slotNo;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * A Spliterator over the rest of the range that returns the rids, packed as
+	 * page number then slot number, see pageNo and slotNo. It reads the scan a
+	 * batch at a time.
+	 */
+	public Spliterator.OfLong ridSpliterator() {
+		return new BTRidSpliterator(this);
+	}
+
+	/**
+	 * A sequential LongStream of the rest of the range, packed as by
+	 * ridSpliterator. Closing the stream closes the scan.
+	 */
+	public LongStream ridStream() {
+		return StreamSupport.longStream(ridSpliterator(), false).onClose(new Runnable() {
+			public void run() {
+				try {
+					close();
+				} catch (UnpinPageException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the page number of a rid packed by ridSpliterator
+	 */
+	public static int pageNo(long rid) {
+		return (int) (rid >>> 32);
+	}
+
+	/**
+	 * @return the slot number of a rid packed by ridSpliterator
+	 */
+	public static int slotNo(long rid) {
+		return (int) rid;
+	}
+
+	/**
+	 * Unpin the current pages and end the scan.
+	 *
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void close() throws UnpinPageException {
+		if (postings != null) {
+			postings.close();
+			postings = null;
+		}
+		if (data != null) {
+			data = null;
+			bfile.unpinPage(pageno);
+		}
+	}
+
+	// move to the next leaf, or end the scan at the end of the range
+	private void nextLeaf() throws PinPageException, UnpinPageException {
+		int next = limit < BTPageSearch.slotCount(data) ? INVALID_PAGE : BTPageSearch.nextPage(data);
+		close();
+		if (next == INVALID_PAGE)
+			return;
+		pageno.pid = next;
+		data = bfile.pinPage(pageno).getpage();
+		slot = 0;
+		limit = limitOf(data);
+	}
+
+	// the first slot of a leaf beyond the range, or the slot count
+	private int limitOf(byte[] data) {
+		int count = BTPageSearch.slotCount(data);
+		if (count == 0 || BTPageSearch.getInt(data, BTPageSearch.slotOffset(data, count - 1)) < endkey)
+			return count;
+		// the first slot whose key is not smaller than endkey
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (BTPageSearch.getInt(data, BTPageSearch.slotOffset(data, mid)) < endkey)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
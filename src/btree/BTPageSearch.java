@@ -0,0 +1,287 @@
+package btree;
+
+import java.io.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTPageSearch.java Binary search over the slot directory of a BTSortedPage.
+ * Keys are compared in place in the page's byte array, so a search allocates no
+ * KeyDataEntry, KeyClass or RID objects and makes O(log n) comparisons instead
+ * of walking every slot with getFirst/getNext.
+ *
+ * Slots of a sorted page are kept in key order and compacted on delete, so slot
+ * i is the i-th smallest record. Slot i is stored at DPFIXED + 4 * i as a short
+ * record length followed by a short record offset. A record starts with its
+ * key: an int for integer keys, or a writeUTF string (short length, then
+ * modified UTF-8 bytes) for string keys.
+ */
+final class BTPageSearch implements GlobalConst {
+
+	private BTPageSearch() {
+	}
+
+	/**
+	 * Child of an index page that a key is routed to: the page id of the last
+	 * entry whose key is not greater than the key, or the left link if there is
+	 * none. This is the child getPageNoByKey and getSibling pick.
+	 *
+	 * @param page
+	 *            the index page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the child page number
+	 */
+	static int indexChild(BTIndexPage page, KeyClass key) throws KeyNotMatchException, IOException {
+		int slot = upperBound(page, key) - 1;
+		if (slot < 0)
+			return page.getPrevPage().pid;
+		return childAt(page.getpage(), slot);
+	}
+
+	/**
+	 * Child of an index page that holds the left-most occurrence of a key: the
+	 * page id of the last entry whose key is smaller than the key, or the left
+	 * link if there is none. This is the child findRunStart descends to.
+	 *
+	 * @param page
+	 *            the index page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the child page number
+	 */
+	static int indexChildBefore(BTIndexPage page, KeyClass key) throws KeyNotMatchException, IOException {
+		int slot = lowerBound(page, key) - 1;
+		if (slot < 0)
+			return page.getPrevPage().pid;
+		return childAt(page.getpage(), slot);
+	}
+
+	/**
+	 * @return the first slot whose key is not smaller than the key, or the slot
+	 *         count if there is none
+	 */
+	static int lowerBound(BTSortedPage page, KeyClass key) throws KeyNotMatchException, IOException {
+		return search(page, key, false);
+	}
+
+	/**
+	 * @return the first slot whose key is greater than the key, or the slot count
+	 *         if there is none
+	 */
+	static int upperBound(BTSortedPage page, KeyClass key) throws KeyNotMatchException, IOException {
+		return search(page, key, true);
+	}
+
+	/**
+	 * Slot of a leaf entry with the given key and rid.
+	 *
+	 * @param page
+	 *            the leaf page. Input parameter.
+	 * @param key
+	 *            the key in pair <key, rid>. Input parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input parameter.
+	 * @return the slot number, or -1 if the page does not hold the entry
+	 */
+	static int findEntry(BTLeafPage page, KeyClass key, RID rid) throws KeyNotMatchException, IOException {
+		byte[] data = page.getpage();
+		byte[] keyBytes = encode(key);
+		int slotCnt = page.getSlotCnt();
+		for (int slot = lowerBound(page, key); slot < slotCnt; slot++) {
+			int offset = slotOffset(data, slot);
+			if (compare(data, offset, key, keyBytes) != 0)
+				return -1;
+			// leaf data is the rid's slot number then its page number
+			int end = offset + slotLength(data, slot);
+			if (getInt(data, end - 4) == rid.pageNo.pid && getInt(data, end - 8) == rid.slotNo)
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * The key stored at a slot, decoded.
+	 *
+	 * @param page
+	 *            the page. Input parameter.
+	 * @param slot
+	 *            the slot number. Input parameter.
+	 * @return the key
+	 */
+	static KeyClass keyAt(BTSortedPage page, int slot) throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		byte[] data = page.getpage();
+		return BT.getEntryFromBytes(data, slotOffset(data, slot), slotLength(data, slot), page.keyType,
+				page.getType()).key;
+	}
+
+	/**
+	 * Compare the key stored at a slot with a search key.
+	 *
+	 * @return negative, zero or positive as the stored key is smaller than, equal
+	 *         to or greater than the search key
+	 */
+	static int compareSlot(BTSortedPage page, int slot, KeyClass key) throws KeyNotMatchException, IOException {
+		byte[] data = page.getpage();
+		return compare(data, slotOffset(data, slot), key, encode(key));
+	}
+
+	/**
+	 * lowerBound for an integer key, working on the raw page bytes only.
+	 *
+	 * @return the first slot whose key is not smaller than the key, or the slot
+	 *         count if there is none
+	 */
+	static int lowerBound(byte[] data, int key) {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (getInt(data, slotOffset(data, mid)) < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * indexChildBefore for an integer key, working on the raw page bytes only.
+	 *
+	 * @return the child page number
+	 */
+	static int indexChildBefore(byte[] data, int key) {
+		int slot = lowerBound(data, key) - 1;
+		if (slot < 0)
+			return getInt(data, HFPage.PREV_PAGE);
+		return childAt(data, slot);
+	}
+
+	/**
+	 * Copy the rid stored in a leaf slot into the given rid.
+	 */
+	static void ridAt(byte[] data, int slot, RID rid) {
+		// leaf data is the rid's slot number then its page number
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		if (rid.pageNo == null)
+			rid.pageNo = new PageId();
+		rid.pageNo.pid = getInt(data, end - 4);
+		rid.slotNo = getInt(data, end - 8);
+	}
+
+	/**
+	 * Overwrite the rid stored in a leaf slot.
+	 */
+	static void setRidAt(byte[] data, int slot, RID rid) {
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		LongKeyPage.putInt(data, end - 4, rid.pageNo.pid);
+		LongKeyPage.putInt(data, end - 8, rid.slotNo);
+	}
+
+	static short pageType(byte[] data) {
+		return (short) getUnsignedShort(data, HFPage.TYPE);
+	}
+
+	static int slotCount(byte[] data) {
+		return (short) getUnsignedShort(data, HFPage.SLOT_CNT);
+	}
+
+	static int nextPage(byte[] data) {
+		return getInt(data, HFPage.NEXT_PAGE);
+	}
+
+	private static int search(BTSortedPage page, KeyClass key, boolean upper)
+			throws KeyNotMatchException, IOException {
+		byte[] data = page.getpage();
+		byte[] keyBytes = encode(key);
+		int lo = 0;
+		int hi = page.getSlotCnt();
+		// an append, a key beyond the last one, takes a single comparison
+		if (hi > 0) {
+			int cmp = compare(data, slotOffset(data, hi - 1), key, keyBytes);
+			if (cmp < 0 || (upper && cmp == 0))
+				return hi;
+			hi--;
+		}
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compare(data, slotOffset(data, mid), key, keyBytes);
+			if (cmp < 0 || (upper && cmp == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * String keys are encoded once per search so that comparisons can run on raw
+	 * bytes; integer keys need no encoding.
+	 */
+	private static byte[] encode(KeyClass key) throws KeyNotMatchException, IOException {
+		if (key instanceof IntegerKey)
+			return null;
+		if (key instanceof StringKey) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			new DataOutputStream(bytes).writeUTF(((StringKey) key).getKey());
+			return bytes.toByteArray();
+		}
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	private static int compare(byte[] data, int offset, KeyClass key, byte[] keyBytes) throws KeyNotMatchException {
+		if (keyBytes == null) {
+			int stored = getInt(data, offset);
+			int search = ((IntegerKey) key).getKey().intValue();
+			return stored < search ? -1 : (stored == search ? 0 : 1);
+		}
+		return compareUTF(data, offset, keyBytes);
+	}
+
+	/*
+	 * Modified UTF-8 sorts like String.compareTo except for '\u0000', which is
+	 * written as 0xC0 0x80; 0xC0 never starts any other character, so a byte
+	 * mismatch on it means that side holds the smaller character.
+	 */
+	private static int compareUTF(byte[] data, int offset, byte[] keyBytes) {
+		int storedLength = getUnsignedShort(data, offset);
+		int searchLength = getUnsignedShort(keyBytes, 0);
+		int length = Math.min(storedLength, searchLength);
+		for (int i = 2; i < length + 2; i++) {
+			int a = data[offset + i] & 0xff;
+			int b = keyBytes[i] & 0xff;
+			if (a != b) {
+				if (a == 0xc0)
+					return -1;
+				if (b == 0xc0)
+					return 1;
+				return a - b;
+			}
+		}
+		return storedLength - searchLength;
+	}
+
+	static int childAt(byte[] data, int slot) {
+		// index data is the child page number at the end of the record
+		return getInt(data, slotOffset(data, slot) + slotLength(data, slot) - 4);
+	}
+
+	static int slotLength(byte[] data, int slot) {
+		return (short) getUnsignedShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT);
+	}
+
+	static int slotOffset(byte[] data, int slot) {
+		return (short) getUnsignedShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2);
+	}
+
+	static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+				| (data[offset + 3] & 0xff);
+	}
+
+	private static int getUnsignedShort(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+	}
+}
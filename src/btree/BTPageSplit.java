@@ -0,0 +1,146 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTPageSplit.java Splits of a BTSortedPage done on its slot directory. The
+ * records of the upper slots are copied into the new page with one
+ * System.arraycopy each, and the slot directories of both pages are rebuilt in
+ * one pass, instead of moving every record with insertRecord and
+ * deleteSortedRecord, which compact the page on each call.
+ *
+ * The pages keep the layout HFPage builds: slot i at DPFIXED + 4 * i, records
+ * packed at the end of the page from USED_PTR on, and FREE_SPACE the gap
+ * between the two. Sorted pages compact their slots on delete, so no slot is
+ * empty.
+ *
+ * A page ends where the byte array of its frame does, which is past MAX_SPACE
+ * in a database of larger pages; HFPage.init lays out MAX_SPACE bytes, and
+ * fitFrame stretches a new page over the rest.
+ */
+final class BTPageSplit implements GlobalConst {
+
+	private BTPageSplit() {
+	}
+
+	/**
+	 * Move the records of the slots from first on to an empty page, in order,
+	 * and pack the records left behind at the end of the page.
+	 *
+	 * @param from
+	 *            the page split. Input and output parameter.
+	 * @param to
+	 *            an empty sorted page. Output parameter.
+	 * @param first
+	 *            the first slot to move. Input parameter.
+	 */
+	static void moveUpper(byte[] from, byte[] to, int first) {
+		int count = BTPageSearch.slotCount(from);
+		byte[] old = from.clone();
+
+		int used = to.length;
+		for (int slot = first; slot < count; slot++) {
+			int length = BTPageSearch.slotLength(old, slot);
+			used -= length;
+			System.arraycopy(old, BTPageSearch.slotOffset(old, slot), to, used, length);
+			setSlot(to, slot - first, length, used);
+		}
+		setHeader(to, count - first, used);
+
+		used = from.length;
+		for (int slot = 0; slot < first; slot++) {
+			int length = BTPageSearch.slotLength(old, slot);
+			used -= length;
+			System.arraycopy(old, BTPageSearch.slotOffset(old, slot), from, used, length);
+			setSlot(from, slot, length, used);
+		}
+		setHeader(from, first, used);
+	}
+
+	/**
+	 * Insert a record at a slot, shifting the slots from there on up by one.
+	 * Unlike insertRecord, which puts a record after every equal key, this keeps
+	 * the order of index entries that share a key.
+	 *
+	 * @param data
+	 *            a sorted page with room for the record and its slot. Input and
+	 *            output parameter.
+	 * @param slot
+	 *            the slot of the new record, at most the slot count. Input
+	 *            parameter.
+	 * @param record
+	 *            the record. Input parameter.
+	 */
+	static void insertAt(byte[] data, int slot, byte[] record) {
+		int count = BTPageSearch.slotCount(data);
+		int used = getUnsignedShort(data, HFPage.USED_PTR) - record.length;
+		System.arraycopy(record, 0, data, used, record.length);
+		int position = HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT;
+		System.arraycopy(data, position, data, position + HFPage.SIZE_OF_SLOT, (count - slot) * HFPage.SIZE_OF_SLOT);
+		setSlot(data, slot, record.length, used);
+		setHeader(data, count + 1, used);
+	}
+
+	/**
+	 * @return a copy of the record of a slot
+	 */
+	static byte[] recordAt(byte[] data, int slot) {
+		int offset = BTPageSearch.slotOffset(data, slot);
+		return Arrays.copyOfRange(data, offset, offset + BTPageSearch.slotLength(data, slot));
+	}
+
+	/**
+	 * @return the index record of the key of a record and a child page
+	 */
+	static byte[] indexRecord(byte[] record, int dataLength, int child) {
+		byte[] entry = Arrays.copyOf(record, record.length - dataLength + 4);
+		LongKeyPage.putInt(entry, entry.length - 4, child);
+		return entry;
+	}
+
+	/**
+	 * Lay out an empty page over the whole of its frame.
+	 *
+	 * @param data
+	 *            a page that HFPage.init has just laid out. Input and output
+	 *            parameter.
+	 */
+	static void fitFrame(byte[] data) {
+		if (data.length > MAX_SPACE)
+			setHeader(data, 0, data.length);
+	}
+
+	/**
+	 * @return the space the slots from first up to end take, records and slots
+	 */
+	static int usedSpace(byte[] data, int first, int end) {
+		int used = 0;
+		for (int slot = first; slot < end; slot++)
+			used += BTPageSearch.slotLength(data, slot) + HFPage.SIZE_OF_SLOT;
+		return used;
+	}
+
+	private static void setSlot(byte[] data, int slot, int length, int offset) {
+		int position = HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT;
+		putShort(data, position, length);
+		putShort(data, position + 2, offset);
+	}
+
+	private static void setHeader(byte[] data, int count, int used) {
+		putShort(data, HFPage.SLOT_CNT, count);
+		putShort(data, HFPage.USED_PTR, used);
+		putShort(data, HFPage.FREE_SPACE, used - HFPage.DPFIXED - count * HFPage.SIZE_OF_SLOT);
+	}
+
+	private static int getUnsignedShort(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+	}
+
+	private static void putShort(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 8);
+		data[offset + 1] = (byte) value;
+	}
+}
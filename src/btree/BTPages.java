@@ -0,0 +1,189 @@
+package btree;
+
+import java.io.*;
+import java.util.concurrent.locks.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTPages.java The requests BTreeFile and LongBTreeFile make to the buffer
+ * manager, the DB and the WriteAheadLog. Requests to the buffer manager are
+ * serialized on SystemDefs.JavabaseBM, unless it is a ConcurrentBufMgr, and
+ * requests to the DB on SystemDefs.JavabaseDB as well. When a log is
+ * installed, the unpins of dirty pages and the frees are put off until the
+ * unit of the calling thread is on disk.
+ */
+final class BTPages implements GlobalConst {
+
+	private BTPages() {
+	}
+
+	static Page pinPage(PageId pageno, Page page) throws PinPageException {
+		try {
+			BufMgr bufMgr = SystemDefs.JavabaseBM;
+			if (bufMgr instanceof ConcurrentBufMgr)
+				bufMgr.pinPage(pageno, page, false/* Rdisk */);
+			else
+				synchronized (bufMgr) {
+					bufMgr.pinPage(pageno, page, false/* Rdisk */);
+				}
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	static void unpinPage(PageId pageno, boolean dirty) throws UnpinPageException {
+		WriteAheadLog log = dirty ? WriteAheadLog.installed() : null;
+		if (log != null && log.deferUnpin(pageno))
+			return;
+		try {
+			unpin(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	/*
+	 * Unpin a page now, even if the log would put the unpin off.
+	 */
+	static void unpin(PageId pageno, boolean dirty)
+			throws ReplacerException, PageUnpinnedException, HashEntryNotFoundException, InvalidFrameNumberException {
+		BufMgr bufMgr = SystemDefs.JavabaseBM;
+		if (bufMgr instanceof ConcurrentBufMgr)
+			bufMgr.unpinPage(pageno, dirty);
+		else
+			synchronized (bufMgr) {
+				bufMgr.unpinPage(pageno, dirty);
+			}
+	}
+
+	/*
+	 * Allocate and pin a page.
+	 */
+	static PageId newPage(Page page) throws ConstructPageException {
+		PageId pageno;
+		try {
+			BufMgr bufMgr = SystemDefs.JavabaseBM;
+			if (bufMgr instanceof ConcurrentBufMgr)
+				pageno = bufMgr.newPage(page, 1);
+			else
+				synchronized (bufMgr) {
+					pageno = bufMgr.newPage(page, 1);
+				}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "new page failed");
+		}
+		if (pageno == null)
+			throw new ConstructPageException(null, "new page failed");
+		allocated(pageno);
+		return pageno;
+	}
+
+	static void freePage(PageId pageno) throws FreePageException {
+		WriteAheadLog log = WriteAheadLog.installed();
+		if (log != null && log.deferFree(pageno))
+			return;
+		try {
+			BufMgr bufMgr = SystemDefs.JavabaseBM;
+			if (bufMgr instanceof ConcurrentBufMgr)
+				bufMgr.freePage(pageno);
+			else
+				synchronized (bufMgr) {
+					bufMgr.freePage(pageno);
+				}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+	}
+
+	/*
+	 * Record a page allocated outside newPage with the log, if one is installed.
+	 */
+	static void allocated(PageId pageno) {
+		WriteAheadLog log = WriteAheadLog.installed();
+		if (log != null)
+			log.allocated(pageno);
+	}
+
+	/*
+	 * Begin a unit of the log for an operation that changes a tree, if a log
+	 * is installed, taking the log latch of the tree. Must come before the tree
+	 * latch and the page latches are taken.
+	 */
+	static WriteAheadLog beginLogged(ReentrantLock logLatch, int op) throws IOException {
+		WriteAheadLog log = WriteAheadLog.installed();
+		if (log == null)
+			return null;
+		logLatch.lock();
+		try {
+			log.begin(op);
+		} catch (IOException e) {
+			logLatch.unlock();
+			throw e;
+		}
+		return log;
+	}
+
+	/*
+	 * End the unit begun by beginLogged and wait until it is on disk, unless
+	 * it is nested in another one.
+	 */
+	static void endLogged(ReentrantLock logLatch, WriteAheadLog log) throws IOException {
+		if (log == null)
+			return;
+		boolean outermost;
+		try {
+			outermost = log.end();
+		} finally {
+			logLatch.unlock();
+		}
+		if (outermost)
+			log.commit();
+	}
+
+	static PageId get_file_entry(String filename) throws GetFileEntryException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				synchronized (SystemDefs.JavabaseDB) {
+					return SystemDefs.JavabaseDB.get_file_entry(filename);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new GetFileEntryException(e, "");
+		}
+	}
+
+	static void add_file_entry(String fileName, PageId pageno) throws AddFileEntryException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				synchronized (SystemDefs.JavabaseDB) {
+					SystemDefs.JavabaseDB.add_file_entry(fileName, pageno);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AddFileEntryException(e, "");
+		}
+	}
+
+	static void delete_file_entry(String filename) throws DeleteFileEntryException {
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				synchronized (SystemDefs.JavabaseDB) {
+					SystemDefs.JavabaseDB.delete_file_entry(filename);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DeleteFileEntryException(e, "");
+		}
+	}
+}
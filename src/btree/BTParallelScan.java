@@ -0,0 +1,131 @@
+package btree;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * BTParallelScan.java The Spliterator of BTreeFile.parallelRidStream. The range
+ * is cut into sub-ranges at separator keys of the upper index levels, so that
+ * each sub-range covers about the same number of leaves, and trySplit hands
+ * half of the sub-ranges to another Spliterator. A sub-range is read by a
+ * BTBatchScan of its own, opened when it is reached, which descends to its
+ * first key with findRunStart; so the parts of a parallel stream on a
+ * ForkJoinPool walk disjoint stretches of the leaf chain at the same time.
+ *
+ * Sub-range i holds the keys from starts[i] on that are smaller than
+ * starts[i + 1], and the last one the keys up to hi_key. Rids are packed as by
+ * BTBatchScan.
+ */
+final class BTParallelScan implements Spliterator.OfLong {
+
+	private final BTreeFile bfile;
+	// the first keys of the sub-ranges; null stands for the start of the index
+	private final Integer[] starts;
+	private final IntegerKey hiKey;
+	// the estimated number of entries of a sub-range
+	private final long rangeSize;
+	// the scans that are open, for close
+	private final Set<BTBatchScan> open;
+
+	// the sub-ranges of this Spliterator not started yet, and the current one
+	private int next;
+	private final int end;
+	private BTRidSpliterator current;
+	private BTBatchScan currentScan;
+
+	BTParallelScan(BTreeFile bfile, Integer[] starts, IntegerKey hiKey, long rangeSize) {
+		this(bfile, starts, hiKey, rangeSize, Collections.newSetFromMap(new ConcurrentHashMap<BTBatchScan, Boolean>()),
+				0, starts.length);
+	}
+
+	private BTParallelScan(BTreeFile bfile, Integer[] starts, IntegerKey hiKey, long rangeSize,
+			Set<BTBatchScan> open, int next, int end) {
+		this.bfile = bfile;
+		this.starts = starts;
+		this.hiKey = hiKey;
+		this.rangeSize = rangeSize;
+		this.open = open;
+		this.next = next;
+		this.end = end;
+	}
+
+	public boolean tryAdvance(LongConsumer action) {
+		while (current == null || !current.tryAdvance(action)) {
+			finish();
+			if (!start())
+				return false;
+		}
+		return true;
+	}
+
+	public void forEachRemaining(LongConsumer action) {
+		do {
+			if (current != null)
+				current.forEachRemaining(action);
+			finish();
+		} while (start());
+	}
+
+	public Spliterator.OfLong trySplit() {
+		// the sub-range being read comes first, so none can be handed off then
+		int half = (end - next) / 2;
+		if (half == 0 || current != null)
+			return null;
+		BTParallelScan prefix = new BTParallelScan(bfile, starts, hiKey, rangeSize, open, next, next + half);
+		next += half;
+		return prefix;
+	}
+
+	public long estimateSize() {
+		return (end - next) * rangeSize;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/*
+	 * Close the scans that are open, when a stream stops early.
+	 */
+	void close() throws UnpinPageException {
+		for (BTBatchScan scan : open)
+			scan.close();
+		open.clear();
+	}
+
+	// open the scan of the next sub-range; false if there is none
+	private boolean start() {
+		if (next == end)
+			return false;
+		int i = next++;
+		IntegerKey lo = starts[i] == null ? null : new IntegerKey(starts[i]);
+		// an exclusive bound: starts[i + 1] - 1 overflows at Integer.MIN_VALUE
+		long end;
+		if (i + 1 < starts.length)
+			end = starts[i + 1];
+		else
+			end = hiKey == null ? Long.MAX_VALUE : hiKey.getKey().intValue() + 1L;
+		try {
+			currentScan = bfile.new_batch_scan(lo, end);
+		} catch (Exception e) {
+			throw new IllegalStateException("parallel scan failed", e);
+		}
+		open.add(currentScan);
+		current = new BTRidSpliterator(currentScan);
+		return true;
+	}
+
+	private void finish() {
+		if (currentScan != null) {
+			try {
+				currentScan.close();
+			} catch (UnpinPageException e) {
+				throw new IllegalStateException(e);
+			}
+			open.remove(currentScan);
+			currentScan = null;
+			current = null;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package btree;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * BTRidSpliterator.java The Spliterator of BTBatchScan.ridSpliterator. It
+ * refills a buffer of BATCH entries from the scan with nextBatch and hands out
+ * their rids packed into longs. The scan is closed when it runs out.
+ */
+final class BTRidSpliterator implements Spliterator.OfLong {
+
+	static final int BATCH = 512;
+
+	private final BTBatchScan scan;
+	private final int[] keys = new int[BATCH];
+	private final int[] pageNos = new int[BATCH];
+	private final int[] slotNos = new int[BATCH];
+	private int next;
+	private int count;
+
+	BTRidSpliterator(BTBatchScan scan) {
+		this.scan = scan;
+	}
+
+	public boolean tryAdvance(LongConsumer action) {
+		if (next == count && !fill())
+			return false;
+		action.accept(pack(next++));
+		return true;
+	}
+
+	public void forEachRemaining(LongConsumer action) {
+		while (next < count || fill())
+			while (next < count)
+				action.accept(pack(next++));
+	}
+
+	public Spliterator.OfLong trySplit() {
+		return null;
+	}
+
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	private long pack(int i) {
+		return ((long) pageNos[i] << 32) | (slotNos[i] & 0xffffffffL);
+	}
+
+	// read the next batch; false once the scan is done
+	private boolean fill() {
+		try {
+			count = scan.nextBatch(keys, pageNos, slotNos);
+			next = 0;
+			if (count == 0)
+				scan.close();
+			return count > 0;
+		} catch (Exception e) {
+			throw new IllegalStateException("batch scan failed", e);
+		}
+	}
+}
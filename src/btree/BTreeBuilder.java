@@ -0,0 +1,490 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTreeBuilder.java Bulk loads an empty BTreeFile bottom-up instead of calling
+ * insert once per key. Leaf pages are packed left to right up to a fill factor
+ * and chained through their prev/next links. Every finished page hands its
+ * lowest key up to the right-most index page of the level above, so the index
+ * levels grow alongside the leaves and the header is updated once with the
+ * final root. Operations on the tree wait until the load is done.
+ */
+public class BTreeBuilder implements GlobalConst {
+
+	/** fill factor used when none is given: leave some room for later inserts */
+	public final static double DEFAULT_FILL_FACTOR = 0.9;
+
+	/** number of entries sorted in memory per run by loadUnsorted */
+	public final static int DEFAULT_RUN_SIZE = 100000;
+
+	private BTreeFile file;
+	private double fillFactor;
+	private short keyType;
+	private int maxKeySize;
+
+	// the leaf currently being filled, still pinned, and its lowest key
+	private BTLeafPage curLeaf;
+	private KeyClass curLeafLowKey;
+	private int pageCapacity;
+
+	// right-most index page of each level (0 = parent of the leaves), the
+	// lowest key reachable below it and the key of its last entry
+	private ArrayList<BTIndexPage> openIndex;
+	private ArrayList<KeyClass> openLowKey;
+	private ArrayList<KeyClass> openLastKey;
+
+	private KeyClass lastKey;
+	private int count;
+
+	// pages written by the load, when a WriteAheadLog is installed
+	private ArrayList<Integer> written;
+
+	/**
+	 * Bulk loader with the default fill factor.
+	 *
+	 * @param file
+	 *            the B+ tree file to load. It must be empty. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTreeBuilder(BTreeFile file) throws IOException {
+		this(file, DEFAULT_FILL_FACTOR);
+	}
+
+	/**
+	 * Bulk loader with a given fill factor.
+	 *
+	 * @param file
+	 *            the B+ tree file to load. It must be empty. Input parameter.
+	 * @param fillFactor
+	 *            fraction of each page to fill, in (0, 1]. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTreeBuilder(BTreeFile file, double fillFactor) throws IOException {
+		if (fillFactor <= 0 || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+		this.file = file;
+		this.fillFactor = fillFactor;
+		keyType = file.getHeaderPage().get_keyType();
+		maxKeySize = file.getHeaderPage().get_maxKeySize();
+	}
+
+	/**
+	 * Load the tree from <key, rid> pairs that are already sorted by key.
+	 * Duplicates are allowed.
+	 *
+	 * @param entries
+	 *            leaf entries in ascending key order. Input parameter.
+	 * @return the number of entries loaded
+	 * @exception InsertException
+	 *                the tree is not empty or the input is not sorted
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                an entry does not carry leaf data
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int load(Iterator<KeyDataEntry> entries) throws InsertException, KeyTooLongException, KeyNotMatchException,
+			NodeNotMatchException, LeafInsertRecException, IndexInsertRecException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException, IOException {
+		file.beginBuild();
+		try {
+			begin();
+			while (entries.hasNext())
+				add(entries.next());
+			return finish();
+		} finally {
+			file.endBuild();
+		}
+	}
+
+	/**
+	 * Load the tree from <key, rid> pairs in any order, sorting runs of
+	 * DEFAULT_RUN_SIZE entries at a time.
+	 *
+	 * @param entries
+	 *            leaf entries in any order. Input parameter.
+	 * @return the number of entries loaded
+	 * @see #loadUnsorted(Iterator, int)
+	 */
+	public int loadUnsorted(Iterator<KeyDataEntry> entries) throws InsertException, KeyTooLongException,
+			KeyNotMatchException, NodeNotMatchException, LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException, ConvertException,
+			IOException {
+		return loadUnsorted(entries, DEFAULT_RUN_SIZE);
+	}
+
+	/**
+	 * Load the tree from <key, rid> pairs in any order. The input is cut into
+	 * runs of runSize entries, each run is sorted in memory and spilled to a
+	 * temporary file, and the runs are merged straight into the loader.
+	 *
+	 * @param entries
+	 *            leaf entries in any order. Input parameter.
+	 * @param runSize
+	 *            number of entries sorted in memory at a time. Input parameter.
+	 * @return the number of entries loaded
+	 * @exception ConvertException
+	 *                error when convert between record and byte array
+	 * @see #load(Iterator)
+	 */
+	public int loadUnsorted(Iterator<KeyDataEntry> entries, int runSize) throws InsertException, KeyTooLongException,
+			KeyNotMatchException, NodeNotMatchException, LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException, ConvertException,
+			IOException {
+		if (runSize < 1)
+			throw new IllegalArgumentException("run size must be positive: " + runSize);
+
+		ArrayList<File> runs = new ArrayList<File>();
+		ArrayList<KeyDataEntry> buffer = new ArrayList<KeyDataEntry>();
+		ArrayList<Run> readers = new ArrayList<Run>();
+		try {
+			while (entries.hasNext()) {
+				buffer.add(entries.next());
+				if (buffer.size() == runSize) {
+					runs.add(spill(buffer));
+					buffer.clear();
+				}
+			}
+
+			// everything fit in one run: no need to touch the disk
+			if (runs.isEmpty()) {
+				BTreeFile.sortEntries(buffer);
+				return load(buffer.iterator());
+			}
+			if (!buffer.isEmpty())
+				runs.add(spill(buffer));
+			buffer = null;
+
+			for (int i = 0; i < runs.size(); i++) {
+				Run run = new Run(runs.get(i));
+				readers.add(run);
+			}
+
+			// k-way merge: repeatedly take the smallest head among the runs
+			file.beginBuild();
+			try {
+				begin();
+				Run[] heap = new Run[readers.size()];
+				int size = 0;
+				for (int i = 0; i < readers.size(); i++) {
+					if (readers.get(i).advance())
+						size = siftUp(heap, size, readers.get(i));
+				}
+				while (size > 0) {
+					Run top = heap[0];
+					add(top.head);
+					if (top.advance())
+						siftDown(heap, size, 0);
+					else {
+						heap[0] = heap[--size];
+						heap[size] = null;
+						siftDown(heap, size, 0);
+					}
+				}
+				return finish();
+			} finally {
+				file.endBuild();
+			}
+		} finally {
+			for (int i = 0; i < readers.size(); i++)
+				readers.get(i).close();
+			for (int i = 0; i < runs.size(); i++)
+				runs.get(i).delete();
+		}
+	}
+
+	/*
+	 * Prepare for a load: the tree must not have a root yet. The caller holds
+	 * the latches of BTreeFile.beginBuild for the whole load.
+	 */
+	private void begin() throws InsertException, IOException {
+		if (file.getHeaderPage().get_rootId().pid != INVALID_PAGE)
+			throw new InsertException(null, "bulk load requires an empty B+ tree");
+		if (file.hasPostingLists())
+			throw new InsertException(null, "bulk load of a B+ tree with posting lists");
+
+		curLeaf = null;
+		curLeafLowKey = null;
+		openIndex = new ArrayList<BTIndexPage>();
+		openLowKey = new ArrayList<KeyClass>();
+		openLastKey = new ArrayList<KeyClass>();
+		lastKey = null;
+		count = 0;
+		written = WriteAheadLog.installed() != null ? new ArrayList<Integer>() : null;
+	}
+
+	/*
+	 * Append one entry to the right-most leaf, starting a new leaf when the
+	 * current one reached the fill factor.
+	 */
+	private void add(KeyDataEntry entry) throws InsertException, KeyTooLongException, KeyNotMatchException,
+			NodeNotMatchException, LeafInsertRecException, IndexInsertRecException, ConstructPageException,
+			PinPageException, UnpinPageException, IOException {
+		if (!(entry.data instanceof LeafData))
+			throw new NodeNotMatchException(null, "bulk load expects leaf entries");
+		if (BT.getKeyLength(entry.key) > maxKeySize)
+			throw new KeyTooLongException(null, "");
+		if (lastKey != null && BT.keyCompare(lastKey, entry.key) > 0)
+			throw new InsertException(null, "bulk load input is not sorted at entry " + count);
+
+		int needed = BT.getKeyDataLength(entry.key, NodeType.LEAF);
+		if (curLeaf == null) {
+			startLeaf(null);
+		} else if (!fits(curLeaf, needed)) {
+			startLeaf(curLeaf);
+		}
+		// the separator of a leaf is truncated against the last key before it
+		if (curLeafLowKey == null)
+			curLeafLowKey = BTreeFile.separator(lastKey, entry.key);
+
+		if (curLeaf.insertRecord(entry.key, ((LeafData) entry.data).getData()) == null)
+			throw new LeafInsertRecException(null, "bulk load leaf insert failed");
+		lastKey = entry.key;
+		count++;
+	}
+
+	/*
+	 * Close the right-most pages of every level and install the root.
+	 */
+	private int finish() throws KeyNotMatchException, NodeNotMatchException, IndexInsertRecException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException, IOException {
+		if (curLeaf == null)
+			return 0;
+
+		PageId root = curLeaf.getCurPage();
+		closeLeaf(curLeaf);
+		curLeaf = null;
+
+		for (int level = 0; level < openIndex.size(); level++) {
+			BTIndexPage page = openIndex.get(level);
+			PageId pageno = page.getCurPage();
+			boolean top = level == openIndex.size() - 1;
+
+			if (top && page.getSlotCnt() == 0) {
+				// a lone left link: its child is the real root
+				root = page.getPrevPage();
+				file.unpinPage(pageno);
+				file.freePage(pageno);
+				break;
+			}
+
+			release(pageno);
+			if (top)
+				root = pageno;
+			else
+				addChild(level + 1, openLowKey.get(level), pageno);
+		}
+
+		// the load is not logged: its pages go to disk before the root is
+		WriteAheadLog log = WriteAheadLog.installed();
+		if (log != null)
+			log.sync(written);
+		file.installRoot(root);
+		openIndex = null;
+		openLowKey = null;
+		openLastKey = null;
+		written = null;
+		return count;
+	}
+
+	/*
+	 * Allocate a fresh leaf and chain it after prev, which is then handed to
+	 * the index level above.
+	 */
+	private void startLeaf(BTLeafPage prev) throws KeyNotMatchException, NodeNotMatchException,
+			IndexInsertRecException, ConstructPageException, PinPageException, UnpinPageException, IOException {
+		BTLeafPage leaf = file.newLeafPage();
+		leaf.setNextPage(new PageId(INVALID_PAGE));
+		if (prev == null) {
+			leaf.setPrevPage(new PageId(INVALID_PAGE));
+			pageCapacity = leaf.available_space();
+		} else {
+			leaf.setPrevPage(prev.getCurPage());
+			prev.setNextPage(leaf.getCurPage());
+			closeLeaf(prev);
+		}
+		curLeaf = leaf;
+		curLeafLowKey = null;
+	}
+
+	private void closeLeaf(BTLeafPage leaf) throws KeyNotMatchException, NodeNotMatchException,
+			IndexInsertRecException, ConstructPageException, PinPageException, UnpinPageException, IOException {
+		PageId pageno = leaf.getCurPage();
+		release(pageno);
+		addChild(0, curLeafLowKey, pageno);
+	}
+
+	// unpin a finished page
+	private void release(PageId pageno) throws UnpinPageException {
+		file.unpinPage(pageno, true);
+		if (written != null)
+			written.add(pageno.pid);
+	}
+
+	/*
+	 * Hand a finished child page to the right-most index page of a level,
+	 * closing that page and recursing upwards when it is full. The last entry
+	 * of the full page moves to the next page along with the new child, its
+	 * child as the left link, so that every page closed keeps a key and the
+	 * next one starts with one: an index page of a single child would have no
+	 * key at finish.
+	 */
+	private void addChild(int level, KeyClass lowKey, PageId child) throws KeyNotMatchException,
+			NodeNotMatchException, IndexInsertRecException, ConstructPageException, PinPageException,
+			UnpinPageException, IOException {
+		if (level == openIndex.size()) {
+			openIndex.add(newIndexPage(child));
+			openLowKey.add(lowKey);
+			openLastKey.add(null);
+			return;
+		}
+
+		BTIndexPage page = openIndex.get(level);
+		if (page.getSlotCnt() > 1 && !fits(page, BT.getKeyDataLength(lowKey, NodeType.INDEX))) {
+			PageId pageno = page.getCurPage();
+			KeyClass pageLowKey = openLowKey.get(level);
+			int last = page.getSlotCnt() - 1;
+			BTIndexPage next = newIndexPage(new PageId(BTPageSearch.childAt(page.getpage(), last)));
+			// drop the last entry: its child is the left link of next now
+			BTPageSplit.moveUpper(page.getpage(), new byte[page.getpage().length], last);
+			page.setNextPage(next.getCurPage());
+			release(pageno);
+			openIndex.set(level, next);
+			openLowKey.set(level, openLastKey.get(level));
+			addChild(level + 1, pageLowKey, pageno);
+			page = next;
+		}
+
+		if (page.insertKey(lowKey, child) == null)
+			throw new IndexInsertRecException(null, "bulk load index insert failed");
+		openLastKey.set(level, lowKey);
+	}
+
+	private BTIndexPage newIndexPage(PageId leftLink) throws ConstructPageException, IOException {
+		BTIndexPage page = file.newIndexPage();
+		page.setPrevPage(leftLink);
+		return page;
+	}
+
+	/*
+	 * Whether a record of the given length still fits the fill factor. A page
+	 * always takes at least one record.
+	 */
+	private boolean fits(BTSortedPage page, int needed) throws IOException {
+		int free = page.available_space();
+		if (free < needed)
+			return false;
+		if (page.getSlotCnt() == 0)
+			return true;
+		return pageCapacity - free + needed <= fillFactor * pageCapacity;
+	}
+
+	/*
+	 * Sort a run and write it to a temporary file as length-prefixed entries in
+	 * the on-page record format.
+	 */
+	private File spill(ArrayList<KeyDataEntry> buffer)
+			throws KeyNotMatchException, NodeNotMatchException, ConvertException, IOException {
+		BTreeFile.sortEntries(buffer);
+		File run = File.createTempFile("btbuild", ".run");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+		try {
+			for (int i = 0; i < buffer.size(); i++) {
+				byte[] record = BT.getBytesFromEntry(buffer.get(i));
+				out.writeShort(record.length);
+				out.write(record);
+			}
+		} finally {
+			out.close();
+		}
+		return run;
+	}
+
+	private static int siftUp(Run[] heap, int size, Run run) throws KeyNotMatchException {
+		int i = size;
+		heap[i] = run;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (BT.keyCompare(heap[parent].head.key, heap[i].head.key) <= 0)
+				break;
+			Run tmp = heap[parent];
+			heap[parent] = heap[i];
+			heap[i] = tmp;
+			i = parent;
+		}
+		return size + 1;
+	}
+
+	private static void siftDown(Run[] heap, int size, int i) throws KeyNotMatchException {
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < size && BT.keyCompare(heap[left].head.key, heap[smallest].head.key) < 0)
+				smallest = left;
+			if (right < size && BT.keyCompare(heap[right].head.key, heap[smallest].head.key) < 0)
+				smallest = right;
+			if (smallest == i)
+				return;
+			Run tmp = heap[smallest];
+			heap[smallest] = heap[i];
+			heap[i] = tmp;
+			i = smallest;
+		}
+	}
+
+	/**
+	 * A sorted run on disk, read back one entry at a time during the merge.
+	 */
+	private class Run {
+		private DataInputStream in;
+		private byte[] record = new byte[MAX_SPACE];
+		KeyDataEntry head;
+
+		Run(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+
+		boolean advance() throws KeyNotMatchException, NodeNotMatchException, ConvertException, IOException {
+			int length;
+			try {
+				length = in.readShort();
+			} catch (EOFException e) {
+				head = null;
+				return false;
+			}
+			in.readFully(record, 0, length);
+			head = BT.getEntryFromBytes(record, 0, length, keyType, NodeType.LEAF);
+			return true;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -5,6 +5,10 @@
 package btree;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.stream.*;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -20,6 +24,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static int MAGIC0 = 1989;
 
+	// the magic number of a file with posting lists
+	private final static int MAGIC0_POSTINGS = 1991;
+
 	private final static String lineSep = System.getProperty("line.separator");
 
 	private static FileOutputStream fos;
@@ -60,6 +67,79 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private PageId headerPageId;
 	private String dbname;
 
+	// pin, unpin, new and free page requests made to the buffer manager
+	private final AtomicLong bufMgrCalls = new AtomicLong();
+
+	// reused by lookupInt so that a lookup allocates nothing at this level
+	private final ThreadLocal<LookupFrame> lookupFrame = new ThreadLocal<LookupFrame>() {
+		protected LookupFrame initialValue() {
+			return new LookupFrame();
+		}
+	};
+
+	/*
+	 * Concurrency. insert, findRunStart, NaiveDelete and the lookups crab down the
+	 * tree with page latches and share treeLatch. The operations that restructure
+	 * the tree without page latches (full delete, batch insert, bulk load,
+	 * destroy) hold it exclusively. The root id is guarded by the latch of the
+	 * header page.
+	 * Requests to the buffer manager are serialized on SystemDefs.JavabaseBM,
+	 * unless it is a ConcurrentBufMgr, and requests to the DB on
+	 * SystemDefs.JavabaseDB as well.
+	 */
+	private final PageLatches latches = new PageLatches();
+	private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+
+	// an upper bound on the length of an index entry a split can push up, see
+	// isSafe
+	private volatile int maxIndexEntryLength;
+
+	// see setSplitPolicy; the median is the fallback for split points that
+	// leave the new entry no room
+	private volatile SplitPolicy splitPolicy = new AppendSplitPolicy();
+	private static final SplitPolicy MEDIAN_SPLIT = new MedianSplitPolicy();
+
+	// see getSplitStats
+	private final AtomicLong leafSplits = new AtomicLong();
+	private final AtomicLong indexSplits = new AtomicLong();
+	private final AtomicLong leafKeptBytes = new AtomicLong();
+	private final AtomicLong leafSplitBytes = new AtomicLong();
+	private final AtomicLong indexKeptBytes = new AtomicLong();
+	private final AtomicLong indexSplitBytes = new AtomicLong();
+
+	// see setBLinkMode
+	private volatile boolean blinkMode;
+	private final HighKeys highKeys = new HighKeys();
+
+	// see setPinnedLevels
+	private volatile int pinnedLevels;
+	private volatile TopLevels topLevels = TopLevels.NONE;
+	private volatile boolean topLevelsStale;
+
+	// see setScanPrefetch
+	private volatile int prefetchLeaves;
+
+	// see BTreeFile(String, int, int, int, boolean); null without posting lists
+	private PostingList postings;
+
+	// the key type of the header, read once: the header page reads it through
+	// new streams on every call
+	private short keyType;
+
+	/*
+	 * Logging. With a WriteAheadLog installed, every operation that changes the
+	 * tree runs as one unit of the log, and the units of this tree run one at a
+	 * time: logLatch is held from beginLogged until the unit has ended and its
+	 * page images are taken in endLogged. An operation releases its page
+	 * latches before its unit ends, so without that a unit running alongside
+	 * could change a page in between, and the image would hold a change that is
+	 * not logged yet. This serializes all logged operations on the tree, B-link
+	 * inserts included; only commit, the wait for the unit to reach the disk,
+	 * runs outside the latch, so the units of several threads can share a sync.
+	 * The pages a unit changed stay pinned until it is on disk.
+	 */
+	private final ReentrantLock logLatch = new ReentrantLock();
+
 	/**
 	 * Access method to data member.
 	 * 
@@ -70,70 +150,422 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return headerPage;
 	}
 
-	private PageId get_file_entry(String filename) throws GetFileEntryException {
+	/**
+	 * Switch B-link mode on or off. In B-link mode index pages are linked to their
+	 * right siblings like leaf pages, and every split page knows its high key, the
+	 * smallest key that moved to its new sibling. Readers then hold one latch at a
+	 * time and move right when they land on a page that was split behind their
+	 * back, and inserts post a split to the parent level with only the split page
+	 * latched, so neither waits for a split beyond the page being split. Without
+	 * it, operations crab down the tree holding latches from the top.
+	 *
+	 * The mode is not stored in the file; it waits for running operations to
+	 * finish.
+	 *
+	 * @param on
+	 *            true for B-link mode. Input parameter.
+	 */
+	public void setBLinkMode(boolean on) {
+		treeLatch.writeLock().lock();
 		try {
-			return SystemDefs.JavabaseDB.get_file_entry(filename);
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new GetFileEntryException(e, "");
+			blinkMode = on;
+			highKeys.clear();
+		} finally {
+			treeLatch.writeLock().unlock();
 		}
 	}
 
-	private Page pinPage(PageId pageno) throws PinPageException {
+	/**
+	 * Access method to data member.
+	 * 
+	 * @return true if the tree is in B-link mode, see setBLinkMode
+	 */
+	public boolean isBLinkMode() {
+		return blinkMode;
+	}
+
+	/**
+	 * Keep the index pages of the top levels of the tree pinned, so that
+	 * descents find them without asking the buffer manager. Level 1 is the root,
+	 * level 2 its children and so on; leaves are never kept. The pages stay
+	 * pinned until the levels are set to 0 or the file is closed, so they take
+	 * that many frames away from the buffer pool.
+	 *
+	 * A split of a kept page or a new root makes the next operation collect the
+	 * pages again; full delete releases them before it may free pages.
+	 *
+	 * @param levels
+	 *            the number of levels to keep, 0 for none. Input parameter.
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void setPinnedLevels(int levels) throws PinPageException, UnpinPageException {
+		treeLatch.writeLock().lock();
 		try {
-			Page page = new Page();
-			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
-			return page;
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new PinPageException(e, "");
+			releaseTopLevels();
+			pinnedLevels = levels;
+			topLevels = collectTopLevels();
+		} finally {
+			treeLatch.writeLock().unlock();
 		}
 	}
 
-	private void add_file_entry(String fileName, PageId pageno) throws AddFileEntryException {
+	/**
+	 * Access method to data member.
+	 * 
+	 * @return the number of levels kept pinned, see setPinnedLevels
+	 */
+	public int getPinnedLevels() {
+		return pinnedLevels;
+	}
+
+	/**
+	 * Make new scans read leaves ahead of themselves into the buffer pool on a
+	 * background thread, see PrefetchingScan. The number of leaves read ahead
+	 * adapts to the speed of the scan, up to the given limit.
+	 *
+	 * @param leaves
+	 *            the most leaves a scan reads ahead, 0 for no read-ahead. Input
+	 *            parameter.
+	 */
+	public void setScanPrefetch(int leaves) {
+		prefetchLeaves = leaves;
+	}
+
+	/**
+	 * Access method to data member.
+	 * 
+	 * @return the most leaves a scan reads ahead, see setScanPrefetch
+	 */
+	public int getScanPrefetch() {
+		return prefetchLeaves;
+	}
+
+	/**
+	 * Access method to data member.
+	 * 
+	 * @return Return the number of pin, unpin, new and free page requests this
+	 *         btree file made to the buffer manager so far.
+	 */
+	public long getBufMgrCalls() {
+		return bufMgrCalls.get();
+	}
+
+	/**
+	 * Choose where full pages are split from now on, see SplitPolicy. The policy
+	 * is not stored in the file; a file is opened with the APPEND policy.
+	 *
+	 * @param policy
+	 *            the split policy. Input parameter.
+	 */
+	public void setSplitPolicy(SplitPolicy policy) {
+		if (policy == null)
+			throw new IllegalArgumentException("no split policy");
+		splitPolicy = policy;
+	}
+
+	/**
+	 * Access method to data member.
+	 * 
+	 * @return the split policy, see setSplitPolicy
+	 */
+	public SplitPolicy getSplitPolicy() {
+		return splitPolicy;
+	}
+
+	/**
+	 * @return the counts of the page splits made since the file was opened
+	 */
+	public SplitStats getSplitStats() {
+		SplitStats stats = new SplitStats();
+		stats.policy = splitPolicy.getName();
+		stats.leafSplits = leafSplits.get();
+		stats.indexSplits = indexSplits.get();
+		stats.leafKeptBytes = leafKeptBytes.get();
+		stats.leafBytes = leafSplitBytes.get();
+		stats.indexKeptBytes = indexKeptBytes.get();
+		stats.indexBytes = indexSplitBytes.get();
+		return stats;
+	}
+
+	/**
+	 * The pages of the file span the frames of the buffer manager: MAX_SPACE
+	 * bytes with BufMgr, the page size of the database with a
+	 * ConcurrentBufMgr.
+	 *
+	 * @return the size of the pages of the file
+	 */
+	public int getPageSize() {
+		return headerPage.getpage().length;
+	}
+
+	/**
+	 * Describe the shape of the tree, reading every page; see
+	 * getTreeStats(double).
+	 *
+	 * @return the statistics of the tree
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public TreeStats getTreeStats() throws PinPageException, UnpinPageException {
+		return getTreeStats(1);
+	}
+
+	/**
+	 * Describe the shape of the tree: the pages of each level and how full they
+	 * are, the entries and keys of the leaves, and the pages a scan reads. The
+	 * index levels are read whole; of the leaves, a share spread evenly over
+	 * the leaf level. The walk holds the tree latch shared, like a lookup, so
+	 * full deletes and batch inserts wait for it; inserts and naive deletes
+	 * made meanwhile may or may not be counted.
+	 *
+	 * @param sampleRate
+	 *            the share of the leaves to read, in (0, 1]. Input parameter.
+	 * @return the statistics of the tree
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public TreeStats getTreeStats(double sampleRate) throws PinPageException, UnpinPageException {
+		if (!(sampleRate > 0 && sampleRate <= 1))
+			throw new IllegalArgumentException("sample rate must be in (0, 1]: " + sampleRate);
+		TreeStats stats = new TreeStats(getPageSize(), splitPolicy.getName());
+		refreshTopLevels();
+		treeLatch.readLock().lock();
 		try {
-			SystemDefs.JavabaseDB.add_file_entry(fileName, pageno);
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new AddFileEntryException(e, "");
+			latches.latch(headerPageId.pid, false);
+			int root = BTPageSearch.getInt(headerPage.getpage(), HFPage.NEXT_PAGE);
+			latches.unlatch(headerPageId.pid, false);
+
+			// read the tree level by level; the first page of a level tells
+			// whether it is the leaf level
+			ArrayList<Integer> level = new ArrayList<Integer>();
+			if (root != INVALID_PAGE)
+				level.add(root);
+			while (!level.isEmpty()) {
+				ArrayList<Integer> children = new ArrayList<Integer>();
+				int depth = stats.addLevel(level.size());
+				boolean leaves = false;
+				for (int i = 0; i < level.size(); i++) {
+					if (leaves && Math.floor((i + 1) * sampleRate) == Math.floor(i * sampleRate))
+						continue;
+					int pid = level.get(i);
+					PageId pageno = new PageId(pid);
+					latches.latch(pid, false);
+					try {
+						byte[] data = pinPage(pageno).getpage();
+						try {
+							stats.addPage(depth, data);
+							leaves = BTPageSearch.pageType(data) == NodeType.LEAF;
+							if (!leaves) {
+								children.add(BTPageSearch.getInt(data, HFPage.PREV_PAGE));
+								for (int slot = 0; slot < BTPageSearch.slotCount(data); slot++)
+									children.add(BTPageSearch.childAt(data, slot));
+							}
+						} finally {
+							unpinPage(pageno);
+						}
+					} finally {
+						latches.unlatch(pid, false);
+					}
+				}
+				level = children;
+			}
+		} finally {
+			treeLatch.readLock().unlock();
 		}
+		return stats;
 	}
 
-	private void unpinPage(PageId pageno) throws UnpinPageException {
-		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new UnpinPageException(e, "");
+	Page pinPage(PageId pageno) throws PinPageException {
+		return pinPage(pageno, new Page());
+	}
+
+	private Page pinPage(PageId pageno, Page page) throws PinPageException {
+		Page kept = topLevels.get(pageno.pid);
+		if (kept != null) {
+			page.setpage(kept.getpage());
+			return page;
 		}
+		bufMgrCalls.incrementAndGet();
+		return BTPages.pinPage(pageno, page);
 	}
 
-	private void freePage(PageId pageno) throws FreePageException {
-		try {
-			SystemDefs.JavabaseBM.freePage(pageno);
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new FreePageException(e, "");
+	void unpinPage(PageId pageno) throws UnpinPageException {
+		if (topLevels.get(pageno.pid) != null)
+			return;
+		bufMgrCalls.incrementAndGet();
+		BTPages.unpinPage(pageno, false /* = not DIRTY */);
+	}
+
+	void freePage(PageId pageno) throws FreePageException {
+		bufMgrCalls.incrementAndGet();
+		BTPages.freePage(pageno);
+	}
+
+	void unpinPage(PageId pageno, boolean dirty) throws UnpinPageException {
+		WriteAheadLog log = dirty ? WriteAheadLog.installed() : null;
+		if (topLevels.get(pageno.pid) != null) {
+			if (log != null)
+				log.changed(pageno);
+			return;
 		}
+		bufMgrCalls.incrementAndGet();
+		BTPages.unpinPage(pageno, dirty);
+	}
+
+	BTLeafPage newLeafPage() throws IOException, ConstructPageException {
+		bufMgrCalls.incrementAndGet();
+		BTLeafPage page;
+		if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+			page = new BTLeafPage(headerPage.get_keyType());
+		else
+			synchronized (SystemDefs.JavabaseBM) {
+				page = new BTLeafPage(headerPage.get_keyType());
+			}
+		BTPageSplit.fitFrame(page.getpage());
+		BTPages.allocated(page.getCurPage());
+		return page;
+	}
+
+	BTIndexPage newIndexPage() throws IOException, ConstructPageException {
+		bufMgrCalls.incrementAndGet();
+		BTIndexPage page;
+		if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+			page = new BTIndexPage(headerPage.get_keyType());
+		else
+			synchronized (SystemDefs.JavabaseBM) {
+				page = new BTIndexPage(headerPage.get_keyType());
+			}
+		BTPageSplit.fitFrame(page.getpage());
+		BTPages.allocated(page.getCurPage());
+		return page;
+	}
 
+	/*
+	 * Allocate and pin a page for a posting list.
+	 */
+	PageId newPage(Page page) throws ConstructPageException {
+		bufMgrCalls.incrementAndGet();
+		return BTPages.newPage(page);
 	}
 
-	private void delete_file_entry(String filename) throws DeleteFileEntryException {
+	/*
+	 * Collect the index pages of the top pinnedLevels levels, breadth first, and
+	 * pin each once more for as long as it is kept. Needs treeLatch exclusively.
+	 */
+	private TopLevels collectTopLevels() throws PinPageException, UnpinPageException {
+		TreeMap<Integer, Page> kept = new TreeMap<Integer, Page>();
 		try {
-			SystemDefs.JavabaseDB.delete_file_entry(filename);
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new DeleteFileEntryException(e, "");
+			ArrayList<Integer> level = new ArrayList<Integer>();
+			// the root id is kept in the header page's next page field
+			int root = BTPageSearch.getInt(headerPage.getpage(), HFPage.NEXT_PAGE);
+			if (root != INVALID_PAGE)
+				level.add(root);
+			for (int depth = 0; depth < pinnedLevels && !level.isEmpty(); depth++) {
+				ArrayList<Integer> children = new ArrayList<Integer>();
+				for (int pid : level) {
+					PageId pageno = new PageId(pid);
+					Page page = pinPage(pageno);
+					byte[] data = page.getpage();
+					if (BTPageSearch.pageType(data) != NodeType.INDEX) {
+						// all pages of a level are of one type: this is the leaf level
+						unpinPage(pageno);
+						break;
+					}
+					kept.put(pid, page);
+					children.add(BTPageSearch.getInt(data, HFPage.PREV_PAGE));
+					for (int slot = 0; slot < BTPageSearch.slotCount(data); slot++)
+						children.add(BTPageSearch.childAt(data, slot));
+				}
+				level = children;
+			}
+		} catch (PinPageException e) {
+			for (int pid : kept.keySet())
+				unpinPage(new PageId(pid));
+			throw e;
 		}
+		topLevelsStale = false;
+		return new TopLevels(kept);
+	}
+
+	/*
+	 * Unpin the kept pages. Needs treeLatch exclusively, or no other user of the
+	 * file. Kept pages are unpinned dirty, since updates to them never reach the
+	 * buffer manager.
+	 */
+	private void releaseTopLevels() throws UnpinPageException {
+		TopLevels old = topLevels;
+		topLevels = TopLevels.NONE;
+		topLevelsStale = pinnedLevels > 0;
+		for (int pid : old.pids)
+			unpinPage(new PageId(pid), true);
 	}
 
-	private void unpinPage(PageId pageno, boolean dirty) throws UnpinPageException {
+	/*
+	 * Collect the kept pages again if a split or a new root made them stale.
+	 * Called before an operation takes treeLatch, since this needs it
+	 * exclusively.
+	 */
+	private void refreshTopLevels() throws PinPageException, UnpinPageException {
+		if (!topLevelsStale)
+			return;
+		treeLatch.writeLock().lock();
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new UnpinPageException(e, "");
+			if (topLevelsStale) {
+				releaseTopLevels();
+				topLevels = collectTopLevels();
+			}
+		} finally {
+			treeLatch.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * The bound starts at the longest index entry a key of the declared maximum
+	 * size makes and is raised by longer keys before they are inserted.
+	 */
+	private synchronized void noteKey(KeyClass key) throws KeyNotMatchException, NodeNotMatchException, IOException {
+		int length = BT.getKeyDataLength(key, NodeType.INDEX);
+		if (length > indexEntryBound())
+			maxIndexEntryLength = length;
+	}
+
+	private synchronized int indexEntryBound() throws IOException {
+		if (maxIndexEntryLength == 0) {
+			maxIndexEntryLength = headerPage.get_maxKeySize() + 4 /* page id */;
+			if (headerPage.get_keyType() == AttrType.attrString)
+				maxIndexEntryLength += 2; // writeUTF length
 		}
+		return maxIndexEntryLength;
+	}
+
+	/*
+	 * Redistribution replaces the key of a child in the parent with a key moved
+	 * between the children, which can be longer than the one it replaces, e.g.
+	 * a whole key for a truncated separator. It is only tried when the parent
+	 * has room for any key.
+	 */
+	private boolean canRedistribute(BTIndexPage parentPage) throws IOException {
+		return parentPage.available_space() >= indexEntryBound();
+	}
+
+	/*
+	 * A page is safe for an insert if it cannot split: a leaf has room for the new
+	 * record and an index page has room for any entry a split below can push up.
+	 * Every key in the tree was noted before it was inserted, so the bound covers
+	 * all of them.
+	 */
+	private boolean isSafe(BTSortedPage page, KeyClass key)
+			throws IOException, KeyNotMatchException, NodeNotMatchException {
+		if (page.getType() == NodeType.LEAF)
+			return page.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF);
+		return page.available_space() >= maxIndexEntryLength;
 	}
 
 	/**
@@ -143,7 +575,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @param filename
 	 *            the B+ tree file name. Input parameter.
 	 * @exception GetFileEntryException
-	 *                can not ger the file from DB
+	 *                can not ger the file from DB, or it is no BTreeFile
 	 * @exception PinPageException
 	 *                failed when pin a page
 	 * @exception ConstructPageException
@@ -151,9 +583,12 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public BTreeFile(String filename) throws GetFileEntryException, PinPageException, ConstructPageException {
 
-		headerPageId = get_file_entry(filename);
+		recover();
+		headerPageId = BTPages.get_file_entry(filename);
 
 		headerPage = new BTreeHeaderPage(headerPageId);
+		checkMagic(filename);
+		openHeader();
 		dbname = new String(filename);
 		/*
 		 * 
@@ -176,7 +611,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *            full delete or naive delete. Input parameter. It is either
 	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
 	 * @exception GetFileEntryException
-	 *                can not get file
+	 *                can not get file, or it is no BTreeFile
 	 * @exception ConstructPageException
 	 *                page constructor failed
 	 * @exception IOException
@@ -186,27 +621,157 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion)
 			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, false);
+	}
+
+	/**
+	 * if index file exists, open it; else create it, with or without posting
+	 * lists. A file with posting lists keeps one leaf entry per key. A key
+	 * inserted more than once keeps its rids in a PostingList, a sorted tree of
+	 * its own that the entry refers to, so the key is stored once and a delete
+	 * binary-searches the list of its key. lookup and lookupInt return the rids of
+	 * the lists; scans return the entries, whose rids postings turns into the rids
+	 * of their lists. A list takes a page of its own from the second rid on, so
+	 * posting lists suit keys that repeat far more often than that.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter.
+	 * @param postingLists
+	 *            true for posting lists. Ignored when the file exists. Input
+	 *            parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file, or it is no BTreeFile
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion, boolean postingLists)
+			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
 
-		headerPageId = get_file_entry(filename);
+		recover();
+		headerPageId = BTPages.get_file_entry(filename);
 		if (headerPageId == null) // file not exist
 		{
-			headerPage = new BTreeHeaderPage();
-			headerPageId = headerPage.getPageId();
-			add_file_entry(filename, headerPageId);
-			headerPage.set_magic0(MAGIC0);
-			headerPage.set_rootId(new PageId(INVALID_PAGE));
-			headerPage.set_keyType((short) keytype);
-			headerPage.set_maxKeySize(keysize);
-			headerPage.set_deleteFashion(delete_fashion);
-			headerPage.setType(NodeType.BTHEAD);
+			// with a log, the header page is logged before the file entry points
+			// to it
+			WriteAheadLog log = BTPages.beginLogged(logLatch, WriteAheadLog.CREATE);
+			try {
+				headerPage = new BTreeHeaderPage();
+				headerPageId = headerPage.getPageId();
+				headerPage.set_magic0(postingLists ? MAGIC0_POSTINGS : MAGIC0);
+				headerPage.set_rootId(new PageId(INVALID_PAGE));
+				headerPage.set_keyType((short) keytype);
+				headerPage.set_maxKeySize(keysize);
+				headerPage.set_deleteFashion(delete_fashion);
+				headerPage.setType(NodeType.BTHEAD);
+				if (log != null) {
+					log.allocated(headerPageId);
+					log.changed(headerPageId);
+				}
+			} finally {
+				BTPages.endLogged(logLatch, log);
+			}
+			log = BTPages.beginLogged(logLatch, WriteAheadLog.CREATE);
+			try {
+				BTPages.add_file_entry(filename, headerPageId);
+				if (log != null)
+					log.changedDirectory();
+			} catch (DiskMgrException e) {
+				throw new AddFileEntryException(e, "");
+			} finally {
+				BTPages.endLogged(logLatch, log);
+			}
 		} else {
 			headerPage = new BTreeHeaderPage(headerPageId);
+			checkMagic(filename);
 		}
+		openHeader();
 
 		dbname = new String(filename);
 
 	}
 
+	/*
+	 * A file of another kind is not opened, and its header page is unpinned
+	 * again. The header of a LongBTreeFile records attrInteger for keys of 8
+	 * bytes as well, so the key type does not tell its pages from BT pages.
+	 */
+	private void checkMagic(String filename) throws GetFileEntryException, ConstructPageException {
+		int magic;
+		try {
+			magic = headerPage.get_magic0();
+		} catch (IOException e) {
+			throw new ConstructPageException(e, "header page");
+		}
+		if (magic == MAGIC0 || magic == MAGIC0_POSTINGS)
+			return;
+		try {
+			BTPages.unpin(headerPageId, false);
+		} catch (Exception e) {
+		}
+		headerPage = null;
+		throw new GetFileEntryException(null, filename + " is not a BTreeFile");
+	}
+
+	private void openHeader() throws ConstructPageException {
+		try {
+			keyType = headerPage.get_keyType();
+			if (headerPage.get_magic0() == MAGIC0_POSTINGS)
+				postings = new PostingList(this);
+		} catch (IOException e) {
+			throw new ConstructPageException(e, "header page");
+		}
+	}
+
+	/**
+	 * @return true if the file keeps the rids of a key in a posting list
+	 */
+	public boolean hasPostingLists() {
+		return postings != null;
+	}
+
+	/**
+	 * Open a scan of the rids of a leaf entry, as returned by a BTFileScan. In a
+	 * file with posting lists the rid of an entry can refer to the posting list
+	 * of its key; the scan then returns the rids of the list. Otherwise it
+	 * returns the rid itself.
+	 *
+	 * @param rid
+	 *            the rid of a leaf entry. Input parameter.
+	 * @return the scan, which must be closed unless it ran to the end
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public PostingScan postings(RID rid) throws PinPageException, UnpinPageException {
+		return new PostingScan(this, rid);
+	}
+
+	/*
+	 * Redo the installed log, if any, before the first file is opened.
+	 */
+	static void recover() throws GetFileEntryException {
+		WriteAheadLog log = WriteAheadLog.installed();
+		if (log == null)
+			return;
+		try {
+			log.recover();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new GetFileEntryException(e, "recovery from the log failed");
+		}
+	}
+
 	/**
 	 * Close the B+ tree file. Unpin header page.
 	 *
@@ -222,7 +787,11 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public void close()
 			throws PageUnpinnedException, InvalidFrameNumberException, HashEntryNotFoundException, ReplacerException {
 		if (headerPage != null) {
-			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
+			TopLevels old = topLevels;
+			topLevels = TopLevels.NONE;
+			for (int pid : old.pids)
+				BTPages.unpin(new PageId(pid), true);
+			BTPages.unpin(headerPageId, true);
 			headerPage = null;
 		}
 	}
@@ -247,14 +816,31 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public void destroyFile() throws IOException, IteratorException, UnpinPageException, FreePageException,
 			DeleteFileEntryException, ConstructPageException, PinPageException {
-		if (headerPage != null) {
-			PageId pgId = headerPage.get_rootId();
-			if (pgId.pid != INVALID_PAGE)
-				_destroyFile(pgId);
-			unpinPage(headerPageId);
-			freePage(headerPageId);
-			delete_file_entry(dbname);
-			headerPage = null;
+		WriteAheadLog log = BTPages.beginLogged(logLatch, WriteAheadLog.DESTROY);
+		try {
+			treeLatch.writeLock().lock();
+			try {
+				if (headerPage != null) {
+					releaseTopLevels();
+					topLevelsStale = false;
+					PageId pgId = headerPage.get_rootId();
+					if (pgId.pid != INVALID_PAGE)
+						_destroyFile(pgId);
+					unpinPage(headerPageId);
+					freePage(headerPageId);
+					BTPages.delete_file_entry(dbname);
+					if (log != null)
+						log.changedDirectory();
+					headerPage = null;
+				}
+			} catch (DiskMgrException e) {
+				throw new DeleteFileEntryException(e, "");
+			} finally {
+				highKeys.clear();
+				treeLatch.writeLock().unlock();
+			}
+		} finally {
+			BTPages.endLogged(logLatch, log);
 		}
 	}
 
@@ -274,15 +860,55 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				childId = ((IndexData) (entry.data)).getData();
 				_destroyFile(childId);
 			}
-		} else { // BTLeafPage
-
-			unpinPage(pageno);
-			freePage(pageno);
+			_destroyFile(indexPage.getPrevPage());
+		} else if (postings != null) {
+			byte[] data = page.getpage();
+			RID entry = new RID();
+			for (int slot = 0; slot < BTPageSearch.slotCount(data); slot++) {
+				BTPageSearch.ridAt(data, slot, entry);
+				if (PostingList.isRef(entry))
+					postings.free(entry.pageNo.pid);
+			}
 		}
 
+		unpinPage(pageno);
+		freePage(pageno);
+
+	}
+
+	/*
+	 * Take the latches of a bulk load: logLatch first if a log is installed, so
+	 * that installRoot can begin its unit without taking it after treeLatch,
+	 * then treeLatch exclusively. The load itself runs outside any unit.
+	 */
+	void beginBuild() {
+		if (WriteAheadLog.installed() != null)
+			logLatch.lock();
+		treeLatch.writeLock().lock();
+	}
+
+	/*
+	 * Release the latches taken by beginBuild.
+	 */
+	void endBuild() {
+		treeLatch.writeLock().unlock();
+		if (logLatch.isHeldByCurrentThread())
+			logLatch.unlock();
+	}
+
+	/*
+	 * Install the root of a bulk loaded tree, as a unit of the log of its own.
+	 */
+	void installRoot(PageId root) throws IOException, PinPageException, UnpinPageException {
+		WriteAheadLog log = BTPages.beginLogged(logLatch, WriteAheadLog.BATCH);
+		try {
+			updateHeader(root);
+		} finally {
+			BTPages.endLogged(logLatch, log);
+		}
 	}
 
-	private void updateHeader(PageId newRoot) throws IOException, PinPageException, UnpinPageException {
+	void updateHeader(PageId newRoot) throws IOException, PinPageException, UnpinPageException {
 
 		BTreeHeaderPage header;
 		PageId old_data;
@@ -291,6 +917,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		old_data = headerPage.get_rootId();
 		header.set_rootId(newRoot);
+		if (pinnedLevels > 0)
+			topLevelsStale = true;
 
 		// clock in dirty bit to bm so our dtor needn't have to worry about it
 		unpinPage(headerPageId, true /* = DIRTY */);
@@ -358,75 +986,111 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		if (trace != null) {
 			trace.flush();
 		}
-		KeyDataEntry rootPoint;
-		// If headerpage is pointing to inavlid page then there is no root page
-		if (headerPage.get_rootId().pid == INVALID_PAGE) {
-			// creating a new leaf page to insert the first key
-			BTLeafPage leafPage = new BTLeafPage(headerPage.get_keyType());
-			// updating header to point to the new leaf page
-			updateHeader(leafPage.getCurPage());
-			//Flush the trace file
-			if(trace != null)
-            {
-                trace.flush();
-            }
-			// setting the root leaf page's next and prev pointers
-			leafPage.setNextPage(new PageId(INVALID_PAGE));
-			leafPage.setPrevPage(new PageId(INVALID_PAGE));
-			// inserting the first key into the leaf page
-			leafPage.insertRecord(key, rid);
-			// unpinning the page after the record inserted and marking it as dirty so that
-			// it is written back to database
-			unpinPage(leafPage.getCurPage(), true);
-			//Flush the trace file
-			if(trace != null)
-            {
-                trace.flush();
-            }
-			/*
-			 * If the header page pointing to index/page calling _insert method to check if
-			 * the record can be inserted or a split to make
-			 */
-		} else {
-			// leafPage = new BTLeafPage(headerPage.get_rootId(), headerPage.get_keyType());
-			// leafPage.insertRecord(key,rid);
-			// unpinPage(leafPage.getCurPage(), true);
-
-			//Flush the trace file
-			if(trace != null)
-            {
-                trace.flush();
-            }
-			rootPoint = _insert(key, rid, headerPage.get_rootId());
-			// If _insert returns null no split occurred
-			if (rootPoint == null) {
+		noteKey(key);
+		refreshTopLevels();
+		/*
+		 * Crab down the tree with write latches, starting with the header page that
+		 * holds the root id. The latches above a page are released as soon as the page
+		 * is safe, i.e. cannot split.
+		 */
+		WriteAheadLog log = BTPages.beginLogged(logLatch, WriteAheadLog.INSERT);
+		try {
+			treeLatch.readLock().lock();
+			if (blinkMode) {
+				try {
+					insertBLink(key, rid);
+				} finally {
+					treeLatch.readLock().unlock();
+				}
 				return;
-				/*
-				 * If keydataentry is returned then split occurred on index/leaf page updating
-				 * the indexpage and headerpage acordingly
-				 */
-			} else {
-				BTIndexPage newIndexPage = new BTIndexPage(headerPage.get_keyType());
-				// inserting the returned key into the index page
-				newIndexPage.insertKey(rootPoint.key, ((IndexData) rootPoint.data).getData());
-				// setting index page point to the header page
-				newIndexPage.setPrevPage(headerPage.get_rootId());
-				// unpinning the index page after record in inserted
-				unpinPage(newIndexPage.getCurPage());
-				// updating the header page point to the index page
-				updateHeader(newIndexPage.getCurPage());
-				//Flush the trace file
-				if(trace != null)
-	            {
-	                trace.flush();
-	            }
 			}
-			//Flush the trace file
-			if(trace != null)
-            {
-                trace.flush();
-            }
-			return;
+			PageLatches.Path path = new PageLatches.Path(latches, true);
+			try {
+				path.latch(headerPageId.pid);
+				KeyDataEntry rootPoint;
+				// If headerpage is pointing to inavlid page then there is no root page
+				if (headerPage.get_rootId().pid == INVALID_PAGE) {
+					insertFirst(key, rid);
+					/*
+					 * If the header page pointing to index/page calling _insert method to check if
+					 * the record can be inserted or a split to make
+					 */
+				} else {
+					// leafPage = new BTLeafPage(headerPage.get_rootId(), headerPage.get_keyType());
+					// leafPage.insertRecord(key,rid);
+					// unpinPage(leafPage.getCurPage(), true);
+
+					//Flush the trace file
+					if(trace != null)
+		            {
+		                trace.flush();
+		            }
+					rootPoint = _insert(key, rid, new PageId(headerPage.get_rootId().pid), path);
+					// If _insert returns null no split occurred
+					if (rootPoint == null) {
+						return;
+						/*
+						 * If keydataentry is returned then split occurred on index/leaf page updating
+						 * the indexpage and headerpage acordingly
+						 */
+					} else {
+						BTIndexPage newIndexPage = newIndexPage();
+						// inserting the returned key into the index page
+						newIndexPage.insertKey(rootPoint.key, ((IndexData) rootPoint.data).getData());
+						// setting index page point to the header page
+						newIndexPage.setPrevPage(headerPage.get_rootId());
+						// unpinning the index page after record in inserted
+						PageId newRootId = newIndexPage.getCurPage();
+						unpinPage(newRootId, true);
+						// updating the header page point to the index page
+						updateHeader(newRootId);
+						//Flush the trace file
+						if(trace != null)
+			            {
+			                trace.flush();
+			            }
+					}
+					//Flush the trace file
+					if(trace != null)
+		            {
+		                trace.flush();
+		            }
+					return;
+				}
+			} finally {
+				path.releaseAll();
+				treeLatch.readLock().unlock();
+			}
+		} finally {
+			BTPages.endLogged(logLatch, log);
+		}
+	}
+
+	/*
+	 * Start the tree with a root leaf page holding the first record. The caller
+	 * holds the write latch of the header page.
+	 */
+	private void insertFirst(KeyClass key, RID rid) throws IOException, ConstructPageException, PinPageException,
+			UnpinPageException, LeafInsertRecException {
+		// creating a new leaf page to insert the first key
+		BTLeafPage leafPage = newLeafPage();
+		// updating header to point to the new leaf page
+		updateHeader(leafPage.getCurPage());
+		//Flush the trace file
+		if (trace != null) {
+			trace.flush();
+		}
+		// setting the root leaf page's next and prev pointers
+		leafPage.setNextPage(new PageId(INVALID_PAGE));
+		leafPage.setPrevPage(new PageId(INVALID_PAGE));
+		// inserting the first key into the leaf page
+		leafPage.insertRecord(key, rid);
+		// unpinning the page after the record inserted and marking it as dirty so
+		// that it is written back to database
+		unpinPage(leafPage.getCurPage(), true);
+		//Flush the trace file
+		if (trace != null) {
+			trace.flush();
 		}
 	}
 
@@ -437,6 +1101,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @param key
 	 * @param rid
 	 * @param currentPageId
+	 * @param path
+	 *            the write latches held above currentPageId
 	 * @return
 	 * @throws PinPageException
 	 * @throws IOException
@@ -454,7 +1120,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @throws NodeNotMatchException
 	 * @throws InsertException
 	 */
-	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId)
+	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId, PageLatches.Path path)
 			throws PinPageException, IOException, ConstructPageException, LeafDeleteException, ConstructPageException,
 			DeleteRecException, IndexSearchException, UnpinPageException, LeafInsertRecException, ConvertException,
 			IteratorException, IndexInsertRecException, KeyNotMatchException, NodeNotMatchException, InsertException
@@ -467,99 +1133,54 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		 * split the page into two pages and redsitribute the elements accordingly Do
 		 * the same for leaf pages too but now instead return duplicate key entry
 		 */
-		KeyDataEntry indexEntry = null, upEntry = null;
-		// pinning the page passed and associating it with a BTSorted page instance
-		BTSortedPage workingPage = new BTSortedPage(pinPage(currentPageId), headerPage.get_keyType());
+		KeyDataEntry upEntry = null;
+		// latching and pinning the page passed and associating it with a BTSorted
+		// page instance
+		path.latch(currentPageId.pid);
+		Page page = pinPage(currentPageId);
+		BTSortedPage workingPage = new BTSortedPage(page, headerPage.get_keyType());
+		// nothing above a page that cannot split will change
+		if (isSafe(workingPage, key))
+			path.releaseAncestors();
 		// checking whether the current page type is an index or leaf.
 		// If it is an index page
 		if (workingPage.getType() == NodeType.INDEX) {
 
 			// Creating a new BTIndex page to associate it with the passed index page
-			BTIndexPage workingIndexpage = new BTIndexPage(pinPage(currentPageId), headerPage.get_keyType());
+			BTIndexPage workingIndexpage = new BTIndexPage(page, headerPage.get_keyType());
 			// varaible to store the page ID
-			PageId insertingIndexPage = workingIndexpage.getPageNoByKey(key);
+			PageId insertingIndexPage = new PageId(BTPageSearch.indexChild(workingIndexpage, key));
 			// Unpinning the current index page and recursively calling _insert method and
 			// pinning it again
-			unpinPage(workingIndexpage.getCurPage());
+			unpinPage(currentPageId);
 			// Checking for whether there is any split on the index page or not by
 			// recursively calling _insert method
-			upEntry = _insert(key, rid, insertingIndexPage);
+			upEntry = _insert(key, rid, insertingIndexPage, path);
+			// the child is done with; its latch is released here, or with the whole
+			// path when the insert is over
+			path.release(insertingIndexPage.pid);
 
 			// If upentry is null, then no split occurred. Return null.
 			if (upEntry == null)
 				return null;
 
-			workingIndexpage = new BTIndexPage(currentPageId, headerPage.get_keyType());
+			workingIndexpage = new BTIndexPage(pinPage(currentPageId), headerPage.get_keyType());
 			/*
 			 * Checking whether the current index page have any space if so insert the
 			 * record and unpin it as it is dirty.
 			 */
 			if (workingIndexpage.available_space() >= BT.getKeyDataLength(upEntry.key, NodeType.INDEX)) {
-				workingIndexpage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
-				unpinPage(workingIndexpage.getCurPage(), true);
+				insertSplitEntry(workingIndexpage, insertingIndexPage.pid, upEntry);
+				unpinPage(currentPageId, true);
 				return null;
 			}
 			// If there is not enough space available then split the records between current
 			// index page and new index page
-			BTIndexPage newIndexPage = new BTIndexPage(headerPage.get_keyType());
-			KeyDataEntry temp;
-			RID tempRid = new RID();
-			int noOfRecords = 0;
-			// Copy all the records from the current index page to the new index page
-			// And delete entries from the existing index page incrementing the noOfRecords
-			for (temp = workingIndexpage.getFirst(tempRid); temp != null; temp = workingIndexpage.getFirst(tempRid)) {
-				noOfRecords = noOfRecords + 1;
-				newIndexPage.insertKey(temp.key, ((IndexData) temp.data).getData());
-				workingIndexpage.deleteSortedRecord(tempRid);
-			}
-
-			int count = 0;
-			// Dividing by 2 to get the middle entry
-			noOfRecords = noOfRecords / 2;
-			KeyDataEntry lastKeyDataEntry = null;
-			// Iterating through the new index page and transferring half of the records to
-			// the
-			// existing index page and deleting them on the new index page
-			for (temp = newIndexPage.getFirst(tempRid); count < noOfRecords; temp = newIndexPage.getFirst(tempRid)) {
-				lastKeyDataEntry = temp;
-				if (count < noOfRecords) {
-					workingIndexpage.insertKey(temp.key, ((IndexData) temp.data).getData());
-					newIndexPage.deleteSortedRecord(tempRid);
-					count++;
-				} else {
-					count++;
-				}
-			}
-			// Undo the last entry and delete it from the existing index page by inserting a
-			// empty RID
-			if (workingIndexpage.available_space() < newIndexPage.available_space()) {
-				newIndexPage.insertKey(lastKeyDataEntry.key, ((IndexData) lastKeyDataEntry.data).getData());
-				workingIndexpage
-						.deleteSortedRecord(new RID(workingIndexpage.getCurPage(), workingIndexpage.getSlotCnt() - 1));
-			}
-			// Compare the upentry key and last entry key and insert in the appropriate
-			// index page
-			temp = newIndexPage.getFirst(tempRid);
-			// If the upentry key is bigger then insert the key in the new index page
-			if (BT.keyCompare(upEntry.key, temp.key) >= 0) {
-				newIndexPage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
-				// else insert in the existing index page
-			} else {
-				workingIndexpage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
-			}
-			// Unpinning the current inde page and set dirty to true
-			unpinPage(workingIndexpage.getCurPage(), true);
-			// Fill up the upEntry with the first key in the new index page
-			upEntry = newIndexPage.getFirst(tempRid);
-			// Setting the prev page pointer of new link page with the upentry page id
-			newIndexPage.setPrevPage(((IndexData) upEntry.data).getData());
-			// Delete first record from the new index page
-			newIndexPage.deleteSortedRecord(tempRid);
-
-			// Unpin the new index page and set dirty to true
+			BTIndexPage newIndexPage = newIndexPage();
+			upEntry = splitIndexPage(workingIndexpage, newIndexPage, upEntry, insertingIndexPage.pid);
+			// Unpin both index pages and set dirty to true
+			unpinPage(currentPageId, true);
 			unpinPage(newIndexPage.getCurPage(), true);
-			// Pointing the new index page by setting the higher index page in the hierarchy
-			((IndexData) upEntry.data).setData(newIndexPage.getCurPage());
 
 			return upEntry;
 
@@ -572,17 +1193,19 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		 */
 		else if (workingPage.getType() == NodeType.LEAF) {
 
-			RID tempRid = new RID();
 			// Asssociate current leaf page with the passed leaf page ID
-			BTLeafPage workingLeafPage = new BTLeafPage(pinPage(currentPageId), headerPage.get_keyType());
+			BTLeafPage workingLeafPage = new BTLeafPage(page, headerPage.get_keyType());
+			if (postings != null && addPosting(workingLeafPage, key, rid)) {
+				unpinPage(currentPageId, true);
+				return null;
+			}
 			// Check if the current leaf page has space for new entries. If so enter the
 			// data on the current leaf
 			// page and unpin it and mark dirty as true
 			if (workingLeafPage.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF)) {
 
-				
 				workingLeafPage.insertRecord(key, rid);
-				unpinPage(workingLeafPage.getCurPage(), true);
+				unpinPage(currentPageId, true);
 				//Flush the trace file
 				if(trace != null)
 	            {
@@ -590,297 +1213,1172 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	            }
 				return null;
 			}
-			/*
-			 * If no space is available to insert data then create a new leaf page and set
-			 * it's prev and next page pointers accordingly. Also set the current leaf
-			 * page's next page pointer.
-			 */
-			else {
-
-				BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());
-				newLeafPage.setNextPage(workingLeafPage.getNextPage());
-				newLeafPage.setPrevPage(workingLeafPage.getCurPage());
-				workingLeafPage.setNextPage(newLeafPage.getCurPage());
-
-				// Cheking if there is a next leaf page to the new leaf page, if so setting the
-				// prev and next page pointers for the new and leaf page next to it
-				if (newLeafPage.getNextPage().pid != INVALID_PAGE) {
-					BTLeafPage nextLeafPage = new BTLeafPage(newLeafPage.getNextPage(), headerPage.get_keyType());
-					nextLeafPage.setPrevPage(newLeafPage.getCurPage());
-					unpinPage(nextLeafPage.getCurPage(), true);
-				}
-				//Flush the trace file
-				if(trace != null)
-	            {
-	                trace.flush();
-	            }
-				// variable for counting the no of records in the existing leaf page.
-				int noOfRecords = 0;
-				// Copy all the records from the existing leaf page to the new leaf page and
-				// delete everything from the existing leaf page
-				for (KeyDataEntry temp = workingLeafPage.getFirst(tempRid); temp != null; temp = workingLeafPage
-						.getFirst(tempRid)) {
-					noOfRecords = noOfRecords + 1;
-					newLeafPage.insertRecord(temp.key, ((LeafData) (temp.data)).getData());
-					workingLeafPage.deleteSortedRecord(tempRid);
-				}
 
-				// Getting split for copying half of the records from the new leaf page to the
-				// existing leaf page and updating temp keydataentry for undoing the last entry
-				int count = 0;
-				noOfRecords = noOfRecords / 2;
-				KeyDataEntry lastKeyDataEntry = null;
-				for (KeyDataEntry temp = newLeafPage.getFirst(tempRid); count < noOfRecords; temp = newLeafPage
-						.getFirst(tempRid)) {
-					lastKeyDataEntry = temp;
-					if (count < noOfRecords) {
-						workingLeafPage.insertRecord(temp.key, ((LeafData) (temp.data)).getData());
-						newLeafPage.deleteSortedRecord(tempRid);
-						count++;
-					} else {
-						count++;
-					}
-				}
-				//Flush the trace file
-				if(trace != null)
-	            {
-	                trace.flush();
-	            }
-               /*
-                * Comparing the key value to be inserted with the last entry key value
-                * If the value is positive then key will be inserted in the new leaf page
-                * Else it will be inserted into the existing leaf page.
-                * Unpin the current leaf page after insertion and mark dirty as true.
-                */
-				if (BT.keyCompare(key, lastKeyDataEntry.key) >= 0) {
-					newLeafPage.insertRecord(key, rid);
-				} else {
-					if (workingLeafPage.available_space() < newLeafPage.available_space()) {
-						newLeafPage.insertRecord(lastKeyDataEntry.key, ((LeafData) (lastKeyDataEntry.data)).getData());
-						workingLeafPage.deleteSortedRecord(
-								new RID(workingLeafPage.getCurPage(), workingLeafPage.getSlotCnt() - 1));
-					}
-					workingLeafPage.insertRecord(key, rid);
-					unpinPage(workingLeafPage.getCurPage());
-				}
-
-				//Get record data to be returned which will copied to the index page
-				lastKeyDataEntry = newLeafPage.getFirst(tempRid);
-				//Initialise index entry with the values of key and page id which will be copied to the index page
-				indexEntry = new KeyDataEntry(lastKeyDataEntry.key, newLeafPage.getCurPage());
-				//Unpin newleaf page
-				unpinPage(newLeafPage.getCurPage());
-				//Flush the trace file
-				if(trace != null)
-	            {
-	                trace.flush();
-	            }
-				return indexEntry;
-			}
+			// If no space is available to insert data then split the leaf into a new
+			// leaf page and copy the first key of the new page up
+			BTLeafPage newLeafPage = newLeafPage();
+			upEntry = splitLeafPage(workingLeafPage, newLeafPage, key, rid);
+			unpinPage(currentPageId, true);
+			unpinPage(newLeafPage.getCurPage(), true);
+			//Flush the trace file
+			if(trace != null)
+            {
+                trace.flush();
+            }
+			return upEntry;
 
 		}
-		
-		return null;
+
+		unpinPage(currentPageId);
+		throw new NodeNotMatchException(null, "");
 
 	}
 
-	/**
-	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry; it
-	 * is not the id of the data entry)
-	 *
-	 * @param key
-	 *            the key in pair <key, rid>. Input Parameter.
-	 * @param rid
-	 *            the rid in pair <key, rid>. Input Parameter.
-	 * @return true if deleted. false if no such record.
-	 * @exception DeleteFashionException
-	 *                neither full delete nor naive delete
-	 * @exception LeafRedistributeException
-	 *                redistribution error in leaf pages
-	 * @exception RedistributeException
-	 *                redistribution error in index pages
-	 * @exception InsertRecException
-	 *                error when insert in index page
-	 * @exception KeyNotMatchException
-	 *                key is neither integer key nor string key
-	 * @exception UnpinPageException
-	 *                error when unpin a page
-	 * @exception IndexInsertRecException
-	 *                error when insert in index page
-	 * @exception FreePageException
-	 *                error in BT page constructor
-	 * @exception RecordNotFoundException
-	 *                error delete a record in a BT page
-	 * @exception PinPageException
-	 *                error when pin a page
-	 * @exception IndexFullDeleteException
-	 *                fill delete error
-	 * @exception LeafDeleteException
-	 *                delete error in leaf page
-	 * @exception IteratorException
-	 *                iterator error
-	 * @exception ConstructPageException
-	 *                error in BT page constructor
-	 * @exception DeleteRecException
-	 *                error when delete in index page
-	 * @exception IndexSearchException
-	 *                error in search in index pages
-	 * @exception IOException
-	 *                error from the lower layer
-	 *
+	/*
+	 * In a file with posting lists, add the rid to the posting list of the key if
+	 * the leaf holds the key already, starting the list if the entry holds a
+	 * single rid. Keys are unique in such a file, so the leaf an insert descends
+	 * to holds the key if the tree does. The caller holds the write latch of the
+	 * leaf and unpins it dirty.
 	 */
-	public boolean Delete(KeyClass key, RID rid)
-			throws DeleteFashionException, LeafRedistributeException, RedistributeException, InsertRecException,
-			KeyNotMatchException, UnpinPageException, IndexInsertRecException, FreePageException,
-			RecordNotFoundException, PinPageException, IndexFullDeleteException, LeafDeleteException, IteratorException,
-			ConstructPageException, DeleteRecException, IndexSearchException, IOException {
-		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			return NaiveDelete(key, rid);
-		else
-			throw new DeleteFashionException(null, "");
+	private boolean addPosting(BTLeafPage leafPage, KeyClass key, RID rid)
+			throws KeyNotMatchException, IOException, ConstructPageException, PinPageException, UnpinPageException {
+		int slot = BTPageSearch.lowerBound(leafPage, key);
+		if (slot == leafPage.getSlotCnt() || BTPageSearch.compareSlot(leafPage, slot, key) != 0)
+			return false;
+		byte[] data = leafPage.getpage();
+		RID entry = new RID();
+		BTPageSearch.ridAt(data, slot, entry);
+		if (!PostingList.isRef(entry)) {
+			int root = postings.create(entry, rid);
+			BTPageSearch.setRidAt(data, slot, new RID(new PageId(root), PostingList.REF_SLOT));
+		} else {
+			int root = postings.insert(entry.pageNo.pid, rid);
+			if (root != entry.pageNo.pid)
+				BTPageSearch.setRidAt(data, slot, new RID(new PageId(root), PostingList.REF_SLOT));
+		}
+		return true;
 	}
 
-	/*
-	 * findRunStart. Status BTreeFile::findRunStart (const void lo_key, RID
-	 * *pstartrid)
-	 * 
-	 * find left-most occurrence of `lo_key', going all the way left if lo_key is
-	 * null.
-	 * 
-	 * Starting record returned in *pstartrid, on page *pppage, which is pinned.
-	 * 
-	 * Since we allow duplicates, this must "go left" as described in the text (for
-	 * the search algorithm).
-	 * 
-	 * @param lo_key find left-most occurrence of `lo_key', going all the way left
-	 * if lo_key is null.
-	 * 
-	 * @param startrid it will reurn the first rid =< lo_key
+	/**
+	 * Split a full leaf page: the upper part of its records moves to newLeafPage,
+	 * which is linked in right after it, and the new record goes to whichever
+	 * part it belongs to. Where the page is split is up to the split policy, see
+	 * setSplitPolicy. The records are moved by BTPageSplit, a copy of their bytes
+	 * each. Both pages stay pinned.
 	 * 
-	 * @return return a BTLeafPage instance which is pinned. null if no key was
-	 * found.
+	 * @param workingLeafPage
+	 *            the full leaf page. Input parameter.
+	 * @param newLeafPage
+	 *            an empty, pinned leaf page. Input parameter.
+	 * @return the entry to copy up into the parent: the first key of the new leaf
+	 *         page and its page id
 	 */
-
-	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException, IteratorException, KeyNotMatchException,
-			ConstructPageException, PinPageException, UnpinPageException {
-		BTLeafPage pageLeaf;
-		BTIndexPage pageIndex;
-		Page page;
-		BTSortedPage sortPage;
-		PageId pageno;
-		PageId curpageno = null; // iterator
-		PageId prevpageno;
-		PageId nextpageno;
-		RID curRid;
-		KeyDataEntry curEntry;
-
-		pageno = headerPage.get_rootId();
-
-		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
-			pageLeaf = null; // should be handled by
-			// startrid =INVALID_PAGEID ; // the caller
-			return pageLeaf;
+	private KeyDataEntry splitLeafPage(BTLeafPage workingLeafPage, BTLeafPage newLeafPage, KeyClass key, RID rid)
+			throws IOException, PinPageException, UnpinPageException, IteratorException, LeafInsertRecException,
+			DeleteRecException, KeyNotMatchException, ConstructPageException, NodeNotMatchException, ConvertException {
+		RID tempRid = new RID();
+		/*
+		 * Set the new leaf page's prev and next page pointers accordingly. Also set the
+		 * current leaf page's next page pointer.
+		 */
+		PageId nextPageId = new PageId(workingLeafPage.getNextPage().pid);
+		newLeafPage.setNextPage(nextPageId);
+		newLeafPage.setPrevPage(workingLeafPage.getCurPage());
+		workingLeafPage.setNextPage(newLeafPage.getCurPage());
+
+		// Cheking if there is a next leaf page to the new leaf page, if so setting the
+		// prev and next page pointers for the new and leaf page next to it
+		if (nextPageId.pid != INVALID_PAGE) {
+			BTLeafPage nextLeafPage = new BTLeafPage(pinPage(nextPageId), headerPage.get_keyType());
+			nextLeafPage.setPrevPage(newLeafPage.getCurPage());
+			unpinPage(nextPageId, true);
 		}
 
-		page = pinPage(pageno);
-		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		// Split where the split policy says; the key goes right if it is not smaller
+		// than the last key left of the split point
+		byte[] data = workingLeafPage.getpage();
+		int insertSlot = BTPageSearch.upperBound(workingLeafPage, key);
+		int mid = splitPoint(workingLeafPage, key, insertSlot, nextPageId.pid == INVALID_PAGE);
+		boolean toNew = insertSlot >= mid;
+		BTPageSplit.moveUpper(data, newLeafPage.getpage(), toNew ? mid : mid - 1);
+		if (toNew)
+			newLeafPage.insertRecord(key, rid);
+		else
+			workingLeafPage.insertRecord(key, rid);
+		countSplit(workingLeafPage, newLeafPage, leafSplits, leafKeptBytes, leafSplitBytes);
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + pageno + lineSep);
-			trace.flush();
-		}
+		// Initialise index entry with the values of key and page id which will be
+		// copied to the index page
+		KeyClass lastKey = BTPageSearch.keyAt(workingLeafPage, workingLeafPage.getSlotCnt() - 1);
+		return new KeyDataEntry(separator(lastKey, newLeafPage.getFirst(tempRid).key), newLeafPage.getCurPage());
+	}
 
-		// ASSERTION
-		// - pageno and sortPage is the root of the btree
-		// - pageno and sortPage valid and pinned
+	/**
+	 * Suffix truncation of the key copied up for a leaf split: the shortest
+	 * prefix of the first key on the right that is still greater than the last
+	 * key on the left. Index pages then hold only as much of a string key as it
+	 * takes to tell the leaves apart, so more entries fit on them. Every key of
+	 * the right leaf is still not smaller than the separator and every key of
+	 * the left one smaller, so searches are routed as with the full key.
+	 * 
+	 * @param last
+	 *            the largest key of the left page, or null. Input parameter.
+	 * @param first
+	 *            the smallest key of the right page. Input parameter.
+	 * @return the key to copy up
+	 */
+	static KeyClass separator(KeyClass last, KeyClass first) {
+		if (last == null || !(first instanceof StringKey))
+			return first;
+		String left = ((StringKey) last).getKey();
+		String right = ((StringKey) first).getKey();
+		int common = 0;
+		int length = Math.min(left.length(), right.length());
+		while (common < length && left.charAt(common) == right.charAt(common))
+			common++;
+		// equal keys, i.e. duplicates on both sides, keep the whole key
+		if (common + 1 >= right.length())
+			return first;
+		return new StringKey(right.substring(0, common + 1));
+	}
 
-		while (sortPage.getType() == NodeType.INDEX) {
-			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null && BT.keyCompare(curEntry.key, lo_key) < 0) {
+	/*
+	 * The split point of a full page, as the split policy chooses it, clamped to
+	 * the range SplitPolicy.splitPoint allows: the new entry goes to the new page
+	 * if its slot is not before the split point, and the slots from the split
+	 * point on, less one if the new entry stays, move there. A split point that
+	 * leaves either page without room for its entries is replaced by the median.
+	 */
+	private int splitPoint(BTSortedPage page, KeyClass key, int insertSlot, boolean rightMost)
+			throws IOException, KeyNotMatchException, NodeNotMatchException {
+		boolean leaf = page.getType() == NodeType.LEAF;
+		int length = BT.getKeyDataLength(key, leaf ? NodeType.LEAF : NodeType.INDEX) + HFPage.SIZE_OF_SLOT;
+		SplitEntries entries = new SplitEntries(page, key, insertSlot, length, leaf, rightMost);
+		int count = entries.count();
+		int point = Math.max(1, Math.min(splitPolicy.splitPoint(entries), leaf ? count - 1 : count - 2));
+		int left = 0;
+		int right = 0;
+		for (int entry = 0; entry < count; entry++)
+			if (entry < point)
+				left += entries.length(entry);
+			else
+				right += entries.length(entry);
+		if (Math.max(left, right) > page.getpage().length - HFPage.DPFIXED)
+			point = MEDIAN_SPLIT.splitPoint(entries);
+		return point;
+	}
 
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
-			}
+	/*
+	 * The entries of a page being split and the new one, for the split policy.
+	 */
+	private static class SplitEntries implements SplitPolicy.Entries {
+
+		private final BTSortedPage page;
+		private final byte[] data;
+		private final KeyClass key;
+		private final int insertSlot;
+		private final int insertLength;
+		private final boolean leaf;
+		private final boolean rightMost;
+
+		SplitEntries(BTSortedPage page, KeyClass key, int insertSlot, int insertLength, boolean leaf,
+				boolean rightMost) {
+			this.page = page;
+			this.data = page.getpage();
+			this.key = key;
+			this.insertSlot = insertSlot;
+			this.insertLength = insertLength;
+			this.leaf = leaf;
+			this.rightMost = rightMost;
+		}
 
-			unpinPage(pageno);
+		public int count() {
+			return BTPageSearch.slotCount(data) + 1;
+		}
 
-			pageno = prevpageno;
-			page = pinPage(pageno);
-			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		public int length(int entry) {
+			if (entry == insertSlot)
+				return insertLength;
+			return BTPageSearch.slotLength(data, slot(entry)) + HFPage.SIZE_OF_SLOT;
+		}
 
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + pageno + lineSep);
-				trace.flush();
+		public KeyClass key(int entry) {
+			if (entry == insertSlot)
+				return key;
+			try {
+				return BTPageSearch.keyAt(page, slot(entry));
+			} catch (Exception e) {
+				throw new IllegalStateException("split policy cannot read entry " + entry, e);
 			}
-
 		}
 
-		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
-
-		curEntry = pageLeaf.getFirst(startrid);
-		while (curEntry == null) {
-			// skip empty leaf pages off to left
-			nextpageno = pageLeaf.getNextPage();
-			unpinPage(pageno);
-			if (nextpageno.pid == INVALID_PAGE) {
-				// oops, no more records, so set this scan to indicate this.
-				return null;
-			}
+		public int insertPosition() {
+			return insertSlot;
+		}
 
-			pageno = nextpageno;
-			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
-			curEntry = pageLeaf.getFirst(startrid);
+		public boolean isLeaf() {
+			return leaf;
 		}
 
-		// ASSERTIONS:
-		// - curkey, curRid: contain the first record on the
-		// current leaf page (curkey its key, cur
-		// - pageLeaf, pageno valid and pinned
+		public boolean isRightMost() {
+			return rightMost;
+		}
 
-		if (lo_key == null) {
-			return pageLeaf;
-			// note that pageno/pageLeaf is still pinned;
-			// scan will unpin it when done
+		private int slot(int entry) {
+			return entry < insertSlot ? entry : entry - 1;
 		}
+	}
 
-		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
-			curEntry = pageLeaf.getNext(startrid);
-			while (curEntry == null) { // have to go right
-				nextpageno = pageLeaf.getNextPage();
-				unpinPage(pageno);
+	// count a split in the counters of its level
+	private static void countSplit(BTSortedPage kept, BTSortedPage moved, AtomicLong splits, AtomicLong keptBytes,
+			AtomicLong bytes) throws IOException {
+		int keptUsed = BTPageSplit.usedSpace(kept.getpage(), 0, kept.getSlotCnt());
+		splits.incrementAndGet();
+		keptBytes.addAndGet(keptUsed);
+		bytes.addAndGet(keptUsed + BTPageSplit.usedSpace(moved.getpage(), 0, moved.getSlotCnt()));
+	}
 
-				if (nextpageno.pid == INVALID_PAGE) {
-					return null;
-				}
+	/**
+	 * Split a full index page: the upper part of its entries moves to
+	 * newIndexPage and the new entry goes to whichever part it belongs to; the
+	 * split policy chooses where, as in splitLeafPage. The first entry of the new
+	 * page is then moved up: its page id becomes the new page's left link. Both
+	 * pages stay pinned.
+	 * 
+	 * @param workingIndexpage
+	 *            the full index page. Input parameter.
+	 * @param newIndexPage
+	 *            an empty, pinned index page. Input parameter.
+	 * @param upEntry
+	 *            the entry that did not fit. Input parameter.
+	 * @return the entry to insert into the parent: the middle key and the new
+	 *         index page's id
+	 */
+	private KeyDataEntry splitIndexPage(BTIndexPage workingIndexpage, BTIndexPage newIndexPage, KeyDataEntry upEntry,
+			int splitChild) throws IOException, IteratorException, IndexInsertRecException, DeleteRecException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		RID tempRid = new RID();
+		// the new page belongs with the kept pages
+		if (topLevels.get(workingIndexpage.getCurPage().pid) != null)
+			topLevelsStale = true;
+		// Move the entries from the split point the split policy chooses on to the
+		// new index page, and insert the upentry on the side its key belongs to
+		byte[] data = workingIndexpage.getpage();
+		int insertSlot = splitEntrySlot(workingIndexpage, splitChild, upEntry.key);
+		int mid = splitPoint(workingIndexpage, upEntry.key, insertSlot,
+				workingIndexpage.getNextPage().pid == INVALID_PAGE);
+		BTPageSplit.moveUpper(data, newIndexPage.getpage(), insertSlot >= mid ? mid : mid - 1);
+		if (insertSlot >= mid) {
+			BTPageSplit.insertAt(newIndexPage.getpage(), insertSlot - mid, BT.getBytesFromEntry(upEntry));
+		} else {
+			BTPageSplit.insertAt(data, insertSlot, BT.getBytesFromEntry(upEntry));
+		}
+		countSplit(workingIndexpage, newIndexPage, indexSplits, indexKeptBytes, indexSplitBytes);
+		// Fill up the upEntry with the first key in the new index page
+		upEntry = newIndexPage.getFirst(tempRid);
+		// Setting the prev page pointer of new link page with the upentry page id
+		newIndexPage.setPrevPage(((IndexData) upEntry.data).getData());
+		// Linking the new index page in right after the existing one
+		newIndexPage.setNextPage(new PageId(workingIndexpage.getNextPage().pid));
+		workingIndexpage.setNextPage(newIndexPage.getCurPage());
+		// Delete first record from the new index page
+		newIndexPage.deleteSortedRecord(tempRid);
+		// Pointing the new index page by setting the higher index page in the hierarchy
+		return new KeyDataEntry(upEntry.key, newIndexPage.getCurPage());
+	}
 
-				pageno = nextpageno;
-				pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
+	/*
+	 * Insert the entry for a page split off a child into an index page that has
+	 * room for it.
+	 */
+	private static void insertSplitEntry(BTIndexPage indexPage, int splitChild, KeyDataEntry upEntry)
+			throws IOException, KeyNotMatchException, NodeNotMatchException, ConvertException {
+		BTPageSplit.insertAt(indexPage.getpage(), splitEntrySlot(indexPage, splitChild, upEntry.key),
+				BT.getBytesFromEntry(upEntry));
+	}
 
-				curEntry = pageLeaf.getFirst(startrid);
+	/*
+	 * Slot of the entry for a page split off a child: right after the entry of
+	 * the child. By key alone the entry would go after every equal key, and with
+	 * duplicates those can point to pages right of the split one. If the child
+	 * is not on the page, e.g. the parent split since the descent, the key
+	 * decides.
+	 */
+	private static int splitEntrySlot(BTIndexPage indexPage, int splitChild, KeyClass key)
+			throws IOException, KeyNotMatchException {
+		if (splitChild != INVALID_PAGE) {
+			if (indexPage.getPrevPage().pid == splitChild)
+				return 0;
+			byte[] data = indexPage.getpage();
+			int count = BTPageSearch.slotCount(data);
+			for (int slot = 0; slot < count; slot++) {
+				if (BTPageSearch.childAt(data, slot) == splitChild)
+					return slot + 1;
 			}
 		}
-
-		return pageLeaf;
+		return BTPageSearch.upperBound(indexPage, key);
 	}
 
 	/*
-	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
-	 * 
-	 * Remove specified data entry (<key, rid>) from an index.
-	 * 
-	 * We don't do merging or redistribution, but do allow duplicates.
-	 * 
-	 * Page containing first occurrence of key `key' is found for us by
-	 * findRunStart. We then iterate for (just a few) pages, if necesary, to find
-	 * the one containing <key,rid>, which we then delete via
-	 * BTLeafPage::delUserRid.
+	 * insert in B-link mode. The descent read latches one page at a time,
+	 * remembering the index pages it passes, and only the leaf is write latched. A
+	 * split is posted to the remembered parent, found again by moving right if it
+	 * split meanwhile; the split page stays latched until the parent is, so the
+	 * latches of one insert are only ever taken bottom-up and left to right.
 	 */
+	private void insertBLink(KeyClass key, RID rid) throws KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException, IteratorException, InsertException,
+			IOException {
+		short keyType = headerPage.get_keyType();
+		ArrayList<PageId> parents = new ArrayList<PageId>();
+
+		latches.latch(headerPageId.pid, false);
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		latches.unlatch(headerPageId.pid, false);
+		if (pageno.pid == INVALID_PAGE) {
+			latches.latch(headerPageId.pid, true);
+			try {
+				if (headerPage.get_rootId().pid == INVALID_PAGE) {
+					insertFirst(key, rid);
+					return;
+				}
+				pageno = new PageId(headerPage.get_rootId().pid);
+			} finally {
+				latches.unlatch(headerPageId.pid, true);
+			}
+		}
 
-	private boolean NaiveDelete(KeyClass key, RID rid)
+		latches.latch(pageno.pid, false);
+		BTSortedPage page = moveRight(new BTSortedPage(pinPage(pageno), keyType), key, true, false);
+		while (page.getType() == NodeType.INDEX) {
+			pageno = new PageId(page.getCurPage().pid);
+			PageId childId = new PageId(BTPageSearch.indexChild(new BTIndexPage(page, keyType), key));
+			parents.add(pageno);
+			unpinPage(pageno);
+			latches.unlatch(pageno.pid, false);
+			latches.latch(childId.pid, false);
+			page = moveRight(new BTSortedPage(pinPage(childId), keyType), key, true, false);
+		}
+		if (page.getType() != NodeType.LEAF) {
+			pageno = new PageId(page.getCurPage().pid);
+			unpinPage(pageno);
+			latches.unlatch(pageno.pid, false);
+			throw new NodeNotMatchException(null, "");
+		}
+
+		// latch the leaf again for writing; it may have been split in between
+		pageno = new PageId(page.getCurPage().pid);
+		unpinPage(pageno);
+		latches.unlatch(pageno.pid, false);
+		latches.latch(pageno.pid, true);
+		BTLeafPage leafPage = new BTLeafPage(moveRight(new BTSortedPage(pinPage(pageno), keyType), key, true, true),
+				keyType);
+		pageno = new PageId(leafPage.getCurPage().pid);
+		if (postings != null && addPosting(leafPage, key, rid)) {
+			unpinPage(pageno, true);
+			latches.unlatch(pageno.pid, true);
+			return;
+		}
+		if (leafPage.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF)) {
+			leafPage.insertRecord(key, rid);
+			unpinPage(pageno, true);
+			latches.unlatch(pageno.pid, true);
+			return;
+		}
+		BTLeafPage newLeafPage = newLeafPage();
+		KeyDataEntry upEntry = splitLeafPage(leafPage, newLeafPage, key, rid);
+		highKeys.split(pageno.pid, newLeafPage.getCurPage().pid, upEntry.key);
+		unpinPage(pageno, true);
+		unpinPage(newLeafPage.getCurPage(), true);
+
+		// post the split one level up until a page absorbs it; pageno is the split
+		// page and is write latched
+		while (true) {
+			PageId parentId;
+			if (parents.isEmpty()) {
+				latches.latch(headerPageId.pid, true);
+				if (headerPage.get_rootId().pid == pageno.pid) {
+					BTIndexPage newRootPage = newIndexPage();
+					newRootPage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
+					newRootPage.setPrevPage(pageno);
+					PageId newRootId = newRootPage.getCurPage();
+					unpinPage(newRootId, true);
+					updateHeader(newRootId);
+					latches.unlatch(headerPageId.pid, true);
+					latches.unlatch(pageno.pid, true);
+					return;
+				}
+				latches.unlatch(headerPageId.pid, true);
+				// the tree grew above the split page since the descent
+				parentId = findParent(pageno, upEntry.key);
+			} else {
+				parentId = parents.remove(parents.size() - 1);
+			}
+
+			int splitChild = pageno.pid;
+			latches.latch(parentId.pid, true);
+			latches.unlatch(pageno.pid, true);
+			BTIndexPage indexPage = new BTIndexPage(
+					moveRight(new BTSortedPage(pinPage(parentId), keyType), upEntry.key, true, true), keyType);
+			pageno = new PageId(indexPage.getCurPage().pid);
+			if (indexPage.available_space() >= BT.getKeyDataLength(upEntry.key, NodeType.INDEX)) {
+				insertSplitEntry(indexPage, splitChild, upEntry);
+				unpinPage(pageno, true);
+				latches.unlatch(pageno.pid, true);
+				return;
+			}
+			BTIndexPage newIndexPage = newIndexPage();
+			upEntry = splitIndexPage(indexPage, newIndexPage, upEntry, splitChild);
+			highKeys.split(pageno.pid, newIndexPage.getCurPage().pid, upEntry.key);
+			unpinPage(pageno, true);
+			unpinPage(newIndexPage.getCurPage(), true);
+		}
+	}
+
+	/*
+	 * Read latch the root for a descent and return its id, or INVALID_PAGE for
+	 * an empty tree, with nothing latched. The root id is kept in the header
+	 * page's next page field.
+	 *
+	 * Otherwise the header latch is held until the root is latched, so that an
+	 * insert cannot replace the root in between. In B-link mode a root split
+	 * latches the header while it holds the split page, so the header is
+	 * released first instead: a descent from a root that split meanwhile moves
+	 * right to the keys it lost.
+	 */
+	private int latchRoot() {
+		latches.latch(headerPageId.pid, false);
+		int root = BTPageSearch.getInt(headerPage.getpage(), HFPage.NEXT_PAGE);
+		if (blinkMode)
+			latches.unlatch(headerPageId.pid, false);
+		if (root != INVALID_PAGE)
+			latches.latch(root, false);
+		if (!blinkMode)
+			latches.unlatch(headerPageId.pid, false);
+		return root;
+	}
+
+	/*
+	 * Find the index page that points to a page, by descending from the root
+	 * towards a key routed to it. Used in B-link mode when the page was the root
+	 * at the start of an insert but no longer is.
+	 */
+	private PageId findParent(PageId childId, KeyClass key)
+			throws IOException, KeyNotMatchException, ConstructPageException, PinPageException, UnpinPageException,
+			InsertException {
+		short keyType = headerPage.get_keyType();
+		PageId pageno = new PageId(latchRoot());
+		BTSortedPage page = moveRight(new BTSortedPage(pinPage(pageno), keyType), key, true, false);
+		while (true) {
+			pageno = new PageId(page.getCurPage().pid);
+			PageId nextId = null;
+			if (page.getType() == NodeType.INDEX)
+				nextId = new PageId(BTPageSearch.indexChild(new BTIndexPage(page, keyType), key));
+			unpinPage(pageno);
+			latches.unlatch(pageno.pid, false);
+			if (nextId == null)
+				throw new InsertException(null, "parent of page " + childId + " not found");
+			if (nextId.pid == childId.pid)
+				return pageno;
+			latches.latch(nextId.pid, false);
+			page = moveRight(new BTSortedPage(pinPage(nextId), keyType), key, true, false);
+		}
+	}
+
+	/*
+	 * B-link mode: a page reached through a pointer read before the page was split
+	 * may have lost the key to its right siblings. Follow the right links while
+	 * the key is not below the page's high key (orEqual) or is above it. A page
+	 * whose last key lies beyond the key cannot have lost it, so the high key is
+	 * only looked up at the right end of a page. The page passed in is pinned and
+	 * latched in the given mode; so is the page returned, and any page in between
+	 * has been let go.
+	 */
+	private BTSortedPage moveRight(BTSortedPage page, KeyClass key, boolean orEqual, boolean exclusive)
+			throws IOException, KeyNotMatchException, PinPageException, UnpinPageException {
+		while (blinkMode && key != null) {
+			int slotCnt = page.getSlotCnt();
+			if (slotCnt > 0) {
+				int cmp = BTPageSearch.compareSlot(page, slotCnt - 1, key);
+				if (cmp > 0 || (cmp == 0 && !orEqual))
+					return page;
+			}
+			KeyClass highKey = highKeys.get(page.getCurPage().pid);
+			if (highKey == null)
+				return page;
+			int cmp = BT.keyCompare(key, highKey);
+			if (cmp < 0 || (cmp == 0 && !orEqual))
+				return page;
+
+			PageId pageno = new PageId(page.getCurPage().pid);
+			PageId nextpageno = new PageId(page.getNextPage().pid);
+			latches.latch(nextpageno.pid, exclusive);
+			unpinPage(pageno);
+			latches.unlatch(pageno.pid, exclusive);
+			page = new BTSortedPage(pinPage(nextpageno), headerPage.get_keyType());
+		}
+		return page;
+	}
+
+	/*
+	 * moveRight for lookupInt, which looks for the left-most occurrence of the key
+	 * with read latches. pageno and page are moved along in place.
+	 */
+	private byte[] moveRight(PageId pageno, Page page, int key) throws PinPageException, UnpinPageException {
+		byte[] data = page.getpage();
+		while (true) {
+			int slotCnt = BTPageSearch.slotCount(data);
+			if (slotCnt > 0 && BTPageSearch.getInt(data, BTPageSearch.slotOffset(data, slotCnt - 1)) >= key)
+				return data;
+			KeyClass highKey = highKeys.get(pageno.pid);
+			if (highKey == null || key <= ((IntegerKey) highKey).getKey().intValue())
+				return data;
+
+			int next = BTPageSearch.nextPage(data);
+			latches.latch(next, false);
+			unpinPage(pageno);
+			latches.unlatch(pageno.pid, false);
+			pageno.pid = next;
+			data = pinPage(pageno, page).getpage();
+		}
+	}
+
+	/**
+	 * Insert a batch of records. The batch is sorted by key and pushed down the
+	 * tree in one pass: each index page is visited once for all the keys routed
+	 * through it, each target leaf is pinned once for all the keys landing in it,
+	 * and the splits of a level are propagated to the level above together.
+	 *
+	 * @param entries
+	 *            leaf entries (<key, rid> pairs) in any order. Input parameter.
+	 * @return counts for the batch, including the buffer manager calls made
+	 * @see #insert(KeyClass, RID)
+	 */
+	public BatchInsertResult insertBatch(List<KeyDataEntry> entries) throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException, ConstructPageException, UnpinPageException,
+			PinPageException, NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException, IOException {
+		long bufMgrCallsBefore = bufMgrCalls.get();
+		BatchInsertResult result = new BatchInsertResult();
+		if (entries.isEmpty())
+			return result;
+
+		ArrayList<KeyDataEntry> sorted = new ArrayList<KeyDataEntry>(entries);
+		sortEntries(sorted);
+		for (int i = 0; i < sorted.size(); i++) {
+			if (!(sorted.get(i).data instanceof LeafData))
+				throw new NodeNotMatchException(null, "batch insert expects leaf entries");
+			noteKey(sorted.get(i).key);
+		}
+
+		// the entries of a key go to its posting list one at a time
+		if (postings != null) {
+			for (KeyDataEntry entry : sorted) {
+				insert(entry.key, ((LeafData) entry.data).getData());
+				result.inserted++;
+			}
+			result.bufMgrCalls = bufMgrCalls.get() - bufMgrCallsBefore;
+			return result;
+		}
+
+		// with a log, the pages a unit changes stay pinned until it is logged,
+		// so a big batch is logged in parts
+		int part = sorted.size();
+		if (WriteAheadLog.installed() != null)
+			part = Math.max(1, SystemDefs.JavabaseBM.getNumBuffers() / 8);
+		for (int from = 0; from < sorted.size(); from += part)
+			insertSorted(sorted.subList(from, Math.min(from + part, sorted.size())), result);
+
+		result.inserted = sorted.size();
+		result.bufMgrCalls = bufMgrCalls.get() - bufMgrCallsBefore;
+		return result;
+	}
+
+	/*
+	 * Insert a sorted part of a batch as one unit of the log.
+	 */
+	private void insertSorted(List<KeyDataEntry> sorted, BatchInsertResult result) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException, IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException, InsertException, IOException {
+		WriteAheadLog log = BTPages.beginLogged(logLatch, WriteAheadLog.BATCH);
+		try {
+			// the batch restructures the tree without page latches
+			treeLatch.writeLock().lock();
+			try {
+				int from = 0;
+				// an empty tree gets its root leaf from the first record
+				if (headerPage.get_rootId().pid == INVALID_PAGE) {
+					KeyDataEntry first = sorted.get(0);
+					insert(first.key, ((LeafData) first.data).getData());
+					result.leafVisits++;
+					from = 1;
+				}
+
+				if (from < sorted.size()) {
+					List<KeyDataEntry> upEntries = _insertBatch(sorted, from, sorted.size(), headerPage.get_rootId(),
+							result);
+
+					// grow the tree until the root absorbs every split below it
+					PageId rootId = new PageId(headerPage.get_rootId().pid);
+					while (!upEntries.isEmpty()) {
+						BTIndexPage newRootPage = newIndexPage();
+						newRootPage.setPrevPage(rootId);
+						ArrayList<Integer> splitChildren = new ArrayList<Integer>();
+						splitChildren(rootId.pid, upEntries, splitChildren);
+						upEntries = insertIntoIndexRun(newRootPage, upEntries, splitChildren);
+						rootId = new PageId(newRootPage.getCurPage().pid);
+						unpinPage(rootId, true);
+					}
+					if (rootId.pid != headerPage.get_rootId().pid)
+						updateHeader(rootId);
+				}
+
+				if (trace != null) {
+					trace.flush();
+				}
+			} finally {
+				highKeys.clear();
+				treeLatch.writeLock().unlock();
+			}
+		} finally {
+			BTPages.endLogged(logLatch, log);
+		}
+	}
+
+	/*
+	 * Insert entries [from, to) of a sorted batch below the given page. Returns
+	 * the entries the parent has to take for the pages split off at this level,
+	 * in key order.
+	 */
+	private List<KeyDataEntry> _insertBatch(List<KeyDataEntry> entries, int from, int to, PageId currentPageId,
+			BatchInsertResult result) throws PinPageException, IOException, ConstructPageException,
+			IndexSearchException, UnpinPageException, LeafInsertRecException, IteratorException,
+			IndexInsertRecException, KeyNotMatchException, NodeNotMatchException, DeleteRecException,
+			ConvertException, LeafDeleteException, InsertException {
+		Page page = pinPage(currentPageId);
+		BTSortedPage workingPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		if (workingPage.getType() == NodeType.INDEX) {
+			BTIndexPage workingIndexPage = new BTIndexPage(page, headerPage.get_keyType());
+
+			// the batch is sorted, so the keys routed to one child are contiguous
+			ArrayList<PageId> children = new ArrayList<PageId>();
+			ArrayList<Integer> bounds = new ArrayList<Integer>();
+			for (int i = from; i < to; i++) {
+				int child = BTPageSearch.indexChild(workingIndexPage, entries.get(i).key);
+				if (children.isEmpty() || children.get(children.size() - 1).pid != child) {
+					children.add(new PageId(child));
+					bounds.add(i);
+				}
+			}
+			bounds.add(to);
+			unpinPage(currentPageId);
+
+			ArrayList<KeyDataEntry> upEntries = new ArrayList<KeyDataEntry>();
+			ArrayList<Integer> splitChildren = new ArrayList<Integer>();
+			for (int c = 0; c < children.size(); c++) {
+				List<KeyDataEntry> childSplits = _insertBatch(entries, bounds.get(c), bounds.get(c + 1),
+						children.get(c), result);
+				upEntries.addAll(childSplits);
+				splitChildren(children.get(c).pid, childSplits, splitChildren);
+			}
+			if (upEntries.isEmpty())
+				return upEntries;
+
+			workingIndexPage = new BTIndexPage(pinPage(currentPageId), headerPage.get_keyType());
+			List<KeyDataEntry> splits = insertIntoIndexRun(workingIndexPage, upEntries, splitChildren);
+			unpinPage(currentPageId, true);
+			return splits;
+
+		} else if (workingPage.getType() == NodeType.LEAF) {
+			result.leafVisits++;
+
+			// the leaf and the pages split off it, in key order; lowKeys holds the
+			// separator in front of each page. The batch is sorted, so a page left
+			// of the one an entry goes to takes no more entries and is unpinned
+			ArrayList<BTLeafPage> run = new ArrayList<BTLeafPage>();
+			ArrayList<KeyClass> lowKeys = new ArrayList<KeyClass>();
+			ArrayList<KeyDataEntry> upEntries = new ArrayList<KeyDataEntry>();
+			run.add(new BTLeafPage(page, headerPage.get_keyType()));
+			lowKeys.add(null);
+
+			int done = 0;
+			for (int i = from; i < to; i++) {
+				KeyDataEntry entry = entries.get(i);
+				int target = findInRun(lowKeys, entry.key);
+				for (; done < target; done++)
+					unpinPage(run.get(done).getCurPage(), true);
+				BTLeafPage leafPage = run.get(target);
+				if (leafPage.available_space() >= BT.getKeyDataLength(entry.key, NodeType.LEAF)) {
+					leafPage.insertRecord(entry.key, ((LeafData) entry.data).getData());
+				} else {
+					BTLeafPage newLeafPage = newLeafPage();
+					KeyDataEntry upEntry = splitLeafPage(leafPage, newLeafPage, entry.key,
+							((LeafData) entry.data).getData());
+					run.add(target + 1, newLeafPage);
+					lowKeys.add(target + 1, upEntry.key);
+					upEntries.add(target, upEntry);
+				}
+			}
+
+			for (int i = done; i < run.size(); i++)
+				unpinPage(run.get(i).getCurPage(), true);
+			return upEntries;
+		}
+
+		unpinPage(currentPageId);
+		throw new NodeNotMatchException(null, "");
+	}
+
+	/*
+	 * Insert sorted index entries into a pinned index page, splitting it (and the
+	 * pages split off it) as often as needed. Each entry goes right after the
+	 * entry of the page it was split off, given in splitChildren: with duplicates
+	 * the key alone does not tell which of the equal keys that is. Returns the
+	 * entries for the parent, one per page split off, in key order. The given
+	 * page stays pinned.
+	 */
+	private List<KeyDataEntry> insertIntoIndexRun(BTIndexPage indexPage, List<KeyDataEntry> entries,
+			List<Integer> splitChildren) throws IOException, IteratorException, IndexInsertRecException,
+			DeleteRecException, KeyNotMatchException, NodeNotMatchException, ConstructPageException,
+			UnpinPageException, ConvertException {
+		ArrayList<BTIndexPage> run = new ArrayList<BTIndexPage>();
+		ArrayList<KeyDataEntry> upEntries = new ArrayList<KeyDataEntry>();
+		run.add(indexPage);
+
+		// the entries are in order, so the page pointing to a split child is never
+		// left of the one that took the entry before; the pages passed are unpinned
+		int target = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			KeyDataEntry entry = entries.get(i);
+			int splitChild = splitChildren.get(i);
+			while (!holdsChild(run.get(target), splitChild)) {
+				if (target + 1 == run.size())
+					throw new IndexInsertRecException(null, "no entry for split page " + splitChild);
+				if (target > 0)
+					unpinPage(run.get(target).getCurPage(), true);
+				target++;
+			}
+			BTIndexPage workingIndexPage = run.get(target);
+			if (workingIndexPage.available_space() >= BT.getKeyDataLength(entry.key, NodeType.INDEX)) {
+				insertSplitEntry(workingIndexPage, splitChild, entry);
+			} else {
+				BTIndexPage newIndexPage = newIndexPage();
+				KeyDataEntry upEntry = splitIndexPage(workingIndexPage, newIndexPage, entry, splitChild);
+				run.add(target + 1, newIndexPage);
+				upEntries.add(target, upEntry);
+			}
+		}
+
+		for (int i = Math.max(target, 1); i < run.size(); i++)
+			unpinPage(run.get(i).getCurPage(), true);
+		return upEntries;
+	}
+
+	/*
+	 * Add to splitChildren the page each of the given entries was split off: the
+	 * first one off child, every other one off the page of the entry before it.
+	 */
+	private static void splitChildren(int child, List<KeyDataEntry> upEntries, List<Integer> splitChildren) {
+		for (KeyDataEntry upEntry : upEntries) {
+			splitChildren.add(child);
+			child = ((IndexData) upEntry.data).getData().pid;
+		}
+	}
+
+	/*
+	 * Whether an index page points to the given child.
+	 */
+	private static boolean holdsChild(BTIndexPage indexPage, int child) throws IOException {
+		if (indexPage.getPrevPage().pid == child)
+			return true;
+		byte[] data = indexPage.getpage();
+		int count = BTPageSearch.slotCount(data);
+		for (int slot = 0; slot < count; slot++) {
+			if (BTPageSearch.childAt(data, slot) == child)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Index of the page in a run of siblings that a key belongs to: the last one
+	 * whose separator is not greater than the key.
+	 */
+	private static int findInRun(List<KeyClass> lowKeys, KeyClass key) throws KeyNotMatchException {
+		int i = lowKeys.size() - 1;
+		while (i > 0 && BT.keyCompare(lowKeys.get(i), key) > 0)
+			i--;
+		return i;
+	}
+
+	/*
+	 * Stable sort of leaf entries by key.
+	 */
+	static void sortEntries(List<KeyDataEntry> entries) throws KeyNotMatchException {
+		try {
+			Collections.sort(entries, new Comparator<KeyDataEntry>() {
+				public int compare(KeyDataEntry a, KeyDataEntry b) {
+					try {
+						return BT.keyCompare(a.key, b.key);
+					} catch (KeyNotMatchException e) {
+						throw new ClassCastException(e.getMessage());
+					}
+				}
+			});
+		} catch (ClassCastException e) {
+			throw new KeyNotMatchException(e, "key types do not match");
+		}
+	}
+
+	/**
+	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry; it
+	 * is not the id of the data entry)
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
+	 *                redistribution error in index pages
+	 * @exception InsertRecException
+	 *                error when insert in index page
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IndexInsertRecException
+	 *                error when insert in index page
+	 * @exception FreePageException
+	 *                error in BT page constructor
+	 * @exception RecordNotFoundException
+	 *                error delete a record in a BT page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IndexFullDeleteException
+	 *                fill delete error
+	 * @exception LeafDeleteException
+	 *                delete error in leaf page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error in search in index pages
+	 * @exception IOException
+	 *                error from the lower layer
+	 *
+	 */
+	public boolean Delete(KeyClass key, RID rid)
+			throws DeleteFashionException, LeafRedistributeException, RedistributeException, InsertRecException,
+			KeyNotMatchException, UnpinPageException, IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException, IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException, IOException {
+		refreshTopLevels();
+		WriteAheadLog log = BTPages.beginLogged(logLatch, WriteAheadLog.DELETE);
+		try {
+			int found = POSTING_SINGLE;
+			if (postings != null) {
+				found = deletePosting(key, rid);
+				if (found != POSTING_SINGLE && found != POSTING_EMPTY)
+					return found == POSTING_DELETED;
+			}
+			if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE) {
+				treeLatch.readLock().lock();
+				try {
+					return NaiveDelete(key, rid);
+				} finally {
+					treeLatch.readLock().unlock();
+				}
+			} else if (headerPage.get_deleteFashion() == DeleteFashion.FULL_DELETE) {
+				// merges latch siblings right to left, so the tree is kept to ourselves
+				treeLatch.writeLock().lock();
+				try {
+					// merges free index pages, which must not be kept pinned
+					releaseTopLevels();
+					if (found == POSTING_EMPTY) {
+						// the rid is gone; the entry goes too unless an insert refilled
+						// the list before the tree was ours
+						RID ref = takeEmptyPosting(key);
+						if (ref != null)
+							FullDelete(key, ref);
+						return true;
+					}
+					return FullDelete(key, rid);
+				} finally {
+					highKeys.clear();
+					treeLatch.writeLock().unlock();
+				}
+			} else
+				throw new DeleteFashionException(null, "");
+		} finally {
+			BTPages.endLogged(logLatch, log);
+		}
+	}
+
+	private final static int POSTING_NOT_FOUND = 0;
+	private final static int POSTING_DELETED = 1;
+	private final static int POSTING_SINGLE = 2;
+	private final static int POSTING_EMPTY = 3;
+
+	/*
+	 * In a file with posting lists, delete the rid from the posting list of the
+	 * key. A list left with one rid is freed and the rid goes back into the
+	 * entry. A list left empty is freed and its entry removed, as NaiveDelete
+	 * would, in a NAIVE_DELETE file; in a FULL_DELETE file it is left to the
+	 * caller, which returns POSTING_EMPTY, as the entry has to be removed with the
+	 * tree to itself. Returns POSTING_SINGLE if the entry of the key holds the rid
+	 * itself, for the delete fashion of the file to remove.
+	 */
+	private int deletePosting(KeyClass key, RID rid) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException, DeleteRecException {
+		treeLatch.readLock().lock();
+		try {
+			RID curRid = new RID();
+			BTLeafPage leafPage = findRunStart(key, curRid, true);
+			if (leafPage == null)
+				return POSTING_NOT_FOUND;
+			PageId pageno = leafPage.getCurPage();
+			boolean dirty = false;
+			try {
+				if (BTPageSearch.compareSlot(leafPage, curRid.slotNo, key) != 0)
+					return POSTING_NOT_FOUND;
+				byte[] data = leafPage.getpage();
+				RID entry = new RID();
+				BTPageSearch.ridAt(data, curRid.slotNo, entry);
+				if (!PostingList.isRef(entry)) {
+					if (entry.pageNo.pid == rid.pageNo.pid && entry.slotNo == rid.slotNo)
+						return POSTING_SINGLE;
+					return POSTING_NOT_FOUND;
+				}
+				int left = postings.delete(entry.pageNo.pid, rid);
+				if (left < 0)
+					return POSTING_NOT_FOUND;
+				// the list can only be down to one rid if the leaf it lost one from is
+				if (left > 1)
+					return POSTING_DELETED;
+				RID last = new RID();
+				int remaining = postings.remaining(entry.pageNo.pid, last);
+				if (remaining == 1) {
+					postings.free(entry.pageNo.pid);
+					BTPageSearch.setRidAt(data, curRid.slotNo, last);
+					dirty = true;
+				} else if (remaining == 0) {
+					if (headerPage.get_deleteFashion() != DeleteFashion.NAIVE_DELETE)
+						return POSTING_EMPTY;
+					postings.free(entry.pageNo.pid);
+					leafPage.deleteSortedRecord(curRid);
+					dirty = true;
+				}
+				return POSTING_DELETED;
+			} finally {
+				unpinPage(pageno, dirty);
+				latches.unlatch(pageno.pid, true);
+			}
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Free the posting list of the key if it is still empty, for the caller to
+	 * remove its entry. The caller has the tree to itself. Returns the rid of the
+	 * entry, or null if the list holds rids again.
+	 */
+	private RID takeEmptyPosting(KeyClass key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException {
+		RID curRid = new RID();
+		BTLeafPage leafPage = findRunStart(key, curRid, true);
+		if (leafPage == null)
+			return null;
+		PageId pageno = leafPage.getCurPage();
+		try {
+			if (BTPageSearch.compareSlot(leafPage, curRid.slotNo, key) != 0)
+				return null;
+			RID entry = new RID();
+			BTPageSearch.ridAt(leafPage.getpage(), curRid.slotNo, entry);
+			if (!PostingList.isRef(entry) || postings.remaining(entry.pageNo.pid, new RID()) != 0)
+				return null;
+			postings.free(entry.pageNo.pid);
+			return entry;
+		} finally {
+			unpinPage(pageno);
+			latches.unlatch(pageno.pid, true);
+		}
+	}
+
+	/*
+	 * findRunStart. Status BTreeFile::findRunStart (const void lo_key, RID
+	 * *pstartrid)
+	 * 
+	 * find left-most occurrence of `lo_key', going all the way left if lo_key is
+	 * null.
+	 * 
+	 * Starting record returned in *pstartrid, on page *pppage, which is pinned.
+	 * 
+	 * Since we allow duplicates, this must "go left" as described in the text (for
+	 * the search algorithm).
+	 * 
+	 * @param lo_key find left-most occurrence of `lo_key', going all the way left
+	 * if lo_key is null.
+	 * 
+	 * @param startrid it will reurn the first rid =< lo_key
+	 * 
+	 * @return return a BTLeafPage instance which is pinned. null if no key was
+	 * found.
+	 */
+
+	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		refreshTopLevels();
+		treeLatch.readLock().lock();
+		try {
+			BTLeafPage pageLeaf = findRunStart(lo_key, startrid, false);
+			// the page is handed to a BTFileScan, which reads it without latches
+			if (pageLeaf != null)
+				latches.unlatch(pageLeaf.getCurPage().pid, false);
+			return pageLeaf;
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/*
+	 * findRunStart with latch coupling: index pages are read latched on the way
+	 * down, each one released once its child is latched (before, in B-link mode),
+	 * and the leaf page returned is left latched in the given mode; the caller must
+	 * hold treeLatch.
+	 * 
+	 * A leaf that is to be write latched is first reached with a read latch. Splits
+	 * that slip in while the latch is swapped only move keys to the right, where
+	 * the walk along the leaf chain finds them.
+	 */
+	private BTLeafPage findRunStart(KeyClass lo_key, RID startrid, boolean exclusive) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException, PinPageException, UnpinPageException {
+		BTLeafPage pageLeaf;
+		BTIndexPage pageIndex;
+		Page page;
+		BTSortedPage sortPage;
+		PageId pageno;
+		PageId prevpageno;
+		PageId nextpageno;
+		int slot;
+
+		pageno = new PageId(latchRoot());
+
+		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
+			pageLeaf = null; // should be handled by
+			// startrid =INVALID_PAGEID ; // the caller
+			return pageLeaf;
+		}
+
+		sortPage = moveRight(new BTSortedPage(pinPage(pageno), headerPage.get_keyType()), lo_key, false, false);
+		page = sortPage;
+		pageno = new PageId(sortPage.getCurPage().pid);
+
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + pageno + lineSep);
+			trace.flush();
+		}
+
+		// ASSERTION
+		// - pageno and sortPage is the root of the btree
+		// - pageno and sortPage valid and pinned
+
+		while (sortPage.getType() == NodeType.INDEX) {
+			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
+			// binary search for the last entry whose key is smaller than lo_key
+			if (lo_key == null)
+				prevpageno = new PageId(pageIndex.getPrevPage().pid);
+			else
+				prevpageno = new PageId(BTPageSearch.indexChildBefore(pageIndex, lo_key));
+
+			// in B-link mode the child is latched after its parent is let go, and
+			// moveRight makes up for splits in between
+			if (blinkMode) {
+				unpinPage(pageno);
+				latches.unlatch(pageno.pid, false);
+				latches.latch(prevpageno.pid, false);
+			} else {
+				latches.latch(prevpageno.pid, false);
+				unpinPage(pageno);
+				latches.unlatch(pageno.pid, false);
+			}
+
+			sortPage = moveRight(new BTSortedPage(pinPage(prevpageno), headerPage.get_keyType()), lo_key, false,
+					false);
+			page = sortPage;
+			pageno = new PageId(sortPage.getCurPage().pid);
+
+			if (trace != null) {
+				trace.writeBytes("VISIT node " + pageno + lineSep);
+				trace.flush();
+			}
+
+		}
+
+		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+		if (exclusive) {
+			latches.unlatch(pageno.pid, false);
+			latches.latch(pageno.pid, true);
+		}
+
+		// binary search for the first entry not smaller than lo_key, skipping
+		// empty leaf pages and pages that only hold smaller keys off to the right
+		slot = lo_key == null ? 0 : BTPageSearch.lowerBound(pageLeaf, lo_key);
+		while (slot >= pageLeaf.getSlotCnt()) {
+			nextpageno = new PageId(pageLeaf.getNextPage().pid);
+			if (nextpageno.pid != INVALID_PAGE)
+				latches.latch(nextpageno.pid, exclusive);
+			unpinPage(pageno);
+			latches.unlatch(pageno.pid, exclusive);
+			if (nextpageno.pid == INVALID_PAGE) {
+				// oops, no more records, so set this scan to indicate this.
+				return null;
+			}
+
+			pageno = nextpageno;
+			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
+			slot = lo_key == null ? 0 : BTPageSearch.lowerBound(pageLeaf, lo_key);
+		}
+
+		// ASSERTIONS:
+		// - startrid: the first record on the current leaf page not smaller
+		// than lo_key
+		// - pageLeaf, pageno valid, pinned and latched; the caller will unpin and
+		// unlatch it when done
+
+		startrid.pageNo = pageLeaf.getCurPage();
+		startrid.slotNo = slot;
+		return pageLeaf;
+	}
+
+	/*
+	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
+	 * 
+	 * Remove specified data entry (<key, rid>) from an index.
+	 * 
+	 * We don't do merging or redistribution, but do allow duplicates.
+	 * 
+	 * Page containing first occurrence of key `key' is found for us by
+	 * findRunStart. We then iterate for (just a few) pages, if necesary, to find
+	 * the one containing <key,rid>, which we then delete via
+	 * BTLeafPage::delUserRid.
+	 */
+
+	private boolean NaiveDelete(KeyClass key, RID rid)
 			throws LeafDeleteException, KeyNotMatchException, PinPageException, ConstructPageException, IOException,
-			UnpinPageException, PinPageException, IndexSearchException, IteratorException {
+			UnpinPageException, PinPageException, IndexSearchException, IteratorException, DeleteRecException {
 		
 		/**
 		 * Search for the key value in pages and delete the entry if key found. No need
@@ -889,48 +2387,27 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		BTLeafPage currentLeafPage;
 		RID curRid = new RID();
-		KeyDataEntry entry;
 		PageId nextpageId;
+		int slot;
 
-		// Finding the leaf page where the key is present.
-		currentLeafPage = findRunStart(key, curRid);
+		// Finding the leaf page where the key is present, write latched.
+		currentLeafPage = findRunStart(key, curRid, true);
 
 		// if method returns null then key is not present in the leaf
 		if (currentLeafPage == null)
 			return false;
 
-		// If it is not null, then key is present search for the record and delete the
-		// record
-		// corresponding to the key
-		entry = currentLeafPage.getCurrent(curRid);
-
-		// Iterating through the leaf page for the record associated with the key
+		// Iterating through the leaf pages holding the run of `key'
 		while (true) {
-			// going right to the current page
-			while (entry == null) {
-				// getting page Id of next page
-				nextpageId = currentLeafPage.getNextPage();
-				// unpin the current leafpage
-				unpinPage(currentLeafPage.getCurPage());
-				// if there is no next page return false
-				if (nextpageId.pid == INVALID_PAGE) {
-					return false;
-				}
-				// make leafpage point to next leafpage
-				currentLeafPage = new BTLeafPage(pinPage(nextpageId), headerPage.get_keyType());
-
-				entry = currentLeafPage.getFirst(curRid);
-
-			}
-
-			if (BT.keyCompare(key, entry.key) > 0)
-				break;
-
-			// delEntry methods deletes record and returns TRUE if record found
-			boolean keyFound = currentLeafPage.delEntry(new KeyDataEntry(key, rid));
-			if (keyFound == true) {
-				// key and record found and deleted
+			// binary search for the run of `key' and look for the rid in it
+			slot = BTPageSearch.findEntry(currentLeafPage, key, rid);
+			if (slot >= 0) {
+				// key and record found: delete it
+				curRid.pageNo = currentLeafPage.getCurPage();
+				curRid.slotNo = slot;
+				currentLeafPage.deleteSortedRecord(curRid);
 				unpinPage(currentLeafPage.getCurPage(), true);
+				latches.unlatch(curRid.pageNo.pid, true);
 
 				if (trace != null) {
 					trace.flush();
@@ -938,23 +2415,604 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 				return true;
 			}
-			// If key not found go over to the next/right leaf
-			nextpageId = currentLeafPage.getNextPage();
+
+			// the run of `key' ends on this page: the entry is not in the index
+			slot = currentLeafPage.getSlotCnt() - 1;
+			if (slot >= 0 && BTPageSearch.compareSlot(currentLeafPage, slot, key) > 0)
+				break;
+
+			// If key not found go over to the next/right leaf, latching it before the
+			// current one is let go
+			nextpageId = new PageId(currentLeafPage.getNextPage().pid);
+			if (nextpageId.pid != INVALID_PAGE)
+				latches.latch(nextpageId.pid, true);
 			// unpinning the current page as search is done for the key
-			unpinPage(currentLeafPage.getCurPage());
+			PageId currentPageId = currentLeafPage.getCurPage();
+			unpinPage(currentPageId);
+			latches.unlatch(currentPageId.pid, true);
+			// if there is no next page return false
+			if (nextpageId.pid == INVALID_PAGE) {
+				return false;
+			}
 			// Making currentleaf to the next page ID
 			currentLeafPage = new BTLeafPage(pinPage(nextpageId), headerPage.get_keyType());
-
-			entry = currentLeafPage.getFirst(curRid);
-
 		}
 
 		// unpinning the page after searching for the key is done
-		unpinPage(currentLeafPage.getCurPage());
+		PageId currentPageId = currentLeafPage.getCurPage();
+		unpinPage(currentPageId);
+		latches.unlatch(currentPageId.pid, true);
 
 		return false;
 	}
 
+	/*
+	 * Status BTreeFile::FullDelete (const void *key, const RID rid)
+	 * 
+	 * Remove specified data entry (<key, rid>) from an index, keeping every page
+	 * other than the root at least half full.
+	 * 
+	 * The leaf is found by descending with the getPageNoByKey rule, so that
+	 * getSibling on the parent names the same child. A page that underflows first tries to
+	 * borrow from a sibling via redistribute; if that is not possible it is
+	 * merged with the sibling, the right page of the two is freed and its entry
+	 * is removed from the parent, which may underflow in turn. A root index page
+	 * left without keys is replaced by its only child.
+	 * 
+	 * If a run of duplicates straddles a leaf boundary the entry may live left of
+	 * the leaf the descent reaches; it is then removed by NaiveDelete without
+	 * rebalancing.
+	 */
+
+	private boolean FullDelete(KeyClass key, RID rid) throws LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException, IndexInsertRecException,
+			FreePageException, PinPageException, IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException, IOException {
+
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return false;
+
+		FullDeleteStatus status = new FullDeleteStatus();
+		_FullDelete(key, rid, new PageId(headerPage.get_rootId().pid), new PageId(INVALID_PAGE), status);
+
+		if (trace != null) {
+			trace.flush();
+		}
+
+		if (status.found)
+			return true;
+		return NaiveDelete(key, rid);
+	}
+
+	/**
+	 * recursive method for full delete
+	 * 
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @param currentPageId
+	 *            the page to delete from. Input Parameter.
+	 * @param parentPageId
+	 *            the parent of currentPageId, INVALID_PAGE for the root. Input
+	 *            Parameter.
+	 * @param status
+	 *            records whether the entry was found. Output Parameter.
+	 * @return null, or the page merged away, whose entry the parent has to
+	 *         delete
+	 */
+	private PageId _FullDelete(KeyClass key, RID rid, PageId currentPageId, PageId parentPageId,
+			FullDeleteStatus status) throws LeafRedistributeException, RedistributeException, InsertRecException,
+			KeyNotMatchException, UnpinPageException, IndexInsertRecException, FreePageException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException, ConstructPageException,
+			DeleteRecException, IndexSearchException, IOException {
+
+		Page page = pinPage(currentPageId);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		if (sortPage.getType() == NodeType.LEAF) {
+			BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+
+			if (!leafPage.delEntry(new KeyDataEntry(key, rid))) {
+				unpinPage(currentPageId);
+				return null;
+			}
+			status.found = true;
+
+			// the page is at least half full after the delete
+			if (isHalfFull(leafPage)) {
+				unpinPage(currentPageId, true);
+				return null;
+			}
+
+			// the leaf is the root: only free it once the whole tree is empty
+			if (parentPageId.pid == INVALID_PAGE) {
+				if (leafPage.getSlotCnt() != 0) {
+					unpinPage(currentPageId, true);
+					return null;
+				}
+				unpinPage(currentPageId);
+				freePage(currentPageId);
+				updateHeader(new PageId(INVALID_PAGE));
+				return null;
+			}
+
+			BTIndexPage parentPage = new BTIndexPage(pinPage(parentPageId), headerPage.get_keyType());
+			PageId siblingPageId = new PageId();
+			int direction = parentPage.getSibling(key, siblingPageId);
+			if (direction == 0) {
+				// no sibling: nothing can be done
+				unpinPage(currentPageId, true);
+				unpinPage(parentPageId);
+				return null;
+			}
+
+			BTLeafPage siblingPage = new BTLeafPage(pinPage(siblingPageId), headerPage.get_keyType());
+			if (canRedistribute(parentPage) && redistribute(leafPage, siblingPage, parentPage, direction)) {
+				unpinPage(currentPageId, true);
+				unpinPage(parentPageId, true);
+				unpinPage(siblingPageId, true);
+				return null;
+			}
+
+			BTLeafPage leftPage = direction == -1 ? siblingPage : leafPage;
+			BTLeafPage rightPage = direction == -1 ? leafPage : siblingPage;
+			if (leftPage.available_space() + HFPage.SIZE_OF_SLOT < usedSpace(rightPage)) {
+				// it's a rare case when we can do neither redistribution nor merge
+				unpinPage(currentPageId, true);
+				unpinPage(parentPageId);
+				unpinPage(siblingPageId);
+				return null;
+			}
+
+			// merge the right page into the left one and unlink it
+			RID curRid = new RID();
+			for (KeyDataEntry tmpEntry = rightPage.getFirst(curRid); tmpEntry != null; tmpEntry = rightPage
+					.getFirst(curRid)) {
+				leftPage.insertRecord(tmpEntry);
+				rightPage.deleteSortedRecord(curRid);
+			}
+
+			PageId rightPageId = new PageId(rightPage.getCurPage().pid);
+			PageId nextPageId = new PageId(rightPage.getNextPage().pid);
+			leftPage.setNextPage(nextPageId);
+			if (nextPageId.pid != INVALID_PAGE) {
+				BTLeafPage nextLeafPage = new BTLeafPage(pinPage(nextPageId), headerPage.get_keyType());
+				nextLeafPage.setPrevPage(leftPage.getCurPage());
+				unpinPage(nextPageId, true);
+			}
+
+			unpinPage(parentPageId);
+			unpinPage(leftPage.getCurPage(), true);
+			unpinPage(rightPageId);
+			freePage(rightPageId);
+			return rightPageId;
+		}
+
+		if (sortPage.getType() != NodeType.INDEX) {
+			unpinPage(currentPageId);
+			throw new IndexFullDeleteException(null, "page is neither an index nor a leaf page");
+		}
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		PageId childPageId = new PageId(BTPageSearch.indexChild(indexPage, key));
+		unpinPage(currentPageId);
+
+		PageId mergedPageId = _FullDelete(key, rid, childPageId, currentPageId, status);
+		// no child was merged away one level lower
+		if (mergedPageId == null)
+			return null;
+
+		indexPage = new BTIndexPage(pinPage(currentPageId), headerPage.get_keyType());
+		// by child, not by key: with duplicates several entries share the key
+		indexPage.deleteSortedRecord(ridOfChild(indexPage, mergedPageId));
+
+		if (currentPageId.pid == headerPage.get_rootId().pid) {
+			// a root index page without keys is replaced by its only child
+			if (indexPage.getSlotCnt() == 0) {
+				PageId newRootId = new PageId(indexPage.getPrevPage().pid);
+				unpinPage(currentPageId);
+				freePage(currentPageId);
+				updateHeader(newRootId);
+				return null;
+			}
+			unpinPage(currentPageId, true);
+			return null;
+		}
+
+		// the page is at least half full after the delete
+		if (isHalfFull(indexPage)) {
+			unpinPage(currentPageId, true);
+			return null;
+		}
+
+		BTIndexPage parentPage = new BTIndexPage(pinPage(parentPageId), headerPage.get_keyType());
+		PageId siblingPageId = new PageId();
+		int direction = parentPage.getSibling(key, siblingPageId);
+		if (direction == 0) {
+			unpinPage(currentPageId, true);
+			unpinPage(parentPageId);
+			return null;
+		}
+
+		BTIndexPage siblingPage = new BTIndexPage(pinPage(siblingPageId), headerPage.get_keyType());
+		if (canRedistribute(parentPage) && redistribute(indexPage, siblingPage, parentPage, direction)) {
+			unpinPage(currentPageId, true);
+			unpinPage(parentPageId, true);
+			unpinPage(siblingPageId, true);
+			return null;
+		}
+
+		BTIndexPage leftPage = direction == -1 ? siblingPage : indexPage;
+		BTIndexPage rightPage = direction == -1 ? indexPage : siblingPage;
+		// the right page's key in the parent is pulled down into the merged page
+		KeyClass pulledKey = keyOfChild(parentPage, rightPage.getCurPage());
+		int pulledLength = BT.getKeyLength(pulledKey) + 4 /* page id */ + HFPage.SIZE_OF_SLOT;
+		if (leftPage.available_space() + HFPage.SIZE_OF_SLOT < usedSpace(rightPage) + pulledLength) {
+			unpinPage(currentPageId, true);
+			unpinPage(parentPageId);
+			unpinPage(siblingPageId);
+			return null;
+		}
+
+		leftPage.insertKey(pulledKey, rightPage.getPrevPage());
+		RID curRid = new RID();
+		for (KeyDataEntry tmpEntry = rightPage.getFirst(curRid); tmpEntry != null; tmpEntry = rightPage
+				.getFirst(curRid)) {
+			leftPage.insertKey(tmpEntry.key, ((IndexData) tmpEntry.data).getData());
+			rightPage.deleteSortedRecord(curRid);
+		}
+
+		PageId rightPageId = new PageId(rightPage.getCurPage().pid);
+		leftPage.setNextPage(new PageId(rightPage.getNextPage().pid));
+		unpinPage(parentPageId);
+		unpinPage(leftPage.getCurPage(), true);
+		unpinPage(rightPageId);
+		freePage(rightPageId);
+		return rightPageId;
+	}
+
+	/*
+	 * Bytes taken by the records and slots of a sorted page.
+	 */
+	private static int usedSpace(BTSortedPage page) throws IOException {
+		return page.getpage().length - HFPage.DPFIXED - HFPage.SIZE_OF_SLOT - page.available_space();
+	}
+
+	/*
+	 * A sorted page with at most half of its space left is at least half full.
+	 */
+	private static boolean isHalfFull(BTSortedPage page) throws IOException {
+		return page.available_space() <= (page.getpage().length - HFPage.DPFIXED) / 2;
+	}
+
+	/*
+	 * Lend entries of a sibling to an underfull page, one at a time while the
+	 * page is less than half full and the sibling stays at least half full, and
+	 * give the right page of the two its new key in the parent. Index entries
+	 * move through the parent: the key of the right page comes down with the
+	 * child it separates, and the key of the entry lent goes up.
+	 *
+	 * The records move with their slots, and the parent entry is found by the
+	 * child it points to and rewritten in place. The redistribute methods of the
+	 * pages adjust the parent by key, which with duplicates can rewrite the
+	 * entry of another child; and they test against half of MAX_SPACE, so on
+	 * larger pages they lend nothing.
+	 *
+	 * Returns false if the sibling cannot lend an entry.
+	 */
+	private static boolean redistribute(BTSortedPage page, BTSortedPage siblingPage, BTIndexPage parentPage,
+			int direction) throws IOException, DeleteRecException, IndexFullDeleteException {
+		boolean leaf = page.getType() == NodeType.LEAF;
+		BTSortedPage leftPage = direction == -1 ? siblingPage : page;
+		BTSortedPage rightPage = direction == -1 ? page : siblingPage;
+		byte[] left = leftPage.getpage();
+		byte[] right = rightPage.getpage();
+		RID parentRid = ridOfChild(parentPage, rightPage.getCurPage());
+		byte[] separator = BTPageSplit.recordAt(parentPage.getpage(), parentRid.slotNo);
+
+		boolean lent = false;
+		while (!isHalfFull(page) && siblingPage.getSlotCnt() > 1) {
+			int slot = direction == -1 ? siblingPage.getSlotCnt() - 1 : 0;
+			byte[] record = BTPageSplit.recordAt(siblingPage.getpage(), slot);
+			byte[] moved = leaf ? record : BTPageSplit.indexRecord(separator, 4, rightPage.getPrevPage().pid);
+			if (page.available_space() < moved.length || siblingPage.available_space() + record.length
+					+ HFPage.SIZE_OF_SLOT > (siblingPage.getpage().length - HFPage.DPFIXED) / 2)
+				break;
+
+			siblingPage.deleteSortedRecord(new RID(siblingPage.getCurPage(), slot));
+			if (direction == -1)
+				BTPageSplit.insertAt(right, 0, moved);
+			else
+				BTPageSplit.insertAt(left, BTPageSearch.slotCount(left), moved);
+			if (!leaf) {
+				// the child of the entry lent becomes the left link of the right page
+				rightPage.setPrevPage(new PageId(BTPageSearch.getInt(record, record.length - 4)));
+				separator = BTPageSplit.indexRecord(record, 4, rightPage.getCurPage().pid);
+			}
+			lent = true;
+		}
+		if (!lent)
+			return false;
+
+		if (leaf)
+			separator = BTPageSplit.indexRecord(BTPageSplit.recordAt(right, 0), 8, rightPage.getCurPage().pid);
+		parentPage.deleteSortedRecord(parentRid);
+		BTPageSplit.insertAt(parentPage.getpage(), parentRid.slotNo, separator);
+		return true;
+	}
+
+	/*
+	 * Key of the entry in an index page that points to the given child.
+	 */
+	private static KeyClass keyOfChild(BTIndexPage indexPage, PageId child)
+			throws IteratorException, IndexFullDeleteException {
+		RID rid = new RID();
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid)) {
+			if (((IndexData) entry.data).getData().pid == child.pid)
+				return entry.key;
+		}
+		throw new IndexFullDeleteException(null, "child page " + child + " not found in its parent");
+	}
+
+	/*
+	 * Rid of the entry in an index page that points to the given child.
+	 */
+	private static RID ridOfChild(BTIndexPage indexPage, PageId child) throws IOException, IndexFullDeleteException {
+		byte[] data = indexPage.getpage();
+		int count = BTPageSearch.slotCount(data);
+		for (int slot = 0; slot < count; slot++) {
+			if (BTPageSearch.childAt(data, slot) == child.pid)
+				return new RID(indexPage.getCurPage(), slot);
+		}
+		throw new IndexFullDeleteException(null, "child page " + child + " not found in its parent");
+	}
+
+	/**
+	 * Whether the full delete found the entry along its descent.
+	 */
+	private static class FullDeleteStatus {
+		boolean found;
+	}
+
+	/**
+	 * The high keys of the pages split in B-link mode. A page that is not listed
+	 * has no high key a reader needs to know about: it can only be reached through
+	 * a stale pointer if it was split after the pointer was read, and that split
+	 * lists it. So the table is kept in memory only, and is emptied whenever no
+	 * operation is under way, i.e. under the exclusive tree latch.
+	 */
+	private static class HighKeys {
+		private final HashMap<Integer, KeyClass> keys = new HashMap<Integer, KeyClass>();
+
+		synchronized KeyClass get(int pid) {
+			return keys.get(pid);
+		}
+
+		/*
+		 * The split page's high key goes to its new right sibling, and the key that
+		 * separates the two becomes its own.
+		 */
+		synchronized void split(int pid, int newPid, KeyClass separator) {
+			KeyClass highKey = keys.put(pid, separator);
+			if (highKey == null)
+				keys.remove(newPid);
+			else
+				keys.put(newPid, highKey);
+		}
+
+		synchronized void clear() {
+			keys.clear();
+		}
+	}
+
+	/*
+	 * The kept pages of setPinnedLevels, sorted by page number so that a lookup
+	 * allocates nothing. Never changed once published.
+	 */
+	private static class TopLevels {
+		static final TopLevels NONE = new TopLevels(new TreeMap<Integer, Page>());
+
+		final int[] pids;
+		final Page[] pages;
+
+		TopLevels(SortedMap<Integer, Page> kept) {
+			pids = new int[kept.size()];
+			pages = new Page[kept.size()];
+			int i = 0;
+			for (Map.Entry<Integer, Page> entry : kept.entrySet()) {
+				pids[i] = entry.getKey();
+				pages[i++] = entry.getValue();
+			}
+		}
+
+		Page get(int pid) {
+			if (pids.length == 0)
+				return null;
+			int i = Arrays.binarySearch(pids, pid);
+			return i < 0 ? null : pages[i];
+		}
+	}
+
+	/**
+	 * exact match lookup: the rids of all entries with the given key, in index
+	 * order.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @return the matching rids, empty if there are none
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the index
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public List<RID> lookup(KeyClass key) throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (!(key instanceof IntegerKey && headerPage.get_keyType() == AttrType.attrInteger)
+				&& !(key instanceof StringKey && headerPage.get_keyType() == AttrType.attrString))
+			throw new KeyNotMatchException(null, "key types do not match");
+
+		ArrayList<RID> rids = new ArrayList<RID>();
+		RID curRid = new RID();
+		refreshTopLevels();
+		treeLatch.readLock().lock();
+		try {
+			BTLeafPage leafPage = findRunStart(key, curRid, false);
+			if (leafPage == null)
+				return rids;
+
+			int slot = curRid.slotNo;
+			while (true) {
+				for (; slot < leafPage.getSlotCnt(); slot++) {
+					if (BTPageSearch.compareSlot(leafPage, slot, key) != 0) {
+						PageId pageno = leafPage.getCurPage();
+						unpinPage(pageno);
+						latches.unlatch(pageno.pid, false);
+						return rids;
+					}
+					RID rid = new RID();
+					BTPageSearch.ridAt(leafPage.getpage(), slot, rid);
+					if (postings != null && PostingList.isRef(rid))
+						postings.read(rid.pageNo.pid, rids);
+					else
+						rids.add(rid);
+				}
+
+				// the run of `key' may go on in the next leaf
+				PageId nextpageno = new PageId(leafPage.getNextPage().pid);
+				if (nextpageno.pid != INVALID_PAGE)
+					latches.latch(nextpageno.pid, false);
+				PageId pageno = leafPage.getCurPage();
+				unpinPage(pageno);
+				latches.unlatch(pageno.pid, false);
+				if (nextpageno.pid == INVALID_PAGE)
+					return rids;
+				leafPage = new BTLeafPage(pinPage(nextpageno), headerPage.get_keyType());
+				slot = 0;
+			}
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * exact match lookup for integer keys that allocates nothing: the tree is
+	 * descended on the raw page bytes, the pages are pinned through a page and
+	 * page id kept per thread, and the rids of the matching entries are written
+	 * into the caller's array. The pins themselves allocate nothing on a
+	 * ConcurrentBufMgr; the BufMgr allocates in each of its pin requests.
+	 *
+	 * @param key
+	 *            the integer key to look up. Input parameter.
+	 * @param rids
+	 *            receives the rids of the first rids.length matches. Slots that
+	 *            hold a RID are reused, null slots are filled with a new RID.
+	 *            Output parameter.
+	 * @return the total number of matches, which may exceed rids.length
+	 * @exception KeyNotMatchException
+	 *                the index does not have integer keys
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int lookupInt(int key, RID[] rids)
+			throws KeyNotMatchException, IOException, PinPageException, UnpinPageException {
+		if (keyType != AttrType.attrInteger)
+			throw new KeyNotMatchException(null, "lookupInt needs an integer key index");
+
+		LookupFrame frame = lookupFrame.get();
+		PageId pageno = frame.pageId;
+		refreshTopLevels();
+		treeLatch.readLock().lock();
+		try {
+			pageno.pid = latchRoot();
+			if (pageno.pid == INVALID_PAGE)
+				return 0;
+
+			byte[] data = pinPage(pageno, frame.page).getpage();
+			if (blinkMode)
+				data = moveRight(pageno, frame.page, key);
+			while (BTPageSearch.pageType(data) == NodeType.INDEX) {
+				int child = BTPageSearch.indexChildBefore(data, key);
+				if (blinkMode) {
+					unpinPage(pageno);
+					latches.unlatch(pageno.pid, false);
+					latches.latch(child, false);
+					pageno.pid = child;
+					pinPage(pageno, frame.page);
+					data = moveRight(pageno, frame.page, key);
+				} else {
+					latches.latch(child, false);
+					unpinPage(pageno);
+					latches.unlatch(pageno.pid, false);
+					pageno.pid = child;
+					data = pinPage(pageno, frame.page).getpage();
+				}
+			}
+
+			int count = 0;
+			int slot = BTPageSearch.lowerBound(data, key);
+			while (true) {
+				int slotCnt = BTPageSearch.slotCount(data);
+				for (; slot < slotCnt; slot++) {
+					if (BTPageSearch.getInt(data, BTPageSearch.slotOffset(data, slot)) != key) {
+						unpinPage(pageno);
+						latches.unlatch(pageno.pid, false);
+						return count;
+					}
+					if (postings != null) {
+						BTPageSearch.ridAt(data, slot, frame.rid);
+						if (PostingList.isRef(frame.rid)) {
+							count = postings.read(frame.rid.pageNo.pid, rids, count);
+							continue;
+						}
+					}
+					if (count < rids.length) {
+						if (rids[count] == null)
+							rids[count] = new RID();
+						BTPageSearch.ridAt(data, slot, rids[count]);
+					}
+					count++;
+				}
+
+				// the run of `key' may go on in the next leaf
+				int next = BTPageSearch.nextPage(data);
+				if (next != INVALID_PAGE)
+					latches.latch(next, false);
+				unpinPage(pageno);
+				latches.unlatch(pageno.pid, false);
+				if (next == INVALID_PAGE)
+					return count;
+				pageno.pid = next;
+				data = pinPage(pageno, frame.page).getpage();
+				slot = 0;
+			}
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The page and page id lookupInt, and the lookups of LongBTreeFile, pin pages
+	 * through, one per thread.
+	 */
+	static class LookupFrame {
+		final Page page = new Page();
+		final PageId pageId = new PageId();
+		final RID rid = new RID(new PageId(), 0);
+	}
+
 	/**
 	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null scan
 	 * the whole index (2) lo_key = null, hi_key!= null range scan from min to the
@@ -967,6 +3025,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *            the key where we begin scanning. Input parameter.
 	 * @param hi_key
 	 *            the key where we stop scanning. Input parameter.
+	 *
+	 *            The descent to the first leaf is latched, but the scan walks the
+	 *            leaf chain without latches, so it must not run alongside writers
+	 *            of this file. It calls the buffer manager directly, so it must
+	 *            not run alongside any other operation unless the buffer manager
+	 *            is a ConcurrentBufMgr. With setScanPrefetch, it reads ahead
+	 *            on a background thread.
 	 * @exception IOException
 	 *                error from the lower layer
 	 * @exception KeyNotMatchException
@@ -984,7 +3049,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IteratorException, ConstructPageException, PinPageException, UnpinPageException
 
 	{
-		BTFileScan scan = new BTFileScan();
+		int prefetch = prefetchLeaves;
+		BTFileScan scan = prefetch > 0 ? new PrefetchingScan(prefetch) : new BTFileScan();
 		if (headerPage.get_rootId().pid == INVALID_PAGE) {
 			scan.leafPage = null;
 			return scan;
@@ -1001,9 +3067,202 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		// this sets up scan at the starting position, ready for iteration
 		scan.leafPage = findRunStart(lo_key, scan.curRid);
+		if (scan instanceof PrefetchingScan)
+			((PrefetchingScan) scan).start();
 		return scan;
 	}
 
+	/**
+	 * create a batched scan of an index of integer keys, for the same ranges as
+	 * new_scan. The scan returns the entries of a whole leaf at a time into
+	 * arrays of primitives, and adapts to a Spliterator; see BTBatchScan.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning, or null. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, or null. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the index does not have integer keys
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTBatchScan new_batch_scan(IntegerKey lo_key, IntegerKey hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		if (keyType != AttrType.attrInteger)
+			throw new KeyNotMatchException(null, "a batched scan needs an integer key index");
+		RID startrid = new RID();
+		BTLeafPage leafPage = findRunStart(lo_key, startrid);
+		return new BTBatchScan(this, leafPage, startrid.slotNo, hi_key);
+	}
+
+	/*
+	 * A batched scan of the keys from lo_key on that are smaller than end, for
+	 * the sub-ranges of BTParallelScan.
+	 */
+	BTBatchScan new_batch_scan(IntegerKey lo_key, long end) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		RID startrid = new RID();
+		BTLeafPage leafPage = findRunStart(lo_key, startrid);
+		return new BTBatchScan(this, leafPage, startrid.slotNo, end);
+	}
+
+	/**
+	 * A parallel LongStream of the rids of an index of integer keys, for the same
+	 * ranges as new_scan, packed as by BTBatchScan.ridSpliterator. The range is
+	 * cut into about `parts' sub-ranges at the separator keys of the top index
+	 * levels, each read by a batched scan of its own, and the stream's
+	 * Spliterator splits along them; see BTParallelScan. The stream runs on the
+	 * common ForkJoinPool, or on the pool a terminal operation is submitted to.
+	 *
+	 * The scans read like a BTFileScan, so no writer of the file may run
+	 * alongside; the buffer manager should be a ConcurrentBufMgr, since requests
+	 * to any other one are serialized. Closing the stream unpins the pages of
+	 * scans that did not run to the end.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning, or null. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, or null. Input parameter.
+	 * @param parts
+	 *            the number of sub-ranges to aim for, e.g. a few per thread.
+	 *            Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the index does not have integer keys
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public LongStream parallelRidStream(IntegerKey lo_key, IntegerKey hi_key, int parts)
+			throws IOException, KeyNotMatchException, PinPageException, UnpinPageException {
+		if (keyType != AttrType.attrInteger)
+			throw new KeyNotMatchException(null, "a parallel scan needs an integer key index");
+
+		long lo = lo_key == null ? Long.MIN_VALUE : lo_key.getKey().intValue();
+		long hi = hi_key == null ? Long.MAX_VALUE : hi_key.getKey().intValue();
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		// entries below a child of the last level read, from a full leaf down
+		long childSize = (getPageSize() - HFPage.DPFIXED) / (4 + 8 + HFPage.SIZE_OF_SLOT);
+		refreshTopLevels();
+		treeLatch.readLock().lock();
+		try {
+			latches.latch(headerPageId.pid, false);
+			int root = BTPageSearch.getInt(headerPage.getpage(), HFPage.NEXT_PAGE);
+			latches.unlatch(headerPageId.pid, false);
+
+			// read the index levels top down until they hold enough separators in
+			// the range, following only the children that meet it
+			ArrayList<Integer> level = new ArrayList<Integer>();
+			if (root != INVALID_PAGE)
+				level.add(root);
+			while (!level.isEmpty() && keys.size() + 1 < parts) {
+				ArrayList<Integer> children = new ArrayList<Integer>();
+				int levelKeys = 0;
+				for (int pid : level) {
+					PageId pageno = new PageId(pid);
+					latches.latch(pid, false);
+					try {
+						byte[] data = pinPage(pageno).getpage();
+						try {
+							if (BTPageSearch.pageType(data) != NodeType.INDEX)
+								break;
+							int slots = BTPageSearch.slotCount(data);
+							levelKeys += slots + 1;
+							long low = Long.MIN_VALUE;
+							for (int slot = -1; slot < slots; slot++) {
+								long high = slot + 1 < slots
+										? BTPageSearch.getInt(data, BTPageSearch.slotOffset(data, slot + 1))
+										: Long.MAX_VALUE;
+								// the child holds the keys from low up to high, and a run of
+								// low may reach into the child before
+								if (low <= hi && high >= lo)
+									children.add(slot < 0 ? BTPageSearch.getInt(data, HFPage.PREV_PAGE)
+											: BTPageSearch.childAt(data, slot));
+								if (slot >= 0 && low > lo && low <= hi)
+									keys.add((int) low);
+								low = high;
+							}
+						} finally {
+							unpinPage(pageno);
+						}
+					} finally {
+						latches.unlatch(pid, false);
+					}
+				}
+				if (levelKeys > 0)
+					childSize = Math.max(1, childSize / (levelKeys / Math.max(1, level.size())));
+				level = levelKeys > 0 ? children : new ArrayList<Integer>();
+			}
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+
+		// keep about `parts' of the separators, evenly spread
+		Collections.sort(keys);
+		ArrayList<Integer> starts = new ArrayList<Integer>();
+		starts.add(lo_key == null ? null : lo_key.getKey().intValue());
+		int step = Math.max(1, (keys.size() + 1) / Math.max(1, parts));
+		for (int i = step - 1; i < keys.size(); i += step)
+			if (starts.get(starts.size() - 1) == null || keys.get(i) > starts.get(starts.size() - 1))
+				starts.add(keys.get(i));
+
+		final BTParallelScan scan = new BTParallelScan(this, starts.toArray(new Integer[starts.size()]), hi_key,
+				childSize * Math.max(1, (keys.size() + 1) / starts.size()));
+		return StreamSupport.longStream(scan, true).onClose(new Runnable() {
+			public void run() {
+				try {
+					scan.close();
+				} catch (UnpinPageException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Read a leaf into the buffer pool for a PrefetchingScan, latched like a
+	 * lookup. Returns the next leaf, or INVALID_PAGE if there is none, the
+	 * smallest key of this one lies beyond endkey, or the leaf cannot be read;
+	 * read-ahead is only a hint, so its errors stop it and nothing else.
+	 */
+	int prefetchLeaf(int pid, KeyClass endkey) {
+		treeLatch.readLock().lock();
+		try {
+			latches.latch(pid, false);
+			try {
+				PageId pageno = new PageId(pid);
+				Page page = pinPage(pageno);
+				try {
+					byte[] data = page.getpage();
+					if (BTPageSearch.pageType(data) != NodeType.LEAF)
+						return INVALID_PAGE;
+					if (endkey != null && BTPageSearch.slotCount(data) > 0
+							&& BTPageSearch.compareSlot(new BTSortedPage(page, headerPage.get_keyType()), 0, endkey) > 0)
+						return INVALID_PAGE;
+					return BTPageSearch.nextPage(data);
+				} finally {
+					unpinPage(pageno);
+				}
+			} finally {
+				latches.unlatch(pid, false);
+			}
+		} catch (Exception e) {
+			return INVALID_PAGE;
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
 	void trace_children(PageId id)
 			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
 
@@ -0,0 +1,44 @@
+package btree;
+
+/**
+ * BatchInsertResult.java Counts returned by BTreeFile.insertBatch.
+ */
+public class BatchInsertResult {
+
+	int inserted;
+	int leafVisits;
+	long bufMgrCalls;
+
+	/**
+	 * @return the number of records inserted
+	 */
+	public int getInserted() {
+		return inserted;
+	}
+
+	/**
+	 * @return the number of leaf pages the batch descended to
+	 */
+	public int getLeafVisits() {
+		return leafVisits;
+	}
+
+	/**
+	 * @return the number of pin, unpin, new and free page requests made to the
+	 *         buffer manager for the whole batch
+	 */
+	public long getBufMgrCalls() {
+		return bufMgrCalls;
+	}
+
+	/**
+	 * @return buffer manager requests per inserted record
+	 */
+	public double getBufMgrCallsPerKey() {
+		return inserted == 0 ? 0 : (double) bufMgrCalls / inserted;
+	}
+
+	public String toString() {
+		return inserted + " records, " + leafVisits + " leaf visits, " + bufMgrCalls + " buffer manager calls";
+	}
+}
@@ -0,0 +1,30 @@
+package btree;
+
+/**
+ * FillFactorSplitPolicy.java Keeps a fixed share of the bytes on the split
+ * page, wherever the new entry goes. A high fill factor packs pages tightly
+ * for keys that arrive in order, at the price of splitting again soon when
+ * they do not; a low one leaves room in both pages.
+ */
+class FillFactorSplitPolicy extends SplitPolicy {
+
+	private final double fillFactor;
+
+	/**
+	 * @param fillFactor
+	 *            the share of the bytes to keep, in (0, 1]. Input parameter.
+	 */
+	FillFactorSplitPolicy(double fillFactor) {
+		if (fillFactor <= 0 || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+		this.fillFactor = fillFactor;
+	}
+
+	public int splitPoint(Entries page) {
+		return fillPoint(page, fillFactor);
+	}
+
+	public String getName() {
+		return FILL + fillFactor;
+	}
+}
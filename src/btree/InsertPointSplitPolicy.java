@@ -0,0 +1,23 @@
+package btree;
+
+/**
+ * InsertPointSplitPolicy.java Splits right after the new entry, so that it ends
+ * the split page. Several interleaved sequential runs, e.g. ascending ids per
+ * tenant, then each leave full pages behind: the entries of the next run move
+ * out of the way once, and the run goes on in a page of its own. The median is
+ * used when the entry goes in front of the page, where such a split would move
+ * everything but the new entry.
+ */
+class InsertPointSplitPolicy extends MedianSplitPolicy {
+
+	public int splitPoint(Entries page) {
+		int position = page.insertPosition();
+		if (position == 0)
+			return super.splitPoint(page);
+		return Math.min(position + 1, page.count() - 1);
+	}
+
+	public String getName() {
+		return INSERT_POINT;
+	}
+}
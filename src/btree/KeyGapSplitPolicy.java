@@ -0,0 +1,58 @@
+package btree;
+
+/**
+ * KeyGapSplitPolicy.java Splits where the keys of the page leave a gap. For
+ * integer keys that is the widest difference between neighbouring keys in the
+ * middle half of the page, if it is more than twice the mean one: clustered
+ * keys, e.g. ids handed out in blocks, are split between the clusters, so that
+ * later keys of a cluster find room on its page. Without such a gap, a new key
+ * at the end of the page that continues the run of keys before it keeps
+ * BTreeBuilder.DEFAULT_FILL_FACTOR of the page, as the end of a cluster is
+ * filled in order; anything else takes the median.
+ *
+ * For string keys the gap is the length of the separator splitLeafPage would
+ * copy up, shorter being wider, so index pages hold shorter keys.
+ */
+class KeyGapSplitPolicy extends MedianSplitPolicy {
+
+	public int splitPoint(Entries page) {
+		int count = page.count();
+		int mid = count / 2;
+		int lo = Math.max(1, count / 4);
+		int hi = Math.min(count - 1, count - count / 4);
+		int best = mid;
+		long bestGap = Long.MIN_VALUE;
+		KeyClass prev = page.key(lo - 1);
+		for (int entry = lo; entry <= hi; entry++) {
+			KeyClass key = page.key(entry);
+			long gap = gap(prev, key);
+			if (gap > bestGap || (gap == bestGap && Math.abs(entry - mid) < Math.abs(best - mid))) {
+				best = entry;
+				bestGap = gap;
+			}
+			prev = key;
+		}
+		if (!(page.key(0) instanceof IntegerKey))
+			return best;
+
+		// twice the mean gap, as gap * count against twice the whole range
+		long range = gap(page.key(0), page.key(count - 1));
+		if (bestGap * (count - 1) > 2 * range)
+			return best;
+		int position = page.insertPosition();
+		if (position == count - 1 && gap(page.key(position - 1), page.key(position)) * (count - 1) <= 2 * range)
+			return fillPoint(page, BTreeBuilder.DEFAULT_FILL_FACTOR);
+		return super.splitPoint(page);
+	}
+
+	public String getName() {
+		return KEY_GAP;
+	}
+
+	private static long gap(KeyClass left, KeyClass right) {
+		if (left instanceof IntegerKey)
+			return (long) ((IntegerKey) right).getKey().intValue() - ((IntegerKey) left).getKey().intValue();
+		KeyClass separator = BTreeFile.separator(left, right);
+		return -((StringKey) separator).getKey().length();
+	}
+}
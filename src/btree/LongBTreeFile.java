@@ -0,0 +1,627 @@
+package btree;
+
+import java.io.*;
+import java.util.concurrent.locks.*;
+
+import diskmgr.*;
+import bufmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * LongBTreeFile.java A B+ tree of int or long keys on LongKeyPage pages. It
+ * has the operations of BTreeFile for integer keys, but every page is a sorted
+ * array of fixed-width entries, so a descent, an insert or a split works on the
+ * page's byte array and the keys never become KeyClass objects. insert, delete
+ * and lookup take primitive keys; the KeyClass methods of IndexFile take an
+ * IntegerKey or a LongKey and call them.
+ *
+ * Duplicate keys are allowed. Deletes are naive: entries are removed from
+ * their leaf, and pages are never merged.
+ *
+ * Inserts and deletes hold the tree exclusively, lookups share it. Requests to
+ * the buffer manager are serialized on SystemDefs.JavabaseBM, unless it is a
+ * ConcurrentBufMgr. A WriteAheadLog, when installed, logs every change as in
+ * BTreeFile.
+ */
+public class LongBTreeFile extends IndexFile implements GlobalConst {
+
+	// BTreeFile files have MAGIC0 1989
+	private final static int MAGIC0 = 1990;
+
+	// deeper than any tree of 2^31 pages
+	private final static int MAX_HEIGHT = 32;
+
+	private BTreeHeaderPage headerPage;
+	private PageId headerPageId;
+	private String dbname;
+	private final LongKeyPage format;
+
+	private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+	private final ReentrantLock logLatch = new ReentrantLock();
+
+	// reused by the lookups so that a lookup allocates nothing
+	private final ThreadLocal<BTreeFile.LookupFrame> lookupFrame = new ThreadLocal<BTreeFile.LookupFrame>() {
+		protected BTreeFile.LookupFrame initialValue() {
+			return new BTreeFile.LookupFrame();
+		}
+	};
+
+	/**
+	 * LongBTreeFile class an index file with given filename should already exist;
+	 * this opens it.
+	 *
+	 * @param filename
+	 *            the B+ tree file name. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get the file from DB, or it is no LongBTreeFile
+	 * @exception ConstructPageException
+	 *                header page constructor failed
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public LongBTreeFile(String filename) throws GetFileEntryException, ConstructPageException, IOException {
+		BTreeFile.recover();
+		headerPageId = BTPages.get_file_entry(filename);
+		if (headerPageId == null)
+			throw new GetFileEntryException(null, "no file " + filename);
+		headerPage = new BTreeHeaderPage(headerPageId);
+		if (headerPage.get_magic0() != MAGIC0) {
+			throw notLongFile(filename);
+		}
+		format = new LongKeyPage(headerPage.get_maxKeySize());
+		dbname = filename;
+	}
+
+	/**
+	 * if index file exists, open it; else create it.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keysize
+	 *            4 for int keys, 8 for long keys. Ignored when the file exists.
+	 *            Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file, or it is no LongBTreeFile
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public LongBTreeFile(String filename, int keysize)
+			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
+		if (keysize != 4 && keysize != 8)
+			throw new IllegalArgumentException("key size must be 4 or 8: " + keysize);
+
+		BTreeFile.recover();
+		headerPageId = BTPages.get_file_entry(filename);
+		if (headerPageId == null) {
+			WriteAheadLog log = BTPages.beginLogged(logLatch, WriteAheadLog.CREATE);
+			try {
+				headerPage = new BTreeHeaderPage();
+				headerPageId = headerPage.getPageId();
+				headerPage.set_magic0(MAGIC0);
+				headerPage.set_rootId(new PageId(INVALID_PAGE));
+				// for long keys too: BTreeFile tells the file by MAGIC0 and does
+				// not open it
+				headerPage.set_keyType((short) AttrType.attrInteger);
+				headerPage.set_maxKeySize(keysize);
+				headerPage.set_deleteFashion(DeleteFashion.NAIVE_DELETE);
+				headerPage.setType(NodeType.BTHEAD);
+				if (log != null) {
+					log.allocated(headerPageId);
+					log.changed(headerPageId);
+				}
+			} finally {
+				BTPages.endLogged(logLatch, log);
+			}
+			log = BTPages.beginLogged(logLatch, WriteAheadLog.CREATE);
+			try {
+				BTPages.add_file_entry(filename, headerPageId);
+				if (log != null)
+					log.changedDirectory();
+			} catch (DiskMgrException e) {
+				throw new AddFileEntryException(e, "");
+			} finally {
+				BTPages.endLogged(logLatch, log);
+			}
+		} else {
+			headerPage = new BTreeHeaderPage(headerPageId);
+			if (headerPage.get_magic0() != MAGIC0) {
+				throw notLongFile(filename);
+			}
+		}
+		format = new LongKeyPage(headerPage.get_maxKeySize());
+		dbname = filename;
+	}
+
+	// the header page of a file of another kind is unpinned again
+	private GetFileEntryException notLongFile(String filename) {
+		try {
+			close();
+		} catch (UnpinPageException e) {
+		}
+		return new GetFileEntryException(null, filename + " is not a LongBTreeFile");
+	}
+
+	/**
+	 * @return 4 for a file of int keys, 8 for long keys
+	 */
+	public int getKeySize() {
+		return format.keySize;
+	}
+
+	/**
+	 * @return the number of entries a leaf page holds
+	 */
+	public int getLeafCapacity() {
+		return format.leafCapacity(headerPage.getpage().length);
+	}
+
+	/**
+	 * @return the number of entries an index page holds, besides its left link
+	 */
+	public int getIndexCapacity() {
+		return format.indexCapacity(headerPage.getpage().length);
+	}
+
+	/**
+	 * Close the B+ tree file. Unpin header page.
+	 *
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void close() throws UnpinPageException {
+		if (headerPage != null) {
+			try {
+				BTPages.unpin(headerPageId, true);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new UnpinPageException(e, "");
+			}
+			headerPage = null;
+		}
+	}
+
+	/**
+	 * Destroy entire B+ tree file.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception DeleteFileEntryException
+	 *                failed when delete a file from DM
+	 */
+	public void destroyFile()
+			throws IOException, PinPageException, UnpinPageException, FreePageException, DeleteFileEntryException {
+		WriteAheadLog log = BTPages.beginLogged(logLatch, WriteAheadLog.DESTROY);
+		try {
+			treeLatch.writeLock().lock();
+			try {
+				if (headerPage != null) {
+					int root = rootId();
+					if (root != INVALID_PAGE)
+						_destroyFile(new PageId(root));
+					BTPages.unpinPage(headerPageId, false);
+					BTPages.freePage(headerPageId);
+					BTPages.delete_file_entry(dbname);
+					if (log != null)
+						log.changedDirectory();
+					headerPage = null;
+				}
+			} catch (DiskMgrException e) {
+				throw new DeleteFileEntryException(e, "");
+			} finally {
+				treeLatch.writeLock().unlock();
+			}
+		} finally {
+			BTPages.endLogged(logLatch, log);
+		}
+	}
+
+	private void _destroyFile(PageId pageno)
+			throws IOException, PinPageException, UnpinPageException, FreePageException {
+		byte[] data = BTPages.pinPage(pageno, new Page()).getpage();
+		if (!LongKeyPage.isLeaf(data)) {
+			_destroyFile(new PageId(LongKeyPage.prevPage(data)));
+			for (int i = 0; i < LongKeyPage.count(data); i++)
+				_destroyFile(new PageId(format.child(data, i)));
+		}
+		BTPages.unpinPage(pageno, false);
+		BTPages.freePage(pageno);
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            an IntegerKey, or a LongKey for a file of long keys. Input
+	 *            parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                the key does not fit the file
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error when allocate a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyNotMatchException, IOException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		insert(longOf(key), rid);
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                the key is out of the int range in a file of int keys
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error when allocate a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void insert(long key, RID rid) throws KeyNotMatchException, IOException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		checkKey(key);
+		WriteAheadLog log = BTPages.beginLogged(logLatch, WriteAheadLog.INSERT);
+		try {
+			treeLatch.writeLock().lock();
+			try {
+				_insert(key, rid);
+			} finally {
+				treeLatch.writeLock().unlock();
+			}
+		} finally {
+			BTPages.endLogged(logLatch, log);
+		}
+	}
+
+	private void _insert(long key, RID rid)
+			throws IOException, ConstructPageException, PinPageException, UnpinPageException {
+		Page page = new Page();
+		PageId pageno = new PageId(rootId());
+		if (pageno.pid == INVALID_PAGE) {
+			byte[] data = newPage(page, NodeType.LEAF);
+			format.insertLeaf(data, 0, key, rid);
+			PageId root = new PageId(BTPageSearch.getInt(data, HFPage.CUR_PAGE));
+			BTPages.unpinPage(root, true);
+			updateHeader(root);
+			return;
+		}
+
+		// descend to the right-most leaf the key can go to, remembering the path
+		int[] path = new int[MAX_HEIGHT];
+		int depth = 0;
+		byte[] data = BTPages.pinPage(pageno, page).getpage();
+		while (!LongKeyPage.isLeaf(data)) {
+			path[depth++] = pageno.pid;
+			int child = format.child(data, format.upperBound(data, format.indexWidth, key) - 1);
+			BTPages.unpinPage(pageno, false);
+			pageno.pid = child;
+			data = BTPages.pinPage(pageno, page).getpage();
+		}
+
+		int slot = format.upperBound(data, format.leafWidth, key);
+		if (LongKeyPage.count(data) < format.leafCapacity(data.length)) {
+			format.insertLeaf(data, slot, key, rid);
+			BTPages.unpinPage(pageno, true);
+			return;
+		}
+
+		// split the leaf in half and link the new one in right of it
+		Page newPage = new Page();
+		byte[] right = newPage(newPage, NodeType.LEAF);
+		int rightId = BTPageSearch.getInt(right, HFPage.CUR_PAGE);
+		int mid = LongKeyPage.count(data) / 2;
+		LongKeyPage.moveUpper(data, right, format.leafWidth, mid);
+		if (slot <= mid)
+			format.insertLeaf(data, slot, key, rid);
+		else
+			format.insertLeaf(right, slot - mid, key, rid);
+		int next = LongKeyPage.nextPage(data);
+		LongKeyPage.setNextPage(right, next);
+		LongKeyPage.setPrevPage(right, pageno.pid);
+		LongKeyPage.setNextPage(data, rightId);
+		if (next != INVALID_PAGE) {
+			PageId nextno = new PageId(next);
+			LongKeyPage.setPrevPage(BTPages.pinPage(nextno, new Page()).getpage(), rightId);
+			BTPages.unpinPage(nextno, true);
+		}
+		long upKey = format.key(right, format.leafWidth, 0);
+		int upChild = rightId;
+		BTPages.unpinPage(new PageId(rightId), true);
+		BTPages.unpinPage(pageno, true);
+
+		// push the separator up, splitting index pages as long as they are full
+		while (depth > 0) {
+			pageno.pid = path[--depth];
+			data = BTPages.pinPage(pageno, page).getpage();
+			slot = format.upperBound(data, format.indexWidth, upKey);
+			if (LongKeyPage.count(data) < format.indexCapacity(data.length)) {
+				format.insertIndex(data, slot, upKey, upChild);
+				BTPages.unpinPage(pageno, true);
+				return;
+			}
+
+			// entry mid moves up; its child becomes the left link of the new page
+			right = newPage(newPage, NodeType.INDEX);
+			rightId = BTPageSearch.getInt(right, HFPage.CUR_PAGE);
+			mid = LongKeyPage.count(data) / 2;
+			long midKey = format.key(data, format.indexWidth, mid);
+			LongKeyPage.setPrevPage(right, format.child(data, mid));
+			LongKeyPage.moveUpper(data, right, format.indexWidth, mid + 1);
+			LongKeyPage.setCount(data, mid);
+			if (slot <= mid)
+				format.insertIndex(data, slot, upKey, upChild);
+			else
+				format.insertIndex(right, slot - mid - 1, upKey, upChild);
+			upKey = midKey;
+			upChild = rightId;
+			BTPages.unpinPage(new PageId(rightId), true);
+			BTPages.unpinPage(pageno, true);
+		}
+
+		// the root split: a new root holds the old one and its new sibling
+		data = newPage(page, NodeType.INDEX);
+		PageId root = new PageId(BTPageSearch.getInt(data, HFPage.CUR_PAGE));
+		LongKeyPage.setPrevPage(data, rootId());
+		format.insertIndex(data, 0, upKey, upChild);
+		BTPages.unpinPage(root, true);
+		updateHeader(root);
+	}
+
+	/**
+	 * delete the leaf entry with the given key and rid
+	 *
+	 * @param key
+	 *            an IntegerKey, or a LongKey for a file of long keys. Input
+	 *            parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @return true if an entry was deleted, false if there is none
+	 * @exception KeyNotMatchException
+	 *                the key does not fit the file
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public boolean Delete(KeyClass key, RID rid)
+			throws KeyNotMatchException, IOException, PinPageException, UnpinPageException {
+		return delete(longOf(key), rid);
+	}
+
+	/**
+	 * delete the leaf entry with the given key and rid. The leaf is not merged
+	 * when it becomes empty.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @return true if an entry was deleted, false if there is none
+	 * @exception KeyNotMatchException
+	 *                the key is out of the int range in a file of int keys
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public boolean delete(long key, RID rid)
+			throws KeyNotMatchException, IOException, PinPageException, UnpinPageException {
+		checkKey(key);
+		WriteAheadLog log = BTPages.beginLogged(logLatch, WriteAheadLog.DELETE);
+		try {
+			treeLatch.writeLock().lock();
+			try {
+				Page page = new Page();
+				PageId pageno = new PageId();
+				byte[] data = findRunStart(key, pageno, page);
+				if (data == null)
+					return false;
+
+				// the run of `key' may go on in the next leaves
+				int slot = format.lowerBound(data, format.leafWidth, key);
+				while (true) {
+					int count = LongKeyPage.count(data);
+					for (; slot < count; slot++) {
+						if (format.key(data, format.leafWidth, slot) != key) {
+							BTPages.unpinPage(pageno, false);
+							return false;
+						}
+						if (format.hasRid(data, slot, rid)) {
+							LongKeyPage.remove(data, format.leafWidth, slot);
+							BTPages.unpinPage(pageno, true);
+							return true;
+						}
+					}
+					int next = LongKeyPage.nextPage(data);
+					BTPages.unpinPage(pageno, false);
+					if (next == INVALID_PAGE)
+						return false;
+					pageno.pid = next;
+					data = BTPages.pinPage(pageno, page).getpage();
+					slot = 0;
+				}
+			} finally {
+				treeLatch.writeLock().unlock();
+			}
+		} finally {
+			BTPages.endLogged(logLatch, log);
+		}
+	}
+
+	/**
+	 * exact match lookup that allocates nothing: the rids of the entries with the
+	 * key are written into the caller's array.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @param rids
+	 *            receives the rids of the first rids.length matches. Slots that
+	 *            hold a RID are reused, null slots are filled with a new RID.
+	 *            Output parameter.
+	 * @return the total number of matches, which may exceed rids.length
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int lookup(long key, RID[] rids) throws IOException, PinPageException, UnpinPageException {
+		BTreeFile.LookupFrame frame = lookupFrame.get();
+		PageId pageno = frame.pageId;
+		treeLatch.readLock().lock();
+		try {
+			byte[] data = findRunStart(key, pageno, frame.page);
+			if (data == null)
+				return 0;
+
+			int count = 0;
+			int slot = format.lowerBound(data, format.leafWidth, key);
+			while (true) {
+				int slotCnt = LongKeyPage.count(data);
+				for (; slot < slotCnt; slot++) {
+					if (format.key(data, format.leafWidth, slot) != key) {
+						BTPages.unpinPage(pageno, false);
+						return count;
+					}
+					if (count < rids.length) {
+						if (rids[count] == null)
+							rids[count] = new RID();
+						format.rid(data, slot, rids[count]);
+					}
+					count++;
+				}
+
+				// the run of `key' may go on in the next leaf
+				int next = LongKeyPage.nextPage(data);
+				BTPages.unpinPage(pageno, false);
+				if (next == INVALID_PAGE)
+					return count;
+				pageno.pid = next;
+				data = BTPages.pinPage(pageno, frame.page).getpage();
+				slot = 0;
+			}
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * create a scan of the entries with lo_key <= key <= hi_key, in key order.
+	 * Use Long.MIN_VALUE and Long.MAX_VALUE for an open end.
+	 *
+	 * The scan walks the leaf chain without latches, so it must not run alongside
+	 * writers of this file. It calls the buffer manager directly, so it must not
+	 * run alongside any other operation unless the buffer manager is a
+	 * ConcurrentBufMgr.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public LongKeyScan new_scan(long lo_key, long hi_key) throws IOException, PinPageException, UnpinPageException {
+		LongKeyScan scan = new LongKeyScan(this, hi_key);
+		treeLatch.readLock().lock();
+		try {
+			scan.data = findRunStart(lo_key, scan.pageno, scan.page);
+			if (scan.data != null)
+				scan.slot = format.lowerBound(scan.data, format.leafWidth, lo_key) - 1;
+		} finally {
+			treeLatch.readLock().unlock();
+		}
+		return scan;
+	}
+
+	/*
+	 * Pin the left-most leaf that can hold the key into the given page and page
+	 * id, or return null for an empty tree. Child i of an index page holds the
+	 * keys from key i on, but a run of duplicates split across leaves also
+	 * reaches into the child before, so the descent goes left of equal keys.
+	 */
+	private byte[] findRunStart(long key, PageId pageno, Page page)
+			throws IOException, PinPageException, UnpinPageException {
+		pageno.pid = rootId();
+		if (pageno.pid == INVALID_PAGE)
+			return null;
+		byte[] data = BTPages.pinPage(pageno, page).getpage();
+		while (!LongKeyPage.isLeaf(data)) {
+			int child = format.child(data, format.lowerBound(data, format.indexWidth, key) - 1);
+			BTPages.unpinPage(pageno, false);
+			pageno.pid = child;
+			data = BTPages.pinPage(pageno, page).getpage();
+		}
+		return data;
+	}
+
+	private int rootId() throws IOException {
+		// the root id is kept in the header page's next page field
+		return BTPageSearch.getInt(headerPage.getpage(), HFPage.NEXT_PAGE);
+	}
+
+	private void updateHeader(PageId newRoot) throws IOException, PinPageException, UnpinPageException {
+		BTreeHeaderPage header = new BTreeHeaderPage(BTPages.pinPage(headerPageId, new Page()));
+		header.set_rootId(newRoot);
+		BTPages.unpinPage(headerPageId, true /* = DIRTY */);
+	}
+
+	private void checkKey(long key) throws KeyNotMatchException {
+		if (format.keySize == 4 && (int) key != key)
+			throw new KeyNotMatchException(null, "key " + key + " does not fit a file of int keys");
+	}
+
+	private long longOf(KeyClass key) throws KeyNotMatchException {
+		if (key instanceof IntegerKey)
+			return ((IntegerKey) key).getKey().intValue();
+		if (key instanceof LongKey && format.keySize == 8)
+			return ((LongKey) key).getKey();
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/*
+	 * Allocate and pin a page, formatted as an empty leaf or index page.
+	 */
+	private byte[] newPage(Page page, short type) throws ConstructPageException, IOException {
+		PageId pageno = BTPages.newPage(page);
+		byte[] data = page.getpage();
+		LongKeyPage.init(data, pageno.pid, type);
+		return data;
+	}
+
+	LongKeyPage format() {
+		return format;
+	}
+}
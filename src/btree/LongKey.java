@@ -0,0 +1,41 @@
+package btree;
+
+/**
+ * LongKey.java A 64-bit integer key, for the ids that overflow IntegerKey. The
+ * value is kept as a primitive long. LongKeys are indexed by a LongBTreeFile;
+ * a BTreeFile does not take them.
+ */
+public class LongKey extends KeyClass {
+
+	private long key;
+
+	public String toString() {
+		return Long.toString(key);
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param value
+	 *            the value of the long key to be set
+	 */
+	public LongKey(long value) {
+		key = value;
+	}
+
+	/**
+	 * get a copy of the long key
+	 *
+	 * @return the reference of the copy
+	 */
+	public long getKey() {
+		return key;
+	}
+
+	/**
+	 * set the long key value
+	 */
+	public void setKey(long value) {
+		key = value;
+	}
+}
@@ -0,0 +1,298 @@
+package btree;
+
+import global.*;
+import heap.*;
+
+/**
+ * LongKeyPage.java The page format of a LongBTreeFile. Keys are primitive ints
+ * or longs of one width per file, so every entry of a page has the same length
+ * and the entries are kept as a sorted array right after the page header: entry
+ * i starts at DPFIXED + i * width and there is no slot directory. Searches read
+ * the keys straight from the page's byte array, and inserts, deletes and splits
+ * move entries with System.arraycopy; none of them builds a KeyClass,
+ * KeyDataEntry or RID.
+ *
+ * The header is that of an HFPage, so the type, the links and the page id are
+ * where BTSortedPage keeps them, and the slot count holds the number of
+ * entries. A leaf entry is the key, then the page number and slot number of its
+ * rid; the leaves of a PostingList hold keys only. An index entry is the key,
+ * then the child page number; as in BTIndexPage, the child left of the first
+ * key is the prev page link, and the child of entry i holds the keys from key i
+ * on. Numbers are big-endian, like those Convert writes.
+ *
+ * One LongKeyPage describes the format of a file and holds no page; its
+ * methods take the page's bytes. A page ends where its byte array does, so
+ * pages of a database with larger pages hold more entries.
+ */
+final class LongKeyPage implements GlobalConst {
+
+	// the child left of the first key of an index page
+	static final int LEFT_LINK = -1;
+
+	final int keySize;
+	final int leafWidth;
+	final int indexWidth;
+
+	/**
+	 * @param keySize
+	 *            the width of a key, 4 or 8 bytes. Input parameter.
+	 */
+	LongKeyPage(int keySize) {
+		this(keySize, 8);
+	}
+
+	/**
+	 * @param keySize
+	 *            the width of a key, 4 or 8 bytes. Input parameter.
+	 * @param dataSize
+	 *            the width of the data of a leaf entry: 8 for a rid, or 0 for
+	 *            leaves of keys only. Input parameter.
+	 */
+	LongKeyPage(int keySize, int dataSize) {
+		this.keySize = keySize;
+		leafWidth = keySize + dataSize;
+		indexWidth = keySize + 4;
+	}
+
+	/**
+	 * @param pageSize
+	 *            the size of a page. Input parameter.
+	 * @return the number of entries a leaf page holds
+	 */
+	int leafCapacity(int pageSize) {
+		return (pageSize - HFPage.DPFIXED) / leafWidth;
+	}
+
+	/**
+	 * @param pageSize
+	 *            the size of a page. Input parameter.
+	 * @return the number of entries an index page holds, besides its left link
+	 */
+	int indexCapacity(int pageSize) {
+		return (pageSize - HFPage.DPFIXED) / indexWidth;
+	}
+
+	/**
+	 * Format a page as an empty leaf or index page.
+	 *
+	 * @param data
+	 *            the page. Input parameter.
+	 * @param pid
+	 *            the page number. Input parameter.
+	 * @param type
+	 *            NodeType.LEAF or NodeType.INDEX. Input parameter.
+	 */
+	static void init(byte[] data, int pid, short type) {
+		putShort(data, HFPage.SLOT_CNT, 0);
+		putShort(data, HFPage.USED_PTR, data.length);
+		putShort(data, HFPage.FREE_SPACE, 0);
+		putShort(data, HFPage.TYPE, type);
+		putInt(data, HFPage.PREV_PAGE, INVALID_PAGE);
+		putInt(data, HFPage.NEXT_PAGE, INVALID_PAGE);
+		putInt(data, HFPage.CUR_PAGE, pid);
+	}
+
+	static int count(byte[] data) {
+		return BTPageSearch.slotCount(data);
+	}
+
+	static void setCount(byte[] data, int count) {
+		putShort(data, HFPage.SLOT_CNT, count);
+	}
+
+	static boolean isLeaf(byte[] data) {
+		return BTPageSearch.pageType(data) == NodeType.LEAF;
+	}
+
+	static int prevPage(byte[] data) {
+		return BTPageSearch.getInt(data, HFPage.PREV_PAGE);
+	}
+
+	static void setPrevPage(byte[] data, int pid) {
+		putInt(data, HFPage.PREV_PAGE, pid);
+	}
+
+	static int nextPage(byte[] data) {
+		return BTPageSearch.nextPage(data);
+	}
+
+	static void setNextPage(byte[] data, int pid) {
+		putInt(data, HFPage.NEXT_PAGE, pid);
+	}
+
+	/**
+	 * The key of an entry.
+	 *
+	 * @param data
+	 *            the page. Input parameter.
+	 * @param width
+	 *            leafWidth or indexWidth. Input parameter.
+	 * @param i
+	 *            the entry. Input parameter.
+	 * @return the key, widened to a long
+	 */
+	long key(byte[] data, int width, int i) {
+		int offset = HFPage.DPFIXED + i * width;
+		if (keySize == 4)
+			return BTPageSearch.getInt(data, offset);
+		return getLong(data, offset);
+	}
+
+	/**
+	 * @return the first entry whose key is not smaller than the key, or the
+	 *         count if there is none
+	 */
+	int lowerBound(byte[] data, int width, long key) {
+		int lo = 0;
+		int hi = count(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (key(data, width, mid) < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the first entry whose key is greater than the key, or the count
+	 *         if there is none
+	 */
+	int upperBound(byte[] data, int width, long key) {
+		int lo = 0;
+		int hi = count(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (key(data, width, mid) <= key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * The child of an index page at an entry, or the left link for LEFT_LINK.
+	 */
+	int child(byte[] data, int i) {
+		if (i == LEFT_LINK)
+			return prevPage(data);
+		return BTPageSearch.getInt(data, HFPage.DPFIXED + i * indexWidth + keySize);
+	}
+
+	/**
+	 * Copy the rid of a leaf entry into the given rid.
+	 */
+	void rid(byte[] data, int i, RID rid) {
+		if (rid.pageNo == null)
+			rid.pageNo = new PageId();
+		rid.pageNo.pid = ridPage(data, i);
+		rid.slotNo = ridSlot(data, i);
+	}
+
+	boolean hasRid(byte[] data, int i, RID rid) {
+		return ridPage(data, i) == rid.pageNo.pid && ridSlot(data, i) == rid.slotNo;
+	}
+
+	int ridPage(byte[] data, int i) {
+		return BTPageSearch.getInt(data, HFPage.DPFIXED + i * leafWidth + keySize);
+	}
+
+	int ridSlot(byte[] data, int i) {
+		return BTPageSearch.getInt(data, HFPage.DPFIXED + i * leafWidth + keySize + 4);
+	}
+
+	/**
+	 * Insert a leaf entry before entry i; the page must have room for it.
+	 */
+	void insertLeaf(byte[] data, int i, long key, RID rid) {
+		int offset = open(data, leafWidth, i);
+		putKey(data, offset, key);
+		putInt(data, offset + keySize, rid.pageNo.pid);
+		putInt(data, offset + keySize + 4, rid.slotNo);
+	}
+
+	/**
+	 * Insert a leaf entry of a key only before entry i; the page must have room
+	 * for it.
+	 */
+	void insertKey(byte[] data, int i, long key) {
+		putKey(data, open(data, leafWidth, i), key);
+	}
+
+	/**
+	 * Insert an index entry before entry i; the page must have room for it.
+	 */
+	void insertIndex(byte[] data, int i, long key, int child) {
+		int offset = open(data, indexWidth, i);
+		putKey(data, offset, key);
+		putInt(data, offset + keySize, child);
+	}
+
+	/**
+	 * Remove entry i.
+	 */
+	static void remove(byte[] data, int width, int i) {
+		int count = count(data);
+		int offset = HFPage.DPFIXED + i * width;
+		System.arraycopy(data, offset + width, data, offset, (count - i - 1) * width);
+		setCount(data, count - 1);
+	}
+
+	/**
+	 * Move the entries from entry first on to the start of an empty page.
+	 *
+	 * @param from
+	 *            the page split. Input parameter.
+	 * @param to
+	 *            the new page. Output parameter.
+	 * @param width
+	 *            leafWidth or indexWidth. Input parameter.
+	 * @param first
+	 *            the first entry to move. Input parameter.
+	 */
+	static void moveUpper(byte[] from, byte[] to, int width, int first) {
+		int count = count(from);
+		System.arraycopy(from, HFPage.DPFIXED + first * width, to, HFPage.DPFIXED, (count - first) * width);
+		setCount(to, count - first);
+		setCount(from, first);
+	}
+
+	// shift the entries from i on one to the right and return the offset of i
+	private static int open(byte[] data, int width, int i) {
+		int count = count(data);
+		int offset = HFPage.DPFIXED + i * width;
+		System.arraycopy(data, offset, data, offset + width, (count - i) * width);
+		setCount(data, count + 1);
+		return offset;
+	}
+
+	private void putKey(byte[] data, int offset, long key) {
+		if (keySize == 4)
+			putInt(data, offset, (int) key);
+		else
+			putLong(data, offset, key);
+	}
+
+	static long getLong(byte[] data, int offset) {
+		return ((long) BTPageSearch.getInt(data, offset) << 32) | (BTPageSearch.getInt(data, offset + 4) & 0xffffffffL);
+	}
+
+	static void putLong(byte[] data, int offset, long value) {
+		putInt(data, offset, (int) (value >>> 32));
+		putInt(data, offset + 4, (int) value);
+	}
+
+	static void putInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+	private static void putShort(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 8);
+		data[offset + 1] = (byte) value;
+	}
+}
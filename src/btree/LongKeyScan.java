@@ -0,0 +1,88 @@
+package btree;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * LongKeyScan.java A range scan of a LongBTreeFile, made by new_scan. next
+ * steps to the next entry, and getKey and getRid read it from the pinned leaf,
+ * so a scan allocates nothing per entry. The current leaf stays pinned until
+ * the scan runs past hi_key or is closed.
+ */
+public class LongKeyScan implements GlobalConst {
+
+	private final LongBTreeFile bfile;
+	private final LongKeyPage format;
+	private final long endkey;
+
+	final PageId pageno = new PageId();
+	final Page page = new Page();
+	// the pinned leaf, or null when the scan is done
+	byte[] data;
+	int slot;
+
+	LongKeyScan(LongBTreeFile bfile, long endkey) {
+		this.bfile = bfile;
+		this.format = bfile.format();
+		this.endkey = endkey;
+	}
+
+	/**
+	 * Step to the next entry.
+	 *
+	 * @return false if there is none, and the scan is done
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public boolean next() throws PinPageException, UnpinPageException {
+		if (data == null)
+			return false;
+		slot++;
+		while (slot >= LongKeyPage.count(data)) {
+			int next = LongKeyPage.nextPage(data);
+			close();
+			if (next == INVALID_PAGE)
+				return false;
+			pageno.pid = next;
+			data = BTPages.pinPage(pageno, page).getpage();
+			slot = 0;
+		}
+		if (format.key(data, format.leafWidth, slot) > endkey) {
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the key of the current entry
+	 */
+	public long getKey() {
+		return format.key(data, format.leafWidth, slot);
+	}
+
+	/**
+	 * Copy the rid of the current entry into the given rid.
+	 *
+	 * @param rid
+	 *            Output parameter.
+	 */
+	public void getRid(RID rid) {
+		format.rid(data, slot, rid);
+	}
+
+	/**
+	 * Unpin the current leaf and end the scan.
+	 *
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void close() throws UnpinPageException {
+		if (data != null) {
+			data = null;
+			BTPages.unpinPage(pageno, false);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package btree;
+
+/**
+ * MedianSplitPolicy.java The classic split: half of the entries stay and half
+ * move, or the split point moves by one if that leaves the two pages closer in
+ * bytes. Pages filled by random keys end up about 70% full; pages left behind
+ * by ascending keys stay half empty.
+ */
+class MedianSplitPolicy extends SplitPolicy {
+
+	public int splitPoint(Entries page) {
+		int count = page.count();
+		int best = count / 2;
+		int bestImbalance = imbalance(page, best);
+		for (int point = best - 1; point <= best + 1; point += 2) {
+			if (point < 1 || point > count - 1)
+				continue;
+			int imbalance = imbalance(page, point);
+			if (imbalance < bestImbalance) {
+				best = point;
+				bestImbalance = imbalance;
+			}
+		}
+		return best;
+	}
+
+	public String getName() {
+		return MEDIAN;
+	}
+
+	// the difference in bytes between the two pages of a split at a point
+	private static int imbalance(Entries page, int point) {
+		int left = 0;
+		int right = 0;
+		for (int entry = 0; entry < page.count(); entry++)
+			if (entry < point)
+				left += page.length(entry);
+			else
+				right += page.length(entry);
+		return Math.abs(left - right);
+	}
+}
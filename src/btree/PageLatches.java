@@ -0,0 +1,192 @@
+package btree;
+
+import java.util.*;
+
+/**
+ * PageLatches.java Read/write latches on the pages of one B+ tree file, keyed by
+ * page number. The latches live in a fixed array of stripes, a page's stripe
+ * chosen by its page number; a stripe keeps one slot per page that some thread
+ * holds or waits for, and its monitor guards only those slots. Two pages of a
+ * stripe never share a latch, so the order below holds page by page. Slots are
+ * reused, so taking and releasing a latch allocates nothing once the stripes
+ * have grown to the number of pages latched at a time.
+ *
+ * A thread may take a latch it holds again, and may take the read latch of a
+ * page it write latches, but not the other way round.
+ *
+ * Latches are taken top-down across the levels of the tree and left to right
+ * along the leaf chain; nobody waits for a page while holding one to its right
+ * or below it, so latch coupling cannot deadlock.
+ */
+final class PageLatches {
+
+	// a power of two
+	private static final int STRIPES = 64;
+
+	private static final class Stripe {
+		// per slot: the page, -1 if the slot is free; the read latches held; the
+		// thread holding the write latch, and how often it took it
+		int[] pids = { -1, -1, -1, -1 };
+		int[] readers = new int[4];
+		Thread[] writers = new Thread[4];
+		int[] writes = new int[4];
+		int waiting;
+
+		int slotOf(int pid) {
+			for (int slot = 0; slot < pids.length; slot++) {
+				if (pids[slot] == pid)
+					return slot;
+			}
+			return -1;
+		}
+
+		int take(int pid) {
+			int slot = slotOf(-1);
+			if (slot < 0) {
+				slot = pids.length;
+				pids = Arrays.copyOf(pids, slot * 2);
+				Arrays.fill(pids, slot, pids.length, -1);
+				readers = Arrays.copyOf(readers, slot * 2);
+				writers = Arrays.copyOf(writers, slot * 2);
+				writes = Arrays.copyOf(writes, slot * 2);
+			}
+			pids[slot] = pid;
+			return slot;
+		}
+	}
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	PageLatches() {
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	/**
+	 * Latch a page, waiting until no other thread holds it in a conflicting mode.
+	 *
+	 * @param pid
+	 *            the page number. Input parameter.
+	 * @param exclusive
+	 *            true for a write latch, false for a read latch. Input parameter.
+	 */
+	void latch(int pid, boolean exclusive) {
+		Stripe stripe = stripes[pid & (STRIPES - 1)];
+		Thread self = Thread.currentThread();
+		boolean interrupted = false;
+		synchronized (stripe) {
+			for (;;) {
+				int slot = stripe.slotOf(pid);
+				if (slot < 0)
+					slot = stripe.take(pid);
+				Thread writer = stripe.writers[slot];
+				if (exclusive && writer == null && stripe.readers[slot] == 0) {
+					stripe.writers[slot] = self;
+					stripe.writes[slot] = 1;
+					break;
+				}
+				if (exclusive && writer == self) {
+					stripe.writes[slot]++;
+					break;
+				}
+				if (!exclusive && (writer == null || writer == self)) {
+					stripe.readers[slot]++;
+					break;
+				}
+				stripe.waiting++;
+				try {
+					stripe.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} finally {
+					stripe.waiting--;
+				}
+			}
+		}
+		if (interrupted)
+			self.interrupt();
+	}
+
+	/**
+	 * Release a latch taken by this thread with latch(pid, exclusive).
+	 *
+	 * @exception IllegalMonitorStateException
+	 *                the thread does not hold the latch
+	 */
+	void unlatch(int pid, boolean exclusive) {
+		Stripe stripe = stripes[pid & (STRIPES - 1)];
+		synchronized (stripe) {
+			int slot = stripe.slotOf(pid);
+			if (slot < 0 || (exclusive ? stripe.writers[slot] != Thread.currentThread() : stripe.readers[slot] == 0))
+				throw new IllegalMonitorStateException("page " + pid + " is not latched");
+			if (!exclusive)
+				stripe.readers[slot]--;
+			else if (--stripe.writes[slot] == 0)
+				stripe.writers[slot] = null;
+			if (stripe.writers[slot] == null) {
+				if (stripe.readers[slot] == 0)
+					stripe.pids[slot] = -1;
+				if (stripe.waiting > 0)
+					stripe.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * The latches held along one root-to-leaf descent, all in the same mode. Once
+	 * a page is safe, i.e. the operation cannot change its parent, the latches
+	 * above it are released early.
+	 */
+	static final class Path {
+		private final PageLatches latches;
+		private final boolean exclusive;
+		private int[] pids = new int[8];
+		private int size;
+
+		Path(PageLatches latches, boolean exclusive) {
+			this.latches = latches;
+			this.exclusive = exclusive;
+		}
+
+		/**
+		 * Latch a page below the ones already on the path.
+		 */
+		void latch(int pid) {
+			latches.latch(pid, exclusive);
+			if (size == pids.length)
+				pids = Arrays.copyOf(pids, size * 2);
+			pids[size++] = pid;
+		}
+
+		/**
+		 * Release every latch on the path except the last one taken.
+		 */
+		void releaseAncestors() {
+			for (int i = 0; i < size - 1; i++)
+				latches.unlatch(pids[i], exclusive);
+			if (size > 1) {
+				pids[0] = pids[size - 1];
+				size = 1;
+			}
+		}
+
+		/**
+		 * Release the latch on a page if the path still holds it.
+		 */
+		void release(int pid) {
+			for (int i = size - 1; i >= 0; i--) {
+				if (pids[i] == pid) {
+					latches.unlatch(pid, exclusive);
+					System.arraycopy(pids, i + 1, pids, i, size - i - 1);
+					size--;
+					return;
+				}
+			}
+		}
+
+		void releaseAll() {
+			while (size > 0)
+				latches.unlatch(pids[--size], exclusive);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * PostingList.java The rids of one key of a BTreeFile with posting lists. They
+ * are kept sorted in a small B+ tree of LongKeyPage pages whose keys are the
+ * rids, packed into a long as page number then slot number, and whose leaves
+ * hold nothing but those keys. A leaf page holds twice as many rids as a
+ * BTLeafPage holds entries of an integer key, and the key is stored once, in
+ * the leaf entry of the BTreeFile that refers to the list.
+ *
+ * That entry holds the root of the list as its rid, with the slot number
+ * REF_SLOT. It is latched, and the list with it, by the latch of its leaf. A
+ * root split changes the entry in place.
+ *
+ * Deletes are naive, as in LongBTreeFile, so the leaves of a list may empty
+ * while the list lives on. Whenever a delete leaves a leaf with at most one rid
+ * the list is counted: once it is down to one rid, at whatever height, its pages
+ * are freed and the rid goes back into the leaf entry; once it is empty, its
+ * pages are freed and the entry is removed by the delete fashion of the file.
+ */
+final class PostingList implements GlobalConst {
+
+	/** the slot number of a rid that refers to a posting list */
+	static final int REF_SLOT = -1;
+
+	// deeper than any tree of 2^31 pages
+	private final static int MAX_HEIGHT = 32;
+
+	static final LongKeyPage FORMAT = new LongKeyPage(8, 0);
+
+	private final BTreeFile file;
+
+	PostingList(BTreeFile file) {
+		this.file = file;
+	}
+
+	static boolean isRef(RID rid) {
+		return rid.slotNo == REF_SLOT;
+	}
+
+	static long pack(RID rid) {
+		return ((long) rid.pageNo.pid << 32) | (rid.slotNo & 0xffffffffL);
+	}
+
+	static void unpack(long key, RID rid) {
+		if (rid.pageNo == null)
+			rid.pageNo = new PageId();
+		rid.pageNo.pid = (int) (key >>> 32);
+		rid.slotNo = (int) key;
+	}
+
+	/**
+	 * Start a list with two rids.
+	 *
+	 * @return the root of the list
+	 */
+	int create(RID first, RID second) throws ConstructPageException, UnpinPageException, IOException {
+		Page page = new Page();
+		PageId root = file.newPage(page);
+		byte[] data = page.getpage();
+		LongKeyPage.init(data, root.pid, NodeType.LEAF);
+		long a = pack(first);
+		long b = pack(second);
+		FORMAT.insertKey(data, 0, Math.min(a, b));
+		FORMAT.insertKey(data, 1, Math.max(a, b));
+		file.unpinPage(root, true);
+		return root.pid;
+	}
+
+	/**
+	 * Add a rid to a list.
+	 *
+	 * @return the root of the list, a new one if the root split
+	 */
+	int insert(int root, RID rid)
+			throws ConstructPageException, PinPageException, UnpinPageException, IOException {
+		long key = pack(rid);
+
+		// descend to the right-most leaf the rid can go to, remembering the path
+		int[] path = new int[MAX_HEIGHT];
+		int depth = 0;
+		PageId pageno = new PageId(root);
+		byte[] data = file.pinPage(pageno).getpage();
+		while (!LongKeyPage.isLeaf(data)) {
+			path[depth++] = pageno.pid;
+			int child = FORMAT.child(data, FORMAT.upperBound(data, FORMAT.indexWidth, key) - 1);
+			file.unpinPage(pageno);
+			pageno.pid = child;
+			data = file.pinPage(pageno).getpage();
+		}
+
+		int slot = FORMAT.upperBound(data, FORMAT.leafWidth, key);
+		if (LongKeyPage.count(data) < FORMAT.leafCapacity(data.length)) {
+			FORMAT.insertKey(data, slot, key);
+			file.unpinPage(pageno, true);
+			return root;
+		}
+
+		// split the leaf in half and link the new one in right of it
+		Page newPage = new Page();
+		PageId rightId = file.newPage(newPage);
+		byte[] right = newPage.getpage();
+		LongKeyPage.init(right, rightId.pid, NodeType.LEAF);
+		int mid = LongKeyPage.count(data) / 2;
+		LongKeyPage.moveUpper(data, right, FORMAT.leafWidth, mid);
+		if (slot <= mid)
+			FORMAT.insertKey(data, slot, key);
+		else
+			FORMAT.insertKey(right, slot - mid, key);
+		LongKeyPage.setNextPage(right, LongKeyPage.nextPage(data));
+		LongKeyPage.setNextPage(data, rightId.pid);
+		long upKey = FORMAT.key(right, FORMAT.leafWidth, 0);
+		file.unpinPage(rightId, true);
+		file.unpinPage(pageno, true);
+
+		// push the separator up, splitting index pages as long as they are full
+		while (depth > 0) {
+			pageno.pid = path[--depth];
+			data = file.pinPage(pageno).getpage();
+			slot = FORMAT.upperBound(data, FORMAT.indexWidth, upKey);
+			if (LongKeyPage.count(data) < FORMAT.indexCapacity(data.length)) {
+				FORMAT.insertIndex(data, slot, upKey, rightId.pid);
+				file.unpinPage(pageno, true);
+				return root;
+			}
+
+			// entry mid moves up; its child becomes the left link of the new page
+			int upChild = rightId.pid;
+			rightId = file.newPage(newPage);
+			right = newPage.getpage();
+			LongKeyPage.init(right, rightId.pid, NodeType.INDEX);
+			mid = LongKeyPage.count(data) / 2;
+			long midKey = FORMAT.key(data, FORMAT.indexWidth, mid);
+			LongKeyPage.setPrevPage(right, FORMAT.child(data, mid));
+			LongKeyPage.moveUpper(data, right, FORMAT.indexWidth, mid + 1);
+			LongKeyPage.setCount(data, mid);
+			if (slot <= mid)
+				FORMAT.insertIndex(data, slot, upKey, upChild);
+			else
+				FORMAT.insertIndex(right, slot - mid - 1, upKey, upChild);
+			upKey = midKey;
+			file.unpinPage(rightId, true);
+			file.unpinPage(pageno, true);
+		}
+
+		// the root split: a new root holds the old one and its new sibling
+		Page rootPage = new Page();
+		PageId newRoot = file.newPage(rootPage);
+		data = rootPage.getpage();
+		LongKeyPage.init(data, newRoot.pid, NodeType.INDEX);
+		LongKeyPage.setPrevPage(data, root);
+		FORMAT.insertIndex(data, 0, upKey, rightId.pid);
+		file.unpinPage(newRoot, true);
+		return newRoot.pid;
+	}
+
+	/**
+	 * Remove a rid from a list.
+	 *
+	 * @return -1 if the list does not hold the rid, else the number of rids left
+	 *         on the leaf it was removed from
+	 */
+	int delete(int root, RID rid) throws PinPageException, UnpinPageException {
+		long key = pack(rid);
+		PageId pageno = new PageId();
+		byte[] data = findLeaf(root, key, pageno);
+		int slot = FORMAT.lowerBound(data, FORMAT.leafWidth, key);
+		// the leaves right of the one the descent reaches may be empty
+		while (slot == LongKeyPage.count(data)) {
+			int next = LongKeyPage.nextPage(data);
+			file.unpinPage(pageno);
+			if (next == INVALID_PAGE)
+				return -1;
+			pageno.pid = next;
+			data = file.pinPage(pageno).getpage();
+			slot = 0;
+		}
+		if (FORMAT.key(data, FORMAT.leafWidth, slot) != key) {
+			file.unpinPage(pageno);
+			return -1;
+		}
+		LongKeyPage.remove(data, FORMAT.leafWidth, slot);
+		int left = LongKeyPage.count(data);
+		file.unpinPage(pageno, true);
+		return left;
+	}
+
+	/**
+	 * Count the rids of a list up to two, walking its leaves from the left.
+	 *
+	 * @param rid
+	 *            receives the only rid of a list of one. Output parameter.
+	 * @return 0, 1, or 2 for a list of two rids or more
+	 */
+	int remaining(int root, RID rid) throws PinPageException, UnpinPageException {
+		PageId pageno = new PageId();
+		byte[] data = findLeaf(root, Long.MIN_VALUE, pageno);
+		int count = 0;
+		while (true) {
+			int slots = LongKeyPage.count(data);
+			if (count == 0 && slots == 1)
+				unpack(FORMAT.key(data, FORMAT.leafWidth, 0), rid);
+			count += slots;
+			int next = LongKeyPage.nextPage(data);
+			file.unpinPage(pageno);
+			if (count > 1)
+				return 2;
+			if (next == INVALID_PAGE)
+				return count;
+			pageno.pid = next;
+			data = file.pinPage(pageno).getpage();
+		}
+	}
+
+	/**
+	 * Copy the rids of a list into an array, from a given position on.
+	 *
+	 * @param rids
+	 *            receives the rids that fit. Slots that hold a RID are reused,
+	 *            null slots are filled with a new RID. Output parameter.
+	 * @param count
+	 *            the position of the first rid of the list. Input parameter.
+	 * @return count plus the number of rids in the list, which may exceed
+	 *         rids.length
+	 */
+	int read(int root, RID[] rids, int count) throws PinPageException, UnpinPageException {
+		PageId pageno = new PageId();
+		byte[] data = findLeaf(root, Long.MIN_VALUE, pageno);
+		while (true) {
+			int slots = LongKeyPage.count(data);
+			for (int slot = 0; slot < slots; slot++, count++)
+				if (count < rids.length) {
+					if (rids[count] == null)
+						rids[count] = new RID();
+					unpack(FORMAT.key(data, FORMAT.leafWidth, slot), rids[count]);
+				}
+			int next = LongKeyPage.nextPage(data);
+			file.unpinPage(pageno);
+			if (next == INVALID_PAGE)
+				return count;
+			pageno.pid = next;
+			data = file.pinPage(pageno).getpage();
+		}
+	}
+
+	/**
+	 * Add the rids of a list to a list.
+	 */
+	void read(int root, List<RID> rids) throws PinPageException, UnpinPageException {
+		PageId pageno = new PageId();
+		byte[] data = findLeaf(root, Long.MIN_VALUE, pageno);
+		while (true) {
+			for (int slot = 0; slot < LongKeyPage.count(data); slot++) {
+				RID rid = new RID();
+				unpack(FORMAT.key(data, FORMAT.leafWidth, slot), rid);
+				rids.add(rid);
+			}
+			int next = LongKeyPage.nextPage(data);
+			file.unpinPage(pageno);
+			if (next == INVALID_PAGE)
+				return;
+			pageno.pid = next;
+			data = file.pinPage(pageno).getpage();
+		}
+	}
+
+	/**
+	 * Free every page of a list.
+	 */
+	void free(int root) throws PinPageException, UnpinPageException, FreePageException {
+		PageId pageno = new PageId(root);
+		byte[] data = file.pinPage(pageno).getpage();
+		if (!LongKeyPage.isLeaf(data)) {
+			free(LongKeyPage.prevPage(data));
+			for (int i = 0; i < LongKeyPage.count(data); i++)
+				free(FORMAT.child(data, i));
+		}
+		file.unpinPage(pageno);
+		file.freePage(pageno);
+	}
+
+	/*
+	 * Pin the left-most leaf that can hold the key, with its page id in pageno.
+	 */
+	byte[] findLeaf(int root, long key, PageId pageno) throws PinPageException, UnpinPageException {
+		pageno.pid = root;
+		byte[] data = file.pinPage(pageno).getpage();
+		while (!LongKeyPage.isLeaf(data)) {
+			int child = FORMAT.child(data, FORMAT.lowerBound(data, FORMAT.indexWidth, key) - 1);
+			file.unpinPage(pageno);
+			pageno.pid = child;
+			data = file.pinPage(pageno).getpage();
+		}
+		return data;
+	}
+}
@@ -0,0 +1,82 @@
+package btree;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * PostingScan.java The rids of one leaf entry of a BTreeFile, made by
+ * BTreeFile.postings. For an entry that refers to a posting list it walks the
+ * leaves of the list and reads the rids straight from the pinned page, so the
+ * key is not read again for each of them; for any other entry it returns the
+ * entry's own rid once.
+ *
+ * Like a BTFileScan, it reads without latches and must not run alongside
+ * writers of the file.
+ */
+public class PostingScan implements GlobalConst {
+
+	private final BTreeFile bfile;
+	private final PageId pageno = new PageId();
+	// the pinned leaf of the list, or null
+	private byte[] data;
+	private int slot;
+	// the rid of an entry without a list, until it is returned
+	private RID single;
+
+	PostingScan(BTreeFile bfile, RID rid) throws PinPageException, UnpinPageException {
+		this.bfile = bfile;
+		if (bfile.hasPostingLists() && PostingList.isRef(rid))
+			data = new PostingList(bfile).findLeaf(rid.pageNo.pid, Long.MIN_VALUE, pageno);
+		else
+			single = new RID(new PageId(rid.pageNo.pid), rid.slotNo);
+	}
+
+	/**
+	 * Copy the next rid into the given rid.
+	 *
+	 * @param rid
+	 *            Output parameter.
+	 * @return false if there is none, and the scan is done
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public boolean next(RID rid) throws PinPageException, UnpinPageException {
+		if (single != null) {
+			if (rid.pageNo == null)
+				rid.pageNo = new PageId();
+			rid.pageNo.pid = single.pageNo.pid;
+			rid.slotNo = single.slotNo;
+			single = null;
+			return true;
+		}
+		if (data == null)
+			return false;
+		while (slot >= LongKeyPage.count(data)) {
+			int next = LongKeyPage.nextPage(data);
+			close();
+			if (next == INVALID_PAGE)
+				return false;
+			pageno.pid = next;
+			data = bfile.pinPage(pageno).getpage();
+			slot = 0;
+		}
+		PostingList.unpack(PostingList.FORMAT.key(data, PostingList.FORMAT.leafWidth, slot++), rid);
+		return true;
+	}
+
+	/**
+	 * Unpin the current page and end the scan.
+	 *
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void close() throws UnpinPageException {
+		single = null;
+		if (data != null) {
+			data = null;
+			bfile.unpinPage(pageno);
+		}
+	}
+}
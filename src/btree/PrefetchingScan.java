@@ -0,0 +1,199 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * PrefetchingScan.java A BTFileScan that reads the leaves ahead of it into the
+ * buffer pool. One background I/O thread, shared by all scans, follows the leaf
+ * chain beyond the scan's leaf and pins and unpins up to a window of leaves, so
+ * that get_next finds them resident when it gets there.
+ *
+ * The window starts at two leaves. Whenever the scan reaches a leaf that was
+ * not read ahead yet, i.e. it outran the I/O thread, the window doubles, up to
+ * the limit set with BTreeFile.setScanPrefetch and a quarter of the buffer
+ * pool. A slow scan therefore keeps a small window and leaves the pool alone.
+ * Read-ahead stops at the end of the chain and at the first leaf whose
+ * smallest key lies beyond the end of the range.
+ *
+ * With a buffer manager other than ConcurrentBufMgr, the scan's own requests
+ * are serialized on it, like those of BTreeFile, since the I/O thread makes
+ * requests at the same time.
+ */
+final class PrefetchingScan extends BTFileScan implements Runnable {
+
+	private static final ExecutorService IO = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "btree-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final int maxWindow;
+	private int window = 2;
+	// leaves read ahead of the scan's leaf, in chain order
+	private final ArrayDeque<Integer> ahead = new ArrayDeque<Integer>();
+	// the next leaf to read ahead, or INVALID_PAGE if there is none
+	private int next = INVALID_PAGE;
+	private BTLeafPage current;
+	// the I/O thread has this scan in its queue, or is reading a leaf for it
+	private boolean scheduled;
+	private boolean reading;
+	private boolean closed;
+
+	/**
+	 * @param maxWindow
+	 *            the most leaves to read ahead. Input parameter.
+	 */
+	PrefetchingScan(int maxWindow) {
+		this.maxWindow = Math.max(1, Math.min(maxWindow, SystemDefs.JavabaseBM.getNumBuffers() / 4));
+		window = Math.min(window, this.maxWindow);
+	}
+
+	/**
+	 * Start reading ahead from the leaf the scan is positioned on.
+	 */
+	synchronized void start() throws IOException {
+		current = leafPage;
+		if (current == null) {
+			closed = true;
+			return;
+		}
+		next = current.getNextPage().pid;
+		schedule();
+	}
+
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		KeyDataEntry entry;
+		BufMgr bufMgr = SystemDefs.JavabaseBM;
+		if (bufMgr instanceof ConcurrentBufMgr)
+			entry = super.get_next();
+		else
+			synchronized (bufMgr) {
+				entry = super.get_next();
+			}
+		if (leafPage != current)
+			moved();
+		return entry;
+	}
+
+	/*
+	 * As in BTFileScan, except that the leaf is unpinned through the BTreeFile,
+	 * since Delete latches pages and so cannot run with the buffer manager held.
+	 * A scan past its last entry has no record to delete.
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null)
+			throw new ScanDeleteException("no record to delete");
+		if (deletedcurrent || !didfirst)
+			return;
+		try {
+			KeyDataEntry entry = leafPage.getCurrent(curRid);
+			bfile.unpinPage(leafPage.getCurPage());
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			leafPage = bfile.findRunStart(entry.key, curRid);
+			deletedcurrent = true;
+		} catch (Exception e) {
+			throw new ScanDeleteException(e, "delete of the current record");
+		}
+		if (leafPage != current)
+			moved();
+	}
+
+	public void DestroyBTreeFileScan() throws IOException, InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		close();
+		BufMgr bufMgr = SystemDefs.JavabaseBM;
+		if (bufMgr instanceof ConcurrentBufMgr)
+			super.DestroyBTreeFileScan();
+		else
+			synchronized (bufMgr) {
+				super.DestroyBTreeFileScan();
+			}
+	}
+
+	/*
+	 * The scan went on to another leaf, or past the last one. Leaves it passed
+	 * are dropped from the window; if it was not read ahead, the window grows
+	 * and read-ahead starts again behind it.
+	 */
+	private synchronized void moved() {
+		current = leafPage;
+		if (current == null) {
+			closed = true;
+			return;
+		}
+		try {
+			int pid = current.getCurPage().pid;
+			Integer passed;
+			while ((passed = ahead.poll()) != null && passed != pid)
+				;
+			if (passed == null) {
+				window = Math.min(window * 2, maxWindow);
+				next = current.getNextPage().pid;
+			}
+		} catch (IOException e) {
+			closed = true;
+			return;
+		}
+		schedule();
+	}
+
+	// the I/O thread is woken once half the window has been used up
+	private void schedule() {
+		if (!scheduled && !closed && next != INVALID_PAGE && ahead.size() <= window / 2) {
+			scheduled = true;
+			IO.execute(this);
+		}
+	}
+
+	/*
+	 * Wait for a leaf being read to be let go, so that nothing is pinned for
+	 * this scan once it is destroyed.
+	 */
+	private synchronized void close() {
+		closed = true;
+		boolean interrupted = false;
+		while (reading) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Read leaves ahead until the window is full; runs on the I/O thread.
+	 */
+	public void run() {
+		while (true) {
+			int pid;
+			synchronized (this) {
+				if (closed || next == INVALID_PAGE || ahead.size() >= window) {
+					scheduled = false;
+					return;
+				}
+				pid = next;
+				reading = true;
+			}
+			int after = bfile.prefetchLeaf(pid, endkey);
+			synchronized (this) {
+				reading = false;
+				notifyAll();
+				// unless the scan started read-ahead again from elsewhere meanwhile
+				if (next == pid) {
+					ahead.add(pid);
+					next = after;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package btree;
+
+/**
+ * SplitPolicy.java Chooses where BTreeFile splits a full leaf or index page.
+ * The policy sees the entries of the page in key order, the entry that did not
+ * fit among them, as sizes with their keys on demand, and returns the first
+ * entry that goes to the new page.
+ *
+ * A split point out of range is clamped, and one that leaves a page without
+ * room for its entries falls back to the median. Policies are called under the
+ * write latch of the page, from many threads at once, so they keep no state of
+ * their own.
+ */
+public abstract class SplitPolicy {
+
+	/**
+	 * The full page with the new entry, as the policy sees it. Entry i is the
+	 * page's slot i before the new entry's position, the new entry at it, and
+	 * slot i - 1 after it.
+	 */
+	public interface Entries {
+
+		/**
+		 * @return the number of entries, the new one included
+		 */
+		int count();
+
+		/**
+		 * @return the bytes an entry takes, its slot included
+		 */
+		int length(int entry);
+
+		/**
+		 * @return the key of an entry
+		 */
+		KeyClass key(int entry);
+
+		/**
+		 * @return the position of the new entry, after any entries with an equal
+		 *         key
+		 */
+		int insertPosition();
+
+		/**
+		 * @return true for a leaf page, false for an index page
+		 */
+		boolean isLeaf();
+
+		/**
+		 * @return true if the page is the right-most one of its level
+		 */
+		boolean isRightMost();
+	}
+
+	/** split at the middle entry, see MedianSplitPolicy */
+	public static final String MEDIAN = "median";
+
+	/** the median, except for appends, see AppendSplitPolicy; the default */
+	public static final String APPEND = "append";
+
+	/** split where the new entry goes, see InsertPointSplitPolicy */
+	public static final String INSERT_POINT = "insert-point";
+
+	/** split at the widest key gap near the middle, see KeyGapSplitPolicy */
+	public static final String KEY_GAP = "key-gap";
+
+	/**
+	 * prefix of the policies that fill the split page up to a fill factor,
+	 * followed by the factor, e.g. "fill-0.7"; see FillFactorSplitPolicy
+	 */
+	public static final String FILL = "fill-";
+
+	protected SplitPolicy() {
+	}
+
+	/**
+	 * Create a policy by name: MEDIAN, APPEND, INSERT_POINT, KEY_GAP, or FILL
+	 * followed by a fill factor in (0, 1]. Case does not matter.
+	 *
+	 * @param name
+	 *            the name of the policy. Input parameter.
+	 * @return the policy
+	 */
+	public static SplitPolicy forName(String name) {
+		String lower = name.toLowerCase();
+		if (lower.equals(MEDIAN))
+			return new MedianSplitPolicy();
+		if (lower.equals(APPEND))
+			return new AppendSplitPolicy();
+		if (lower.equals(INSERT_POINT))
+			return new InsertPointSplitPolicy();
+		if (lower.equals(KEY_GAP))
+			return new KeyGapSplitPolicy();
+		if (lower.startsWith(FILL)) {
+			try {
+				return new FillFactorSplitPolicy(Double.parseDouble(lower.substring(FILL.length())));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("unknown split policy " + name, e);
+			}
+		}
+		throw new IllegalArgumentException("unknown split policy " + name);
+	}
+
+	/**
+	 * Choose the split point of a full page.
+	 *
+	 * @param page
+	 *            the entries of the full page and the new one. Input parameter.
+	 * @return the first entry that goes to the new page, from 1 up to the entry
+	 *         count - 1. On an index page the first entry of the new page moves
+	 *         up to the parent, so it keeps at least two.
+	 */
+	public abstract int splitPoint(Entries page);
+
+	/**
+	 * @return the name forName takes for this policy
+	 */
+	public abstract String getName();
+
+	/**
+	 * The split point that keeps at least a given share of the bytes of the
+	 * entries on the split page.
+	 *
+	 * @param page
+	 *            the entries. Input parameter.
+	 * @param fillFactor
+	 *            the share of the bytes to keep, in (0, 1]. Input parameter.
+	 * @return the first entry to move
+	 */
+	protected static int fillPoint(Entries page, double fillFactor) {
+		int count = page.count();
+		long total = 0;
+		for (int entry = 0; entry < count; entry++)
+			total += page.length(entry);
+		long keep = (long) Math.ceil(total * fillFactor);
+		int entry = 0;
+		for (long used = 0; entry < count && used < keep; entry++)
+			used += page.length(entry);
+		return entry;
+	}
+
+	public String toString() {
+		return getName();
+	}
+}
@@ -0,0 +1,58 @@
+package btree;
+
+/**
+ * SplitStats.java Counts of the page splits of a BTreeFile since it was opened,
+ * returned by BTreeFile.getSplitStats. The kept share of a split is the share
+ * of the bytes of the two pages that stayed on the split page: about 0.5 under
+ * the median policy, more under policies that pack pages for ordered keys.
+ */
+public class SplitStats {
+
+	String policy;
+	long leafSplits;
+	long indexSplits;
+	long leafKeptBytes;
+	long leafBytes;
+	long indexKeptBytes;
+	long indexBytes;
+
+	/**
+	 * @return the name of the split policy of the file
+	 */
+	public String getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the number of leaf pages split
+	 */
+	public long getLeafSplits() {
+		return leafSplits;
+	}
+
+	/**
+	 * @return the number of index pages split, the root included
+	 */
+	public long getIndexSplits() {
+		return indexSplits;
+	}
+
+	/**
+	 * @return the mean kept share of the leaf splits, 0 if there were none
+	 */
+	public double getLeafKeptShare() {
+		return leafBytes == 0 ? 0 : (double) leafKeptBytes / leafBytes;
+	}
+
+	/**
+	 * @return the mean kept share of the index splits, 0 if there were none
+	 */
+	public double getIndexKeptShare() {
+		return indexBytes == 0 ? 0 : (double) indexKeptBytes / indexBytes;
+	}
+
+	public String toString() {
+		return String.format("%s: %d leaf splits (kept %.2f), %d index splits (kept %.2f)", policy, leafSplits,
+				getLeafKeptShare(), indexSplits, getIndexKeptShare());
+	}
+}
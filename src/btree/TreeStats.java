@@ -0,0 +1,247 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import heap.*;
+
+/**
+ * TreeStats.java The shape of a BTreeFile, returned by BTreeFile.getTreeStats:
+ * the pages of each level and how full they are, the entries and keys of the
+ * leaves, and the pages a scan reads. Levels are numbered from the root, level
+ * 0, down to the leaves, level getHeight() - 1.
+ *
+ * The index levels are read whole, and so is the number of pages of every
+ * level, the leaf level included. The leaves may be sampled; then the fill and
+ * key figures describe the leaves read, and the counts of entries and empty
+ * leaves are scaled up from them.
+ *
+ * The fill of a page is the share of the space after the page header that its
+ * records and slots take. Pages emptied by naive deletes stay in the tree with
+ * a fill of 0 until the tree is rebuilt.
+ *
+ * It holds numbers and arrays only, so tools can serialize it.
+ */
+public class TreeStats implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** buckets of a fill histogram, a tenth of a page each */
+	public static final int FILL_BUCKETS = 10;
+
+	// the length of the rid after the key of a leaf entry
+	private static final int RID_SIZE = 8;
+
+	final int pageSize;
+	final String policy;
+	// per level: pages, pages read, and the entries, bytes and fill buckets of
+	// the pages read
+	int[] pages = new int[0];
+	long[] pagesRead = new long[0];
+	long[] entries = new long[0];
+	long[] usedBytes = new long[0];
+	long[][] fill = new long[0][];
+	long emptyLeaves;
+	// keys of the leaves read, by length in bytes
+	long[] keySizes = new long[0];
+
+	TreeStats(int pageSize, String policy) {
+		this.pageSize = pageSize;
+		this.policy = policy;
+	}
+
+	/*
+	 * Start the next level down, of the given number of pages. Returns its
+	 * number.
+	 */
+	int addLevel(int pageCount) {
+		int level = pages.length;
+		pages = Arrays.copyOf(pages, level + 1);
+		pagesRead = Arrays.copyOf(pagesRead, level + 1);
+		entries = Arrays.copyOf(entries, level + 1);
+		usedBytes = Arrays.copyOf(usedBytes, level + 1);
+		fill = Arrays.copyOf(fill, level + 1);
+		pages[level] = pageCount;
+		fill[level] = new long[FILL_BUCKETS];
+		return level;
+	}
+
+	/*
+	 * Count a page read on a level.
+	 */
+	void addPage(int level, byte[] data) {
+		int count = BTPageSearch.slotCount(data);
+		int used = BTPageSplit.usedSpace(data, 0, count);
+		pagesRead[level]++;
+		entries[level] += count;
+		usedBytes[level] += used;
+		fill[level][Math.min(FILL_BUCKETS - 1, used * FILL_BUCKETS / (pageSize - HFPage.DPFIXED))]++;
+		if (BTPageSearch.pageType(data) != NodeType.LEAF)
+			return;
+		if (count == 0)
+			emptyLeaves++;
+		for (int slot = 0; slot < count; slot++) {
+			int size = BTPageSearch.slotLength(data, slot) - RID_SIZE;
+			if (size >= keySizes.length)
+				keySizes = Arrays.copyOf(keySizes, size + 1);
+			keySizes[size]++;
+		}
+	}
+
+	/**
+	 * @return the page size of the file
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @return the name of the split policy of the file
+	 */
+	public String getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the number of levels, 0 for an empty tree and 1 for a root leaf
+	 */
+	public int getHeight() {
+		return pages.length;
+	}
+
+	/**
+	 * @param level
+	 *            a level, 0 for the root. Input parameter.
+	 * @return the number of pages of the level
+	 */
+	public int getPages(int level) {
+		return pages[level];
+	}
+
+	/**
+	 * @return the number of pages of the tree, the header page left out
+	 */
+	public long getPageCount() {
+		long count = 0;
+		for (int level = 0; level < pages.length; level++)
+			count += pages[level];
+		return count;
+	}
+
+	/**
+	 * @return the number of leaf pages
+	 */
+	public int getLeafPages() {
+		return pages.length == 0 ? 0 : pages[pages.length - 1];
+	}
+
+	/**
+	 * @return the number of leaf pages read; less than getLeafPages() if the
+	 *         leaves were sampled
+	 */
+	public long getLeavesRead() {
+		return pages.length == 0 ? 0 : pagesRead[pages.length - 1];
+	}
+
+	/**
+	 * @param level
+	 *            a level, 0 for the root. Input parameter.
+	 * @return the mean fill of the pages of the level read, 0 if none was
+	 */
+	public double getFill(int level) {
+		long read = pagesRead[level];
+		return read == 0 ? 0 : (double) usedBytes[level] / (read * (pageSize - HFPage.DPFIXED));
+	}
+
+	/**
+	 * @param level
+	 *            a level, 0 for the root. Input parameter.
+	 * @return the number of pages of the level read whose fill is in each
+	 *         tenth of a page, the first bucket for fills below 0.1; full
+	 *         pages count in the last one
+	 */
+	public long[] getFillHistogram(int level) {
+		return fill[level].clone();
+	}
+
+	/**
+	 * @return the number of leaf entries, estimated if the leaves were
+	 *         sampled. An entry that refers to a posting list counts once.
+	 */
+	public long getEntries() {
+		return scaled(pages.length == 0 ? 0 : entries[pages.length - 1]);
+	}
+
+	/**
+	 * @return the number of leaves without entries, estimated if the leaves
+	 *         were sampled
+	 */
+	public long getEmptyLeaves() {
+		return scaled(emptyLeaves);
+	}
+
+	/**
+	 * @return the number of keys of the leaves read of each length in bytes; a
+	 *         string key counts the two bytes of its length
+	 */
+	public long[] getKeySizeHistogram() {
+		return keySizes.clone();
+	}
+
+	/**
+	 * @return the mean length in bytes of the keys of the leaves read, 0 if
+	 *         there were none
+	 */
+	public double getMeanKeySize() {
+		long keys = 0;
+		long bytes = 0;
+		for (int size = 0; size < keySizes.length; size++) {
+			keys += keySizes[size];
+			bytes += size * keySizes[size];
+		}
+		return keys == 0 ? 0 : (double) bytes / keys;
+	}
+
+	/**
+	 * @return the pages a scan of the whole index reads: one index page per
+	 *         level on the way down, then every leaf
+	 */
+	public long getEstimatedScanPages() {
+		return pages.length == 0 ? 0 : pages.length - 1 + getLeafPages();
+	}
+
+	/**
+	 * The pages a range scan reads, from the mean number of entries of a leaf.
+	 * Empty leaves count towards the mean, since a scan walks through them.
+	 *
+	 * @param rangeEntries
+	 *            the number of entries in the range. Input parameter.
+	 * @return the estimated number of pages read, at most
+	 *         getEstimatedScanPages()
+	 */
+	public long estimateScanPages(long rangeEntries) {
+		int leaves = getLeafPages();
+		long total = getEntries();
+		if (leaves == 0)
+			return 0;
+		long leavesRead = total == 0 ? leaves : (long) Math.ceil((double) rangeEntries * leaves / total);
+		return pages.length - 1 + Math.max(1, Math.min(leaves, leavesRead));
+	}
+
+	// a count over the leaves read, scaled to all leaves
+	private long scaled(long count) {
+		long read = getLeavesRead();
+		return read == 0 ? 0 : Math.round((double) count * getLeafPages() / read);
+	}
+
+	public String toString() {
+		StringBuilder text = new StringBuilder(String.format(
+				"height %d, %d leaves (%d read), %d entries, %d empty leaves, key size %.1f, full scan %d pages, %s",
+				getHeight(), getLeafPages(), getLeavesRead(), getEntries(), getEmptyLeaves(), getMeanKeySize(),
+				getEstimatedScanPages(), policy));
+		for (int level = 0; level < pages.length; level++)
+			text.append(String.format("%n  level %d: %d pages, fill %.2f %s", level, pages[level], getFill(level),
+					Arrays.toString(fill[level])));
+		return text.toString();
+	}
+}
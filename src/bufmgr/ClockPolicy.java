@@ -0,0 +1,56 @@
+package bufmgr;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * ClockPolicy.java CLOCK: a hand goes round the frames, clearing reference bits,
+ * and takes the first unpinned frame whose bit is clear. Pins only set a bit,
+ * and the hand is an atomic counter, so nothing here takes a lock.
+ *
+ * Reference bits are read and written without synchronization; a race only
+ * lets the hand see a recent pin late.
+ */
+final class ClockPolicy extends ReplacementPolicy {
+
+	private final boolean[] referenced;
+	private final AtomicInteger hand = new AtomicInteger();
+
+	ClockPolicy(int numFrames) {
+		super(numFrames);
+		referenced = new boolean[numFrames];
+	}
+
+	public void accessed(int frame) {
+		referenced[frame] = true;
+	}
+
+	public void loaded(int frame, int pid) {
+		referenced[frame] = true;
+	}
+
+	public void freed(int frame) {
+		referenced[frame] = false;
+	}
+
+	/*
+	 * Two turns clear every bit once; pins can set bits again meanwhile, so the
+	 * hand may go round a third time.
+	 */
+	public int victim(Frames frames) {
+		for (int i = 0; i < 3 * numFrames; i++) {
+			int frame = (hand.getAndIncrement() & Integer.MAX_VALUE) % numFrames;
+			if (frames.isPinned(frame))
+				continue;
+			if (referenced[frame]) {
+				referenced[frame] = false;
+				continue;
+			}
+			return frame;
+		}
+		return -1;
+	}
+
+	public String getName() {
+		return "Clock";
+	}
+}
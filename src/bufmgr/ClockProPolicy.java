@@ -0,0 +1,202 @@
+package bufmgr;
+
+import java.util.*;
+
+/**
+ * ClockProPolicy.java CLOCK-Pro (Jiang, Chen and Zhang). Resident pages are hot
+ * or cold, and the page numbers of recently evicted cold pages stay on the
+ * clock as non-resident test entries. A cold page referenced again while it is
+ * on the clock becomes hot, so a page needs two references close together to
+ * become hot and a scan only ever replaces cold pages.
+ *
+ * Three hands go round one circular list. The cold hand looks for the victim
+ * among cold pages and promotes those referenced since its last visit. The hot
+ * hand demotes unreferenced hot pages whenever there are more hot pages than
+ * the hot target. The test hand drops the oldest test entries when there are
+ * more of them than frames. The cold target grows by one on every reference
+ * to a test entry and shrinks by one whenever a test entry expires.
+ *
+ * Like Clock, pins of resident pages only set a reference bit and take no
+ * lock; loads and victim searches run under the policy's monitor.
+ */
+final class ClockProPolicy extends ReplacementPolicy {
+
+	private static final int HOT = 0;
+	private static final int COLD = 1;
+	private static final int TEST = 2;
+
+	private static final class Entry {
+		int pid;
+		// -1 for a test entry
+		int frame;
+		int type;
+		Entry prev;
+		Entry next;
+	}
+
+	private final boolean[] referenced;
+	private final Entry[] entryOf;
+	private final HashMap<Integer, Entry> tests = new HashMap<Integer, Entry>();
+	private Entry handHot;
+	private Entry handCold;
+	private Entry handTest;
+	private int countHot;
+	private int countCold;
+	private int coldTarget;
+
+	ClockProPolicy(int numFrames) {
+		super(numFrames);
+		referenced = new boolean[numFrames];
+		entryOf = new Entry[numFrames];
+		coldTarget = numFrames;
+	}
+
+	public void accessed(int frame) {
+		referenced[frame] = true;
+	}
+
+	public synchronized void loaded(int frame, int pid) {
+		Entry old = entryOf[frame];
+		if (old != null) {
+			// the victim stays on the clock as a test entry
+			if (old.type == HOT)
+				countHot--;
+			else
+				countCold--;
+			old.type = TEST;
+			old.frame = -1;
+			tests.put(old.pid, old);
+			while (tests.size() > numFrames)
+				runHandTest();
+		}
+		referenced[frame] = false;
+		Entry entry = new Entry();
+		entry.pid = pid;
+		entry.frame = frame;
+		Entry test = tests.remove(pid);
+		if (test != null) {
+			unlink(test);
+			if (coldTarget < numFrames)
+				coldTarget++;
+			entry.type = HOT;
+			countHot++;
+		} else {
+			entry.type = COLD;
+			countCold++;
+		}
+		entryOf[frame] = entry;
+		link(entry);
+		balanceHot();
+	}
+
+	public synchronized void freed(int frame) {
+		Entry entry = entryOf[frame];
+		if (entry == null)
+			return;
+		if (entry.type == HOT)
+			countHot--;
+		else
+			countCold--;
+		unlink(entry);
+		entryOf[frame] = null;
+		referenced[frame] = false;
+	}
+
+	/*
+	 * The cold hand stays on the victim; loaded moves it on once the page has
+	 * been replaced. If the cold hand finds every cold page pinned or
+	 * referenced, the hot hand demotes hot pages until one can go.
+	 */
+	public synchronized int victim(Frames frames) {
+		if (countHot + countCold < numFrames)
+			for (int frame = 0; frame < numFrames; frame++)
+				if (entryOf[frame] == null && !frames.isPinned(frame))
+					return frame;
+		int size = countHot + countCold + tests.size();
+		for (int i = 0; i < 2 * size && handCold != null; i++) {
+			Entry entry = handCold;
+			if (entry.type == COLD && !frames.isPinned(entry.frame)) {
+				if (!referenced[entry.frame])
+					return entry.frame;
+				referenced[entry.frame] = false;
+				entry.type = HOT;
+				countCold--;
+				countHot++;
+				handCold = entry.next;
+				balanceHot();
+			} else {
+				handCold = entry.next;
+			}
+		}
+		for (int i = 0; i < 2 * size && handHot != null; i++) {
+			Entry entry = handHot;
+			runHandHot();
+			if (entry.type == COLD && !frames.isPinned(entry.frame) && !referenced[entry.frame])
+				return entry.frame;
+		}
+		return -1;
+	}
+
+	public String getName() {
+		return "CLOCK-Pro";
+	}
+
+	private void balanceHot() {
+		while (countHot > numFrames - coldTarget)
+			runHandHot();
+	}
+
+	private void runHandHot() {
+		Entry entry = handHot;
+		if (entry.type == HOT) {
+			if (referenced[entry.frame]) {
+				referenced[entry.frame] = false;
+			} else {
+				entry.type = COLD;
+				countHot--;
+				countCold++;
+			}
+		}
+		handHot = entry.next;
+	}
+
+	private void runHandTest() {
+		Entry entry = handTest;
+		handTest = entry.next;
+		if (entry.type == TEST) {
+			tests.remove(entry.pid);
+			unlink(entry);
+			if (coldTarget > 1)
+				coldTarget--;
+		}
+	}
+
+	// add an entry behind the hot hand, i.e. where every hand reaches it last
+	private void link(Entry entry) {
+		if (handHot == null) {
+			entry.prev = entry;
+			entry.next = entry;
+			handHot = handCold = handTest = entry;
+			return;
+		}
+		entry.next = handHot;
+		entry.prev = handHot.prev;
+		handHot.prev.next = entry;
+		handHot.prev = entry;
+	}
+
+	private void unlink(Entry entry) {
+		if (entry.next == entry) {
+			handHot = handCold = handTest = null;
+			return;
+		}
+		if (handHot == entry)
+			handHot = entry.next;
+		if (handCold == entry)
+			handCold = entry.next;
+		if (handTest == entry)
+			handTest = entry.next;
+		entry.prev.next = entry.next;
+		entry.next.prev = entry.prev;
+	}
+}
@@ -0,0 +1,926 @@
+package bufmgr;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * ConcurrentBufMgr.java A thread-safe buffer manager. It replaces the
+ * chained BufHashTbl and the FrameDesc array of BufMgr with a page table that
+ * holds an atomic reference per page of the database, and frames whose pin
+ * counts are updated with compare-and-set, so pin and unpin requests for
+ * resident pages take no lock and allocate nothing. Frames that hold no page
+ * are kept on a free list; once it is empty, a ReplacementPolicy picked by name
+ * chooses the frame to replace. Pins can be recorded to a trace file for
+ * ReplacementSimulator.
+ *
+ * A frame's pin count is -1 while one thread owns it to replace or free its
+ * page; nobody else can pin it then. The thread that loads a page into a frame
+ * holds the frame's monitor until the page is read, and threads that find the
+ * page meanwhile wait on that monitor.
+ *
+ * Pages are read and written with positional I/O on a channel of its own, so
+ * requests for different pages do not wait for each other's I/O; if
+ * SystemDefs.JavabaseDB is a MappedDB, they are copied through its mappings
+ * instead. Allocation and deallocation still go through SystemDefs.JavabaseDB
+ * and are serialized on it; the space map pages the DB pins meanwhile come
+ * back to this buffer manager.
+ *
+ * Frames are byte arrays on the heap unless the pool is created off-heap.
+ * Then every frame is a slot in a few large direct buffers, and the heap only
+ * holds copies of the pages that are pinned: Page and the page classes work on
+ * a byte array, so a frame's first pin copies its slot into a window taken
+ * from a list of spare arrays, and its last unpin copies the window back if it
+ * was changed. A frame's window is attached exactly while its pin count is
+ * above zero, so a page must not be touched once it is unpinned.
+ *
+ * Frames are as large as the pages of SystemDefs.JavabaseDB when the buffer
+ * manager is created, so a MappedDB with pages larger than MINIBASE_PAGESIZE
+ * must be installed first.
+ *
+ * A background flusher, started with startFlusher, writes dirty pages before
+ * they are chosen for replacement, so that pinPage seldom waits for the write
+ * of a victim. It owns the frames it writes like a replacing thread does, and
+ * writes pages with adjacent page numbers with one request.
+ *
+ * Install it with install(replacer) after the SystemDefs have been created;
+ * BTreeFile then stops serializing its requests on SystemDefs.JavabaseBM.
+ */
+public class ConcurrentBufMgr extends BufMgr {
+
+	private static final class Frame {
+		final int index;
+		// the page held, or INVALID_PAGE
+		volatile int pid = INVALID_PAGE;
+		// the pin count, or -1 while the frame is being replaced or freed
+		final AtomicInteger pins = new AtomicInteger();
+		final AtomicBoolean dirty = new AtomicBoolean();
+		// false until the page has been read
+		volatile boolean loaded;
+		// off-heap only: the heap copy of the page while the frame is pinned
+		volatile byte[] window;
+		// off-heap only: the window was changed since it was attached
+		volatile boolean changed;
+
+		Frame(int index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * frames of MINIBASE_PAGESIZE bytes per direct buffer of an off-heap pool;
+	 * a buffer holds as many bytes of larger frames
+	 */
+	public static final int REGION_FRAMES = 1 << 20;
+
+	/** the most pages the flusher writes with one request */
+	public static final int MAX_RUN = 64;
+
+	// the most dirty frames the flusher picks in one sweep
+	private static final int SWEEP_FRAMES = 1024;
+
+	// how long the flusher waits when a sweep found nothing it could write
+	private static final long IDLE_NANOS = 10000000L;
+
+	// null for an off-heap pool
+	private final byte[][] bufPool;
+	// null for an on-heap pool
+	private final ByteBuffer[] regions;
+	private final ConcurrentLinkedQueue<byte[]> windows = new ConcurrentLinkedQueue<byte[]>();
+	private final Frame[] frames;
+	// the frame of each page of the database, null if it is not in the pool;
+	// indexed by page number, so that finding a frame boxes nothing
+	private final AtomicReferenceArray<Frame> pageTable;
+	private final ConcurrentLinkedQueue<Frame> free = new ConcurrentLinkedQueue<Frame>();
+	private final int pageSize;
+	private final int regionFrames;
+	private final ReplacementPolicy policy;
+	private final ReplacementPolicy.Frames pinState = new ReplacementPolicy.Frames() {
+		public boolean isPinned(int frame) {
+			return frames[frame].pins.get() != 0;
+		}
+	};
+	private final FileChannel file;
+	private volatile PrintWriter trace;
+	private final AtomicInteger numDirty = new AtomicInteger();
+	private volatile Flusher flusher;
+
+	/**
+	 * Create a buffer pool on the database of SystemDefs.
+	 *
+	 * @param numbufs
+	 *            number of buffers in the buffer pool. Input parameter.
+	 * @param replacer
+	 *            the name of the replacement policy, see
+	 *            ReplacementPolicy.forName. Input parameter.
+	 * @exception IOException
+	 *                the database file cannot be opened
+	 * @exception ReplacerException
+	 *                there is no policy with this name
+	 */
+	public ConcurrentBufMgr(int numbufs, String replacer) throws IOException, ReplacerException {
+		this(numbufs, replacer, false);
+	}
+
+	/**
+	 * Create a buffer pool on the database of SystemDefs, on or off the heap.
+	 *
+	 * @param numbufs
+	 *            number of buffers in the buffer pool. Input parameter.
+	 * @param replacer
+	 *            the name of the replacement policy, see
+	 *            ReplacementPolicy.forName. Input parameter.
+	 * @param offHeap
+	 *            true to keep the frames in direct buffers. Input parameter.
+	 * @exception IOException
+	 *                the database file cannot be opened
+	 * @exception ReplacerException
+	 *                there is no policy with this name
+	 */
+	public ConcurrentBufMgr(int numbufs, String replacer, boolean offHeap) throws IOException, ReplacerException {
+		// the frames of BufMgr itself go unused
+		super(1, "Clock");
+		policy = ReplacementPolicy.forName(replacer, numbufs);
+		pageSize = MappedDB.pageSizeOf(SystemDefs.JavabaseDB);
+		regionFrames = REGION_FRAMES / (pageSize / MINIBASE_PAGESIZE);
+		if (offHeap) {
+			bufPool = null;
+			regions = new ByteBuffer[(numbufs + regionFrames - 1) / regionFrames];
+			for (int i = 0; i < regions.length; i++)
+				regions[i] = ByteBuffer.allocateDirect(Math.min(regionFrames, numbufs - i * regionFrames)
+						* pageSize);
+		} else {
+			bufPool = new byte[numbufs][pageSize];
+			regions = null;
+		}
+		frames = new Frame[numbufs];
+		for (int i = 0; i < numbufs; i++) {
+			frames[i] = new Frame(i);
+			free.add(frames[i]);
+		}
+		pageTable = new AtomicReferenceArray<Frame>(SystemDefs.JavabaseDB.db_num_pages());
+		file = new RandomAccessFile(SystemDefs.JavabaseDBName, "rw").getChannel();
+	}
+
+	/**
+	 * Flush the buffer manager of SystemDefs and replace it with a
+	 * ConcurrentBufMgr of the same size. This must happen before any file is
+	 * opened, since open files keep their header pages pinned.
+	 *
+	 * @param replacer
+	 *            the name of the replacement policy, see
+	 *            ReplacementPolicy.forName. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception BufMgrException
+	 *                a page of the old buffer manager cannot be flushed
+	 * @exception ReplacerException
+	 *                there is no policy with this name
+	 */
+	public static void install(String replacer) throws IOException, BufMgrException, ReplacerException {
+		install(replacer, false);
+	}
+
+	/**
+	 * Like install(replacer), with the frames on or off the heap.
+	 *
+	 * @param replacer
+	 *            the name of the replacement policy, see
+	 *            ReplacementPolicy.forName. Input parameter.
+	 * @param offHeap
+	 *            true to keep the frames in direct buffers. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception BufMgrException
+	 *                a page of the old buffer manager cannot be flushed
+	 * @exception ReplacerException
+	 *                there is no policy with this name
+	 */
+	public static void install(String replacer, boolean offHeap) throws IOException, BufMgrException,
+			ReplacerException {
+		BufMgr old = SystemDefs.JavabaseBM;
+		if (old instanceof ConcurrentBufMgr)
+			throw new BufMgrException(null, "BUFMGR: a ConcurrentBufMgr is installed already");
+		try {
+			old.flushAllPages();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BUFMGR: flush of the old buffer manager failed");
+		}
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(old.getNumBuffers(), replacer, offHeap);
+	}
+
+	/**
+	 * Record the page number of every pin, one per line, in a file that
+	 * ReplacementSimulator can replay.
+	 *
+	 * @param filename
+	 *            the trace file name. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void traceFilename(String filename) throws IOException {
+		destroyTrace();
+		trace = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+	}
+
+	/**
+	 * Stop tracing and close the trace file.
+	 */
+	public void destroyTrace() {
+		PrintWriter old = trace;
+		trace = null;
+		if (old != null)
+			old.close();
+	}
+
+	/**
+	 * @return the replacement policy
+	 */
+	public ReplacementPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the size of a frame, the page size of the database
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Start a background thread that writes dirty pages ahead of replacement.
+	 * It wakes up once more than the high fraction of the frames are dirty and
+	 * writes unpinned dirty pages until no more than the low fraction are. A
+	 * flusher that is running already is stopped first.
+	 *
+	 * @param low
+	 *            the fraction of dirty frames the flusher stops at, between 0
+	 *            and 1. Input parameter.
+	 * @param high
+	 *            the fraction of dirty frames the flusher starts at, at least
+	 *            low. Input parameter.
+	 */
+	public synchronized void startFlusher(double low, double high) {
+		stopFlusher();
+		low = Math.max(0, Math.min(low, 1));
+		high = Math.max(low, Math.min(high, 1));
+		flusher = new Flusher((int) (low * frames.length), (int) (high * frames.length));
+		flusher.start();
+	}
+
+	/**
+	 * Stop the background flusher, if one is running, and wait for it to
+	 * finish the write it is doing.
+	 */
+	public synchronized void stopFlusher() {
+		Flusher old = flusher;
+		if (old == null)
+			return;
+		flusher = null;
+		old.stopped = true;
+		LockSupport.unpark(old);
+		boolean interrupted = false;
+		while (old.isAlive()) {
+			try {
+				old.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * @return the number of frames whose page has changes not written yet
+	 */
+	public int getNumDirtyBuffers() {
+		return numDirty.get();
+	}
+
+	/**
+	 * Pin a page. A page that is not in the buffer pool is brought into a free
+	 * frame, or else into a frame the replacement policy chooses, whose old page
+	 * is written back first if it is dirty. The page is read from the database
+	 * unless emptyPage is true.
+	 *
+	 * @param pageno
+	 *            page number in the minibase. Input parameter.
+	 * @param page
+	 *            the pointer point to the page. Output parameter.
+	 * @param emptyPage
+	 *            true (empty page); false (non-empty page). Input parameter.
+	 * @exception BufferPoolExceededException
+	 *                every frame is pinned
+	 * @exception PageNotReadException
+	 *                the page cannot be read
+	 * @exception BufMgrException
+	 *                the old page of the frame cannot be written back
+	 */
+	public void pinPage(PageId pageno, Page page, boolean emptyPage)
+			throws BufferPoolExceededException, PageNotReadException, BufMgrException {
+		int pid = pageno.pid;
+		for (;;) {
+			Frame frame = frameOf(pid);
+			if (frame == null)
+				frame = load(pid, emptyPage);
+			else if (pin(frame, pid))
+				policy.accessed(frame.index);
+			else
+				frame = null;
+			if (frame != null) {
+				PrintWriter trace = this.trace;
+				if (trace != null)
+					trace.println(pid);
+				page.setpage(data(frame));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Unpin a page.
+	 *
+	 * @param pageno
+	 *            page number in the minibase. Input parameter.
+	 * @param dirty
+	 *            the dirty bit of the frame. Input parameter.
+	 * @exception PageUnpinnedException
+	 *                the page is not pinned
+	 * @exception HashEntryNotFoundException
+	 *                the page is not in the buffer pool
+	 */
+	public void unpinPage(PageId pageno, boolean dirty) throws PageUnpinnedException, HashEntryNotFoundException {
+		Frame frame = frameOf(pageno.pid);
+		if (frame == null)
+			throw new HashEntryNotFoundException(null, "BUFMGR: HASH_NOT_FOUND.");
+		if (dirty) {
+			frame.changed = true;
+			markDirty(frame);
+		}
+		if (!unpin(frame))
+			throw new PageUnpinnedException(null, "BUFMGR: PAGE_NOT_PINNED.");
+	}
+
+	/**
+	 * Allocate a run of pages and pin the first one.
+	 *
+	 * @param firstpage
+	 *            the address of the first page. Output parameter.
+	 * @param howmany
+	 *            total number of allocated new pages. Input parameter.
+	 * @return the first page id of the new pages, or null if the first page
+	 *         cannot be pinned
+	 * @exception DiskMgrException
+	 *                the pages cannot be allocated
+	 */
+	public PageId newPage(Page firstpage, int howmany) throws DiskMgrException {
+		PageId pageno = new PageId();
+		try {
+			synchronized (SystemDefs.JavabaseDB) {
+				SystemDefs.JavabaseDB.allocate_page(pageno, howmany);
+			}
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "BUFMGR: allocate_page failed");
+		}
+		try {
+			pinPage(pageno, firstpage, true);
+		} catch (Exception e) {
+			try {
+				synchronized (SystemDefs.JavabaseDB) {
+					SystemDefs.JavabaseDB.deallocate_page(pageno, howmany);
+				}
+			} catch (Exception f) {
+				throw new DiskMgrException(f, "BUFMGR: deallocate_page failed");
+			}
+			return null;
+		}
+		return pageno;
+	}
+
+	/**
+	 * Drop a page from the buffer pool and deallocate it. Like BufMgr, a page
+	 * pinned once is unpinned first.
+	 *
+	 * @param pageno
+	 *            page number in the minibase. Input parameter.
+	 * @exception PagePinnedException
+	 *                the page is pinned more than once
+	 * @exception DiskMgrException
+	 *                the page cannot be deallocated
+	 */
+	public void freePage(PageId pageno) throws PagePinnedException, DiskMgrException {
+		int pid = pageno.pid;
+		Frame frame;
+		while ((frame = frameOf(pid)) != null) {
+			int pins = frame.pins.get();
+			if (pins > 1)
+				throw new PagePinnedException(null, "BUFMGR: PAGE_PINNED.");
+			if (pins < 0 || !frame.pins.compareAndSet(pins, -1)) {
+				Thread.yield();
+				continue;
+			}
+			if (frame.pid == pid) {
+				frame.changed = false;
+				detach(frame);
+				pageTable.compareAndSet(pid, frame, null);
+				frame.pid = INVALID_PAGE;
+				frame.loaded = false;
+				markClean(frame);
+				policy.freed(frame.index);
+				frame.pins.set(0);
+				free.add(frame);
+				break;
+			}
+			frame.pins.set(pins);
+		}
+		try {
+			synchronized (SystemDefs.JavabaseDB) {
+				SystemDefs.JavabaseDB.deallocate_page(pageno);
+			}
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "BUFMGR: deallocate_page failed");
+		}
+	}
+
+	/**
+	 * Write a page to disk if it is dirty.
+	 *
+	 * @param pageid
+	 *            the page number in the database. Input parameter.
+	 * @exception BufMgrException
+	 *                the page cannot be written
+	 */
+	public void flushPage(PageId pageid) throws BufMgrException {
+		Frame frame = frameOf(pageid.pid);
+		if (frame != null)
+			flush(frame, pageid.pid);
+	}
+
+	/**
+	 * Write every dirty page to disk.
+	 *
+	 * @exception PagePinnedException
+	 *                some page was pinned; it has been written all the same
+	 * @exception BufMgrException
+	 *                a page cannot be written
+	 */
+	public void flushAllPages() throws PagePinnedException, BufMgrException {
+		boolean pinned = false;
+		for (Frame frame : frames) {
+			int pid = frame.pid;
+			if (pid == INVALID_PAGE)
+				continue;
+			if (frame.pins.get() > 0)
+				pinned = true;
+			flush(frame, pid);
+		}
+		if (pinned)
+			throw new PagePinnedException(null, "BUFMGR: PAGE_PINNED.");
+	}
+
+	public int getNumBuffers() {
+		// the replacer of BufMgr asks while the superclass is being constructed
+		if (frames == null)
+			return super.getNumBuffers();
+		return frames.length;
+	}
+
+	public int getNumUnpinnedBuffers() {
+		int unpinned = 0;
+		for (Frame frame : frames)
+			if (frame.pins.get() <= 0)
+				unpinned++;
+		return unpinned;
+	}
+
+	/**
+	 * A snapshot of the frames. frameTable still describes the frames of
+	 * BufMgr itself, which go unused.
+	 *
+	 * @return the state of each frame, in frame order
+	 */
+	public FrameState[] getFrameStates() {
+		FrameState[] states = new FrameState[frames.length];
+		for (int i = 0; i < frames.length; i++)
+			states[i] = new FrameState(frames[i].pid, frames[i].dirty.get(), Math.max(frames[i].pins.get(), 0));
+		return states;
+	}
+
+	/*
+	 * Pin a frame found in the page table, unless it was replaced or freed since.
+	 */
+	private boolean pin(Frame frame, int pid) {
+		for (;;) {
+			int pins = frame.pins.get();
+			if (pins < 0) {
+				Thread.yield();
+				return false;
+			}
+			if (frame.pins.compareAndSet(pins, pins + 1))
+				break;
+		}
+		if (!frame.loaded) {
+			// wait for the thread reading the page
+			synchronized (frame) {
+			}
+		}
+		if (frame.pid != pid || !frame.loaded) {
+			unpin(frame);
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Drop a pin. The last pin of an off-heap frame owns the frame while it
+	 * copies the window back. Returns false if the frame was not pinned.
+	 */
+	private boolean unpin(Frame frame) {
+		for (;;) {
+			int pins = frame.pins.get();
+			if (pins <= 0)
+				return false;
+			if (pins > 1 || regions == null) {
+				if (frame.pins.compareAndSet(pins, pins - 1))
+					return true;
+			} else if (frame.pins.compareAndSet(1, -1)) {
+				detach(frame);
+				frame.pins.set(0);
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * The bytes of a frame pinned by this thread; for an off-heap frame, its
+	 * window, attached by whichever pin comes first.
+	 */
+	private byte[] data(Frame frame) {
+		if (regions == null)
+			return bufPool[frame.index];
+		byte[] window = frame.window;
+		if (window == null) {
+			synchronized (frame) {
+				window = frame.window;
+				if (window == null) {
+					window = windows.poll();
+					if (window == null)
+						window = new byte[pageSize];
+					slot(frame).get(window);
+					frame.window = window;
+				}
+			}
+		}
+		return window;
+	}
+
+	/*
+	 * Copy the window of an off-heap frame back if it was changed and put it on
+	 * the spare list. The caller owns the frame.
+	 */
+	private void detach(Frame frame) {
+		byte[] window = frame.window;
+		if (window == null)
+			return;
+		frame.window = null;
+		if (frame.changed) {
+			frame.changed = false;
+			slot(frame).put(window);
+		}
+		windows.add(window);
+	}
+
+	// the slot of an off-heap frame, as a buffer of its own
+	private ByteBuffer slot(Frame frame) {
+		ByteBuffer slot = regions[frame.index / regionFrames].duplicate();
+		int start = frame.index % regionFrames * pageSize;
+		slot.limit(start + pageSize);
+		slot.position(start);
+		return slot.slice();
+	}
+
+	// the frame holding a page, null if it is not in the pool
+	private Frame frameOf(int pid) {
+		return pid >= 0 && pid < pageTable.length() ? pageTable.get(pid) : null;
+	}
+
+	/*
+	 * Bring a page into a free or replaced frame and pin it. Returns null if
+	 * another thread brought the page in first.
+	 */
+	private Frame load(int pid, boolean emptyPage)
+			throws BufferPoolExceededException, PageNotReadException, BufMgrException {
+		if (pid < 0 || pid >= pageTable.length())
+			throw new PageNotReadException(null, "BUFMGR: DB_READ_PAGE_ERROR.");
+		Frame frame = victim();
+		synchronized (frame) {
+			int old = frame.pid;
+			if (old != INVALID_PAGE) {
+				if (markClean(frame)) {
+					try {
+						write(old, frame);
+					} catch (IOException e) {
+						markDirty(frame);
+						frame.pins.set(0);
+						throw new BufMgrException(e, "BUFMGR: DB_WRITE_PAGE_ERROR.");
+					}
+				}
+				pageTable.compareAndSet(old, frame, null);
+			}
+			frame.pid = pid;
+			frame.loaded = false;
+			policy.loaded(frame.index, pid);
+			if (!pageTable.compareAndSet(pid, null, frame)) {
+				release(frame);
+				return null;
+			}
+			frame.pins.set(1);
+			if (!emptyPage) {
+				try {
+					read(pid, frame);
+				} catch (IOException e) {
+					// threads that found the page meanwhile hold pins on the frame;
+					// the policy finds it once they let go
+					pageTable.compareAndSet(pid, frame, null);
+					frame.pid = INVALID_PAGE;
+					policy.freed(frame.index);
+					unpin(frame);
+					throw new PageNotReadException(e, "BUFMGR: DB_READ_PAGE_ERROR.");
+				}
+			}
+			frame.loaded = true;
+		}
+		return frame;
+	}
+
+	/*
+	 * Take a frame for a new page and set its pin count to -1. Free frames go
+	 * first. A frame that was on the free list but holds a page again is left
+	 * off; one that a thread is pinning by mistake is put back.
+	 */
+	private Frame victim() throws BufferPoolExceededException {
+		Frame frame;
+		while ((frame = free.poll()) != null) {
+			if (frame.pins.compareAndSet(0, -1)) {
+				if (frame.pid == INVALID_PAGE)
+					return frame;
+				frame.pins.set(0);
+			} else if (frame.pid == INVALID_PAGE) {
+				free.add(frame);
+				break;
+			}
+		}
+		for (int tries = 0; tries < frames.length; tries++) {
+			int index = policy.victim(pinState);
+			if (index < 0)
+				break;
+			if (frames[index].pins.compareAndSet(0, -1))
+				return frames[index];
+		}
+		throw new BufferPoolExceededException(null, "BUFMGR: BUFFER_EXCEEDED.");
+	}
+
+	/*
+	 * Put a frame owned by this thread back on the free list.
+	 */
+	private void release(Frame frame) {
+		frame.pid = INVALID_PAGE;
+		policy.freed(frame.index);
+		frame.pins.set(0);
+		free.add(frame);
+	}
+
+	/*
+	 * The frame is pinned while it is written, so that it cannot be replaced.
+	 * The dirty bit is cleared first; an update made during the write sets it
+	 * again.
+	 */
+	private void flush(Frame frame, int pid) throws BufMgrException {
+		if (!frame.dirty.get() || !pin(frame, pid))
+			return;
+		try {
+			if (markClean(frame))
+				write(pid, frame);
+		} catch (IOException e) {
+			markDirty(frame);
+			throw new BufMgrException(e, "BUFMGR: DB_WRITE_PAGE_ERROR.");
+		} finally {
+			unpin(frame);
+		}
+	}
+
+	/*
+	 * Set the dirty bit of a frame, and wake the flusher if that takes the
+	 * number of dirty frames above its high mark.
+	 */
+	private void markDirty(Frame frame) {
+		if (frame.dirty.get() || !frame.dirty.compareAndSet(false, true))
+			return;
+		int dirty = numDirty.incrementAndGet();
+		Flusher flusher = this.flusher;
+		if (flusher != null && dirty == flusher.high + 1)
+			LockSupport.unpark(flusher);
+	}
+
+	// clear the dirty bit of a frame; returns false if it was clear
+	private boolean markClean(Frame frame) {
+		if (!frame.dirty.get() || !frame.dirty.compareAndSet(true, false))
+			return false;
+		numDirty.decrementAndGet();
+		return true;
+	}
+
+	/*
+	 * The background writer. Each sweep goes on round the frames from where
+	 * the last one stopped, picks unpinned dirty frames, and writes them in
+	 * page order, a run of adjacent pages with one request. A write that fails
+	 * leaves its pages dirty; replacement writes them and reports the error.
+	 */
+	private final class Flusher extends Thread {
+		final int low;
+		final int high;
+		volatile boolean stopped;
+		private int cursor;
+		// page number and frame number of the frames picked, page number first
+		private final long[] picked = new long[SWEEP_FRAMES];
+		private final Frame[] run = new Frame[MAX_RUN];
+		private final ByteBuffer staging = ByteBuffer.allocateDirect(MAX_RUN * pageSize);
+
+		Flusher(int low, int high) {
+			super("bufmgr-flusher");
+			setDaemon(true);
+			this.low = low;
+			this.high = high;
+		}
+
+		/*
+		 * Once woken above the high mark, keep on until the low mark even when
+		 * a sweep finds every dirty frame pinned; they are written once they
+		 * are unpinned.
+		 */
+		public void run() {
+			boolean draining = false;
+			while (!stopped) {
+				int dirty = numDirty.get();
+				if (dirty <= low || !draining && dirty <= high) {
+					draining = false;
+					LockSupport.park(this);
+					continue;
+				}
+				draining = true;
+				int written;
+				do
+					written = sweep();
+				while (written > 0 && !stopped && numDirty.get() > low);
+				if (written == 0)
+					LockSupport.parkNanos(this, IDLE_NANOS);
+			}
+		}
+
+		// returns the number of pages written
+		private int sweep() {
+			int wanted = Math.min(numDirty.get() - low, SWEEP_FRAMES);
+			int count = 0;
+			for (int i = 0; i < frames.length && count < wanted; i++) {
+				Frame frame = frames[cursor];
+				cursor = (cursor + 1) % frames.length;
+				int pid = frame.pid;
+				if (pid != INVALID_PAGE && frame.dirty.get() && frame.pins.get() == 0)
+					picked[count++] = (long) pid << 32 | frame.index;
+			}
+			Arrays.sort(picked, 0, count);
+			int written = 0;
+			int next = 0;
+			while (next < count) {
+				int first = INVALID_PAGE;
+				int length = 0;
+				for (; next < count && length < MAX_RUN; next++) {
+					int pid = (int) (picked[next] >>> 32);
+					if (length > 0 && pid != first + length)
+						break;
+					Frame frame = frames[(int) picked[next]];
+					if (!own(frame, pid)) {
+						if (length > 0) {
+							next++;
+							break;
+						}
+						continue;
+					}
+					if (length == 0)
+						first = pid;
+					run[length++] = frame;
+				}
+				if (length > 0)
+					written += writeRun(first, length);
+			}
+			return written;
+		}
+
+		/*
+		 * Take a frame for writing like victim does, so that nobody pins,
+		 * replaces or frees it meanwhile, if it still holds the page and the
+		 * page is dirty.
+		 */
+		private boolean own(Frame frame, int pid) {
+			if (!frame.pins.compareAndSet(0, -1))
+				return false;
+			if (frame.pid == pid && frame.loaded && frame.dirty.get())
+				return true;
+			frame.pins.set(0);
+			return false;
+		}
+
+		private int writeRun(int first, int length) {
+			try {
+				for (int i = 0; i < length; i++)
+					markClean(run[i]);
+				if (SystemDefs.JavabaseDB instanceof MappedDB) {
+					for (int i = 0; i < length; i++)
+						write(first + i, run[i]);
+				} else {
+					staging.clear();
+					for (int i = 0; i < length; i++)
+						staging.put(source(run[i]));
+					staging.flip();
+					long position = position(first);
+					while (staging.hasRemaining())
+						file.write(staging, position + staging.position());
+				}
+				return length;
+			} catch (IOException e) {
+				for (int i = 0; i < length; i++)
+					markDirty(run[i]);
+				return 0;
+			} finally {
+				for (int i = 0; i < length; i++) {
+					run[i].pins.set(0);
+					run[i] = null;
+				}
+			}
+		}
+	}
+
+	private void read(int pid, Frame frame) throws IOException {
+		ByteBuffer buffer = regions == null ? ByteBuffer.wrap(bufPool[frame.index]) : slot(frame);
+		ByteBuffer mapped = mapped(pid);
+		if (mapped != null) {
+			buffer.put(mapped);
+			return;
+		}
+		long position = position(pid);
+		while (buffer.hasRemaining())
+			if (file.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("page " + pid);
+	}
+
+	/*
+	 * An off-heap frame is written from its window while one is attached,
+	 * which holds the latest bytes.
+	 */
+	private void write(int pid, Frame frame) throws IOException {
+		ByteBuffer buffer = source(frame);
+		ByteBuffer mapped = mapped(pid);
+		if (mapped != null) {
+			mapped.put(buffer);
+			return;
+		}
+		long position = position(pid);
+		while (buffer.hasRemaining())
+			file.write(buffer, position + buffer.position());
+	}
+
+	private ByteBuffer source(Frame frame) {
+		if (regions == null)
+			return ByteBuffer.wrap(bufPool[frame.index]);
+		byte[] window = frame.window;
+		return window != null ? ByteBuffer.wrap(window) : slot(frame);
+	}
+
+	// a MappedDB copies pages without a system call, so leave the I/O to it
+	private static ByteBuffer mapped(int pid) throws IOException {
+		DB db = SystemDefs.JavabaseDB;
+		if (!(db instanceof MappedDB))
+			return null;
+		try {
+			return ((MappedDB) db).pageView(new PageId(pid));
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	private long position(int pid) throws IOException {
+		if (pid < 0 || pid >= SystemDefs.JavabaseDB.db_num_pages())
+			throw new IOException("invalid page number " + pid);
+		return (long) pid * pageSize;
+	}
+}
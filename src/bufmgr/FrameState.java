@@ -0,0 +1,45 @@
+package bufmgr;
+
+import global.*;
+
+/**
+ * FrameState.java The state of a frame of a ConcurrentBufMgr at the time
+ * ConcurrentBufMgr.getFrameStates took it.
+ */
+public class FrameState {
+
+	final PageId pageNo;
+	final boolean dirty;
+	final int pinCount;
+
+	FrameState(int pid, boolean dirty, int pinCount) {
+		this.pageNo = new PageId(pid);
+		this.dirty = dirty;
+		this.pinCount = pinCount;
+	}
+
+	/**
+	 * @return the page held by the frame, INVALID_PAGE if none
+	 */
+	public PageId getPageNo() {
+		return new PageId(pageNo.pid);
+	}
+
+	/**
+	 * @return whether the page has changes not written yet
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * @return the number of pins of the page
+	 */
+	public int getPinCount() {
+		return pinCount;
+	}
+
+	public String toString() {
+		return "page " + pageNo.pid + (dirty ? ", dirty" : "") + ", " + pinCount + " pins";
+	}
+}
@@ -0,0 +1,94 @@
+package bufmgr;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * LRUKPolicy.java LRU-K (O'Neil, O'Neil and Weikum): replace the page whose K-th
+ * most recent reference is oldest. Pages referenced fewer than K times count as
+ * infinitely old and go first, least recently used first, so a scan that
+ * touches each page once cannot push out pages that were referenced K times.
+ * LRU-1 is plain LRU.
+ *
+ * Reference times are kept for evicted pages as well, for as many pages as
+ * there are frames, so a page that comes back soon keeps its history.
+ */
+final class LRUKPolicy extends ReplacementPolicy implements GlobalConst {
+
+	private final int k;
+	private final int[] pids;
+	// the last k reference times of each frame's page, most recent first; 0 for
+	// none
+	private final long[][] history;
+	private final LinkedHashMap<Integer, long[]> retained;
+	private long time;
+
+	LRUKPolicy(int numFrames, int k) {
+		super(numFrames);
+		this.k = k;
+		pids = new int[numFrames];
+		Arrays.fill(pids, INVALID_PAGE);
+		history = new long[numFrames][k];
+		final int capacity = numFrames;
+		retained = new LinkedHashMap<Integer, long[]>() {
+			protected boolean removeEldestEntry(Map.Entry<Integer, long[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public synchronized void accessed(int frame) {
+		reference(history[frame]);
+	}
+
+	public synchronized void loaded(int frame, int pid) {
+		long[] times = history[frame];
+		if (pids[frame] != INVALID_PAGE && k > 1)
+			retained.put(pids[frame], times.clone());
+		long[] old = k > 1 ? retained.remove(pid) : null;
+		if (old != null)
+			System.arraycopy(old, 0, times, 0, k);
+		else
+			Arrays.fill(times, 0);
+		pids[frame] = pid;
+		reference(times);
+	}
+
+	public synchronized void freed(int frame) {
+		pids[frame] = INVALID_PAGE;
+		Arrays.fill(history[frame], 0);
+	}
+
+	public synchronized int victim(Frames frames) {
+		int victim = -1;
+		for (int frame = 0; frame < numFrames; frame++) {
+			if (frames.isPinned(frame))
+				continue;
+			if (pids[frame] == INVALID_PAGE)
+				return frame;
+			if (victim < 0 || older(history[frame], history[victim]))
+				victim = frame;
+		}
+		return victim;
+	}
+
+	public String getName() {
+		return "LRU-" + k;
+	}
+
+	private void reference(long[] times) {
+		System.arraycopy(times, 0, times, 1, k - 1);
+		times[0] = ++time;
+	}
+
+	/*
+	 * Compare by K-th most recent reference, where 0 (fewer than K references)
+	 * is oldest, then by most recent reference.
+	 */
+	private boolean older(long[] a, long[] b) {
+		if (a[k - 1] != b[k - 1])
+			return a[k - 1] < b[k - 1];
+		return a[0] < b[0];
+	}
+}
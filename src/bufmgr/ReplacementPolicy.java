@@ -0,0 +1,103 @@
+package bufmgr;
+
+/**
+ * ReplacementPolicy.java Chooses the frame ConcurrentBufMgr replaces when a page
+ * has to be brought in and no frame is free. A policy only sees frame numbers
+ * and page numbers; the buffer manager tells it about every pin, load and free
+ * and asks it for a victim.
+ *
+ * Methods may be called from many threads at once, so every policy does its
+ * own locking. accessed is called on every pin of a resident page and should
+ * be cheap.
+ */
+public abstract class ReplacementPolicy {
+
+	/**
+	 * The pin state of the frames, as the buffer manager sees it.
+	 */
+	public interface Frames {
+		boolean isPinned(int frame);
+	}
+
+	protected final int numFrames;
+
+	protected ReplacementPolicy(int numFrames) {
+		this.numFrames = numFrames;
+	}
+
+	/**
+	 * Create a policy by name: "Clock", "LRU", "LRU-K" for a K of 2 or more (e.g.
+	 * "LRU-2"), "2Q" or "CLOCK-Pro". Case does not matter.
+	 *
+	 * @param name
+	 *            the name of the policy. Input parameter.
+	 * @param numFrames
+	 *            the number of frames in the buffer pool. Input parameter.
+	 * @return the policy
+	 * @exception ReplacerException
+	 *                there is no policy with this name
+	 */
+	public static ReplacementPolicy forName(String name, int numFrames) throws ReplacerException {
+		String upper = name.toUpperCase();
+		if (upper.equals("CLOCK"))
+			return new ClockPolicy(numFrames);
+		if (upper.equals("LRU"))
+			return new LRUKPolicy(numFrames, 1);
+		if (upper.equals("2Q"))
+			return new TwoQPolicy(numFrames);
+		if (upper.equals("CLOCK-PRO") || upper.equals("CLOCKPRO"))
+			return new ClockProPolicy(numFrames);
+		if (upper.startsWith("LRU-")) {
+			try {
+				int k = Integer.parseInt(upper.substring(4));
+				if (k >= 1)
+					return new LRUKPolicy(numFrames, k);
+			} catch (NumberFormatException e) {
+				throw new ReplacerException(e, "BUFMGR: unknown replacement policy " + name);
+			}
+		}
+		throw new ReplacerException(null, "BUFMGR: unknown replacement policy " + name);
+	}
+
+	/**
+	 * A page resident in a frame was pinned.
+	 *
+	 * @param frame
+	 *            the frame number. Input parameter.
+	 */
+	public abstract void accessed(int frame);
+
+	/**
+	 * A page was brought into a frame, replacing the page the frame held, if any.
+	 *
+	 * @param frame
+	 *            the frame number. Input parameter.
+	 * @param pid
+	 *            the page number. Input parameter.
+	 */
+	public abstract void loaded(int frame, int pid);
+
+	/**
+	 * The page of a frame was dropped; the frame holds no page now.
+	 *
+	 * @param frame
+	 *            the frame number. Input parameter.
+	 */
+	public abstract void freed(int frame);
+
+	/**
+	 * Choose an unpinned frame to replace. The policy may not forget the page of
+	 * the frame yet: the buffer manager can lose a race for the frame, and it
+	 * calls loaded when it has replaced the page.
+	 *
+	 * @param frames
+	 *            the pin state of the frames. Input parameter.
+	 * @return the frame number, or -1 if every frame is pinned
+	 */
+	public abstract int victim(Frames frames);
+
+	/**
+	 * @return the name forName takes for this policy
+	 */
+	public abstract String getName();
+}
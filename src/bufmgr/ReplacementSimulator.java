@@ -0,0 +1,106 @@
+package bufmgr;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * ReplacementSimulator.java Replays a trace of pins, one page number per line as
+ * written by ConcurrentBufMgr.traceFilename, through replacement policies and
+ * reports the hit ratio of each. Every pin is taken to be unpinned before the
+ * next one, so any frame can be replaced.
+ *
+ * Usage: java bufmgr.ReplacementSimulator tracefile frames [policy ...]
+ */
+public class ReplacementSimulator implements GlobalConst {
+
+	private static final String[] POLICIES = { "Clock", "LRU", "LRU-2", "2Q", "CLOCK-Pro" };
+
+	private static final ReplacementPolicy.Frames UNPINNED = new ReplacementPolicy.Frames() {
+		public boolean isPinned(int frame) {
+			return false;
+		}
+	};
+
+	public static void main(String[] args) throws IOException, ReplacerException {
+		if (args.length < 2) {
+			System.err.println("Usage: java bufmgr.ReplacementSimulator tracefile frames [policy ...]");
+			System.exit(1);
+		}
+		int[] trace = readTrace(args[0]);
+		int numFrames = Integer.parseInt(args[1]);
+		String[] names = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : POLICIES;
+		System.out.println(trace.length + " pins of " + distinct(trace) + " pages, " + numFrames + " frames");
+		for (String name : names) {
+			long hits = simulate(ReplacementPolicy.forName(name, numFrames), numFrames, trace);
+			System.out.printf("%-10s %10d hits %10d misses  hit ratio %.4f%n", name, hits, trace.length - hits,
+					trace.length == 0 ? 0.0 : (double) hits / trace.length);
+		}
+	}
+
+	/**
+	 * Replay a trace through a policy.
+	 *
+	 * @param policy
+	 *            a fresh policy. Input parameter.
+	 * @param numFrames
+	 *            the number of frames the policy was created for. Input
+	 *            parameter.
+	 * @param trace
+	 *            the page numbers pinned, in order. Input parameter.
+	 * @return the number of pins that found their page resident
+	 */
+	public static long simulate(ReplacementPolicy policy, int numFrames, int[] trace) {
+		HashMap<Integer, Integer> frameOf = new HashMap<Integer, Integer>();
+		int[] pids = new int[numFrames];
+		Arrays.fill(pids, INVALID_PAGE);
+		int used = 0;
+		long hits = 0;
+		for (int pid : trace) {
+			Integer frame = frameOf.get(pid);
+			if (frame != null) {
+				policy.accessed(frame);
+				hits++;
+				continue;
+			}
+			int victim = used < numFrames ? used++ : policy.victim(UNPINNED);
+			if (pids[victim] != INVALID_PAGE)
+				frameOf.remove(pids[victim]);
+			pids[victim] = pid;
+			frameOf.put(pid, victim);
+			policy.loaded(victim, pid);
+		}
+		return hits;
+	}
+
+	/**
+	 * @return the page numbers in a trace file
+	 */
+	public static int[] readTrace(String filename) throws IOException {
+		int[] trace = new int[1024];
+		int size = 0;
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0)
+					continue;
+				if (size == trace.length)
+					trace = Arrays.copyOf(trace, size * 2);
+				trace[size++] = Integer.parseInt(line);
+			}
+		} finally {
+			in.close();
+		}
+		return Arrays.copyOf(trace, size);
+	}
+
+	private static int distinct(int[] trace) {
+		HashSet<Integer> pages = new HashSet<Integer>();
+		for (int pid : trace)
+			pages.add(pid);
+		return pages.size();
+	}
+}
@@ -0,0 +1,136 @@
+package bufmgr;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * TwoQPolicy.java Full 2Q (Johnson and Shasha). A page seen for the first time
+ * enters A1in, a FIFO queue of at most a quarter of the frames. Pages pushed
+ * out of A1in are remembered by page number only in A1out, which holds up to
+ * half as many pages as there are frames. Only a page that comes back while it
+ * is in A1out enters Am, the LRU queue for the hot pages. A scan therefore
+ * cycles through A1in and leaves Am alone.
+ */
+final class TwoQPolicy extends ReplacementPolicy implements GlobalConst {
+
+	private static final byte NONE = 0;
+	private static final byte A1IN = 1;
+	private static final byte AM = 2;
+
+	/*
+	 * A queue of frames linked through the shared prev and next arrays; a frame
+	 * is in at most one queue. New frames go to the tail.
+	 */
+	private final class Queue {
+		int head = -1;
+		int tail = -1;
+		int size;
+
+		void add(int frame) {
+			prev[frame] = tail;
+			next[frame] = -1;
+			if (tail < 0)
+				head = frame;
+			else
+				next[tail] = frame;
+			tail = frame;
+			size++;
+		}
+
+		void remove(int frame) {
+			if (prev[frame] < 0)
+				head = next[frame];
+			else
+				next[prev[frame]] = next[frame];
+			if (next[frame] < 0)
+				tail = prev[frame];
+			else
+				prev[next[frame]] = prev[frame];
+			size--;
+		}
+
+		// the unpinned frame closest to the head
+		int oldest(Frames frames) {
+			for (int frame = head; frame >= 0; frame = next[frame])
+				if (!frames.isPinned(frame))
+					return frame;
+			return -1;
+		}
+	}
+
+	private final int[] prev;
+	private final int[] next;
+	private final int[] pids;
+	private final byte[] queueOf;
+	private final Queue a1in = new Queue();
+	private final Queue am = new Queue();
+	private final LinkedHashSet<Integer> a1out = new LinkedHashSet<Integer>();
+	private final int maxIn;
+	private final int maxOut;
+
+	TwoQPolicy(int numFrames) {
+		super(numFrames);
+		prev = new int[numFrames];
+		next = new int[numFrames];
+		pids = new int[numFrames];
+		Arrays.fill(pids, INVALID_PAGE);
+		queueOf = new byte[numFrames];
+		maxIn = Math.max(1, numFrames / 4);
+		maxOut = Math.max(1, numFrames / 2);
+	}
+
+	public synchronized void accessed(int frame) {
+		if (queueOf[frame] == AM) {
+			am.remove(frame);
+			am.add(frame);
+		}
+	}
+
+	public synchronized void loaded(int frame, int pid) {
+		if (queueOf[frame] == A1IN) {
+			a1in.remove(frame);
+			a1out.add(pids[frame]);
+			if (a1out.size() > maxOut) {
+				Iterator<Integer> oldest = a1out.iterator();
+				oldest.next();
+				oldest.remove();
+			}
+		} else if (queueOf[frame] == AM) {
+			am.remove(frame);
+		}
+		pids[frame] = pid;
+		if (a1out.remove(pid)) {
+			queueOf[frame] = AM;
+			am.add(frame);
+		} else {
+			queueOf[frame] = A1IN;
+			a1in.add(frame);
+		}
+	}
+
+	public synchronized void freed(int frame) {
+		if (queueOf[frame] == A1IN)
+			a1in.remove(frame);
+		else if (queueOf[frame] == AM)
+			am.remove(frame);
+		queueOf[frame] = NONE;
+		pids[frame] = INVALID_PAGE;
+	}
+
+	public synchronized int victim(Frames frames) {
+		if (a1in.size + am.size < numFrames)
+			for (int frame = 0; frame < numFrames; frame++)
+				if (queueOf[frame] == NONE && !frames.isPinned(frame))
+					return frame;
+		Queue first = a1in.size > maxIn || am.size == 0 ? a1in : am;
+		int frame = first.oldest(frames);
+		if (frame < 0)
+			frame = (first == a1in ? am : a1in).oldest(frames);
+		return frame;
+	}
+
+	public String getName() {
+		return "2Q";
+	}
+}
@@ -0,0 +1,338 @@
+package diskmgr;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * MappedDB.java A DB that reads and writes pages through memory mappings of the
+ * database file instead of a seek plus a read or write on a RandomAccessFile
+ * per page. A buffer miss then costs one copy from the mapping into the frame
+ * and no system call.
+ *
+ * The file is mapped in segments of SEGMENT_PAGES pages, each on first use. A
+ * segment mapped before the file grew is mapped again once a page past its end
+ * is asked for. Allocation, deallocation and the file directory are left to
+ * DB; they pin their pages through the buffer manager, which reads and writes
+ * them here.
+ *
+ * read_page and write_page may be called by several threads at once, as
+ * ConcurrentBufMgr does; each call copies through a view of its own.
+ *
+ * Pages may be larger than MINIBASE_PAGESIZE, up to MAX_PAGESIZE bytes. DB
+ * lays out its header, directory and space map pages in their first
+ * MINIBASE_PAGESIZE bytes, and page 0 keeps the page size right after that
+ * part, so that the database opens with it again. The file that DB creates
+ * holds pages of MINIBASE_PAGESIZE bytes; it is grown to db_num_pages() pages
+ * of the page size once a page past its end is asked for. BufMgr reads and
+ * writes only the first MINIBASE_PAGESIZE bytes of a page, enough for DB, so
+ * the pages of a file need a ConcurrentBufMgr installed after the MappedDB,
+ * whose frames take the page size of the database.
+ *
+ * Install it with install() after the SystemDefs have been created.
+ */
+public class MappedDB extends DB {
+
+	/** pages per mapped segment */
+	public static final int SEGMENT_PAGES = 1 << 16;
+
+	/**
+	 * the largest page size; HFPage keeps record offsets in shorts, which hold
+	 * no offset of a page of 32 KB
+	 */
+	public static final int MAX_PAGESIZE = 1 << 14;
+
+	// where page 0 keeps the page size, after the part DB lays out
+	private static final int PAGE_SIZE_OFFSET = MINIBASE_PAGESIZE;
+	private static final int PAGE_SIZE_MAGIC = 0x50475331;
+
+	// set before the file is opened
+	private volatile int pageSize;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	/**
+	 * Flush the buffer manager of SystemDefs, close the database of SystemDefs
+	 * and open the same file again as a MappedDB. This must happen before any
+	 * file is opened, since open files keep their header pages pinned.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception DiskMgrException
+	 *                a page cannot be flushed or the file cannot be opened
+	 */
+	public static void install() throws IOException, DiskMgrException {
+		DB old = SystemDefs.JavabaseDB;
+		if (old instanceof MappedDB)
+			throw new DiskMgrException(null, "DB: a MappedDB is installed already");
+		checkFrames(storedPageSize(old.db_name()));
+		MappedDB db = new MappedDB();
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+			old.closeDB();
+			SystemDefs.JavabaseDB = db;
+			db.openDB(old.db_name());
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "DB: install of the MappedDB failed");
+		}
+	}
+
+	/**
+	 * Like install(), for a database that SystemDefs has just created: it is
+	 * created again, with as many pages as before, of pageSize bytes each.
+	 * Anything stored in the database meanwhile is lost.
+	 *
+	 * @param pageSize
+	 *            a power of two from MINIBASE_PAGESIZE to MAX_PAGESIZE. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception DiskMgrException
+	 *                a page cannot be flushed, the file cannot be created, or
+	 *                the frames of a ConcurrentBufMgr installed already are of
+	 *                another size
+	 */
+	public static void install(int pageSize) throws IOException, DiskMgrException {
+		DB old = SystemDefs.JavabaseDB;
+		if (old instanceof MappedDB)
+			throw new DiskMgrException(null, "DB: a MappedDB is installed already");
+		checkFrames(pageSize);
+		MappedDB db = new MappedDB(pageSize);
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+			int num_pgs = old.db_num_pages();
+			old.closeDB();
+			SystemDefs.JavabaseDB = db;
+			db.openDB(old.db_name(), num_pgs);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "DB: install of the MappedDB failed");
+		}
+	}
+
+	/**
+	 * A MappedDB whose files have pages of MINIBASE_PAGESIZE bytes, or of the
+	 * size kept in the file opened.
+	 */
+	public MappedDB() {
+		this(MINIBASE_PAGESIZE);
+	}
+
+	/**
+	 * @param pageSize
+	 *            the page size of the files created; files opened keep theirs.
+	 *            A power of two from MINIBASE_PAGESIZE to MAX_PAGESIZE. Input
+	 *            parameter.
+	 */
+	public MappedDB(int pageSize) {
+		if (!isPageSize(pageSize))
+			throw new IllegalArgumentException("page size must be a power of two from " + MINIBASE_PAGESIZE
+					+ " to " + MAX_PAGESIZE + ": " + pageSize);
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @return the size of the pages of this database
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @param db
+	 *            a database. Input parameter.
+	 * @return its page size: MINIBASE_PAGESIZE unless it is a MappedDB
+	 */
+	public static int pageSizeOf(DB db) {
+		return db instanceof MappedDB ? ((MappedDB) db).getPageSize() : MINIBASE_PAGESIZE;
+	}
+
+	public void openDB(String fname) throws IOException, InvalidPageNumberException, FileIOException,
+			DiskMgrException {
+		unmap();
+		pageSize = storedPageSize(fname);
+		super.openDB(fname);
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException, InvalidPageNumberException,
+			FileIOException, DiskMgrException {
+		unmap();
+		super.openDB(fname, num_pgs);
+		if (pageSize > MINIBASE_PAGESIZE)
+			storePageSize();
+	}
+
+	public void closeDB() throws IOException {
+		unmap();
+		super.closeDB();
+	}
+
+	public void DBDestroy() throws IOException {
+		unmap();
+		super.DBDestroy();
+	}
+
+	/**
+	 * Read a page by copying it out of the mapping.
+	 *
+	 * @param pageno
+	 *            page number of the page. Input parameter.
+	 * @param apage
+	 *            the page whose data is overwritten. Output parameter.
+	 * @exception InvalidPageNumberException
+	 *                the page number is out of range
+	 * @exception FileIOException
+	 *                the file cannot be mapped
+	 */
+	public void read_page(PageId pageno, Page apage) throws InvalidPageNumberException, FileIOException {
+		view(pageno).get(apage.getpage());
+	}
+
+	/**
+	 * Write a page by copying it into the mapping.
+	 *
+	 * @param pageno
+	 *            page number of the page. Input parameter.
+	 * @param apage
+	 *            the page to write. Input parameter.
+	 * @exception InvalidPageNumberException
+	 *                the page number is out of range
+	 * @exception FileIOException
+	 *                the file cannot be mapped
+	 */
+	public void write_page(PageId pageno, Page apage) throws InvalidPageNumberException, FileIOException {
+		view(pageno).put(apage.getpage());
+	}
+
+	/**
+	 * A view of a page in the mapping. Writes to it change the page.
+	 *
+	 * @param pageno
+	 *            page number of the page. Input parameter.
+	 * @return a buffer of getPageSize() bytes that nobody else uses
+	 * @exception InvalidPageNumberException
+	 *                the page number is out of range
+	 * @exception FileIOException
+	 *                the file cannot be mapped
+	 */
+	public ByteBuffer pageView(PageId pageno) throws InvalidPageNumberException, FileIOException {
+		ByteBuffer view = view(pageno);
+		view.limit(view.position() + pageSize);
+		return view.slice();
+	}
+
+	// a buffer of one's own positioned at the page
+	private ByteBuffer view(PageId pageno) throws InvalidPageNumberException, FileIOException {
+		int pid = pageno.pid;
+		if (pid < 0 || pid >= db_num_pages())
+			throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
+		int index = pid / SEGMENT_PAGES;
+		int end = (pid % SEGMENT_PAGES + 1) * pageSize;
+		MappedByteBuffer[] mapped = segments;
+		MappedByteBuffer segment = index < mapped.length ? mapped[index] : null;
+		if (segment == null || segment.capacity() < end)
+			segment = map(index, end);
+		ByteBuffer view = segment.duplicate();
+		view.position(end - pageSize);
+		return view;
+	}
+
+	/*
+	 * Page 0 is pinned, so that a buffer manager that holds the whole page
+	 * writes the page size back with it; one that holds the part of DB only
+	 * leaves the rest to the mapping.
+	 */
+	private void storePageSize() throws DiskMgrException {
+		PageId first = new PageId(0);
+		Page page = new Page();
+		try {
+			SystemDefs.JavabaseBM.pinPage(first, page, false);
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "DB: page 0 cannot be pinned");
+		}
+		boolean whole = page.getpage().length >= PAGE_SIZE_OFFSET + 8;
+		try {
+			ByteBuffer header = whole ? ByteBuffer.wrap(page.getpage()) : view(first);
+			header.putInt(PAGE_SIZE_OFFSET, PAGE_SIZE_MAGIC);
+			header.putInt(PAGE_SIZE_OFFSET + 4, pageSize);
+			SystemDefs.JavabaseBM.unpinPage(first, whole);
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "DB: the page size cannot be stored");
+		}
+	}
+
+	// the page size kept in page 0 of a file, which DB has not opened yet
+	private static int storedPageSize(String fname) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(fname, "r");
+		try {
+			if (in.length() < PAGE_SIZE_OFFSET + 8)
+				return MINIBASE_PAGESIZE;
+			in.seek(PAGE_SIZE_OFFSET);
+			if (in.readInt() != PAGE_SIZE_MAGIC)
+				return MINIBASE_PAGESIZE;
+			int size = in.readInt();
+			return isPageSize(size) ? size : MINIBASE_PAGESIZE;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean isPageSize(int size) {
+		return size >= MINIBASE_PAGESIZE && size <= MAX_PAGESIZE && Integer.bitCount(size) == 1;
+	}
+
+	// the frames of a ConcurrentBufMgr are sized when it is created
+	private static void checkFrames(int pageSize) throws DiskMgrException {
+		BufMgr bufMgr = SystemDefs.JavabaseBM;
+		if (bufMgr instanceof ConcurrentBufMgr && ((ConcurrentBufMgr) bufMgr).getPageSize() != pageSize)
+			throw new DiskMgrException(null, "DB: the frames of the buffer manager do not hold pages of "
+					+ pageSize + " bytes; install the MappedDB first");
+	}
+
+	private synchronized MappedByteBuffer map(int index, int end) throws FileIOException {
+		MappedByteBuffer[] mapped = segments;
+		if (index < mapped.length && mapped[index] != null && mapped[index].capacity() >= end)
+			return mapped[index];
+		try {
+			if (channel == null) {
+				file = new RandomAccessFile(db_name(), "rw");
+				channel = file.getChannel();
+			}
+			long segmentSize = (long) SEGMENT_PAGES * pageSize;
+			long start = index * segmentSize;
+			if (channel.size() < start + end)
+				file.setLength((long) db_num_pages() * pageSize);
+			long size = Math.min(segmentSize, channel.size() - start);
+			if (size < end)
+				throw new FileIOException(null, "DB file I/O error");
+			MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			mapped = Arrays.copyOf(mapped, Math.max(mapped.length, index + 1));
+			mapped[index] = segment;
+			segments = mapped;
+			return segment;
+		} catch (IOException e) {
+			throw new FileIOException(e, "DB file I/O error");
+		}
+	}
+
+	/*
+	 * Mappings stay valid after the channel is closed and go away when they
+	 * are collected; pages written to them are in the file already.
+	 */
+	private synchronized void unmap() throws IOException {
+		segments = new MappedByteBuffer[0];
+		if (file != null) {
+			file.close();
+			file = null;
+			channel = null;
+		}
+	}
+}
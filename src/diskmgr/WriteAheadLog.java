@@ -0,0 +1,732 @@
+package diskmgr;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * WriteAheadLog.java A redo log of page images for the index files of the
+ * database of SystemDefs. Every operation that changes a file is logged as one
+ * unit: the images of the pages it changed, the pages it allocated and the
+ * pages it frees. A unit is appended when the operation is done, with a
+ * checksum, and the pages it changed stay pinned until the unit is on disk, so
+ * the database file never holds a change that is not in the log. Pages freed
+ * by the operation are deallocated only then, so that they cannot be reused
+ * before the unit is on disk.
+ *
+ * Commits are grouped: a thread that finds a force of the log running waits
+ * for it, and the next force writes the units of every thread that waited
+ * meanwhile with one write and one sync.
+ *
+ * Recovery reads the log from the start and applies every complete unit in
+ * order: it copies the page images into their pages and sets and clears the
+ * space map bits of the pages allocated and freed. Page images are idempotent,
+ * so this is the redo pass of ARIES with the page LSN test left out. A unit
+ * cut short by the crash fails its checksum and ends the log; none of its
+ * pages reached the database file, so there is nothing to undo. A checkpoint
+ * then writes the pages logged so far to the database file, syncs it and
+ * empties the log. Checkpoints also happen when the log grows beyond
+ * setCheckpointSize.
+ *
+ * Install it with install() after the SystemDefs have been created and before
+ * any file is opened. The log is kept in SystemDefs.JavabaseLogName with
+ * LOG_SUFFIX appended.
+ */
+public class WriteAheadLog implements GlobalConst {
+
+	/** the operation a unit is logged for */
+	public static final int INSERT = 1;
+	public static final int DELETE = 2;
+	public static final int BATCH = 3;
+	public static final int CREATE = 4;
+	public static final int DESTROY = 5;
+
+	/** appended to SystemDefs.JavabaseLogName for the log file name */
+	public static final String LOG_SUFFIX = ".wal";
+
+	/** the default size of the log that makes a commit run a checkpoint */
+	public static final long CHECKPOINT_SIZE = 64L << 20;
+
+	/** the exit status of a JVM halted at the crash point */
+	public static final int CRASH_STATUS = 99;
+
+	// kinds of entries in a unit
+	private static final byte PAGE = 1;
+	private static final byte ALLOC = 2;
+	private static final byte FREE = 3;
+
+	private static final int MAGIC = 0x57414c31;
+	// magic, length of the body, checksum of the body
+	private static final int HEADER_SIZE = 12;
+	// pages a space map page keeps bits for; see DB.set_bits, which uses the
+	// first MINIBASE_PAGESIZE bytes of a page of any size
+	private static final int BITS_PER_PAGE = MINIBASE_PAGESIZE * 8;
+	// the next page field of the directory pages of DB, first page included
+	private static final int DIRECTORY_NEXT_PAGE = 0;
+
+	private static volatile WriteAheadLog installed;
+
+	/*
+	 * The unit of the operation a thread is running. Nested operations, such as
+	 * the inserts of a batch, add to the unit of the outermost one.
+	 */
+	private static final class Unit {
+		final int op;
+		int depth = 1;
+		// pages changed, in the order of their first change
+		final LinkedHashSet<Integer> changed = new LinkedHashSet<Integer>();
+		final ArrayList<Integer> allocated = new ArrayList<Integer>();
+		final ArrayList<Integer> freed = new ArrayList<Integer>();
+		// unpins put off until the unit is on disk
+		final ArrayList<Integer> unpins = new ArrayList<Integer>();
+		// the end of the unit in the log, 0 if nothing was appended
+		long end;
+		Exception failure;
+
+		Unit(int op) {
+			this.op = op;
+		}
+	}
+
+	private final String filename;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ThreadLocal<Unit> current = new ThreadLocal<Unit>();
+	// held shared by every unit from begin to commit, exclusively by checkpoints
+	private final ReentrantReadWriteLock units = new ReentrantReadWriteLock();
+	// units appended but not forced yet
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private long appended;
+	private long durable;
+	private boolean forcing;
+	// pages logged since the last checkpoint, including space map pages
+	private final TreeSet<Integer> logged = new TreeSet<Integer>();
+	private volatile boolean recovered;
+	private final Object recovery = new Object();
+	private volatile long checkpointSize = CHECKPOINT_SIZE;
+	private final AtomicLong forces = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+	private volatile int crashPoint = -1;
+	private final AtomicInteger events = new AtomicInteger();
+
+	/**
+	 * Open the log of the database of SystemDefs.
+	 *
+	 * @exception IOException
+	 *                the log file cannot be opened
+	 */
+	public WriteAheadLog() throws IOException {
+		filename = SystemDefs.JavabaseLogName + LOG_SUFFIX;
+		file = new RandomAccessFile(filename, "rw");
+		channel = file.getChannel();
+		appended = durable = channel.size();
+	}
+
+	/**
+	 * Open the log of the database of SystemDefs and have BTreeFile log to it.
+	 * The log is recovered when the first file is opened.
+	 *
+	 * @return the log
+	 * @exception IOException
+	 *                the log file cannot be opened
+	 * @exception DiskMgrException
+	 *                a log is installed already
+	 */
+	public static WriteAheadLog install() throws IOException, DiskMgrException {
+		synchronized (WriteAheadLog.class) {
+			if (installed != null)
+				throw new DiskMgrException(null, "DB: a WriteAheadLog is installed already");
+			installed = new WriteAheadLog();
+			return installed;
+		}
+	}
+
+	/**
+	 * @return the log BTreeFile logs to, or null
+	 */
+	public static WriteAheadLog installed() {
+		return installed;
+	}
+
+	/**
+	 * Checkpoint and close the installed log, if any. Files must not be changed
+	 * meanwhile.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static void uninstall() throws IOException {
+		synchronized (WriteAheadLog.class) {
+			WriteAheadLog log = installed;
+			if (log == null)
+				return;
+			try {
+				log.checkpoint();
+			} finally {
+				installed = null;
+				log.file.close();
+			}
+		}
+	}
+
+	/**
+	 * Set the size of the log beyond which a commit runs a checkpoint.
+	 *
+	 * @param bytes
+	 *            the size in bytes. Input parameter.
+	 */
+	public void setCheckpointSize(long bytes) {
+		checkpointSize = bytes;
+	}
+
+	/**
+	 * Halt the JVM at the given crash point, counting from now: every change,
+	 * allocation and free noted in a unit, every append, the start and end of
+	 * every force and of the deferred work of every commit, and the sync of the
+	 * database file by every checkpoint is one. This is for crash tests only.
+	 *
+	 * @param point
+	 *            the number of the crash point, or -1 for none. Input
+	 *            parameter.
+	 */
+	public void setCrashPoint(int point) {
+		events.set(0);
+		crashPoint = point;
+	}
+
+	/**
+	 * @return the file name of the log
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * @return the number of units committed so far
+	 */
+	public long getCommits() {
+		return commits.get();
+	}
+
+	/**
+	 * @return the number of syncs of the log so far; with group commit, fewer
+	 *         than commits
+	 */
+	public long getForces() {
+		return forces.get();
+	}
+
+	/**
+	 * Apply the units in the log to the database and empty the log. Only the
+	 * first call does anything; BTreeFile calls it when a file is opened and
+	 * before the first unit begins.
+	 *
+	 * @return the number of units applied
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception DiskMgrException
+	 *                a page cannot be pinned or unpinned
+	 */
+	public int recover() throws IOException, DiskMgrException {
+		synchronized (recovery) {
+			if (recovered)
+				return 0;
+			int applied = redo();
+			checkpoint();
+			recovered = true;
+			return applied;
+		}
+	}
+
+	/*
+	 * The redo pass. No unit runs yet.
+	 */
+	private int redo() throws IOException, DiskMgrException {
+		int applied = 0;
+		long position = 0;
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		Page page = new Page();
+		while (position + HEADER_SIZE <= size) {
+			header.clear();
+			readFully(header, position);
+			header.flip();
+			int length = header.getInt(4);
+			if (header.getInt(0) != MAGIC || length < 0 || position + HEADER_SIZE + length > size)
+				break;
+			ByteBuffer body = ByteBuffer.allocate(length);
+			readFully(body, position + HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(body.array(), 0, length);
+			if ((int) crc.getValue() != header.getInt(8))
+				break;
+			body.flip();
+			body.getInt();
+			while (body.hasRemaining()) {
+				byte type = body.get();
+				PageId pageno = new PageId(body.getInt());
+				if (type == PAGE) {
+					pin(pageno, page, true);
+					body.get(page.getpage());
+					unpin(pageno, true);
+					synchronized (this) {
+						logged.add(pageno.pid);
+					}
+				} else {
+					setAllocated(pageno, type == ALLOC);
+				}
+			}
+			applied++;
+			position += HEADER_SIZE + length;
+		}
+		synchronized (this) {
+			appended = durable = position;
+		}
+		return applied;
+	}
+
+	/**
+	 * Begin the unit of an operation run by this thread, or nest the operation
+	 * in the unit running already.
+	 *
+	 * @param op
+	 *            the operation, e.g. INSERT. Input parameter.
+	 * @exception IOException
+	 *                the log cannot be recovered
+	 */
+	public void begin(int op) throws IOException {
+		Unit unit = current.get();
+		if (unit != null) {
+			unit.depth++;
+			return;
+		}
+		if (!recovered) {
+			try {
+				recover();
+			} catch (DiskMgrException e) {
+				throw new IOException(e);
+			}
+		}
+		units.readLock().lock();
+		current.set(new Unit(op));
+	}
+
+	/**
+	 * Note that a page pinned by this thread was changed, and put its unpin off
+	 * until the unit of the thread is on disk.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 * @return false if the thread runs no unit; the caller unpins the page
+	 */
+	public boolean deferUnpin(PageId pageno) {
+		Unit unit = current.get();
+		if (unit == null)
+			return false;
+		crashPoint();
+		unit.changed.add(pageno.pid);
+		unit.unpins.add(pageno.pid);
+		return true;
+	}
+
+	/**
+	 * Note that a page that stays pinned was changed.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 */
+	public void changed(PageId pageno) {
+		Unit unit = current.get();
+		if (unit != null) {
+			crashPoint();
+			unit.changed.add(pageno.pid);
+		}
+	}
+
+	/**
+	 * Note that the file directory of the database was changed, so that its
+	 * pages are logged with the unit.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception DiskMgrException
+	 *                a directory page cannot be pinned
+	 */
+	public void changedDirectory() throws IOException, DiskMgrException {
+		Unit unit = current.get();
+		if (unit == null)
+			return;
+		crashPoint();
+		Page page = new Page();
+		PageId pageno = new PageId(0);
+		while (pageno.pid != INVALID_PAGE) {
+			unit.changed.add(pageno.pid);
+			pin(pageno, page, false);
+			PageId next = new PageId(ByteBuffer.wrap(page.getpage()).getInt(DIRECTORY_NEXT_PAGE));
+			unpin(pageno, false);
+			pageno = next;
+		}
+	}
+
+	/**
+	 * Note that a page was allocated.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 */
+	public void allocated(PageId pageno) {
+		Unit unit = current.get();
+		if (unit != null) {
+			crashPoint();
+			unit.allocated.add(pageno.pid);
+		}
+	}
+
+	/**
+	 * Put the free of a page off until the unit of this thread is on disk.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 * @return false if the thread runs no unit; the caller frees the page
+	 */
+	public boolean deferFree(PageId pageno) {
+		Unit unit = current.get();
+		if (unit == null)
+			return false;
+		crashPoint();
+		unit.freed.add(pageno.pid);
+		return true;
+	}
+
+	/**
+	 * End an operation. For the outermost one, take the images of the pages
+	 * the unit changed and append it to the log; commit must follow. The
+	 * caller must keep other units from changing the pages of this one between
+	 * its first change and the return of this method, e.g. by running the
+	 * units one at a time. A failure is reported by commit.
+	 *
+	 * @return true if the unit was appended and commit must be called
+	 */
+	public boolean end() {
+		Unit unit = current.get();
+		if (--unit.depth > 0)
+			return false;
+		if (unit.changed.isEmpty() && unit.allocated.isEmpty() && unit.freed.isEmpty())
+			return true;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + unit.changed.size()
+					* (MappedDB.pageSizeOf(SystemDefs.JavabaseDB) + 5));
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(unit.op);
+			for (int pid : unit.allocated) {
+				out.writeByte(ALLOC);
+				out.writeInt(pid);
+			}
+			Page page = new Page();
+			for (int pid : unit.changed) {
+				PageId pageno = new PageId(pid);
+				pin(pageno, page, false);
+				try {
+					out.writeByte(PAGE);
+					out.writeInt(pid);
+					out.write(page.getpage());
+				} finally {
+					unpin(pageno, false);
+				}
+			}
+			for (int pid : unit.freed) {
+				out.writeByte(FREE);
+				out.writeInt(pid);
+			}
+			out.flush();
+			byte[] record = bytes.toByteArray();
+			ByteBuffer view = ByteBuffer.wrap(record);
+			int length = record.length - HEADER_SIZE;
+			CRC32 crc = new CRC32();
+			crc.update(record, HEADER_SIZE, length);
+			view.putInt(4, length);
+			view.putInt(8, (int) crc.getValue());
+			crashPoint();
+			synchronized (this) {
+				pending.write(record);
+				appended += record.length;
+				unit.end = appended;
+				logged.addAll(unit.changed);
+				for (int pid : unit.allocated)
+					logged.add(pid / BITS_PER_PAGE + 1);
+				for (int pid : unit.freed) {
+					logged.remove(pid);
+					logged.add(pid / BITS_PER_PAGE + 1);
+				}
+			}
+		} catch (Exception e) {
+			unit.failure = e;
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until the unit of this thread is on disk, then unpin and free the
+	 * pages it put off, and end the unit.
+	 *
+	 * @exception IOException
+	 *                the unit could not be logged, or a page could not be
+	 *                unpinned or freed
+	 */
+	public void commit() throws IOException {
+		Unit unit = current.get();
+		current.remove();
+		Exception failure = unit.failure;
+		try {
+			if (failure == null && unit.end > 0) {
+				force(unit.end);
+				commits.incrementAndGet();
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			crashPoint();
+			for (int pid : unit.unpins) {
+				try {
+					unpin(new PageId(pid), true);
+				} catch (Exception e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+			for (int pid : unit.freed) {
+				try {
+					free(new PageId(pid));
+				} catch (Exception e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+			crashPoint();
+			units.readLock().unlock();
+		}
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure != null)
+			throw new IOException(failure);
+		boolean full;
+		synchronized (this) {
+			full = appended > checkpointSize;
+		}
+		if (full)
+			checkpoint();
+	}
+
+	/**
+	 * Write the pages logged so far to the database file, sync it and empty
+	 * the log. Waits for the running units; it must not be called by a thread
+	 * running one.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void checkpoint() throws IOException {
+		if (current.get() != null)
+			throw new IOException("WAL: checkpoint inside a unit");
+		units.writeLock().lock();
+		try {
+			force(appended);
+			List<Integer> pages;
+			synchronized (this) {
+				pages = new ArrayList<Integer>(logged);
+			}
+			writeThrough(pages);
+			crashPoint();
+			synchronized (this) {
+				channel.truncate(0);
+				channel.force(true);
+				appended = durable = 0;
+				logged.clear();
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			units.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Write pages changed without logging, such as those of a bulk load, and
+	 * the space map pages that cover them, to the database file and sync it.
+	 *
+	 * @param pages
+	 *            the pages. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void sync(Collection<Integer> pages) throws IOException {
+		TreeSet<Integer> all = new TreeSet<Integer>(pages);
+		for (int pid : pages)
+			all.add(pid / BITS_PER_PAGE + 1);
+		try {
+			writeThrough(all);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/*
+	 * Append everything up to lsn to the log file and sync it, or wait for the
+	 * thread doing so. The units appended while a force runs go with the next.
+	 */
+	private void force(long lsn) throws IOException {
+		byte[] batch;
+		long start;
+		synchronized (this) {
+			while (durable < lsn && forcing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (durable >= lsn)
+				return;
+			forcing = true;
+			batch = pending.toByteArray();
+			pending.reset();
+			start = durable;
+		}
+		boolean done = false;
+		try {
+			crashPoint();
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			while (buffer.hasRemaining())
+				channel.write(buffer, start + buffer.position());
+			channel.force(false);
+			forces.incrementAndGet();
+			crashPoint();
+			done = true;
+		} finally {
+			synchronized (this) {
+				if (done)
+					durable = start + batch.length;
+				forcing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Copy the pages from the buffer pool to the database file and sync it;
+	 * the buffer manager still holds them dirty and writes them once more
+	 * later.
+	 */
+	private void writeThrough(Collection<Integer> pages) throws Exception {
+		DB db = SystemDefs.JavabaseDB;
+		BufMgr bufMgr = SystemDefs.JavabaseBM;
+		Page page = new Page();
+		for (int pid : pages) {
+			PageId pageno = new PageId(pid);
+			synchronized (bufMgr) {
+				pin(pageno, page, false);
+				try {
+					synchronized (db) {
+						db.write_page(pageno, page);
+					}
+				} finally {
+					unpin(pageno, false);
+				}
+			}
+		}
+		RandomAccessFile dbFile = new RandomAccessFile(db.db_name(), "rw");
+		try {
+			dbFile.getFD().sync();
+		} finally {
+			dbFile.close();
+		}
+	}
+
+	/*
+	 * Set or clear the bit of a page in the space map, the way DB.set_bits
+	 * does.
+	 */
+	private void setAllocated(PageId pageno, boolean allocated) throws DiskMgrException {
+		PageId mapPage = new PageId(pageno.pid / BITS_PER_PAGE + 1);
+		int bit = pageno.pid % BITS_PER_PAGE;
+		Page page = new Page();
+		pin(mapPage, page, false);
+		byte[] data = page.getpage();
+		if (allocated)
+			data[bit / 8] |= 1 << bit % 8;
+		else
+			data[bit / 8] &= ~(1 << bit % 8);
+		unpin(mapPage, true);
+		synchronized (this) {
+			logged.add(mapPage.pid);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException(filename);
+	}
+
+	private void crashPoint() {
+		if (crashPoint >= 0 && events.incrementAndGet() > crashPoint)
+			Runtime.getRuntime().halt(CRASH_STATUS);
+	}
+
+	// requests to the buffer manager are serialized on it, as in BTreeFile
+	private static void pin(PageId pageno, Page page, boolean emptyPage) throws DiskMgrException {
+		BufMgr bufMgr = SystemDefs.JavabaseBM;
+		try {
+			if (bufMgr instanceof ConcurrentBufMgr)
+				bufMgr.pinPage(pageno, page, emptyPage);
+			else
+				synchronized (bufMgr) {
+					bufMgr.pinPage(pageno, page, emptyPage);
+				}
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "WAL: cannot pin page " + pageno.pid);
+		}
+	}
+
+	private static void unpin(PageId pageno, boolean dirty) throws DiskMgrException {
+		BufMgr bufMgr = SystemDefs.JavabaseBM;
+		try {
+			if (bufMgr instanceof ConcurrentBufMgr)
+				bufMgr.unpinPage(pageno, dirty);
+			else
+				synchronized (bufMgr) {
+					bufMgr.unpinPage(pageno, dirty);
+				}
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "WAL: cannot unpin page " + pageno.pid);
+		}
+	}
+
+	private static void free(PageId pageno) throws DiskMgrException {
+		BufMgr bufMgr = SystemDefs.JavabaseBM;
+		try {
+			if (bufMgr instanceof ConcurrentBufMgr)
+				bufMgr.freePage(pageno);
+			else
+				synchronized (bufMgr) {
+					bufMgr.freePage(pageno);
+				}
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "WAL: cannot free page " + pageno.pid);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Stress tests of the B-link mode of BTreeFile. Threads insert keys into an
+ * empty tree and look up keys at the same time, so that the root splits under
+ * running lookups, and the tree is checked when they are done: every key is
+ * found, and TreeCheck finds the structure sound.
+ *
+ * A test fails if the threads do not finish within a time limit. The latch
+ * orders of inserts and lookups must not form a cycle; a root split holds the
+ * split page while it latches the header page, so a descent must not hold the
+ * header page while it waits for the root.
+ *
+ * Each workload runs on the BufMgr, whose calls BTreeFile serializes, and on
+ * the ConcurrentBufMgr.
+ */
+class BLinkDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "BLinkTest";
+	private final static int NUM_BUFFERS = 400;
+	private final static int NUM_PAGES = 20000;
+	// seconds a workload may take before it counts as deadlocked
+	private final static int TIME_LIMIT = 120;
+
+	public BLinkDriver() {
+		super("blinktest");
+	}
+
+	protected String testName() {
+		return "B-link";
+	}
+
+	protected boolean test1() {
+		System.out.println("\n  Test 1: 4 threads, 2000 operations each, BufMgr\n");
+		return runWorkload(4, 2000, false);
+	}
+
+	protected boolean test2() {
+		System.out.println("\n  Test 2: 8 threads, 3000 operations each, BufMgr\n");
+		return runWorkload(8, 3000, false);
+	}
+
+	protected boolean test3() {
+		System.out.println("\n  Test 3: 4 threads, 2000 operations each, ConcurrentBufMgr\n");
+		return runWorkload(4, 2000, true);
+	}
+
+	protected boolean test4() {
+		System.out.println("\n  Test 4: 8 threads, 3000 operations each, ConcurrentBufMgr\n");
+		return runWorkload(8, 3000, true);
+	}
+
+	/*
+	 * Run the threads on a new tree in B-link mode, then check the tree. Half of
+	 * the operations of a thread insert a key of its own; the others look up one
+	 * of the thread's keys, which must be found, or a key of any thread.
+	 */
+	private boolean runWorkload(final int threads, final int ops, boolean concurrent) {
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			if (concurrent)
+				ConcurrentBufMgr.install("Clock");
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			file.setBLinkMode(true);
+
+			final BTreeFile tree = file;
+			final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				workers[t] = new Thread("blink-" + t) {
+					public void run() {
+						try {
+							work(tree, thread, threads, ops, errors);
+						} catch (Throwable e) {
+							errors.add(getName() + ": " + e);
+							e.printStackTrace();
+						}
+					}
+				};
+				workers[t].setDaemon(true);
+			}
+			long start = System.currentTimeMillis();
+			for (Thread worker : workers)
+				worker.start();
+			long deadline = start + TIME_LIMIT * 1000L;
+			for (Thread worker : workers)
+				worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			for (Thread worker : workers) {
+				if (worker.isAlive()) {
+					System.out.println("  *** the threads are stuck after " + TIME_LIMIT + " seconds");
+					for (Thread stuck : workers) {
+						System.out.println("    " + stuck.getName() + ":");
+						for (StackTraceElement frame : stuck.getStackTrace())
+							System.out.println("      at " + frame);
+					}
+					// the stuck threads hold latches of the tree
+					file = null;
+					return FAIL;
+				}
+			}
+			System.out.println("  " + threads * ops + " operations in " + (System.currentTimeMillis() - start)
+					+ " ms");
+			if (!errors.isEmpty()) {
+				for (String error : errors)
+					System.out.println("  *** " + error);
+				return FAIL;
+			}
+			return verify(file, threads, ops);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file, concurrent);
+		}
+	}
+
+	private static void work(BTreeFile tree, int thread, int threads, int ops, List<String> errors)
+			throws Exception {
+		Random random = new Random(thread);
+		RID[] rids = new RID[4];
+		int inserted = 0;
+		for (int op = 0; op < ops && errors.isEmpty(); op++) {
+			if (op % 2 == 0) {
+				int key = key(inserted * threads + thread);
+				tree.insert(new IntegerKey(key), new RID(new PageId(key), thread));
+				inserted++;
+			} else if (op % 4 == 1) {
+				int key = key(random.nextInt(inserted) * threads + thread);
+				if (tree.lookupInt(key, rids) != 1 || rids[0].pageNo.pid != key)
+					errors.add("thread " + thread + " does not find its key " + key + " with lookupInt");
+			} else {
+				int key = key(random.nextInt(inserted) * threads + random.nextInt(threads));
+				List<RID> found = tree.lookup(new IntegerKey(key));
+				if (found.size() > 1 || (found.size() == 1 && found.get(0).pageNo.pid != key))
+					errors.add("thread " + thread + " finds " + found.size() + " entries for key " + key);
+			}
+		}
+	}
+
+	/*
+	 * Every key inserted is found once, and the tree is sound.
+	 */
+	private boolean verify(BTreeFile file, int threads, int ops) throws Exception {
+		String error = TreeCheck.check(file, AttrType.attrInteger);
+		if (error != null) {
+			System.out.println("  *** " + error);
+			return FAIL;
+		}
+		int keys = threads * ((ops + 1) / 2);
+		long entries = TreeCheck.entries(file, AttrType.attrInteger);
+		if (entries != keys) {
+			System.out.println("  *** the tree holds " + entries + " entries, " + keys + " expected");
+			return FAIL;
+		}
+		RID[] rids = new RID[1];
+		for (int i = 0; i < keys; i++) {
+			if (file.lookupInt(key(i), rids) != 1) {
+				System.out.println("  *** key " + key(i) + " is not found");
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	private void close(BTreeFile file, boolean concurrent) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			if (concurrent)
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// distinct keys in a scattered order: multiplying by an odd number is a
+	// bijection of the integers modulo 2^30. BT.keyCompare subtracts integer
+	// keys, so they are kept small enough for the difference not to overflow.
+	static int key(int i) {
+		return (i * 0x9e3779b1) & 0x3fffffff;
+	}
+}
+
+public class BLinkTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			BLinkDriver blinktest = new BLinkDriver();
+			if (!blinktest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during B-link tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of insertBatch on trees with many duplicate keys. A batch splits the
+ * pages of a level together and posts the splits to the level above in one
+ * go; with duplicates the entry for a page split off has to go right after the
+ * entry of the page it was split off, not after the last equal key, or the
+ * children of an index page get out of order.
+ *
+ * The batches run against a model of the entries: TreeCheck must find the
+ * tree sound, a scan and lookups must give back exactly the entries of the
+ * model, and FULL_DELETE must find and delete every one of them again.
+ */
+class BatchInsertDriver extends TestDriver implements GlobalConst {
+
+	private final static int NUM_BUFFERS = 100;
+	private final static int NUM_PAGES = 5000;
+	private final static int KEY_SIZE = 64;
+	// deletes between two checks of the tree
+	private final static int CHECK_EVERY = 500;
+
+	private Random random = new Random(5);
+
+	// the entries in the tree, by rid page number; the key of an entry
+	private ArrayList<Integer> live;
+	private HashMap<Integer, Integer> keys;
+	private int nextId;
+
+	public BatchInsertDriver() {
+		super("batchinserttest");
+	}
+
+	protected String testName() {
+		return "Batch insert";
+	}
+
+	/**
+	 * Three batches of 2,000 entries over 5 integer keys, each splitting leaves
+	 * in the middle of the runs of equal keys the one before left, then a full
+	 * delete of every entry. One batch of the three alone pins more leaves than
+	 * the buffer pool holds, unless the leaves it has passed are let go.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: batches of 2000 over 5 integer keys, then full deletes\n");
+		return batches(AttrType.attrInteger, 4, 5, 0, 3, 2000);
+	}
+
+	/**
+	 * Long string keys, so that the index pages split too: batches over 40 keys
+	 * on top of a tree filled one insert at a time.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: batches of 2000 over 40 string keys onto a filled tree\n");
+		return batches(AttrType.attrString, KEY_SIZE, 40, 2000, 4, 2000);
+	}
+
+	/**
+	 * Batches of a single key: every split of a batch is among equal keys.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: batches of one string key, then full deletes\n");
+		return batches(AttrType.attrString, KEY_SIZE, 1, 500, 3, 1500);
+	}
+
+	/**
+	 * Many small batches over 5 integer keys.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: 30 batches of 200 over 5 integer keys, then full deletes\n");
+		return batches(AttrType.attrInteger, 4, 5, 0, 30, 200);
+	}
+
+	/*
+	 * Insert single entries and then batches of the given size into a new
+	 * FULL_DELETE tree, keys drawn from distinct ones; check the tree after
+	 * each batch, then delete every entry in a random order.
+	 */
+	private boolean batches(int keyType, int keySize, int distinct, int singles, int count, int size) {
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			file = new BTreeFile("BatchInsertTest" + keyType, keyType, keySize, DeleteFashion.FULL_DELETE);
+			live = new ArrayList<Integer>();
+			keys = new HashMap<Integer, Integer>();
+			nextId = 0;
+
+			for (int i = 0; i < singles; i++) {
+				int key = random.nextInt(distinct);
+				file.insert(key(keyType, key), new RID(new PageId(nextId), key));
+				add(nextId++, key);
+			}
+			for (int b = 0; b < count; b++) {
+				ArrayList<KeyDataEntry> batch = new ArrayList<KeyDataEntry>();
+				for (int i = 0; i < size; i++) {
+					int key = random.nextInt(distinct);
+					batch.add(new KeyDataEntry(key(keyType, key),
+							new RID(new PageId(nextId), key)));
+					add(nextId++, key);
+				}
+				BatchInsertResult result = file.insertBatch(batch);
+				if (result.getInserted() != size) {
+					System.out.println("  *** batch " + b + ": " + result.getInserted() + " of " + size
+							+ " entries inserted");
+					return FAIL;
+				}
+				if (verify(file, keyType) == FAIL) {
+					System.out.println("  *** after batch " + b);
+					return FAIL;
+				}
+			}
+			System.out.println("  " + live.size() + " entries inserted, the tree has "
+					+ file.getTreeStats().getHeight() + " levels");
+
+			Collections.shuffle(live, random);
+			for (int i = live.size() - 1; i >= 0; i--) {
+				int gone = live.remove(i);
+				int key = keys.get(gone);
+				if (!file.Delete(key(keyType, key), new RID(new PageId(gone), key))) {
+					System.out.println("  *** entry " + gone + " with key " + key + " is not deleted");
+					return FAIL;
+				}
+				// the last check is of the emptied tree
+				if (i % CHECK_EVERY == 0 && verify(file, keyType) == FAIL)
+					return FAIL;
+			}
+			System.out.println("  every entry deleted again");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	private void add(int id, int key) {
+		live.add(id);
+		keys.put(id, key);
+	}
+
+	/*
+	 * Check the structure of the tree, then that a scan and lookups give back
+	 * the entries of the model.
+	 */
+	private boolean verify(BTreeFile file, int keyType) throws Exception {
+		String error = TreeCheck.check(file, keyType);
+		if (error != null) {
+			System.out.println("  *** " + error);
+			return FAIL;
+		}
+
+		HashSet<Integer> found = new HashSet<Integer>();
+		BTFileScan scan = file.new_scan(null, null);
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			RID rid = ((LeafData) entry.data).getData();
+			Integer key = keys.get(rid.pageNo.pid);
+			if (key == null || BT.keyCompare(entry.key, key(keyType, key)) != 0
+					|| !found.add(rid.pageNo.pid)) {
+				System.out.println("  *** the scan returns " + entry.key + " for entry " + rid.pageNo.pid);
+				scan.DestroyBTreeFileScan();
+				return FAIL;
+			}
+		}
+		scan.DestroyBTreeFileScan();
+		if (found.size() != live.size() || !found.containsAll(live)) {
+			System.out.println("  *** the scan returns " + found.size() + " entries, " + live.size() + " expected");
+			return FAIL;
+		}
+
+		HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (int id : live) {
+			Integer count = counts.get(keys.get(id));
+			counts.put(keys.get(id), count == null ? 1 : count + 1);
+		}
+		for (Map.Entry<Integer, Integer> count : counts.entrySet()) {
+			int size = file.lookup(key(keyType, count.getKey())).size();
+			if (size != count.getValue()) {
+				System.out.println("  *** lookup of " + count.getKey() + " finds " + size + " entries, "
+						+ count.getValue() + " expected");
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	private void close(BTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// long string keys keep the pages small, so that the tree grows a few
+	// levels
+	private static KeyClass key(int keyType, int key) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(key);
+		StringBuffer buffer = new StringBuffer(String.format("%5d", key));
+		while (buffer.length() < KEY_SIZE - 8)
+			buffer.append('.');
+		return new StringKey(buffer.toString());
+	}
+}
+
+public class BatchInsertTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			BatchInsertDriver batchinserttest = new BatchInsertDriver();
+			if (!batchinserttest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during batch insert tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
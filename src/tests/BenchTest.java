@@ -0,0 +1,1180 @@
+package tests;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Benchmarks of the bulk loader, the in-page binary search, the latched tree,
+ * the ConcurrentBufMgr, the replacement policies, the batched scan, the
+ * MappedDB, the off-heap pool, the read-ahead of scans and the background
+ * flusher. Each test prints its figures and fails only if a result is wrong: a
+ * tree that TreeCheck finds unsound, or a lookup or scan that returns the wrong
+ * entries.
+ *
+ * The number of entries is the first argument, 200,000 by default, so that
+ * the tests run in a few minutes; pass 1000000 or more for figures at the
+ * scale of the larger indexes. Each measurement is taken twice, and the
+ * better time is reported, so that the first run warms up the JIT.
+ */
+class BenchDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "BenchTest";
+	private final static int NUM_BUFFERS = 1000;
+	private final static int[] THREADS = { 1, 2, 4, 8, 16 };
+	private final static String[] POLICIES = { "Clock", "LRU", "LRU-2", "2Q", "CLOCK-Pro" };
+
+	private final int entries;
+	private final int numPages;
+	private final Random random = new Random(5);
+
+	public BenchDriver(int entries) {
+		super("benchtest");
+		this.entries = entries;
+		numPages = entries / 10 + 20000;
+	}
+
+	protected String testName() {
+		return "Benchmark";
+	}
+
+	/**
+	 * test1() to test6(), then the benchmarks past them.
+	 */
+	protected boolean runAllTests() {
+		boolean pass = super.runAllTests();
+		if (!test7())
+			pass = FAIL;
+		if (!test8())
+			pass = FAIL;
+		if (!test9())
+			pass = FAIL;
+		if (!test10())
+			pass = FAIL;
+		if (!test11())
+			pass = FAIL;
+		if (!test12())
+			pass = FAIL;
+		if (!test13())
+			pass = FAIL;
+		if (!test14())
+			pass = FAIL;
+		if (!test15())
+			pass = FAIL;
+		return pass;
+	}
+
+	/**
+	 * Bulk load of sorted keys against one insert per key in random order: time,
+	 * leaves and leaf fill.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: bulk load against repeated insert, " + entries + " keys\n");
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, numPages, NUM_BUFFERS, "Clock");
+			int[] keys = shuffled(entries);
+
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < 2; round++) {
+				file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				long start = System.nanoTime();
+				for (int key : keys)
+					file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+				best = Math.min(best, System.nanoTime() - start);
+				if (round == 1 && (!sound(file) || !report("insert", file, best)))
+					return FAIL;
+				file.destroyFile();
+				file = null;
+			}
+
+			best = Long.MAX_VALUE;
+			for (int round = 0; round < 2; round++) {
+				file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				long start = System.nanoTime();
+				new BTreeBuilder(file).load(sorted(entries));
+				best = Math.min(best, System.nanoTime() - start);
+				if (round == 1 && (!sound(file) || !report("bulk load", file, best)))
+					return FAIL;
+				file.destroyFile();
+				file = null;
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Lookups by KeyClass and by int: time, bytes allocated and buffer manager
+	 * calls per lookup, and the key comparisons of a descent, estimated from
+	 * the slots per page of each level, for a binary and a linear search.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: lookups in a tree of " + entries + " keys\n");
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, numPages, NUM_BUFFERS, "Clock");
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			new BTreeBuilder(file).load(sorted(entries));
+			int lookups = Math.min(entries, 200000);
+			int[] keys = new int[lookups];
+			for (int i = 0; i < lookups; i++)
+				keys[i] = random.nextInt(entries);
+
+			long best = Long.MAX_VALUE;
+			long bytes = 0;
+			long calls = 0;
+			for (int round = 0; round < 2; round++) {
+				long allocated = allocatedBytes();
+				long before = file.getBufMgrCalls();
+				long start = System.nanoTime();
+				for (int key : keys) {
+					List<RID> found = file.lookup(new IntegerKey(key));
+					if (found.size() != 1 || found.get(0).pageNo.pid != key) {
+						System.out.println("  *** lookup of " + key + " finds " + found.size() + " entries");
+						return FAIL;
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+				bytes = allocatedBytes() - allocated;
+				calls = file.getBufMgrCalls() - before;
+			}
+			print("lookup", best, bytes, calls, lookups);
+
+			best = Long.MAX_VALUE;
+			RID[] rids = new RID[4];
+			for (int round = 0; round < 2; round++) {
+				long allocated = allocatedBytes();
+				long before = file.getBufMgrCalls();
+				long start = System.nanoTime();
+				for (int key : keys) {
+					if (file.lookupInt(key, rids) != 1 || rids[0].pageNo.pid != key) {
+						System.out.println("  *** lookupInt of " + key + " does not find it");
+						return FAIL;
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+				bytes = allocatedBytes() - allocated;
+				calls = file.getBufMgrCalls() - before;
+			}
+			print("lookupInt", best, bytes, calls, lookups);
+
+			TreeStats stats = file.getTreeStats();
+			double binary = 0;
+			double linear = 0;
+			for (int level = 0; level < stats.getHeight(); level++) {
+				// an index page has a key less than it has children
+				boolean leaf = level == stats.getHeight() - 1;
+				double slots = leaf ? (double) stats.getEntries() / stats.getLeafPages()
+						: (double) stats.getPages(level + 1) / stats.getPages(level) - 1;
+				binary += Math.ceil(Math.log(slots + 1) / Math.log(2));
+				linear += slots / 2;
+			}
+			System.out.printf("  %d levels: about %.0f key comparisons per descent with binary search, %.0f with"
+					+ " a linear one%n", stats.getHeight(), binary, linear);
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Threads inserting keys of their own into one tree and looking each up
+	 * again, on the ConcurrentBufMgr: operations per second by thread count.
+	 */
+	protected boolean test3() {
+		int ops = Math.min(entries, 200000);
+		System.out.println("\n  Test 3: " + ops + " inserts and lookups by 1 to 16 threads\n");
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, numPages, NUM_BUFFERS, "Clock");
+			ConcurrentBufMgr.install("Clock");
+			for (final int threads : THREADS) {
+				long best = Long.MAX_VALUE;
+				for (int round = 0; round < 2; round++) {
+					file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+					final BTreeFile tree = file;
+					final int perThread = ops / threads;
+					final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+					Thread[] workers = new Thread[threads];
+					for (int t = 0; t < threads; t++) {
+						final int thread = t;
+						workers[t] = new Thread() {
+							public void run() {
+								try {
+									RID[] rids = new RID[4];
+									for (int i = 0; i < perThread && errors.isEmpty(); i++) {
+										// scattered, and small enough for BT.keyCompare
+										int key = (i * threads + thread) * 0x9e3779b1 & 0x3fffffff;
+										tree.insert(new IntegerKey(key), new RID(new PageId(key), thread));
+										if (tree.lookupInt(key, rids) != 1)
+											errors.add("thread " + thread + " does not find its key " + key);
+									}
+								} catch (Exception e) {
+									errors.add(e.toString());
+									e.printStackTrace();
+								}
+							}
+						};
+					}
+					long start = System.nanoTime();
+					for (Thread worker : workers)
+						worker.start();
+					for (Thread worker : workers)
+						worker.join();
+					best = Math.min(best, System.nanoTime() - start);
+					if (!errors.isEmpty()) {
+						System.out.println("  *** " + errors.get(0));
+						return FAIL;
+					}
+					if (!sound(file))
+						return FAIL;
+					long found = TreeCheck.entries(file, AttrType.attrInteger);
+					if (found != (long) perThread * threads) {
+						System.out.println("  *** the tree holds " + found + " entries, " + perThread * threads
+								+ " expected");
+						return FAIL;
+					}
+					file.destroyFile();
+					file = null;
+				}
+				System.out.printf("  %2d threads: %8.0f operations per second%n", threads,
+						2.0 * (ops / threads) * threads / (best / 1e9));
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Pins and unpins of resident pages by 1 to 16 threads, on the BufMgr,
+	 * serialized as BTreeFile does, and on the ConcurrentBufMgr.
+	 */
+	protected boolean test4() {
+		final int pins = 2000000;
+		System.out.println("\n  Test 4: " + pins + " pins and unpins of resident pages\n");
+		try {
+			new SystemDefs(dbpath, numPages, NUM_BUFFERS, "Clock");
+			final PageId[] pages = new PageId[NUM_BUFFERS / 2];
+			for (int i = 0; i < pages.length; i++) {
+				pages[i] = SystemDefs.JavabaseBM.newPage(new Page(), 1);
+				SystemDefs.JavabaseBM.unpinPage(pages[i], true);
+			}
+			SystemDefs.JavabaseBM.flushAllPages();
+			for (int pass = 0; pass < 2; pass++) {
+				if (pass == 1)
+					ConcurrentBufMgr.install("Clock");
+				final BufMgr bufMgr = SystemDefs.JavabaseBM;
+				final boolean serialized = !(bufMgr instanceof ConcurrentBufMgr);
+				for (final int threads : THREADS) {
+					long best = Long.MAX_VALUE;
+					for (int round = 0; round < 2; round++) {
+						final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+						Thread[] workers = new Thread[threads];
+						for (int t = 0; t < threads; t++) {
+							final Random own = new Random(t);
+							workers[t] = new Thread() {
+								public void run() {
+									try {
+										Page page = new Page();
+										for (int i = 0; i < pins / threads; i++) {
+											PageId pageno = pages[own.nextInt(pages.length)];
+											if (serialized)
+												synchronized (bufMgr) {
+													bufMgr.pinPage(pageno, page, false);
+													bufMgr.unpinPage(pageno, false);
+												}
+											else {
+												bufMgr.pinPage(pageno, page, false);
+												bufMgr.unpinPage(pageno, false);
+											}
+										}
+									} catch (Exception e) {
+										errors.add(e.toString());
+										e.printStackTrace();
+									}
+								}
+							};
+						}
+						long start = System.nanoTime();
+						for (Thread worker : workers)
+							worker.start();
+						for (Thread worker : workers)
+							worker.join();
+						best = Math.min(best, System.nanoTime() - start);
+						if (!errors.isEmpty()) {
+							System.out.println("  *** " + errors.get(0));
+							return FAIL;
+						}
+					}
+					System.out.printf("  %-16s %2d threads: %6.2f million pins and unpins per second%n",
+							bufMgr.getClass().getSimpleName(), threads, (pins / threads) * threads / (best / 1e3));
+				}
+				if (bufMgr.getNumUnpinnedBuffers() != bufMgr.getNumBuffers()) {
+					System.out.println("  *** " + (bufMgr.getNumBuffers() - bufMgr.getNumUnpinnedBuffers())
+							+ " frames are still pinned");
+					return FAIL;
+				}
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(null);
+		}
+	}
+
+	/**
+	 * A trace of lookups of a few hot keys mixed with full scans, recorded on
+	 * a buffer pool smaller than the tree and replayed through each policy.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: hit ratios of the replacement policies on lookups and scans\n");
+		BTreeFile file = null;
+		String trace = dbpath + ".trace";
+		try {
+			new SystemDefs(dbpath, numPages, NUM_BUFFERS, "Clock");
+			ConcurrentBufMgr.install("Clock");
+			ConcurrentBufMgr bufMgr = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			new BTreeBuilder(file).load(sorted(entries));
+			int frames = NUM_BUFFERS / 4;
+
+			bufMgr.traceFilename(trace);
+			RID[] rids = new RID[4];
+			int[] batchKeys = new int[1024];
+			int[] pageNos = new int[1024];
+			int[] slotNos = new int[1024];
+			for (int round = 0; round < 10; round++) {
+				for (int i = 0; i < 5000; i++) {
+					int key = random.nextInt(Math.max(1, entries / 100));
+					if (file.lookupInt(key, rids) != 1) {
+						System.out.println("  *** lookupInt of " + key + " does not find it");
+						return FAIL;
+					}
+				}
+				BTBatchScan scan = file.new_batch_scan(null, null);
+				long count = 0;
+				int batch;
+				while ((batch = scan.nextBatch(batchKeys, pageNos, slotNos)) > 0)
+					count += batch;
+				scan.close();
+				if (count != entries) {
+					System.out.println("  *** the scan returns " + count + " entries, " + entries + " expected");
+					return FAIL;
+				}
+			}
+			bufMgr.destroyTrace();
+
+			int[] pins = ReplacementSimulator.readTrace(trace);
+			System.out.println("  " + pins.length + " pins, " + frames + " frames");
+			for (String name : POLICIES) {
+				long hits = ReplacementSimulator.simulate(ReplacementPolicy.forName(name, frames), frames, pins);
+				if (hits < 0 || hits > pins.length) {
+					System.out.println("  *** " + name + " counts " + hits + " hits");
+					return FAIL;
+				}
+				System.out.printf("  %-10s hit ratio %.4f%n", name, (double) hits / pins.length);
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(trace).delete();
+			close(file);
+		}
+	}
+
+	/**
+	 * A full scan with get_next, nextBatch and ridStream: time per entry.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: full scans of " + entries + " entries\n");
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, numPages, NUM_BUFFERS, "Clock");
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			new BTreeBuilder(file).load(sorted(entries));
+			long expected = (long) entries * (entries - 1) / 2;
+
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				BTFileScan scan = file.new_scan(null, null);
+				long sum = 0;
+				KeyDataEntry entry;
+				while ((entry = scan.get_next()) != null)
+					sum += ((LeafData) entry.data).getData().pageNo.pid;
+				scan.DestroyBTreeFileScan();
+				best = Math.min(best, System.nanoTime() - start);
+				if (!checkSum("get_next", sum, expected))
+					return FAIL;
+			}
+			System.out.printf("  get_next  %6.1f ns per entry%n", (double) best / entries);
+
+			best = Long.MAX_VALUE;
+			int[] keys = new int[1024];
+			int[] pageNos = new int[1024];
+			int[] slotNos = new int[1024];
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				BTBatchScan scan = file.new_batch_scan(null, null);
+				long sum = 0;
+				int batch;
+				while ((batch = scan.nextBatch(keys, pageNos, slotNos)) > 0)
+					for (int i = 0; i < batch; i++)
+						sum += pageNos[i];
+				scan.close();
+				best = Math.min(best, System.nanoTime() - start);
+				if (!checkSum("nextBatch", sum, expected))
+					return FAIL;
+			}
+			System.out.printf("  nextBatch %6.1f ns per entry%n", (double) best / entries);
+
+			best = Long.MAX_VALUE;
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				long sum = 0;
+				PrimitiveIterator.OfLong rids = file.new_batch_scan(null, null).ridStream().iterator();
+				while (rids.hasNext())
+					sum += BTBatchScan.pageNo(rids.nextLong());
+				best = Math.min(best, System.nanoTime() - start);
+				if (!checkSum("ridStream", sum, expected))
+					return FAIL;
+			}
+			System.out.printf("  ridStream %6.1f ns per entry%n", (double) best / entries);
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Random lookups on a buffer pool much smaller than the tree, so that
+	 * most of them read pages, through the RandomAccessFile of the DB and
+	 * through a MappedDB, on the BufMgr and on the ConcurrentBufMgr.
+	 */
+	protected boolean test7() {
+		final int frames = 64;
+		int lookups = Math.min(entries * 2, 400000);
+		System.out.println("\n  Test 7: " + lookups + " lookups through a pool of " + frames
+				+ " frames, RandomAccessFile against MappedDB\n");
+		BTreeFile file = null;
+		try {
+			int[] keys = new int[lookups];
+			for (int i = 0; i < lookups; i++)
+				keys[i] = random.nextInt(entries);
+			for (int run = 0; run < 4; run++) {
+				boolean mapped = run % 2 == 1;
+				new SystemDefs(dbpath, numPages, frames, "Clock");
+				if (mapped)
+					MappedDB.install();
+				if (run >= 2)
+					ConcurrentBufMgr.install("Clock");
+				file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				new BTreeBuilder(file).load(sorted(entries));
+				for (int threads : new int[] { 1, 4 }) {
+					long best = Long.MAX_VALUE;
+					for (int round = 0; round < 2; round++) {
+						long nanos = lookups(file, keys, threads);
+						if (nanos < 0)
+							return FAIL;
+						best = Math.min(best, nanos);
+					}
+					System.out.printf("  %-16s %-16s %d threads: %6.0f thousand lookups per second%n",
+							SystemDefs.JavabaseBM.getClass().getSimpleName(), mapped ? "MappedDB" : "RandomAccessFile",
+							threads, lookups / (best / 1e6));
+				}
+				close(file);
+				file = null;
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Random inserts into a pool of 64K frames, on heap and off heap: the time
+	 * of the collections during the inserts, of a full collection after them,
+	 * and the heap in use then.
+	 */
+	protected boolean test8() {
+		final int frames = 1 << 16;
+		System.out.println("\n  Test 8: garbage collection with " + frames + " frames on and off the heap, "
+				+ entries + " inserts\n");
+		BTreeFile file = null;
+		try {
+			int[] keys = shuffled(entries);
+			for (int run = 0; run < 2; run++) {
+				boolean offHeap = run == 1;
+				new SystemDefs(dbpath, Math.max(numPages, frames + 1000), frames, "Clock");
+				ConcurrentBufMgr.install("Clock", offHeap);
+				System.gc();
+				long[] before = collections();
+				file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				long start = System.nanoTime();
+				for (int key : keys)
+					file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+				long nanos = System.nanoTime() - start;
+				long[] after = collections();
+				long full = Long.MAX_VALUE;
+				for (int round = 0; round < 2; round++) {
+					long gc = System.nanoTime();
+					System.gc();
+					full = Math.min(full, System.nanoTime() - gc);
+				}
+				Runtime runtime = Runtime.getRuntime();
+				long used = runtime.totalMemory() - runtime.freeMemory();
+				if (!sound(file) || !report(offHeap ? "off heap" : "on heap", file, nanos))
+					return FAIL;
+				System.out.printf("  %-9s %d collections taking %d ms during the inserts, full collection %d ms,"
+						+ " %d MB of heap in use%n", "", after[0] - before[0], after[1] - before[1], full / 1000000,
+						used >> 20);
+				close(file);
+				file = null;
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Full scans with get_next of a tree built by inserts in random order, so
+	 * that its leaves lie scattered, through a pool of 256 frames that holds a
+	 * small part of them: entries per second without read-ahead and with
+	 * setScanPrefetch(64), on the BufMgr and on the ConcurrentBufMgr.
+	 */
+	protected boolean test9() {
+		final int frames = 256;
+		System.out.println("\n  Test 9: cold scans of " + entries + " entries with and without read-ahead\n");
+		BTreeFile file = null;
+		try {
+			int[] keys = shuffled(entries);
+			long expected = (long) entries * (entries - 1) / 2;
+			for (int run = 0; run < 2; run++) {
+				new SystemDefs(dbpath, numPages, frames, "Clock");
+				if (run == 1)
+					ConcurrentBufMgr.install("Clock");
+				file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				for (int key : keys)
+					file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+				for (int prefetch : new int[] { 0, 64 }) {
+					file.setScanPrefetch(prefetch);
+					long best = Long.MAX_VALUE;
+					for (int round = 0; round < 2; round++) {
+						long start = System.nanoTime();
+						BTFileScan scan = file.new_scan(null, null);
+						long sum = 0;
+						KeyDataEntry entry;
+						while ((entry = scan.get_next()) != null)
+							sum += ((LeafData) entry.data).getData().pageNo.pid;
+						scan.DestroyBTreeFileScan();
+						best = Math.min(best, System.nanoTime() - start);
+						if (!checkSum("get_next", sum, expected))
+							return FAIL;
+					}
+					System.out.printf("  %-16s read-ahead %2d: %5.2f million entries per second%n",
+							SystemDefs.JavabaseBM.getClass().getSimpleName(), prefetch, entries / (best / 1e3));
+				}
+				close(file);
+				file = null;
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * The latency of single inserts in random order on the ConcurrentBufMgr,
+	 * without the background flusher and with two settings of it, over the
+	 * last 80% of the inserts, once the pool is full of dirty pages.
+	 */
+	protected boolean test10() {
+		System.out.println("\n  Test 10: insert latency with and without the flusher, " + entries + " inserts\n");
+		final double[][] settings = { null, { 0.05, 0.10 }, { 0.10, 0.25 } };
+		BTreeFile file = null;
+		try {
+			int[] keys = shuffled(entries);
+			int skip = entries / 5;
+			long[] latencies = new long[entries - skip];
+			for (double[] setting : settings) {
+				long[] best = null;
+				long bestNanos = 0;
+				for (int round = 0; round < 2; round++) {
+					new SystemDefs(dbpath, numPages, NUM_BUFFERS, "Clock");
+					ConcurrentBufMgr.install("Clock");
+					if (setting != null)
+						((ConcurrentBufMgr) SystemDefs.JavabaseBM).startFlusher(setting[0], setting[1]);
+					file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+					long start = 0;
+					for (int i = 0; i < entries; i++) {
+						if (i == skip)
+							start = System.nanoTime();
+						long before = System.nanoTime();
+						file.insert(new IntegerKey(keys[i]), new RID(new PageId(keys[i]), 0));
+						if (i >= skip)
+							latencies[i - skip] = System.nanoTime() - before;
+					}
+					long nanos = System.nanoTime() - start;
+					if (!sound(file))
+						return FAIL;
+					Arrays.sort(latencies);
+					if (best == null || latencies[latencies.length * 99 / 100] < best[latencies.length * 99 / 100]) {
+						best = latencies.clone();
+						bestNanos = nanos;
+					}
+					close(file);
+					file = null;
+				}
+				int n = best.length;
+				System.out.printf("  %-18s p50 %5.1f us, p99 %6.1f us, p99.9 %6.1f us, max %7.1f us, %6.0f inserts"
+						+ " per second%n", setting == null ? "no flusher"
+								: String.format("flusher %.2f/%.2f", setting[0], setting[1]),
+						best[n / 2] / 1e3, best[n * 99 / 100] / 1e3, best[n * 999 / 1000] / 1e3, best[n - 1] / 1e3,
+						n / (bestNanos / 1e9));
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * String keys of 42 characters that share long prefixes, such as the paths
+	 * of documents, against keys of the same length without shared prefixes,
+	 * by insert and by bulk load: the index pages, the fanout of an index page,
+	 * the height and the time of a lookup. Separators are truncated to the
+	 * shortest prefix that tells two leaves apart, so that prefixed keys get
+	 * separators much shorter than themselves.
+	 */
+	protected boolean test11() {
+		final int keySize = 64;
+		System.out.println("\n  Test 11: index fanout of " + entries + " string keys with shared prefixes\n");
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, numPages * 2, NUM_BUFFERS, "Clock");
+			int lookups = Math.min(entries, 100000);
+			for (int run = 0; run < 2; run++) {
+				boolean prefixed = run == 0;
+				String[] keys = new String[entries];
+				for (int i = 0; i < entries; i++)
+					keys[i] = prefixed ? path(i) : letters(path(i).length());
+				String[] sorted = keys.clone();
+				Arrays.sort(sorted);
+				for (int load = 0; load < 2; load++) {
+					file = new BTreeFile(FILE_NAME, AttrType.attrString, keySize, DeleteFashion.NAIVE_DELETE);
+					long start = System.nanoTime();
+					if (load == 0)
+						for (int i = 0; i < entries; i++)
+							file.insert(new StringKey(keys[i]), new RID(new PageId(i), 0));
+					else {
+						List<KeyDataEntry> list = new ArrayList<KeyDataEntry>(sorted.length);
+						for (int i = 0; i < sorted.length; i++)
+							list.add(new KeyDataEntry(new StringKey(sorted[i]), new RID(new PageId(i), 0)));
+						new BTreeBuilder(file).load(list.iterator());
+					}
+					long nanos = System.nanoTime() - start;
+					String error = TreeCheck.check(file, AttrType.attrString);
+					if (error != null) {
+						System.out.println("  *** " + error);
+						return FAIL;
+					}
+
+					long best = Long.MAX_VALUE;
+					for (int round = 0; round < 2; round++) {
+						Random own = new Random(round);
+						start = System.nanoTime();
+						for (int i = 0; i < lookups; i++) {
+							String key = keys[own.nextInt(entries)];
+							if (file.lookup(new StringKey(key)).size() != 1) {
+								System.out.println("  *** lookup of " + key + " does not find it");
+								return FAIL;
+							}
+						}
+						best = Math.min(best, System.nanoTime() - start);
+					}
+
+					TreeStats stats = file.getTreeStats();
+					int height = stats.getHeight();
+					long indexPages = stats.getPageCount() - stats.getLeafPages();
+					System.out.printf("  %-8s %-9s %6d ms, %d levels, %5d index pages, fanout %5.1f, index fill"
+							+ " %.2f, lookup %5.1f us%n", prefixed ? "prefixed" : "random", load == 0 ? "insert"
+									: "bulk load", nanos / 1000000, height, indexPages,
+							indexPages == 0 ? 0 : (double) (stats.getPageCount() - 1) / indexPages,
+							height < 2 ? 0 : stats.getFill(height - 2), best / 1e3 / lookups);
+					file.destroyFile();
+					file = null;
+				}
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * A full scan with parallelRidStream on pools of 1 to 16 threads, with
+	 * four sub-ranges per thread, against a sequential ridStream, on the
+	 * ConcurrentBufMgr and on the BufMgr: time per entry. A scan takes a small
+	 * part of a second, too little for the JIT to settle in two rounds, so all
+	 * of them are run ten times in turn, and the best time of each is reported.
+	 */
+	protected boolean test12() {
+		System.out.println("\n  Test 12: parallel scans of " + entries + " entries by 1 to 16 threads\n");
+		BTreeFile file = null;
+		try {
+			for (int run = 0; run < 2; run++) {
+				new SystemDefs(dbpath, numPages, NUM_BUFFERS, "Clock");
+				if (run == 0)
+					ConcurrentBufMgr.install("Clock");
+				file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				new BTreeBuilder(file).load(sorted(entries));
+				String name = SystemDefs.JavabaseBM.getClass().getSimpleName();
+
+				// 0 threads for the sequential scan
+				long[] best = new long[THREADS.length + 1];
+				Arrays.fill(best, Long.MAX_VALUE);
+				for (int round = 0; round < 10; round++)
+					for (int i = 0; i < best.length; i++) {
+						long nanos = scan(file, i == 0 ? 0 : THREADS[i - 1]);
+						if (nanos < 0)
+							return FAIL;
+						best[i] = Math.min(best[i], nanos);
+					}
+				System.out.printf("  %-16s sequential  %5.1f ns per entry%n", name, (double) best[0] / entries);
+				for (int i = 1; i < best.length; i++)
+					System.out.printf("  %-16s %2d threads  %5.1f ns per entry, %.2f times the sequential speed%n", name,
+							THREADS[i - 1], (double) best[i] / entries, (double) best[0] / best[i]);
+				close(file);
+				file = null;
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Inserts of int keys and of 23-byte string keys, in random and in
+	 * ascending order: the leaf and index splits they cause, and the time of
+	 * an insert that splits pages against one that does not. The difference,
+	 * which includes the allocation of the new pages, is the cost of the
+	 * splits, reported as splits per second.
+	 */
+	protected boolean test13() {
+		System.out.println("\n  Test 13: page splits of " + entries + " inserts\n");
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, numPages * 2, NUM_BUFFERS, "Clock");
+			int[] keys = shuffled(entries);
+			for (int keyType : new int[] { AttrType.attrInteger, AttrType.attrString })
+				for (int order = 0; order < 2; order++) {
+					// nanoseconds and inserts without and with splits, of the
+					// better round
+					long[] best = null;
+					SplitStats splits = null;
+					for (int round = 0; round < 2; round++) {
+						file = new BTreeFile(FILE_NAME, keyType, keyType == AttrType.attrInteger ? 4 : 24,
+								DeleteFashion.NAIVE_DELETE);
+						long[] times = new long[4];
+						long before = 0;
+						for (int i = 0; i < entries; i++) {
+							int key = order == 0 ? keys[i] : i;
+							KeyClass keyClass = keyType == AttrType.attrInteger ? new IntegerKey(key)
+									: new StringKey(String.format("key-%012d-%06d", key, key % 999983));
+							long start = System.nanoTime();
+							file.insert(keyClass, new RID(new PageId(key), 0));
+							long nanos = System.nanoTime() - start;
+							splits = file.getSplitStats();
+							long after = splits.getLeafSplits() + splits.getIndexSplits();
+							int split = after == before ? 0 : 2;
+							times[split] += nanos;
+							times[split + 1]++;
+							before = after;
+						}
+						if (best == null || times[0] + times[2] < best[0] + best[2])
+							best = times;
+						String error = TreeCheck.check(file, keyType);
+						if (error != null) {
+							System.out.println("  *** " + error);
+							return FAIL;
+						}
+						file.destroyFile();
+						file = null;
+					}
+					double plain = (double) best[0] / best[1];
+					double splitting = (double) best[2] / best[3];
+					double perSplit = (best[2] - plain * best[3]) / (splits.getLeafSplits() + splits.getIndexSplits());
+					System.out.printf("  %-6s %-9s %6d leaf splits, %3d index splits, insert %5.1f us, with splits"
+							+ " %5.1f us, %5.1f us or %3.0f thousand splits per second%n",
+							keyType == AttrType.attrInteger ? "int" : "string", order == 0 ? "random" : "ascending",
+							splits.getLeafSplits(), splits.getIndexSplits(), plain / 1e3, splitting / 1e3,
+							perSplit / 1e3, 1e6 / perSplit);
+				}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Inserts of int and string keys in ascending order, and of int keys in
+	 * nearly ascending order, with the median and the append split policies:
+	 * time per insert, height, leaves and leaf fill.
+	 */
+	protected boolean test14() {
+		System.out.println("\n  Test 14: ascending inserts of " + entries + " keys by split policy\n");
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, numPages * 2, NUM_BUFFERS, "Clock");
+			// ascending, but one key in ten swapped with one of the next 16
+			int[] nearly = new int[entries];
+			for (int i = 0; i < entries; i++)
+				nearly[i] = i;
+			for (int i = 0; i < entries; i++)
+				if (random.nextInt(10) == 0) {
+					int j = Math.min(entries - 1, i + 1 + random.nextInt(16));
+					int key = nearly[i];
+					nearly[i] = nearly[j];
+					nearly[j] = key;
+				}
+			for (int order = 0; order < 3; order++)
+				for (String policy : new String[] { SplitPolicy.MEDIAN, SplitPolicy.APPEND }) {
+					int keyType = order == 1 ? AttrType.attrString : AttrType.attrInteger;
+					long best = Long.MAX_VALUE;
+					for (int round = 0; round < 2; round++) {
+						file = new BTreeFile(FILE_NAME, keyType, keyType == AttrType.attrInteger ? 4 : 24,
+								DeleteFashion.NAIVE_DELETE);
+						file.setSplitPolicy(SplitPolicy.forName(policy));
+						long start = System.nanoTime();
+						for (int i = 0; i < entries; i++) {
+							int key = order == 2 ? nearly[i] : i;
+							file.insert(keyType == AttrType.attrInteger ? new IntegerKey(key)
+									: new StringKey(String.format("key-%012d", key)), new RID(new PageId(key), 0));
+						}
+						best = Math.min(best, System.nanoTime() - start);
+						String error = TreeCheck.check(file, keyType);
+						if (error != null) {
+							System.out.println("  *** " + error);
+							return FAIL;
+						}
+						long found = TreeCheck.entries(file, keyType);
+						if (found != entries) {
+							System.out.println("  *** the tree holds " + found + " entries, " + entries + " expected");
+							return FAIL;
+						}
+						if (round == 1) {
+							TreeStats stats = file.getTreeStats();
+							System.out.printf("  %-16s %-6s %5.1f us per insert, %d levels, %5d leaves, leaf fill"
+									+ " %.2f%n", order == 0 ? "ascending int" : order == 1 ? "ascending string"
+											: "nearly ascending", policy, best / 1e3 / entries, stats.getHeight(),
+									stats.getLeafPages(), stats.getFill(stats.getHeight() - 1));
+						}
+						file.destroyFile();
+						file = null;
+					}
+				}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Trees of 1 KB to 16 KB pages, built by inserts in random order on a
+	 * MappedDB and a ConcurrentBufMgr of 2 MB, so that larger pages mean fewer
+	 * frames: time per insert, height, leaves, leaf fill, time per lookup and
+	 * time per entry of a full scan. Inserts get slower as pages grow, so
+	 * there are at most 100,000 of them, timed once.
+	 */
+	protected boolean test15() {
+		final int poolBytes = 2 << 20;
+		int keys = Math.min(entries, 100000);
+		System.out.println("\n  Test 15: page sizes from " + MINIBASE_PAGESIZE + " to " + MappedDB.MAX_PAGESIZE
+				+ " bytes, " + keys + " keys, a pool of " + (poolBytes >> 20) + " MB\n");
+		BTreeFile file = null;
+		try {
+			int[] order = shuffled(keys);
+			long expected = (long) keys * (keys - 1) / 2;
+			for (int pageSize = MINIBASE_PAGESIZE; pageSize <= MappedDB.MAX_PAGESIZE; pageSize *= 2) {
+				new SystemDefs(dbpath, Math.max(2000, numPages / (pageSize / MINIBASE_PAGESIZE)),
+						poolBytes / pageSize, "Clock");
+				MappedDB.install(pageSize);
+				ConcurrentBufMgr.install("Clock");
+				file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				long start = System.nanoTime();
+				for (int key : order)
+					file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+				long insert = System.nanoTime() - start;
+				if (!sound(file))
+					return FAIL;
+
+				long lookup = Long.MAX_VALUE;
+				for (int round = 0; round < 2; round++) {
+					long nanos = lookups(file, order, 1);
+					if (nanos < 0)
+						return FAIL;
+					lookup = Math.min(lookup, nanos);
+				}
+				long scan = Long.MAX_VALUE;
+				for (int round = 0; round < 2; round++) {
+					start = System.nanoTime();
+					long sum = file.new_batch_scan(null, null).ridStream().map(BTBatchScan::pageNo).sum();
+					scan = Math.min(scan, System.nanoTime() - start);
+					if (!checkSum("ridStream", sum, expected))
+						return FAIL;
+				}
+
+				TreeStats stats = file.getTreeStats();
+				System.out.printf("  %5d bytes, %4d frames: insert %6.1f us, %d levels, %5d leaves, leaf fill %.2f,"
+						+ " lookup %4.1f us, scan %5.1f ns per entry%n", pageSize, poolBytes / pageSize,
+						insert / 1e3 / keys, stats.getHeight(), stats.getLeafPages(),
+						stats.getFill(stats.getHeight() - 1), lookup / 1e3 / keys, (double) scan / keys);
+				close(file);
+				file = null;
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	// the time the threads take to look up their share of the keys each, or
+	// -1 if a lookup fails
+	private static long lookups(final BTreeFile file, final int[] keys, int threads) throws InterruptedException {
+		final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int from = (int) ((long) keys.length * t / threads);
+			final int to = (int) ((long) keys.length * (t + 1) / threads);
+			workers[t] = new Thread() {
+				public void run() {
+					try {
+						RID[] rids = new RID[4];
+						for (int i = from; i < to && errors.isEmpty(); i++)
+							if (file.lookupInt(keys[i], rids) != 1 || rids[0].pageNo.pid != keys[i])
+								errors.add("lookupInt of " + keys[i] + " does not find it");
+					} catch (Exception e) {
+						errors.add(e.toString());
+						e.printStackTrace();
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		long nanos = System.nanoTime() - start;
+		if (!errors.isEmpty()) {
+			System.out.println("  *** " + errors.get(0));
+			return -1;
+		}
+		return nanos;
+	}
+
+	// the time of a full scan with ridStream, or with parallelRidStream on a
+	// pool of the given threads, or -1 if it returns the wrong entries
+	private long scan(BTreeFile file, int threads) throws Exception {
+		long expected = (long) entries * (entries - 1) / 2;
+		long start = System.nanoTime();
+		long sum;
+		if (threads == 0)
+			sum = file.new_batch_scan(null, null).ridStream().map(BTBatchScan::pageNo).sum();
+		else {
+			final LongStream rids = file.parallelRidStream(null, null, threads * 4);
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				sum = pool.submit(new Callable<Long>() {
+					public Long call() {
+						return rids.map(BTBatchScan::pageNo).sum();
+					}
+				}).get();
+			} finally {
+				rids.close();
+				pool.shutdown();
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		return checkSum(threads == 0 ? "ridStream" : "parallelRidStream", sum, expected) ? nanos : -1;
+	}
+
+	private boolean sound(BTreeFile file) throws Exception {
+		String error = TreeCheck.check(file, AttrType.attrInteger);
+		if (error != null)
+			System.out.println("  *** " + error);
+		return error == null;
+	}
+
+	private boolean report(String what, BTreeFile file, long nanos) throws Exception {
+		long found = TreeCheck.entries(file, AttrType.attrInteger);
+		if (found != entries) {
+			System.out.println("  *** " + what + ": the tree holds " + found + " entries, " + entries + " expected");
+			return FAIL;
+		}
+		TreeStats stats = file.getTreeStats();
+		System.out.printf("  %-9s %7d ms, %d levels, %d leaves, leaf fill %.2f%n", what, nanos / 1000000,
+				stats.getHeight(), stats.getLeafPages(), stats.getFill(stats.getHeight() - 1));
+		return OK;
+	}
+
+	private static void print(String what, long nanos, long bytes, long calls, int lookups) {
+		System.out.printf("  %-9s %6.0f ns, %s, %.1f buffer manager calls per lookup%n", what, (double) nanos / lookups,
+				bytes < 0 ? "allocations not measured" : String.format("%.0f bytes allocated", (double) bytes / lookups),
+				(double) calls / lookups);
+	}
+
+	private static boolean checkSum(String what, long sum, long expected) {
+		if (sum != expected)
+			System.out.println("  *** " + what + " returns page numbers adding up to " + sum + ", not " + expected);
+		return sum == expected;
+	}
+
+	// the bytes this thread allocated so far, or -1 if the JVM does not count
+	// them
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	// the collections of all collectors so far, and the milliseconds they took
+	private static long[] collections() {
+		long[] total = new long[2];
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total[0] += Math.max(0, collector.getCollectionCount());
+			total[1] += Math.max(0, collector.getCollectionTime());
+		}
+		return total;
+	}
+
+	// the path of a document: tenant, user and document id of the number i,
+	// the tenants and users in the order of their numbers
+	private String path(int i) {
+		return String.format("tenant-%04d/users/u%05d/docs/%s", i / 50000, i / 20 % 100000, letters(12));
+	}
+
+	// n random lower case letters
+	private String letters(int n) {
+		char[] chars = new char[n];
+		for (int i = 0; i < n; i++)
+			chars[i] = (char) ('a' + random.nextInt(26));
+		return new String(chars);
+	}
+
+	// the keys 0 to n - 1 in random order
+	private int[] shuffled(int n) {
+		int[] keys = new int[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = i;
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int key = keys[i];
+			keys[i] = keys[j];
+			keys[j] = key;
+		}
+		return keys;
+	}
+
+	// entries of the keys 0 to n - 1 in order, the rid of each on the page of
+	// its key
+	private static Iterator<KeyDataEntry> sorted(final int n) {
+		return new Iterator<KeyDataEntry>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < n;
+			}
+
+			public KeyDataEntry next() {
+				int key = next++;
+				return new KeyDataEntry(new IntegerKey(key), new RID(new PageId(key), 0));
+			}
+		};
+	}
+
+	private void close(BTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
+
+public class BenchTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			BenchDriver benchtest = new BenchDriver(argvs.length > 0 ? Integer.parseInt(argvs[0]) : 200000);
+			if (!benchtest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during benchmarks:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
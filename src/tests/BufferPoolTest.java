@@ -0,0 +1,433 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * Tests of ConcurrentBufMgr and its replacement policies. Pages written through
+ * a buffer pool much smaller than the pages must read back as written, under
+ * every policy and from many threads at once; pin counts, the errors of pin,
+ * unpin and free requests, and the pin trace must match those of BufMgr.
+ *
+ * The policies are also run on their own: a victim is never a pinned frame,
+ * every name forName knows gives back a policy of that name, and on traces
+ * built for it, LRU loses a loop one page larger than the pool while LRU-2, 2Q
+ * and CLOCK-Pro keep a hot set through a sequential scan that LRU lets flush
+ * it out.
+ */
+class BufferPoolDriver extends TestDriver implements GlobalConst {
+
+	private final static int NUM_BUFFERS = 20;
+	private final static int NUM_PAGES = 2000;
+	private final static int PAGES = 300;
+	private final static String[] POLICIES = { "Clock", "LRU", "LRU-2", "2Q", "CLOCK-Pro" };
+
+	private Random random = new Random(8);
+
+	public BufferPoolDriver() {
+		super("bufferpooltest");
+	}
+
+	protected String testName() {
+		return "Buffer pool";
+	}
+
+	/**
+	 * Each page written once, then read back in a random order, which makes the
+	 * policy replace frames all the time; after flushAllPages the database holds
+	 * the pages as written.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: pages read back as written, every policy\n");
+		for (String name : POLICIES) {
+			try {
+				open(name);
+				PageId first = new PageId();
+				SystemDefs.JavabaseDB.allocate_page(first, PAGES);
+				Page page = new Page();
+				for (int i = 0; i < PAGES; i++) {
+					PageId pageno = new PageId(first.pid + i);
+					SystemDefs.JavabaseBM.pinPage(pageno, page, true);
+					fill(page.getpage(), pageno.pid, 0);
+					SystemDefs.JavabaseBM.unpinPage(pageno, true);
+				}
+				for (int i = 0; i < 4 * PAGES; i++) {
+					PageId pageno = new PageId(first.pid + random.nextInt(PAGES));
+					SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+					boolean written = holds(page.getpage(), pageno.pid, 0);
+					SystemDefs.JavabaseBM.unpinPage(pageno, false);
+					if (!written) {
+						System.out.println("  *** " + name + ": page " + pageno.pid + " reads back changed");
+						return FAIL;
+					}
+				}
+				SystemDefs.JavabaseBM.flushAllPages();
+				for (int i = 0; i < PAGES; i++) {
+					PageId pageno = new PageId(first.pid + i);
+					SystemDefs.JavabaseDB.read_page(pageno, page);
+					if (!holds(page.getpage(), pageno.pid, 0)) {
+						System.out.println("  *** " + name + ": page " + pageno.pid + " is not on disk as written");
+						return FAIL;
+					}
+				}
+				if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUM_BUFFERS) {
+					System.out.println("  *** " + name + ": frames left pinned");
+					return FAIL;
+				}
+				System.out.println("  " + name + ": " + PAGES + " pages through " + NUM_BUFFERS + " frames");
+			} catch (Exception e) {
+				e.printStackTrace();
+				return FAIL;
+			} finally {
+				close();
+			}
+		}
+		return OK;
+	}
+
+	/**
+	 * Pin counts in the frame states, and the errors of BufMgr: a pool with
+	 * every frame pinned, an unpin of a page not pinned or not resident, a free
+	 * of a page pinned twice.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: pin counts and errors\n");
+		try {
+			open("Clock");
+			ConcurrentBufMgr bufMgr = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+			PageId first = new PageId();
+			SystemDefs.JavabaseDB.allocate_page(first, NUM_BUFFERS + 1);
+			Page page = new Page();
+			for (int i = 0; i < NUM_BUFFERS; i++)
+				bufMgr.pinPage(new PageId(first.pid + i), page, true);
+			bufMgr.pinPage(first, page, false);
+			int pins = 0;
+			for (FrameState state : bufMgr.getFrameStates())
+				pins += state.getPinCount();
+			if (pins != NUM_BUFFERS + 1 || bufMgr.getNumUnpinnedBuffers() != 0) {
+				System.out.println("  *** the frames count " + pins + " pins, " + (NUM_BUFFERS + 1) + " expected");
+				return FAIL;
+			}
+			try {
+				bufMgr.pinPage(new PageId(first.pid + NUM_BUFFERS), page, true);
+				System.out.println("  *** a page is pinned with every frame pinned");
+				return FAIL;
+			} catch (BufferPoolExceededException e) {
+			}
+			try {
+				bufMgr.freePage(first);
+				System.out.println("  *** a page pinned twice is freed");
+				return FAIL;
+			} catch (PagePinnedException e) {
+			}
+			for (int i = 0; i < NUM_BUFFERS; i++)
+				bufMgr.unpinPage(new PageId(first.pid + i), false);
+			try {
+				bufMgr.unpinPage(new PageId(first.pid + 1), false);
+				System.out.println("  *** a page is unpinned once too often");
+				return FAIL;
+			} catch (PageUnpinnedException e) {
+			}
+			try {
+				bufMgr.unpinPage(new PageId(first.pid + NUM_BUFFERS), false);
+				System.out.println("  *** a page not in the pool is unpinned");
+				return FAIL;
+			} catch (HashEntryNotFoundException e) {
+			}
+			// pinned once: freePage unpins it, like BufMgr
+			bufMgr.freePage(first);
+			if (bufMgr.getNumUnpinnedBuffers() != NUM_BUFFERS) {
+				System.out.println("  *** frames left pinned");
+				return FAIL;
+			}
+			System.out.println("  every error reported");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Threads pin, change and unpin pages of their own and read each other's,
+	 * with more threads than frames left to spare; every page must end up with
+	 * the changes of its owner.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: 8 threads through 20 frames\n");
+		final int threads = 8;
+		final int own = 40;
+		final int ops = 20000;
+		try {
+			open("2Q");
+			final PageId first = new PageId();
+			SystemDefs.JavabaseDB.allocate_page(first, threads * own);
+			Page page = new Page();
+			for (int i = 0; i < threads * own; i++) {
+				PageId pageno = new PageId(first.pid + i);
+				SystemDefs.JavabaseBM.pinPage(pageno, page, true);
+				fill(page.getpage(), pageno.pid, 0);
+				SystemDefs.JavabaseBM.unpinPage(pageno, true);
+			}
+
+			final int[][] versions = new int[threads][own];
+			final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				workers[t] = new Thread() {
+					public void run() {
+						Random random = new Random(thread);
+						Page page = new Page();
+						try {
+							for (int op = 0; op < ops && errors.isEmpty(); op++) {
+								int mine = random.nextInt(own);
+								boolean write = op % 2 == 0;
+								int index = write ? thread * own + mine : random.nextInt(threads * own);
+								PageId pageno = new PageId(first.pid + index);
+								SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+								byte[] data = page.getpage();
+								if (write) {
+									if (!holds(data, pageno.pid, versions[thread][mine]))
+										errors.add("page " + pageno.pid + " lost version "
+												+ versions[thread][mine]);
+									fill(data, pageno.pid, ++versions[thread][mine]);
+								} else if (data[0] != (byte) pageno.pid)
+									errors.add("page " + pageno.pid + " reads as another page");
+								SystemDefs.JavabaseBM.unpinPage(pageno, write);
+							}
+						} catch (Exception e) {
+							errors.add(e.toString());
+						}
+					}
+				};
+				workers[t].start();
+			}
+			for (Thread worker : workers)
+				worker.join();
+			if (!errors.isEmpty()) {
+				System.out.println("  *** " + errors.get(0));
+				return FAIL;
+			}
+			SystemDefs.JavabaseBM.flushAllPages();
+			for (int t = 0; t < threads; t++) {
+				for (int i = 0; i < own; i++) {
+					PageId pageno = new PageId(first.pid + t * own + i);
+					SystemDefs.JavabaseDB.read_page(pageno, page);
+					if (!holds(page.getpage(), pageno.pid, versions[t][i])) {
+						System.out.println("  *** page " + pageno.pid + " is not on disk as last written");
+						return FAIL;
+					}
+				}
+			}
+			System.out.println("  " + threads * ops + " pins of " + threads * own + " pages");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Every policy by its name, and victims among unpinned frames only.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: policy names and victims\n");
+		try {
+			for (String name : POLICIES) {
+				ReplacementPolicy policy = ReplacementPolicy.forName(name.toLowerCase(), NUM_BUFFERS);
+				String named = ReplacementPolicy.forName(policy.getName(), NUM_BUFFERS).getName();
+				if (!named.equals(policy.getName())) {
+					System.out.println("  *** " + name + " gives a policy named " + policy.getName()
+							+ ", which gives one named " + named);
+					return FAIL;
+				}
+				for (int frame = 0; frame < NUM_BUFFERS; frame++)
+					policy.loaded(frame, frame);
+				final boolean[] pinned = new boolean[NUM_BUFFERS];
+				ReplacementPolicy.Frames frames = new ReplacementPolicy.Frames() {
+					public boolean isPinned(int frame) {
+						return pinned[frame];
+					}
+				};
+				for (int round = 0; round < 1000; round++) {
+					for (int frame = 0; frame < NUM_BUFFERS; frame++)
+						pinned[frame] = random.nextInt(4) != 0;
+					pinned[random.nextInt(NUM_BUFFERS)] = false;
+					int victim = policy.victim(frames);
+					if (victim < 0 || pinned[victim]) {
+						System.out.println("  *** " + name + " chooses frame " + victim);
+						return FAIL;
+					}
+					policy.loaded(victim, NUM_BUFFERS + round);
+					policy.accessed(random.nextInt(NUM_BUFFERS));
+				}
+				Arrays.fill(pinned, true);
+				if (policy.victim(frames) != -1) {
+					System.out.println("  *** " + name + " chooses a frame with every frame pinned");
+					return FAIL;
+				}
+			}
+			try {
+				ReplacementPolicy.forName("MRU", NUM_BUFFERS);
+				System.out.println("  *** an unknown policy is created");
+				return FAIL;
+			} catch (ReplacerException e) {
+			}
+			System.out.println("  " + POLICIES.length + " policies choose unpinned frames only");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * Traces replayed through the simulator: a trace that fits hits on every pin
+	 * after the first of each page, under every policy; a loop one page larger
+	 * than the pool never hits under LRU; a hot set of half the pool, pinned
+	 * between sequential scans as large as the pool, keeps more hits under LRU-2,
+	 * 2Q and CLOCK-Pro than under LRU.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: policies on simulated traces\n");
+		final int frames = 100;
+		try {
+			int[] fits = new int[10000];
+			for (int i = 0; i < fits.length; i++)
+				fits[i] = random.nextInt(frames);
+			int[] loop = new int[10000];
+			for (int i = 0; i < loop.length; i++)
+				loop[i] = i % (frames + 1);
+			int[] scans = new int[0];
+			int scanPage = frames;
+			for (int round = 0; round < 20; round++) {
+				int size = scans.length;
+				scans = Arrays.copyOf(scans, size + 1000 + frames);
+				for (int i = 0; i < 1000; i++)
+					scans[size++] = random.nextInt(frames / 2);
+				for (int i = 0; i < frames; i++)
+					scans[size++] = scanPage++;
+			}
+
+			long lruScans = ReplacementSimulator.simulate(ReplacementPolicy.forName("LRU", frames), frames, scans);
+			for (String name : POLICIES) {
+				long hits = ReplacementSimulator.simulate(ReplacementPolicy.forName(name, frames), frames, fits);
+				if (hits != fits.length - frames) {
+					System.out.println("  *** " + name + " hits " + hits + " pins of a trace that fits, "
+							+ (fits.length - frames) + " expected");
+					return FAIL;
+				}
+				long scanHits = ReplacementSimulator.simulate(ReplacementPolicy.forName(name, frames), frames,
+						scans);
+				System.out.printf("  %-10s %5d of %d pins hit between scans%n", name, scanHits, scans.length);
+				if (!name.equals("Clock") && !name.equals("LRU") && scanHits <= lruScans) {
+					System.out.println("  *** " + name + " does not keep the hot set through the scans");
+					return FAIL;
+				}
+			}
+			long loopHits = ReplacementSimulator.simulate(ReplacementPolicy.forName("LRU", frames), frames, loop);
+			if (loopHits != 0) {
+				System.out.println("  *** LRU hits " + loopHits + " pins of a loop larger than the pool");
+				return FAIL;
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * The trace of a buffer pool holds one line per pin, in order, and the
+	 * simulator reads it back.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: pin trace\n");
+		String traceFile = dbpath + ".trace";
+		try {
+			open("LRU");
+			ConcurrentBufMgr bufMgr = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+			PageId first = new PageId();
+			SystemDefs.JavabaseDB.allocate_page(first, PAGES);
+			int[] pins = new int[1000];
+			Page page = new Page();
+			bufMgr.traceFilename(traceFile);
+			for (int i = 0; i < pins.length; i++) {
+				PageId pageno = new PageId(first.pid + random.nextInt(PAGES));
+				bufMgr.pinPage(pageno, page, i < PAGES);
+				bufMgr.unpinPage(pageno, false);
+				pins[i] = pageno.pid;
+			}
+			bufMgr.destroyTrace();
+			if (!Arrays.equals(ReplacementSimulator.readTrace(traceFile), pins)) {
+				System.out.println("  *** the trace does not hold the pins");
+				return FAIL;
+			}
+			System.out.println("  " + pins.length + " pins traced");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(traceFile).delete();
+			close();
+		}
+	}
+
+	// a new database with a ConcurrentBufMgr of the given policy
+	private void open(String policy) throws Exception {
+		new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+		ConcurrentBufMgr.install(policy);
+	}
+
+	private void close() {
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// the bytes of a page: its page number, then a version repeated
+	private static void fill(byte[] data, int pid, int version) {
+		data[0] = (byte) pid;
+		for (int i = 1; i < data.length; i++)
+			data[i] = (byte) (version + i);
+	}
+
+	private static boolean holds(byte[] data, int pid, int version) {
+		if (data[0] != (byte) pid)
+			return false;
+		for (int i = 1; i < data.length; i++)
+			if (data[i] != (byte) (version + i))
+				return false;
+		return true;
+	}
+}
+
+public class BufferPoolTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			BufferPoolDriver bufferpooltest = new BufferPoolDriver();
+			if (!bufferpooltest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during buffer pool tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of BTreeBuilder at the fan-out boundaries of the index levels. The
+ * builder fills the index levels as the leaves close, so the last page of a
+ * level may be started for a single child; every size of a sweep is loaded
+ * into a new tree, and TreeCheck must find it sound, with a key on every
+ * non-root index page, and every entry must be found again.
+ *
+ * Long string keys that differ only at the end keep the separators long, so
+ * that an index page holds a few keys and a sweep of a few hundred entries
+ * crosses the boundaries of several levels.
+ */
+class BulkLoadDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "BulkLoadTest";
+	private final static int NUM_BUFFERS = 100;
+	private final static int NUM_PAGES = 5000;
+	private final static int KEY_SIZE = 200;
+
+	public BulkLoadDriver() {
+		super("bulkloadtest");
+	}
+
+	protected String testName() {
+		return "Bulk load";
+	}
+
+	protected boolean test1() {
+		System.out.println("\n  Test 1: long string keys, every size up to 800, pages filled\n");
+		return sweep(AttrType.attrString, KEY_SIZE, 1.0, 1, 800, 1);
+	}
+
+	protected boolean test2() {
+		System.out.println("\n  Test 2: long string keys, every size up to 400, pages half filled\n");
+		return sweep(AttrType.attrString, KEY_SIZE, 0.5, 1, 400, 1);
+	}
+
+	/**
+	 * Integer keys with the default fill factor: a step smaller than the
+	 * entries of a leaf gives every leaf count up to a few index pages.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: integer keys, sizes of up to 170 leaves\n");
+		return sweep(AttrType.attrInteger, 4, BTreeBuilder.DEFAULT_FILL_FACTOR, 1, 9500, 50);
+	}
+
+	/**
+	 * Unsorted input merged from runs on disk, around the boundaries of test1.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: unsorted string keys merged from runs\n");
+		boolean status = OK;
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			Random random = new Random(4);
+			for (int n = 95; n <= 130 && status == OK; n++) {
+				ArrayList<KeyDataEntry> entries = entries(AttrType.attrString, n);
+				Collections.shuffle(entries, random);
+				file = new BTreeFile(FILE_NAME, AttrType.attrString, KEY_SIZE, DeleteFashion.NAIVE_DELETE);
+				int loaded = new BTreeBuilder(file, 1.0).loadUnsorted(entries.iterator(), 16);
+				status = verify(file, AttrType.attrString, n, loaded);
+				file.destroyFile();
+				file = null;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		} finally {
+			close(file);
+		}
+		return status;
+	}
+
+	/*
+	 * Load trees of every size from first to last, step apart, and check each.
+	 */
+	private boolean sweep(int keyType, int keySize, double fillFactor, int first, int last, int step) {
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			int height = 0;
+			for (int n = first; n <= last; n += step) {
+				file = new BTreeFile(FILE_NAME, keyType, keySize, DeleteFashion.NAIVE_DELETE);
+				int loaded = new BTreeBuilder(file, fillFactor).load(entries(keyType, n).iterator());
+				if (verify(file, keyType, n, loaded) == FAIL)
+					return FAIL;
+				height = file.getTreeStats().getHeight();
+				file.destroyFile();
+				file = null;
+			}
+			System.out.println("  sizes " + first + " to " + last + " loaded, the largest tree has " + height
+					+ " levels");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/*
+	 * The tree is sound, holds the n entries, and finds each of them.
+	 */
+	private boolean verify(BTreeFile file, int keyType, int n, int loaded) throws Exception {
+		if (loaded != n) {
+			System.out.println("  *** " + loaded + " entries loaded, " + n + " given");
+			return FAIL;
+		}
+		String error = TreeCheck.check(file, keyType);
+		if (error != null) {
+			System.out.println("  *** " + n + " entries: " + error);
+			return FAIL;
+		}
+		long entries = TreeCheck.entries(file, keyType);
+		if (entries != n) {
+			System.out.println("  *** " + n + " entries: the tree holds " + entries);
+			return FAIL;
+		}
+		for (int i = 0; i < n; i++) {
+			List<RID> found = file.lookup(key(keyType, i));
+			if (found.size() != 1 || found.get(0).pageNo.pid != i) {
+				System.out.println("  *** " + n + " entries: lookup of entry " + i + " finds " + found.size());
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	private void close(BTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static ArrayList<KeyDataEntry> entries(int keyType, int n) {
+		ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+		for (int i = 0; i < n; i++)
+			entries.add(new KeyDataEntry(key(keyType, i), new RID(new PageId(i), 0)));
+		return entries;
+	}
+
+	// string keys share all but their last digits, so that no separator is
+	// shorter than the keys
+	private static KeyClass key(int keyType, int i) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(i);
+		StringBuffer buffer = new StringBuffer();
+		while (buffer.length() < KEY_SIZE - 16)
+			buffer.append('.');
+		return new StringKey(buffer.append(String.format("%6d", i)).toString());
+	}
+}
+
+public class BulkLoadTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			BulkLoadDriver bulkloadtest = new BulkLoadDriver();
+			if (!bulkloadtest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during bulk load tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
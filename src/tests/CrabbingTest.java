@@ -0,0 +1,233 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Stress tests of latch coupling, the default mode of BTreeFile. Threads
+ * insert, look up and delete at the same time, so that they wait for each
+ * other's latches on the same pages and the root splits under running
+ * operations; when they are done the tree must hold exactly the entries the
+ * threads left in it, and TreeCheck must find the structure sound.
+ *
+ * The latches of different pages are kept apart even where the pages share a
+ * stripe of the latch table, so the top-down, left-to-right order of latch
+ * coupling stays free of cycles. A test fails if the threads do not finish
+ * within a time limit.
+ */
+class CrabbingDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "CrabbingTest";
+	private final static int NUM_BUFFERS = 400;
+	private final static int NUM_PAGES = 20000;
+	// seconds a workload may take before it counts as deadlocked
+	private final static int TIME_LIMIT = 120;
+
+	// the entries each thread left in the tree: key, and rid page number
+	private List<int[]>[] left;
+
+	public CrabbingDriver() {
+		super("crabbingtest");
+	}
+
+	protected String testName() {
+		return "Latch coupling";
+	}
+
+	protected boolean test1() {
+		System.out.println("\n  Test 1: 8 threads, scattered keys, BufMgr\n");
+		return runWorkload(8, 6000, 1 << 30, false);
+	}
+
+	protected boolean test2() {
+		System.out.println("\n  Test 2: 16 threads, scattered keys, ConcurrentBufMgr\n");
+		return runWorkload(16, 6000, 1 << 30, true);
+	}
+
+	/**
+	 * Every thread works on the same 50 keys, so that the threads meet on the
+	 * same few leaves and on runs of duplicates spanning several of them.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: 16 threads on 50 keys, ConcurrentBufMgr\n");
+		return runWorkload(16, 6000, 50, true);
+	}
+
+	protected boolean test4() {
+		System.out.println("\n  Test 4: 8 threads on 50 keys, BufMgr\n");
+		return runWorkload(8, 6000, 50, false);
+	}
+
+	/*
+	 * Run the threads on a new tree, then check the tree. Of the operations of a
+	 * thread, half insert an entry, a quarter look up the key of an entry the
+	 * thread inserted, which must be found, and a quarter delete one of the
+	 * thread's entries, which must succeed.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean runWorkload(final int threads, final int ops, final int distinct, boolean concurrent) {
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			if (concurrent)
+				ConcurrentBufMgr.install("Clock");
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+
+			final BTreeFile tree = file;
+			final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+			left = new List[threads];
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				left[t] = new ArrayList<int[]>();
+				workers[t] = new Thread("crabbing-" + t) {
+					public void run() {
+						try {
+							work(tree, thread, threads, ops, distinct, left[thread], errors);
+						} catch (Throwable e) {
+							errors.add(getName() + ": " + e);
+							e.printStackTrace();
+						}
+					}
+				};
+				workers[t].setDaemon(true);
+			}
+			long start = System.currentTimeMillis();
+			for (Thread worker : workers)
+				worker.start();
+			long deadline = start + TIME_LIMIT * 1000L;
+			for (Thread worker : workers)
+				worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			for (Thread worker : workers) {
+				if (worker.isAlive()) {
+					System.out.println("  *** the threads are stuck after " + TIME_LIMIT + " seconds");
+					for (Thread stuck : workers) {
+						System.out.println("    " + stuck.getName() + ":");
+						for (StackTraceElement frame : stuck.getStackTrace())
+							System.out.println("      at " + frame);
+					}
+					// the stuck threads hold latches of the tree
+					file = null;
+					return FAIL;
+				}
+			}
+			System.out.println("  " + threads * ops + " operations in " + (System.currentTimeMillis() - start)
+					+ " ms");
+			if (!errors.isEmpty()) {
+				for (String error : errors)
+					System.out.println("  *** " + error);
+				return FAIL;
+			}
+			return verify(file);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file, concurrent);
+		}
+	}
+
+	private static void work(BTreeFile tree, int thread, int threads, int ops, int distinct, List<int[]> mine,
+			List<String> errors) throws Exception {
+		Random random = new Random(thread);
+		RID[] rids = new RID[1];
+		for (int op = 0; op < ops && errors.isEmpty(); op++) {
+			if (op % 2 == 0 || mine.isEmpty()) {
+				int id = op * threads + thread;
+				int key = key(id) % distinct;
+				tree.insert(new IntegerKey(key), new RID(new PageId(id), thread));
+				mine.add(new int[] { key, id });
+			} else if (op % 4 == 1) {
+				int key = mine.get(random.nextInt(mine.size()))[0];
+				if (tree.lookupInt(key, rids) < 1)
+					errors.add("thread " + thread + " does not find its key " + key);
+			} else {
+				int i = random.nextInt(mine.size());
+				int[] entry = mine.get(i);
+				mine.set(i, mine.get(mine.size() - 1));
+				mine.remove(mine.size() - 1);
+				if (!tree.Delete(new IntegerKey(entry[0]), new RID(new PageId(entry[1]), thread)))
+					errors.add("thread " + thread + " does not delete its entry " + entry[1] + " of key "
+							+ entry[0]);
+			}
+		}
+	}
+
+	/*
+	 * The tree is sound and holds the entries the threads left, each key as
+	 * often as they left it.
+	 */
+	private boolean verify(BTreeFile file) throws Exception {
+		String error = TreeCheck.check(file, AttrType.attrInteger);
+		if (error != null) {
+			System.out.println("  *** " + error);
+			return FAIL;
+		}
+		HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		int total = 0;
+		for (List<int[]> entries : left) {
+			for (int[] entry : entries) {
+				Integer count = counts.get(entry[0]);
+				counts.put(entry[0], count == null ? 1 : count + 1);
+				total++;
+			}
+		}
+		long entries = TreeCheck.entries(file, AttrType.attrInteger);
+		if (entries != total) {
+			System.out.println("  *** the tree holds " + entries + " entries, " + total + " expected");
+			return FAIL;
+		}
+		for (Map.Entry<Integer, Integer> count : counts.entrySet()) {
+			int size = file.lookup(new IntegerKey(count.getKey())).size();
+			if (size != count.getValue()) {
+				System.out.println("  *** lookup of " + count.getKey() + " finds " + size + " entries, "
+						+ count.getValue() + " expected");
+				return FAIL;
+			}
+		}
+		System.out.println("  " + total + " entries left over " + counts.size() + " keys");
+		return OK;
+	}
+
+	private void close(BTreeFile file, boolean concurrent) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			if (concurrent)
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// distinct ids in a scattered order: multiplying by an odd number is a
+	// bijection of the integers modulo 2^30. BT.keyCompare subtracts integer
+	// keys, so they are kept small enough for the difference not to overflow.
+	private static int key(int id) {
+		return (id * 0x9e3779b1) & 0x3fffffff;
+	}
+}
+
+public class CrabbingTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			CrabbingDriver crabbingtest = new CrabbingDriver();
+			if (!crabbingtest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during latch coupling tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,423 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the background flusher of ConcurrentBufMgr, see startFlusher. The
+ * count of dirty frames must agree with the frames themselves; once more than
+ * the high mark of the frames are dirty the flusher must write unpinned dirty
+ * pages, in runs of adjacent pages, until no more than the low mark are, and
+ * leave pinned pages alone; a page it cleaned must be on disk as last written.
+ * Pages changed again while the flusher writes, and pages replaced meanwhile,
+ * must not lose a change, on a DB and on a MappedDB.
+ */
+class FlusherDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "FlusherTest";
+	private final static int NUM_BUFFERS = 100;
+	private final static int NUM_PAGES = 10000;
+	private final static int PAGES = 1000;
+	private final static int ENTRIES = 30000;
+	private final static double LOW = 0.2;
+	private final static double HIGH = 0.5;
+	// how long to wait for the flusher before a test fails
+	private final static long WAIT_MILLIS = 10000;
+
+	private Random random = new Random(14);
+
+	// the version last written to each page of the run
+	private int[] versions;
+	private int first;
+
+	public FlusherDriver() {
+		super("flushertest");
+	}
+
+	protected String testName() {
+		return "Background flusher";
+	}
+
+	/**
+	 * Without a flusher, the count of dirty frames follows dirty unpins, frees
+	 * and flushes.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: the count of dirty frames\n");
+		try {
+			open(false);
+			ConcurrentBufMgr bufmgr = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+			for (int i = 0; i < NUM_BUFFERS; i++) {
+				write(i, i % 3 != 0);
+				if (count() == FAIL)
+					return FAIL;
+			}
+			for (int i = 0; i < NUM_BUFFERS; i += 5) {
+				bufmgr.freePage(new PageId(first + i));
+				if (count() == FAIL)
+					return FAIL;
+			}
+			for (int i = 1; i < NUM_BUFFERS; i += 5) {
+				bufmgr.flushPage(new PageId(first + i));
+				if (count() == FAIL)
+					return FAIL;
+			}
+			bufmgr.flushAllPages();
+			if (bufmgr.getNumDirtyBuffers() != 0) {
+				System.out.println("  *** " + bufmgr.getNumDirtyBuffers() + " frames dirty after flushAllPages");
+				return FAIL;
+			}
+			System.out.println("  the count agrees with the frames");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(null);
+		}
+	}
+
+	/**
+	 * Pages dirtied up to the high mark, all of them resident, and then one
+	 * more: the flusher waits for that one, brings the count down to the low
+	 * mark, and the pages it cleaned are on disk.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: the flusher writes down to its low mark\n");
+		try {
+			open(false);
+			ConcurrentBufMgr bufmgr = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+			bufmgr.startFlusher(LOW, HIGH);
+			int low = (int) (LOW * NUM_BUFFERS);
+			// below the high mark, the flusher is not woken
+			for (int i = 0; i < (int) (HIGH * NUM_BUFFERS); i++)
+				write(i, true);
+			Thread.sleep(200);
+			if (bufmgr.getNumDirtyBuffers() != (int) (HIGH * NUM_BUFFERS)) {
+				System.out.println("  *** " + bufmgr.getNumDirtyBuffers() + " frames dirty below the high mark of "
+						+ (int) (HIGH * NUM_BUFFERS));
+				return FAIL;
+			}
+			// one more wakes it, and it goes on down to the low mark
+			write((int) (HIGH * NUM_BUFFERS), true);
+			if (!waitFor(low))
+				return FAIL;
+			if (onDisk() == FAIL)
+				return FAIL;
+			System.out.println("  " + bufmgr.getNumDirtyBuffers() + " of " + ((int) (HIGH * NUM_BUFFERS) + 1)
+					+ " frames dirty after the flusher ran");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(null);
+		}
+	}
+
+	/**
+	 * Dirty pages that are pinned again are left alone until they are
+	 * unpinned, and the flusher goes on to its low mark when they are, though
+	 * no page was dirtied meanwhile.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: pinned pages are not written\n");
+		try {
+			open(false);
+			ConcurrentBufMgr bufmgr = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+			Page page = new Page();
+			for (int i = 0; i < 80; i++) {
+				write(i, true);
+				SystemDefs.JavabaseBM.pinPage(new PageId(first + i), page, false);
+			}
+			bufmgr.startFlusher(LOW, HIGH);
+			Thread.sleep(500);
+			if (bufmgr.getNumDirtyBuffers() != 80) {
+				System.out.println("  *** " + (80 - bufmgr.getNumDirtyBuffers()) + " pinned pages were written");
+				return FAIL;
+			}
+			// half of them unpinned: those are written, and the flusher waits for
+			// the rest, still above its low mark
+			for (int i = 0; i < 40; i++)
+				SystemDefs.JavabaseBM.unpinPage(new PageId(first + i), false);
+			if (!waitFor(40))
+				return FAIL;
+			Thread.sleep(200);
+			if (bufmgr.getNumDirtyBuffers() != 40) {
+				System.out.println("  *** " + (40 - bufmgr.getNumDirtyBuffers()) + " pinned pages were written");
+				return FAIL;
+			}
+			for (int i = 40; i < 80; i++)
+				SystemDefs.JavabaseBM.unpinPage(new PageId(first + i), false);
+			if (!waitFor((int) (LOW * NUM_BUFFERS)) || onDisk() == FAIL)
+				return FAIL;
+			System.out.println("  80 pinned pages written once unpinned");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(null);
+		}
+	}
+
+	protected boolean test4() {
+		System.out.println("\n  Test 4: 4 threads changing pages under the flusher, DB\n");
+		return race(false);
+	}
+
+	protected boolean test5() {
+		System.out.println("\n  Test 5: 4 threads changing pages under the flusher, MappedDB\n");
+		return race(true);
+	}
+
+	/**
+	 * A B+ tree much larger than the buffer pool built with a flusher running,
+	 * closed, and opened again.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: a tree built with a flusher running\n");
+		BTreeFile file = null;
+		try {
+			open(false);
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).startFlusher(LOW, HIGH);
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < ENTRIES; i++) {
+				int key = random.nextInt(ENTRIES);
+				file.insert(new IntegerKey(key), new RID(new PageId(i), key));
+				Integer count = model.get(key);
+				model.put(key, count == null ? 1 : count + 1);
+			}
+			file.close();
+			file = null;
+			close(null);
+
+			new SystemDefs(dbpath, 0, NUM_BUFFERS, "Clock");
+			ConcurrentBufMgr.install("Clock");
+			file = new BTreeFile(FILE_NAME);
+			String error = TreeCheck.check(file, AttrType.attrInteger);
+			if (error != null) {
+				System.out.println("  *** " + error);
+				return FAIL;
+			}
+			long entries = TreeCheck.entries(file, AttrType.attrInteger);
+			if (entries != ENTRIES) {
+				System.out.println("  *** the tree holds " + entries + " entries, " + ENTRIES + " expected");
+				return FAIL;
+			}
+			for (Map.Entry<Integer, Integer> count : model.entrySet()) {
+				int size = file.lookup(new IntegerKey(count.getKey())).size();
+				if (size != count.getValue()) {
+					System.out.println("  *** lookup of " + count.getKey() + " finds " + size + " entries, "
+							+ count.getValue() + " expected");
+					return FAIL;
+				}
+			}
+			System.out.println("  " + ENTRIES + " entries, whole after the database is opened again");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/*
+	 * Threads changing random pages of a run ten times as large as the pool,
+	 * each thread its own pages, while the flusher writes; every page must be
+	 * on disk as last written once the pool is flushed.
+	 */
+	private boolean race(boolean mapped) {
+		try {
+			open(mapped);
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).startFlusher(LOW, HIGH);
+			final int threads = 4;
+			final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				final Random random = new Random(thread);
+				workers[t] = new Thread() {
+					public void run() {
+						try {
+							Page page = new Page();
+							for (int op = 0; op < 20000 && errors.isEmpty(); op++) {
+								int i = random.nextInt(PAGES / threads) * threads + thread;
+								PageId pageno = new PageId(first + i);
+								SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+								if (!holds(page.getpage(), pageno.pid, versions[i]))
+									errors.add("page " + pageno.pid + " lost version " + versions[i]);
+								boolean change = op % 4 != 0;
+								if (change)
+									fill(page.getpage(), pageno.pid, ++versions[i]);
+								SystemDefs.JavabaseBM.unpinPage(pageno, change);
+							}
+						} catch (Exception e) {
+							errors.add(e.toString());
+						}
+					}
+				};
+				workers[t].start();
+			}
+			for (Thread worker : workers)
+				worker.join();
+			if (!errors.isEmpty()) {
+				System.out.println("  *** " + errors.get(0));
+				return FAIL;
+			}
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseBM.flushAllPages();
+			Page page = new Page();
+			for (int i = 0; i < PAGES; i++) {
+				PageId pageno = new PageId(first + i);
+				SystemDefs.JavabaseDB.read_page(pageno, page);
+				if (!holds(page.getpage(), pageno.pid, versions[i])) {
+					System.out.println("  *** page " + pageno.pid + " is not on disk as last written");
+					return FAIL;
+				}
+			}
+			System.out.println("  " + threads * 20000 + " pins of " + PAGES + " pages through " + NUM_BUFFERS
+					+ " frames");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(null);
+		}
+	}
+
+	// the count of dirty frames is that of the frames marked dirty
+	private boolean count() {
+		ConcurrentBufMgr bufmgr = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+		int dirty = 0;
+		for (FrameState state : bufmgr.getFrameStates())
+			if (state.isDirty())
+				dirty++;
+		if (dirty != bufmgr.getNumDirtyBuffers()) {
+			System.out.println("  *** " + bufmgr.getNumDirtyBuffers() + " frames counted dirty, " + dirty
+					+ " marked dirty");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	// wait until no more than low frames are dirty
+	private boolean waitFor(int low) throws InterruptedException {
+		ConcurrentBufMgr bufmgr = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+		long end = System.currentTimeMillis() + WAIT_MILLIS;
+		while (bufmgr.getNumDirtyBuffers() > low) {
+			if (System.currentTimeMillis() > end) {
+				System.out.println("  *** " + bufmgr.getNumDirtyBuffers() + " frames still dirty, the low mark is "
+						+ low);
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/*
+	 * Every clean page of the pool is on disk as last written. A frame is
+	 * marked clean before its write, so the flusher is stopped first.
+	 */
+	private boolean onDisk() throws Exception {
+		((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+		Page page = new Page();
+		for (FrameState state : ((ConcurrentBufMgr) SystemDefs.JavabaseBM).getFrameStates()) {
+			int pid = state.getPageNo().pid;
+			if (pid < first || pid >= first + PAGES || state.isDirty())
+				continue;
+			SystemDefs.JavabaseDB.read_page(new PageId(pid), page);
+			if (!holds(page.getpage(), pid, versions[pid - first])) {
+				System.out.println("  *** page " + pid + " is clean but not on disk as last written");
+				return FAIL;
+			}
+		}
+		return count();
+	}
+
+	// change page i of the run, and unpin it dirty or not
+	private void write(int i, boolean dirty) throws Exception {
+		Page page = new Page();
+		PageId pageno = new PageId(first + i);
+		SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+		if (dirty)
+			fill(page.getpage(), pageno.pid, ++versions[i]);
+		SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+	}
+
+	/*
+	 * A new database, a MappedDB if asked, with a ConcurrentBufMgr, and a run
+	 * of PAGES pages written at version 0; no frame is dirty.
+	 */
+	private void open(boolean mapped) throws Exception {
+		new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+		if (mapped)
+			MappedDB.install();
+		ConcurrentBufMgr.install("Clock");
+		PageId pageno = new PageId();
+		SystemDefs.JavabaseDB.allocate_page(pageno, PAGES);
+		first = pageno.pid;
+		versions = new int[PAGES];
+		Page page = new Page();
+		for (int i = 0; i < PAGES; i++) {
+			fill(page.getpage(), first + i, 0);
+			SystemDefs.JavabaseDB.write_page(new PageId(first + i), page);
+		}
+		// allocate_page dirties the space map through the buffer manager
+		SystemDefs.JavabaseBM.flushAllPages();
+	}
+
+	private void close(BTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// the bytes of a page: its page number, then a version repeated
+	private static void fill(byte[] data, int pid, int version) {
+		Arrays.fill(data, (byte) version);
+		data[0] = (byte) pid;
+		data[1] = (byte) (pid >> 8);
+	}
+
+	private static boolean holds(byte[] data, int pid, int version) {
+		if (data[0] != (byte) pid || data[1] != (byte) (pid >> 8))
+			return false;
+		for (int i = 2; i < data.length; i++)
+			if (data[i] != (byte) version)
+				return false;
+		return true;
+	}
+}
+
+public class FlusherTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			FlusherDriver flushertest = new FlusherDriver();
+			if (!flushertest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during flusher tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
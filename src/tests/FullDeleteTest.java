@@ -0,0 +1,262 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of FULL_DELETE on trees with many duplicate keys. With duplicates
+ * several entries of an index page share a key, so the entry of a child must
+ * be found by the child it points to: the entry of a page merged away, the
+ * entry rewritten when pages redistribute, and the place of the entry for a
+ * page split off. Going by the key cuts live pages out of the tree or puts
+ * children out of order.
+ *
+ * Random inserts and deletes run against a model of the entries; the structure
+ * of the tree is checked with TreeCheck as the workload goes, and a scan and
+ * lookups must give back exactly the entries of the model.
+ */
+class FullDeleteDriver extends TestDriver implements GlobalConst {
+
+	private final static int NUM_BUFFERS = 100;
+	private final static int NUM_PAGES = 5000;
+	private final static int KEY_SIZE = 64;
+	// operations between two checks of the tree
+	private final static int CHECK_EVERY = 500;
+
+	private Random random = new Random(3);
+
+	// the entries in the tree, by rid page number; the key of an entry
+	private ArrayList<Integer> live;
+	private HashMap<Integer, Integer> keys;
+
+	public FullDeleteDriver() {
+		super("fulldeletetest");
+	}
+
+	protected String testName() {
+		return "Full delete";
+	}
+
+	/**
+	 * Integer keys: 20,000 random inserts and deletes over 30 keys, growing the
+	 * tree and then shrinking it again.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: random inserts and full deletes of 30 integer keys\n");
+		return fuzz(AttrType.attrInteger, 4, 30, 20000);
+	}
+
+	/**
+	 * String keys: 100 keys, long enough for a tree of three levels, with many
+	 * duplicates each.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: random inserts and full deletes of 100 string keys\n");
+		return fuzz(AttrType.attrString, KEY_SIZE, 100, 12000);
+	}
+
+	/**
+	 * Integer keys: 20,000 random inserts and deletes over 3 keys, so that runs
+	 * of one key span many leaves and pages split inside them.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: random inserts and full deletes of 3 integer keys\n");
+		return fuzz(AttrType.attrInteger, 4, 3, 20000);
+	}
+
+	/**
+	 * Delete every entry of a tree of duplicates, in a random order, then fill
+	 * it again.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: empty a tree of duplicates and fill it again\n");
+		boolean status = OK;
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			file = new BTreeFile("FullDeleteTest4", AttrType.attrString, KEY_SIZE, DeleteFashion.FULL_DELETE);
+			live = new ArrayList<Integer>();
+			keys = new HashMap<Integer, Integer>();
+			int id = 0;
+			for (int round = 0; round < 2 && status == OK; round++) {
+				for (int i = 0; i < 3000; i++, id++) {
+					int key = random.nextInt(100);
+					file.insert(key(AttrType.attrString, key), rid(id, key));
+					live.add(id);
+					keys.put(id, key);
+				}
+				status = verify(file, AttrType.attrString);
+				Collections.shuffle(live, random);
+				for (int i = live.size() - 1; i >= 0 && status == OK; i--) {
+					int gone = live.remove(i);
+					if (!file.Delete(key(AttrType.attrString, keys.get(gone)), rid(gone, keys.get(gone)))) {
+						System.out.println("  *** entry " + gone + " is not deleted");
+						status = FAIL;
+					} else if (i % CHECK_EVERY == 0)
+						status = verify(file, AttrType.attrString);
+				}
+				if (status == OK && ((HFPage) file.getHeaderPage()).getNextPage().pid != INVALID_PAGE) {
+					System.out.println("  *** the emptied tree still has a root");
+					status = FAIL;
+				}
+				System.out.println("  round " + round + ": 3000 entries inserted and deleted");
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		} finally {
+			close(file);
+		}
+		return status;
+	}
+
+	/*
+	 * Run ops random operations on a new tree of the given key type: inserts
+	 * two times out of three in the first half, deletes two times out of three
+	 * in the second. One delete in ten is of an entry already gone, which must
+	 * fail.
+	 */
+	private boolean fuzz(int keyType, int keySize, int distinct, int ops) {
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			file = new BTreeFile("FullDeleteTest" + keyType, keyType, keySize, DeleteFashion.FULL_DELETE);
+			live = new ArrayList<Integer>();
+			keys = new HashMap<Integer, Integer>();
+			int most = 0;
+			for (int i = 0; i < ops; i++) {
+				boolean insert = live.isEmpty() || random.nextInt(3) < (i < ops / 2 ? 2 : 1);
+				if (insert) {
+					int key = random.nextInt(distinct);
+					file.insert(key(keyType, key), rid(i, key));
+					live.add(i);
+					keys.put(i, key);
+				} else if (random.nextInt(10) == 0) {
+					int gone = random.nextInt(i);
+					if (!keys.containsKey(gone) || live.contains(gone))
+						continue;
+					if (file.Delete(key(keyType, keys.get(gone)), rid(gone, keys.get(gone)))) {
+						System.out.println("  *** entry " + gone + " is deleted twice");
+						return FAIL;
+					}
+				} else {
+					int slot = random.nextInt(live.size());
+					int gone = live.get(slot);
+					live.set(slot, live.get(live.size() - 1));
+					live.remove(live.size() - 1);
+					if (!file.Delete(key(keyType, keys.get(gone)), rid(gone, keys.get(gone)))) {
+						System.out.println("  *** entry " + gone + " with key " + keys.get(gone)
+								+ " is not deleted");
+						return FAIL;
+					}
+				}
+				most = Math.max(most, live.size());
+				if ((i + 1) % CHECK_EVERY == 0 && verify(file, keyType) == FAIL) {
+					System.out.println("  *** after operation " + i);
+					return FAIL;
+				}
+			}
+			System.out.println("  " + ops + " operations, at most " + most + " entries, " + live.size() + " left");
+			return verify(file, keyType);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/*
+	 * Check the structure of the tree, then that a scan and lookups give back
+	 * the entries of the model.
+	 */
+	private boolean verify(BTreeFile file, int keyType) throws Exception {
+		String error = TreeCheck.check(file, keyType);
+		if (error != null) {
+			System.out.println("  *** " + error);
+			return FAIL;
+		}
+
+		HashSet<Integer> found = new HashSet<Integer>();
+		BTFileScan scan = file.new_scan(null, null);
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			RID rid = ((LeafData) entry.data).getData();
+			Integer key = keys.get(rid.pageNo.pid);
+			if (key == null || BT.keyCompare(entry.key, key(keyType, key)) != 0 || !found.add(rid.pageNo.pid)) {
+				System.out.println("  *** the scan returns " + entry.key + " for entry " + rid.pageNo.pid);
+				scan.DestroyBTreeFileScan();
+				return FAIL;
+			}
+		}
+		scan.DestroyBTreeFileScan();
+		if (found.size() != live.size() || !found.containsAll(live)) {
+			System.out.println("  *** the scan returns " + found.size() + " entries, " + live.size() + " expected");
+			return FAIL;
+		}
+
+		HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (int id : live) {
+			Integer count = counts.get(keys.get(id));
+			counts.put(keys.get(id), count == null ? 1 : count + 1);
+		}
+		for (Map.Entry<Integer, Integer> count : counts.entrySet()) {
+			int size = file.lookup(key(keyType, count.getKey())).size();
+			if (size != count.getValue()) {
+				System.out.println("  *** lookup of " + count.getKey() + " finds " + size + " entries, "
+						+ count.getValue() + " expected");
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	private void close(BTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// long string keys keep the pages small, so that the tree grows a few
+	// levels
+	static KeyClass key(int keyType, int key) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(key);
+		StringBuffer buffer = new StringBuffer(String.format("%5d", key));
+		while (buffer.length() < KEY_SIZE - 8)
+			buffer.append('.');
+		return new StringKey(buffer.toString());
+	}
+
+	static RID rid(int id, int key) {
+		return new RID(new PageId(id), key);
+	}
+}
+
+public class FullDeleteTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			FullDeleteDriver fulldeletetest = new FullDeleteDriver();
+			if (!fulldeletetest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during full delete tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,506 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of LongBTreeFile, the B+ tree of primitive int and long keys on
+ * LongKeyPage pages. Files of either key width are filled with keys of the
+ * whole range, negative ones and the extremes among them, and with keys
+ * repeated over many leaves, and deleted from again; each is checked against a
+ * model of its entries: a full scan must return every entry in key order, a
+ * lookup must count the entries of its key and return their rids, and range
+ * scans must return the entries of the model's range, leaving nothing pinned.
+ */
+class LongKeyDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "LongKeyTest";
+	private final static int NUM_BUFFERS = 100;
+	private final static int NUM_PAGES = 10000;
+	private final static int ENTRIES = 40000;
+
+	private Random random = new Random(17);
+
+	// the ids of the entries of each key; an entry's rid is (id, key's low bits)
+	private TreeMap<Long, List<Integer>> model;
+	private int nextId;
+
+	public LongKeyDriver() {
+		super("longkeytest");
+	}
+
+	protected String testName() {
+		return "Long key B+ tree";
+	}
+
+	protected boolean test1() {
+		System.out.println("\n  Test 1: int keys of the whole range, half of them deleted\n");
+		return randomKeys(4);
+	}
+
+	protected boolean test2() {
+		System.out.println("\n  Test 2: long keys of the whole range, half of them deleted\n");
+		return randomKeys(8);
+	}
+
+	/**
+	 * A few keys, each repeated over many leaves, between single keys; the
+	 * entries of the repeated keys deleted one by one in a random order.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: heavy duplicates\n");
+		LongBTreeFile file = null;
+		try {
+			file = open(8);
+			long[] heavy = { Long.MIN_VALUE, -1L << 40, -1, 0, 1L << 40, Long.MAX_VALUE };
+			for (int i = 0; i < ENTRIES / 2; i++) {
+				insert(file, heavy[random.nextInt(heavy.length)]);
+				insert(file, random.nextLong());
+			}
+			if (verify(file) == FAIL)
+				return FAIL;
+			int leaves = (ENTRIES / 2 / heavy.length) / file.getLeafCapacity();
+
+			// a lookup into a short array counts all the same
+			RID[] some = new RID[10];
+			for (long key : heavy) {
+				int count = file.lookup(key, some);
+				if (count != model.get(key).size()) {
+					System.out.println("  *** lookup of " + key + " into " + some.length + " rids counts " + count
+							+ ", " + model.get(key).size() + " expected");
+					return FAIL;
+				}
+			}
+
+			ArrayList<long[]> entries = new ArrayList<long[]>();
+			for (long key : heavy)
+				for (int id : model.get(key))
+					entries.add(new long[] { key, id });
+			Collections.shuffle(entries, random);
+			for (int i = 0; i < entries.size(); i++) {
+				if (delete(file, entries.get(i)[0], (int) entries.get(i)[1]) == FAIL)
+					return FAIL;
+				if (i % 2000 == 0 && verify(file) == FAIL)
+					return FAIL;
+			}
+			if (verify(file) == FAIL)
+				return FAIL;
+			System.out.println("  " + heavy.length + " keys of about " + leaves + " leaves each, deleted again");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Keys given as IntegerKey and LongKey objects, and keys that do not fit
+	 * the file.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: keys as KeyClass objects, and keys that do not fit\n");
+		LongBTreeFile ints = null;
+		LongBTreeFile longs = null;
+		try {
+			ints = open(4);
+			longs = new LongBTreeFile(FILE_NAME + "Long", 8);
+			for (int i = 0; i < 1000; i++) {
+				int key = random.nextInt() >> 8;
+				ints.insert(new IntegerKey(key), new RID(new PageId(i), 0));
+				longs.insert(new LongKey((long) key << 20), new RID(new PageId(i), 0));
+				longs.insert(new IntegerKey(key), new RID(new PageId(i), 1));
+				if (ints.lookup(key, new RID[0]) < 1 || longs.lookup((long) key << 20, new RID[0]) < 1
+						|| longs.lookup(key, new RID[0]) < 1) {
+					System.out.println("  *** key " + key + " is not found after it was inserted");
+					return FAIL;
+				}
+				if (!ints.Delete(new IntegerKey(key), new RID(new PageId(i), 0))
+						|| !longs.Delete(new LongKey((long) key << 20), new RID(new PageId(i), 0))) {
+					System.out.println("  *** key " + key + " is not deleted");
+					return FAIL;
+				}
+			}
+			Object[][] refused = { { ints, new LongKey(1) }, { ints, new StringKey("1") },
+					{ longs, new StringKey("1") } };
+			for (Object[] pair : refused) {
+				try {
+					((LongBTreeFile) pair[0]).insert((KeyClass) pair[1], new RID(new PageId(1), 0));
+					System.out.println("  *** a " + pair[1].getClass().getName() + " is inserted into a file of "
+							+ ((LongBTreeFile) pair[0]).getKeySize() + " byte keys");
+					return FAIL;
+				} catch (KeyNotMatchException e) {
+				}
+			}
+			for (long key : new long[] { Integer.MAX_VALUE + 1L, Integer.MIN_VALUE - 1L, Long.MIN_VALUE }) {
+				try {
+					ints.insert(key, new RID(new PageId(1), 0));
+					System.out.println("  *** key " + key + " is inserted into a file of int keys");
+					return FAIL;
+				} catch (KeyNotMatchException e) {
+				}
+				try {
+					ints.delete(key, new RID(new PageId(1), 0));
+					System.out.println("  *** key " + key + " is deleted from a file of int keys");
+					return FAIL;
+				} catch (KeyNotMatchException e) {
+				}
+			}
+			System.out.println("  1000 keys of each class inserted, looked up and deleted");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			try {
+				if (longs != null)
+					longs.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			close(ints);
+		}
+	}
+
+	/**
+	 * A file of long keys opened again with the database, and each kind of B+
+	 * tree file refused by the other.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: files opened again\n");
+		LongBTreeFile file = null;
+		try {
+			file = open(8);
+			for (int i = 0; i < ENTRIES; i++)
+				insert(file, random.nextLong() >> random.nextInt(64));
+			BTreeFile other = new BTreeFile(FILE_NAME + "Other", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			other.close();
+			file.close();
+			file = null;
+			close(null);
+
+			new SystemDefs(dbpath, 0, NUM_BUFFERS, "Clock");
+			file = new LongBTreeFile(FILE_NAME);
+			if (file.getKeySize() != 8) {
+				System.out.println("  *** the file opens with keys of " + file.getKeySize() + " bytes");
+				return FAIL;
+			}
+			if (verify(file) == FAIL)
+				return FAIL;
+			try {
+				new BTreeFile(FILE_NAME);
+				System.out.println("  *** a LongBTreeFile opens as a BTreeFile");
+				return FAIL;
+			} catch (GetFileEntryException e) {
+			}
+			try {
+				new LongBTreeFile(FILE_NAME + "Other");
+				System.out.println("  *** a BTreeFile opens as a LongBTreeFile");
+				return FAIL;
+			} catch (GetFileEntryException e) {
+			}
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUM_BUFFERS - 1) {
+				System.out.println("  *** " + (NUM_BUFFERS - SystemDefs.JavabaseBM.getNumUnpinnedBuffers())
+						+ " pages pinned, the header page only expected");
+				return FAIL;
+			}
+			System.out.println("  " + ENTRIES + " entries found after the database is opened again");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Keys inserted in ascending and in descending order, then every entry
+	 * deleted, leaving empty leaves the scans must step over.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: sorted inserts, everything deleted\n");
+		LongBTreeFile file = null;
+		try {
+			file = open(4);
+			for (int i = 0; i < ENTRIES / 2; i++) {
+				insert(file, i - ENTRIES / 4);
+				insert(file, Integer.MAX_VALUE - i);
+			}
+			if (verify(file) == FAIL)
+				return FAIL;
+			ArrayList<long[]> entries = new ArrayList<long[]>();
+			for (Map.Entry<Long, List<Integer>> ids : model.entrySet())
+				for (int id : ids.getValue())
+					entries.add(new long[] { ids.getKey(), id });
+			Collections.shuffle(entries, random);
+			for (int i = 0; i < entries.size(); i++) {
+				if (delete(file, entries.get(i)[0], (int) entries.get(i)[1]) == FAIL)
+					return FAIL;
+				if (i == entries.size() / 2 && verify(file) == FAIL)
+					return FAIL;
+			}
+			if (verify(file) == FAIL)
+				return FAIL;
+			LongKeyScan scan = file.new_scan(Long.MIN_VALUE, Long.MAX_VALUE);
+			boolean empty = !scan.next();
+			scan.close();
+			if (!empty) {
+				System.out.println("  *** a scan of the emptied tree finds an entry");
+				return FAIL;
+			}
+			System.out.println("  " + ENTRIES + " entries inserted in order and deleted again");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/*
+	 * ENTRIES random keys of the whole range of the width, the extremes among
+	 * them, every tenth one repeated; then half of the entries deleted, and
+	 * entries that are not there not deleted.
+	 */
+	private boolean randomKeys(int keySize) {
+		LongBTreeFile file = null;
+		try {
+			file = open(keySize);
+			long[] extremes = keySize == 4 ? new long[] { Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE }
+					: new long[] { Long.MIN_VALUE, Integer.MIN_VALUE - 1L, -1, 0, 1L << 32, Long.MAX_VALUE };
+			for (long key : extremes)
+				insert(file, key);
+			long last = 0;
+			for (int i = extremes.length; i < ENTRIES; i++) {
+				long key = i % 10 == 0 ? last : keySize == 4 ? random.nextInt() : random.nextLong();
+				insert(file, key);
+				last = key;
+			}
+			if (verify(file) == FAIL)
+				return FAIL;
+
+			ArrayList<long[]> entries = new ArrayList<long[]>();
+			for (Map.Entry<Long, List<Integer>> ids : model.entrySet())
+				for (int id : ids.getValue())
+					entries.add(new long[] { ids.getKey(), id });
+			Collections.shuffle(entries, random);
+			for (long[] entry : entries.subList(0, entries.size() / 2))
+				if (delete(file, entry[0], (int) entry[1]) == FAIL)
+					return FAIL;
+			for (long[] entry : entries.subList(0, 100)) {
+				if (file.delete(entry[0], rid(entry[0], (int) entry[1]))) {
+					System.out.println("  *** entry " + entry[1] + " of key " + entry[0] + " is deleted twice");
+					return FAIL;
+				}
+			}
+			if (verify(file) == FAIL)
+				return FAIL;
+			System.out.println("  " + ENTRIES + " entries of " + keySize + " byte keys, " + file.getLeafCapacity()
+					+ " to a leaf, half deleted");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/*
+	 * The file holds the entries of the model: in key order in a full scan,
+	 * by lookup, and in range scans; and it leaves nothing pinned.
+	 */
+	private boolean verify(LongBTreeFile file) throws Exception {
+		int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		RID rid = new RID();
+
+		LongKeyScan scan = file.new_scan(Long.MIN_VALUE, Long.MAX_VALUE);
+		Iterator<Map.Entry<Long, List<Integer>>> expected = model.entrySet().iterator();
+		Map.Entry<Long, List<Integer>> run = null;
+		List<Integer> found = new ArrayList<Integer>();
+		long entries = 0;
+		while (scan.next()) {
+			long key = scan.getKey();
+			scan.getRid(rid);
+			if (run != null && key < run.getKey()) {
+				System.out.println("  *** the scan returns " + key + " after " + run.getKey());
+				return FAIL;
+			}
+			if (run == null || key != run.getKey()) {
+				if (run != null && matches(run, found) == FAIL)
+					return FAIL;
+				run = expected.hasNext() ? expected.next() : null;
+				if (run == null || run.getKey() != key) {
+					System.out.println("  *** the scan returns key " + key + ", "
+							+ (run == null ? "the end" : "key " + run.getKey()) + " expected");
+					return FAIL;
+				}
+				found.clear();
+			}
+			found.add(idOf(key, rid));
+			entries++;
+		}
+		scan.close();
+		if (run != null && matches(run, found) == FAIL)
+			return FAIL;
+		if (expected.hasNext()) {
+			System.out.println("  *** the scan ends before key " + expected.next().getKey());
+			return FAIL;
+		}
+
+		for (Map.Entry<Long, List<Integer>> ids : model.entrySet()) {
+			RID[] rids = new RID[ids.getValue().size()];
+			int count = file.lookup(ids.getKey(), rids);
+			if (count != rids.length) {
+				System.out.println("  *** lookup of " + ids.getKey() + " counts " + count + " entries, "
+						+ rids.length + " expected");
+				return FAIL;
+			}
+			found.clear();
+			for (RID each : rids)
+				found.add(idOf(ids.getKey(), each));
+			if (matches(ids, found) == FAIL)
+				return FAIL;
+		}
+		for (int i = 0; i < 100; i++) {
+			long key = file.getKeySize() == 4 ? random.nextInt() : random.nextLong();
+			if (!model.containsKey(key) && file.lookup(key, new RID[1]) != 0) {
+				System.out.println("  *** lookup of " + key + " finds entries the tree does not hold");
+				return FAIL;
+			}
+		}
+
+		for (int i = 0; i < 20 && !model.isEmpty(); i++) {
+			long lo = randomKey();
+			long hi = randomKey();
+			if (lo > hi) {
+				long swap = lo;
+				lo = hi;
+				hi = swap;
+			}
+			long count = 0;
+			for (List<Integer> ids : model.subMap(lo, true, hi, true).values())
+				count += ids.size();
+			long scanned = 0;
+			scan = file.new_scan(lo, hi);
+			while (scan.next()) {
+				if (scan.getKey() < lo || scan.getKey() > hi) {
+					System.out.println("  *** the scan from " + lo + " to " + hi + " returns " + scan.getKey());
+					return FAIL;
+				}
+				scanned++;
+			}
+			scan.close();
+			if (scanned != count) {
+				System.out.println("  *** the scan from " + lo + " to " + hi + " returns " + scanned
+						+ " entries, " + count + " expected");
+				return FAIL;
+			}
+		}
+
+		if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+			System.out.println("  *** scans and lookups leave "
+					+ (unpinned - SystemDefs.JavabaseBM.getNumUnpinnedBuffers()) + " pages pinned");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	// the ids found for a key are those of the model
+	private static boolean matches(Map.Entry<Long, List<Integer>> ids, List<Integer> found) {
+		List<Integer> sorted = new ArrayList<Integer>(found);
+		List<Integer> model = new ArrayList<Integer>(ids.getValue());
+		Collections.sort(sorted);
+		Collections.sort(model);
+		if (!sorted.equals(model)) {
+			System.out.println("  *** key " + ids.getKey() + " has " + found.size() + " entries of other rids than"
+					+ " the " + model.size() + " expected");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	// a key of the model, or next to one
+	private long randomKey() {
+		List<Long> keys = new ArrayList<Long>(model.keySet());
+		long key = keys.get(random.nextInt(keys.size()));
+		int step = random.nextInt(3) - 1;
+		return key + step == Long.MIN_VALUE - 1 || key + step == Long.MAX_VALUE + 1 ? key : key + step;
+	}
+
+	private void insert(LongBTreeFile file, long key) throws Exception {
+		int id = nextId++;
+		file.insert(key, rid(key, id));
+		List<Integer> ids = model.get(key);
+		if (ids == null)
+			model.put(key, ids = new ArrayList<Integer>());
+		ids.add(id);
+	}
+
+	private boolean delete(LongBTreeFile file, long key, int id) throws Exception {
+		if (!file.delete(key, rid(key, id))) {
+			System.out.println("  *** entry " + id + " of key " + key + " is not deleted");
+			return FAIL;
+		}
+		List<Integer> ids = model.get(key);
+		ids.remove(Integer.valueOf(id));
+		if (ids.isEmpty())
+			model.remove(key);
+		return OK;
+	}
+
+	// the rid of an entry tells its id, and the low bits of its key
+	private static RID rid(long key, int id) {
+		return new RID(new PageId(id), (int) key & 0xffff);
+	}
+
+	private static int idOf(long key, RID rid) {
+		if (rid.slotNo != ((int) key & 0xffff))
+			return -1;
+		return rid.pageNo.pid;
+	}
+
+	private LongBTreeFile open(int keySize) throws Exception {
+		new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+		model = new TreeMap<Long, List<Integer>>();
+		nextId = 0;
+		return new LongBTreeFile(FILE_NAME, keySize);
+	}
+
+	private void close(LongBTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
+
+public class LongKeyTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			LongKeyDriver longkeytest = new LongKeyDriver();
+			if (!longkeytest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during long key B+ tree tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package tests;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the exact match lookups. lookup and lookupInt must find the rids of
+ * a model of the entries, on a tree with runs of duplicates spanning several
+ * leaves; lookupInt returns the number of matches even where the caller's
+ * array is too short for them.
+ *
+ * lookupInt allocates nothing once a thread has looked up a key before: on a
+ * ConcurrentBufMgr, whose pins allocate nothing either, the bytes a thread
+ * allocates over many lookups are checked, with and without pinned top levels.
+ */
+class LookupDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "LookupTest";
+	private final static int NUM_BUFFERS = 400;
+	// enough for the whole tree of the allocation tests, whose lookups must not
+	// read pages
+	private final static int ALL_BUFFERS = 2000;
+	private final static int NUM_PAGES = 20000;
+	private final static int ENTRIES = 50000;
+	private final static int LOOKUPS = 100000;
+	// bytes a lookup may allocate on average: the JVM counts in chunks, so a
+	// few bytes are noise
+	private final static double MAX_BYTES = 1.0;
+
+	private Random random = new Random(6);
+
+	public LookupDriver() {
+		super("lookuptest");
+	}
+
+	protected String testName() {
+		return "Lookup";
+	}
+
+	protected boolean test1() {
+		System.out.println("\n  Test 1: lookup and lookupInt against a model, BufMgr\n");
+		return model(false);
+	}
+
+	protected boolean test2() {
+		System.out.println("\n  Test 2: lookup and lookupInt against a model, ConcurrentBufMgr\n");
+		return model(true);
+	}
+
+	protected boolean test3() {
+		System.out.println("\n  Test 3: bytes allocated by lookupInt, ConcurrentBufMgr\n");
+		return allocation(0);
+	}
+
+	protected boolean test4() {
+		System.out.println("\n  Test 4: bytes allocated by lookupInt, two levels pinned\n");
+		return allocation(2);
+	}
+
+	/*
+	 * Keys with 1 to 300 entries each, inserted in a random order; every key,
+	 * and keys between them, looked up both ways.
+	 */
+	private boolean model(boolean concurrent) {
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			if (concurrent)
+				ConcurrentBufMgr.install("Clock");
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+
+			// the rid page numbers of each even key
+			HashMap<Integer, HashSet<Integer>> model = new HashMap<Integer, HashSet<Integer>>();
+			ArrayList<int[]> entries = new ArrayList<int[]>();
+			for (int key = 0, id = 0; id < ENTRIES; key += 2) {
+				int count = key % 7 == 0 ? 1 + random.nextInt(300) : 1 + random.nextInt(3);
+				HashSet<Integer> ids = new HashSet<Integer>();
+				for (int i = 0; i < count && id < ENTRIES; i++, id++) {
+					entries.add(new int[] { key, id });
+					ids.add(id);
+				}
+				model.put(key, ids);
+			}
+			Collections.shuffle(entries, random);
+			for (int[] entry : entries)
+				file.insert(new IntegerKey(entry[0]), new RID(new PageId(entry[1]), entry[0]));
+
+			RID[] rids = new RID[8];
+			for (int key = -1; key <= 2 * model.size(); key++) {
+				HashSet<Integer> expected = model.get(key);
+				int size = expected == null ? 0 : expected.size();
+				List<RID> found = file.lookup(new IntegerKey(key));
+				HashSet<Integer> ids = new HashSet<Integer>();
+				for (RID rid : found)
+					ids.add(rid.pageNo.pid);
+				if (found.size() != size || (expected != null && !ids.equals(expected))) {
+					System.out.println("  *** lookup of " + key + " finds " + found.size() + " entries, " + size
+							+ " expected");
+					return FAIL;
+				}
+				int count = file.lookupInt(key, rids);
+				if (count != size) {
+					System.out.println("  *** lookupInt of " + key + " counts " + count + " entries, " + size
+							+ " expected");
+					return FAIL;
+				}
+				for (int i = 0; i < Math.min(count, rids.length); i++) {
+					if (!expected.contains(rids[i].pageNo.pid)) {
+						System.out.println("  *** lookupInt of " + key + " returns entry " + rids[i].pageNo.pid);
+						return FAIL;
+					}
+				}
+			}
+			System.out.println("  " + model.size() + " keys with " + ENTRIES + " entries looked up, "
+					+ file.getTreeStats().getHeight() + " levels");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file, concurrent);
+		}
+	}
+
+	/*
+	 * Look up random keys of a tree held in the buffer pool twice over; the
+	 * second round must allocate at most MAX_BYTES per lookup.
+	 */
+	private boolean allocation(int pinnedLevels) {
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, ALL_BUFFERS, "Clock");
+			ConcurrentBufMgr.install("Clock");
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < ENTRIES; i++)
+				file.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+			file.setPinnedLevels(pinnedLevels);
+
+			int[] keys = new int[LOOKUPS];
+			for (int i = 0; i < LOOKUPS; i++)
+				keys[i] = random.nextInt(ENTRIES);
+			RID[] rids = new RID[1];
+			long bytes = 0;
+			for (int round = 0; round < 2; round++) {
+				long allocated = allocatedBytes();
+				for (int key : keys) {
+					if (file.lookupInt(key, rids) != 1 || rids[0].pageNo.pid != key) {
+						System.out.println("  *** lookupInt of " + key + " does not find it");
+						return FAIL;
+					}
+				}
+				bytes = allocatedBytes() - allocated;
+			}
+			if (bytes < 0) {
+				System.out.println("  this JVM does not count the bytes a thread allocates");
+				return OK;
+			}
+			double perLookup = (double) bytes / LOOKUPS;
+			System.out.printf("  %.2f bytes allocated per lookup%n", perLookup);
+			if (perLookup > MAX_BYTES) {
+				System.out.println("  *** lookupInt allocates");
+				return FAIL;
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file, true);
+		}
+	}
+
+	// the bytes this thread allocated so far, or -1 if the JVM does not count
+	// them
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	private void close(BTreeFile file, boolean concurrent) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			if (concurrent)
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
+
+public class LookupTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			LookupDriver lookuptest = new LookupDriver();
+			if (!lookuptest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during lookup tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
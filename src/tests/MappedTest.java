@@ -0,0 +1,270 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of MappedDB. Pages written through the mappings must read back as
+ * written, through the mappings and through a plain DB opened on the file
+ * afterwards, and the other way round; pages past the first mapped segment
+ * must round-trip as well. A B+ tree built on a MappedDB, with BufMgr and with
+ * a ConcurrentBufMgr of larger pages, for which the file grows, must hold its
+ * entries once the database is opened again.
+ */
+class MappedDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "MappedTest";
+	private final static int NUM_BUFFERS = 100;
+	private final static int NUM_PAGES = 5000;
+	private final static int PAGES = 500;
+	private final static int ENTRIES = 20000;
+
+	private Random random = new Random(11);
+
+	public MappedDriver() {
+		super("mappedtest");
+	}
+
+	protected String testName() {
+		return "Mapped DB";
+	}
+
+	/**
+	 * Pages written through a MappedDB are read back through it, then by a DB
+	 * on the same file; pages a DB wrote are read through a MappedDB.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: pages read back across DB and MappedDB\n");
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			MappedDB.install();
+			PageId first = new PageId();
+			SystemDefs.JavabaseDB.allocate_page(first, PAGES);
+			Page page = new Page();
+			for (int i = 0; i < PAGES; i++) {
+				fill(page.getpage(), first.pid + i, 1);
+				SystemDefs.JavabaseDB.write_page(new PageId(first.pid + i), page);
+			}
+			if (!readBack(first.pid, 1, "the MappedDB"))
+				return FAIL;
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+
+			// the file opened as it is, without a mapping
+			new SystemDefs(dbpath, 0, NUM_BUFFERS, "Clock");
+			if (SystemDefs.JavabaseDB instanceof MappedDB || !readBack(first.pid, 1, "a DB"))
+				return FAIL;
+			for (int i = 0; i < PAGES; i++) {
+				fill(page.getpage(), first.pid + i, 2);
+				SystemDefs.JavabaseDB.write_page(new PageId(first.pid + i), page);
+			}
+			MappedDB.install();
+			if (!readBack(first.pid, 2, "the MappedDB after a DB"))
+				return FAIL;
+			System.out.println("  " + PAGES + " pages read back both ways");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Pages on either side of the end of the first segment, and at the end of
+	 * the database, none of them allocated; page numbers out of range are
+	 * refused.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: pages of a second segment\n");
+		int numPages = MappedDB.SEGMENT_PAGES + 1000;
+		int[] pids = { 100, MappedDB.SEGMENT_PAGES - 1, MappedDB.SEGMENT_PAGES, MappedDB.SEGMENT_PAGES + 1,
+				numPages - 1 };
+		try {
+			new SystemDefs(dbpath, numPages, NUM_BUFFERS, "Clock");
+			MappedDB.install();
+			MappedDB db = (MappedDB) SystemDefs.JavabaseDB;
+			Page page = new Page();
+			for (int pid : pids) {
+				fill(page.getpage(), pid, 3);
+				db.write_page(new PageId(pid), page);
+			}
+			for (int pid : pids) {
+				db.read_page(new PageId(pid), page);
+				if (!holds(page.getpage(), pid, 3)) {
+					System.out.println("  *** page " + pid + " reads back changed");
+					return FAIL;
+				}
+				byte[] view = new byte[MINIBASE_PAGESIZE];
+				db.pageView(new PageId(pid)).get(view);
+				if (!holds(view, pid, 3)) {
+					System.out.println("  *** the view of page " + pid + " does not show it");
+					return FAIL;
+				}
+			}
+			for (int pid : new int[] { -1, numPages }) {
+				try {
+					db.read_page(new PageId(pid), page);
+					System.out.println("  *** page " + pid + " of " + numPages + " is read");
+					return FAIL;
+				} catch (InvalidPageNumberException e) {
+				}
+			}
+			System.out.println("  " + pids.length + " pages of " + numPages + " read back");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close();
+		}
+	}
+
+	protected boolean test3() {
+		System.out.println("\n  Test 3: a tree on a MappedDB, BufMgr\n");
+		return tree(0);
+	}
+
+	protected boolean test4() {
+		System.out.println("\n  Test 4: a tree on a MappedDB of 4 KB pages, ConcurrentBufMgr\n");
+		return tree(4096);
+	}
+
+	/*
+	 * Build a tree in a new MappedDB, with BufMgr if pageSize is 0, else with a
+	 * ConcurrentBufMgr and pages of pageSize bytes; close the database, open it
+	 * again as a MappedDB and check the tree and the page size.
+	 */
+	private boolean tree(int pageSize) {
+		boolean concurrent = pageSize > 0;
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			if (concurrent) {
+				MappedDB.install(pageSize);
+				ConcurrentBufMgr.install("Clock");
+			} else
+				MappedDB.install();
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < ENTRIES; i++) {
+				int key = random.nextInt(ENTRIES);
+				file.insert(new IntegerKey(key), new RID(new PageId(i), key));
+				Integer count = model.get(key);
+				model.put(key, count == null ? 1 : count + 1);
+			}
+			System.out.println("  " + ENTRIES + " entries, " + file.getTreeStats().getHeight() + " levels of "
+					+ file.getPageSize() + " byte pages");
+			file.close();
+			file = null;
+			close();
+
+			new SystemDefs(dbpath, 0, NUM_BUFFERS, "Clock");
+			MappedDB.install();
+			if (concurrent)
+				ConcurrentBufMgr.install("Clock");
+			int stored = MappedDB.pageSizeOf(SystemDefs.JavabaseDB);
+			if (stored != (concurrent ? pageSize : MINIBASE_PAGESIZE)) {
+				System.out.println("  *** the database opens with pages of " + stored + " bytes");
+				return FAIL;
+			}
+			file = new BTreeFile(FILE_NAME);
+			String error = TreeCheck.check(file, AttrType.attrInteger);
+			if (error != null) {
+				System.out.println("  *** " + error);
+				return FAIL;
+			}
+			long entries = TreeCheck.entries(file, AttrType.attrInteger);
+			if (entries != ENTRIES) {
+				System.out.println("  *** the tree holds " + entries + " entries, " + ENTRIES + " expected");
+				return FAIL;
+			}
+			for (Map.Entry<Integer, Integer> count : model.entrySet()) {
+				int size = file.lookup(new IntegerKey(count.getKey())).size();
+				if (size != count.getValue()) {
+					System.out.println("  *** lookup of " + count.getKey() + " finds " + size + " entries, "
+							+ count.getValue() + " expected");
+					return FAIL;
+				}
+			}
+			System.out.println("  the tree is whole after the database is opened again");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			try {
+				if (file != null)
+					file.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			close();
+		}
+	}
+
+	// every page of the run holds the given version
+	private boolean readBack(int first, int version, String db) throws Exception {
+		Page page = new Page();
+		for (int i = 0; i < PAGES; i++) {
+			int pid = first + random.nextInt(PAGES);
+			SystemDefs.JavabaseDB.read_page(new PageId(pid), page);
+			if (!holds(page.getpage(), pid, version)) {
+				System.out.println("  *** page " + pid + " reads back changed through " + db);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void close() {
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// the bytes of a page: its page number, then a version repeated
+	private static void fill(byte[] data, int pid, int version) {
+		Arrays.fill(data, (byte) version);
+		data[0] = (byte) pid;
+		data[1] = (byte) (pid >> 8);
+		data[2] = (byte) (pid >> 16);
+	}
+
+	private static boolean holds(byte[] data, int pid, int version) {
+		if (data[0] != (byte) pid || data[1] != (byte) (pid >> 8) || data[2] != (byte) (pid >> 16))
+			return false;
+		for (int i = 3; i < MINIBASE_PAGESIZE; i++)
+			if (data[i] != (byte) version)
+				return false;
+		return true;
+	}
+}
+
+public class MappedTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			MappedDriver mappedtest = new MappedDriver();
+			if (!mappedtest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during mapped DB tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
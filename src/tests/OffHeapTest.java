@@ -0,0 +1,381 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of a ConcurrentBufMgr whose frames are off the heap. A pinned page is a
+ * window copied out of its frame, and copied back when the last pin goes if it
+ * was changed; the tests check that changes survive that round trip and the
+ * replacement of the frame, that every pin of a page sees the same bytes, and
+ * that B+ trees built on such a pool, also with pages larger than
+ * MINIBASE_PAGESIZE and from several threads at once, hold the entries of a
+ * model.
+ */
+class OffHeapDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "OffHeapTest";
+	private final static int NUM_BUFFERS = 50;
+	private final static int NUM_PAGES = 10000;
+	private final static int PAGES = 400;
+	private final static int ENTRIES = 20000;
+
+	private Random random = new Random(12);
+
+	public OffHeapDriver() {
+		super("offheaptest");
+	}
+
+	protected String testName() {
+		return "Off-heap frames";
+	}
+
+	/**
+	 * Pages written through 50 frames and read back in a random order, changed
+	 * again under later pins, then read from the database after a flush.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: pages read back through off-heap frames\n");
+		try {
+			open(0);
+			PageId first = new PageId();
+			SystemDefs.JavabaseDB.allocate_page(first, PAGES);
+			int[] versions = new int[PAGES];
+			Page page = new Page();
+			for (int i = 0; i < PAGES; i++) {
+				PageId pageno = new PageId(first.pid + i);
+				SystemDefs.JavabaseBM.pinPage(pageno, page, true);
+				fill(page.getpage(), pageno.pid, 0);
+				SystemDefs.JavabaseBM.unpinPage(pageno, true);
+			}
+			for (int op = 0; op < 10 * PAGES; op++) {
+				int i = random.nextInt(PAGES);
+				PageId pageno = new PageId(first.pid + i);
+				SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+				boolean written = holds(page.getpage(), pageno.pid, versions[i]);
+				boolean change = op % 3 == 0;
+				if (change)
+					fill(page.getpage(), pageno.pid, ++versions[i]);
+				SystemDefs.JavabaseBM.unpinPage(pageno, change);
+				if (!written) {
+					System.out.println("  *** page " + pageno.pid + " lost version " + versions[i]);
+					return FAIL;
+				}
+			}
+			SystemDefs.JavabaseBM.flushAllPages();
+			for (int i = 0; i < PAGES; i++) {
+				PageId pageno = new PageId(first.pid + i);
+				SystemDefs.JavabaseDB.read_page(pageno, page);
+				if (!holds(page.getpage(), pageno.pid, versions[i])) {
+					System.out.println("  *** page " + pageno.pid + " is not on disk as last written");
+					return FAIL;
+				}
+			}
+			System.out.println("  " + 10 * PAGES + " pins of " + PAGES + " pages through " + NUM_BUFFERS
+					+ " frames");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(null);
+		}
+	}
+
+	/**
+	 * A page pinned twice: a change under one pin shows under the other, and
+	 * is kept when the pins go in either order.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: pins of a page share its window\n");
+		try {
+			open(0);
+			PageId first = new PageId();
+			SystemDefs.JavabaseDB.allocate_page(first, PAGES);
+			Page one = new Page();
+			Page other = new Page();
+			for (int i = 0; i < 20; i++) {
+				PageId pageno = new PageId(first.pid + i);
+				SystemDefs.JavabaseBM.pinPage(pageno, one, true);
+				SystemDefs.JavabaseBM.pinPage(pageno, other, false);
+				fill(other.getpage(), pageno.pid, i);
+				if (!holds(one.getpage(), pageno.pid, i)) {
+					System.out.println("  *** a change under one pin of page " + pageno.pid
+							+ " does not show under the other");
+					return FAIL;
+				}
+				// the change was made under the second pin; the first goes last or
+				// first
+				if (i % 2 == 0) {
+					SystemDefs.JavabaseBM.unpinPage(pageno, true);
+					SystemDefs.JavabaseBM.unpinPage(pageno, false);
+				} else {
+					SystemDefs.JavabaseBM.unpinPage(pageno, false);
+					SystemDefs.JavabaseBM.unpinPage(pageno, true);
+				}
+			}
+			// push the pages out of the pool
+			for (int i = 20; i < PAGES; i++) {
+				PageId pageno = new PageId(first.pid + i);
+				SystemDefs.JavabaseBM.pinPage(pageno, one, true);
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			}
+			for (int i = 0; i < 20; i++) {
+				PageId pageno = new PageId(first.pid + i);
+				SystemDefs.JavabaseBM.pinPage(pageno, one, false);
+				boolean kept = holds(one.getpage(), pageno.pid, i);
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+				if (!kept) {
+					System.out.println("  *** page " + pageno.pid + " lost the change made under its second pin");
+					return FAIL;
+				}
+			}
+			System.out.println("  20 pages changed under a second pin");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(null);
+		}
+	}
+
+	protected boolean test3() {
+		System.out.println("\n  Test 3: a tree on off-heap frames, half of it fully deleted\n");
+		return tree(0);
+	}
+
+	protected boolean test4() {
+		System.out.println("\n  Test 4: a tree on off-heap frames of 8 KB pages\n");
+		return tree(8192);
+	}
+
+	/**
+	 * Threads inserting at once into a tree on off-heap frames.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: 8 threads inserting on off-heap frames\n");
+		BTreeFile file = null;
+		try {
+			open(0);
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			final BTreeFile tree = file;
+			final int threads = 8;
+			final int each = ENTRIES / threads;
+			final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				workers[t] = new Thread() {
+					public void run() {
+						try {
+							for (int i = 0; i < each && errors.isEmpty(); i++) {
+								int id = i * threads + thread;
+								tree.insert(new IntegerKey(scramble(id)), new RID(new PageId(id), 0));
+							}
+						} catch (Exception e) {
+							errors.add(e.toString());
+						}
+					}
+				};
+				workers[t].start();
+			}
+			for (Thread worker : workers)
+				worker.join();
+			if (!errors.isEmpty()) {
+				System.out.println("  *** " + errors.get(0));
+				return FAIL;
+			}
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			for (int id = 0; id < threads * each; id++)
+				model.put(scramble(id), 1);
+			if (verify(file, model) == FAIL)
+				return FAIL;
+			System.out.println("  " + threads * each + " entries inserted");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Pages freed while they are in the pool and allocated again: a page comes
+	 * back with what was written after it was allocated the second time, and
+	 * every other one is freed again, leaving its frame free.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: pages freed in the pool and allocated again\n");
+		try {
+			open(0);
+			Page page = new Page();
+			for (int i = 0; i < PAGES; i++) {
+				PageId pageno = SystemDefs.JavabaseBM.newPage(page, 1);
+				fill(page.getpage(), pageno.pid, 1);
+				SystemDefs.JavabaseBM.unpinPage(pageno, true);
+				SystemDefs.JavabaseBM.freePage(pageno);
+
+				PageId again = SystemDefs.JavabaseBM.newPage(page, 1);
+				fill(page.getpage(), again.pid, 2);
+				SystemDefs.JavabaseBM.unpinPage(again, true);
+				SystemDefs.JavabaseBM.pinPage(again, page, false);
+				boolean kept = holds(page.getpage(), again.pid, 2);
+				SystemDefs.JavabaseBM.unpinPage(again, false);
+				if (!kept) {
+					System.out.println("  *** page " + again.pid + " does not hold what was written after it was"
+							+ " allocated again");
+					return FAIL;
+				}
+				if (i % 2 == 0)
+					SystemDefs.JavabaseBM.freePage(again);
+			}
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUM_BUFFERS) {
+				System.out.println("  *** " + (NUM_BUFFERS - SystemDefs.JavabaseBM.getNumUnpinnedBuffers())
+						+ " frames left pinned");
+				return FAIL;
+			}
+			System.out.println("  " + PAGES + " pages freed and allocated again");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(null);
+		}
+	}
+
+	/*
+	 * Build a FULL_DELETE tree on off-heap frames, of pageSize bytes if it is
+	 * not 0, delete half of its entries, and check it against a model.
+	 */
+	private boolean tree(int pageSize) {
+		BTreeFile file = null;
+		try {
+			open(pageSize);
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			ArrayList<int[]> entries = new ArrayList<int[]>();
+			for (int i = 0; i < ENTRIES; i++) {
+				int key = random.nextInt(ENTRIES);
+				file.insert(new IntegerKey(key), new RID(new PageId(i), key));
+				entries.add(new int[] { key, i });
+				Integer count = model.get(key);
+				model.put(key, count == null ? 1 : count + 1);
+			}
+			Collections.shuffle(entries, random);
+			for (int[] entry : entries.subList(0, ENTRIES / 2)) {
+				if (!file.Delete(new IntegerKey(entry[0]), new RID(new PageId(entry[1]), entry[0]))) {
+					System.out.println("  *** entry " + entry[1] + " of key " + entry[0] + " is not deleted");
+					return FAIL;
+				}
+				int count = model.get(entry[0]);
+				if (count == 1)
+					model.remove(entry[0]);
+				else
+					model.put(entry[0], count - 1);
+			}
+			if (verify(file, model) == FAIL)
+				return FAIL;
+			System.out.println("  " + ENTRIES + " entries inserted, half deleted, " + file.getTreeStats().getHeight()
+					+ " levels of " + file.getPageSize() + " byte pages");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	// the tree is sound and holds the entries of the model
+	private boolean verify(BTreeFile file, TreeMap<Integer, Integer> model) throws Exception {
+		String error = TreeCheck.check(file, AttrType.attrInteger);
+		if (error != null) {
+			System.out.println("  *** " + error);
+			return FAIL;
+		}
+		long total = 0;
+		for (Map.Entry<Integer, Integer> count : model.entrySet()) {
+			int size = file.lookup(new IntegerKey(count.getKey())).size();
+			if (size != count.getValue()) {
+				System.out.println("  *** lookup of " + count.getKey() + " finds " + size + " entries, "
+						+ count.getValue() + " expected");
+				return FAIL;
+			}
+			total += size;
+		}
+		long entries = TreeCheck.entries(file, AttrType.attrInteger);
+		if (entries != total) {
+			System.out.println("  *** the tree holds " + entries + " entries, " + total + " expected");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	// a new database with an off-heap ConcurrentBufMgr, of larger pages if
+	// pageSize is not 0
+	private void open(int pageSize) throws Exception {
+		new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+		if (pageSize > 0)
+			MappedDB.install(pageSize);
+		ConcurrentBufMgr.install("Clock", true);
+	}
+
+	private void close(BTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// distinct ids in a scattered order, small enough for BT.keyCompare to
+	// subtract
+	private static int scramble(int id) {
+		return (id * 0x9e3779b1) & 0x3fffffff;
+	}
+
+	// the bytes of a page: its page number, then a version repeated
+	private static void fill(byte[] data, int pid, int version) {
+		data[0] = (byte) pid;
+		for (int i = 1; i < data.length; i++)
+			data[i] = (byte) (version + i);
+	}
+
+	private static boolean holds(byte[] data, int pid, int version) {
+		if (data[0] != (byte) pid)
+			return false;
+		for (int i = 1; i < data.length; i++)
+			if (data[i] != (byte) (version + i))
+				return false;
+		return true;
+	}
+}
+
+public class OffHeapTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			OffHeapDriver offheaptest = new OffHeapDriver();
+			if (!offheaptest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during off-heap frame tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
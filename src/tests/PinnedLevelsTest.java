@@ -0,0 +1,317 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the pinned top levels of a BTreeFile, see setPinnedLevels. The tree
+ * grows through several root splits and shrinks again by full deletes while
+ * levels are kept pinned, and is checked against a model of its entries all
+ * along: TreeCheck must find it sound, lookups must find every key as often as
+ * the model holds it, the buffer pool must hold exactly the index pages of the
+ * kept levels pinned besides the header page, and a lookup must leave the kept
+ * levels to itself and ask the buffer manager for the pages below them only.
+ */
+class PinnedLevelsDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "PinnedLevelsTest";
+	private final static int NUM_BUFFERS = 200;
+	private final static int NUM_PAGES = 20000;
+	private final static int KEY_SIZE = 64;
+	// inserts or deletes between two checks of the tree
+	private final static int CHECK_EVERY = 500;
+
+	private Random random = new Random(10);
+
+	// the number of entries of each key
+	private HashMap<Integer, Integer> model;
+	// frames pinned with the file open and no levels kept
+	private int baseline;
+
+	public PinnedLevelsDriver() {
+		super("pinnedlevelstest");
+	}
+
+	protected String testName() {
+		return "Pinned levels";
+	}
+
+	protected boolean test1() {
+		System.out.println("\n  Test 1: one level pinned across root splits, string keys\n");
+		return grow(AttrType.attrString, 1, 8000, false);
+	}
+
+	protected boolean test2() {
+		System.out.println("\n  Test 2: three levels pinned across root splits, string keys\n");
+		return grow(AttrType.attrString, 3, 12000, false);
+	}
+
+	protected boolean test3() {
+		System.out.println("\n  Test 3: two levels pinned, integer keys, grown then fully deleted\n");
+		return grow(AttrType.attrInteger, 2, 60000, true);
+	}
+
+	protected boolean test4() {
+		System.out.println("\n  Test 4: two levels pinned, string keys, grown then fully deleted\n");
+		return grow(AttrType.attrString, 2, 8000, true);
+	}
+
+	/**
+	 * The levels kept changed on a grown tree, and the file closed with levels
+	 * kept: the kept pages are pinned and let go again as asked.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: levels changed and the file closed while pinned\n");
+		BTreeFile file = null;
+		try {
+			file = open(AttrType.attrString);
+			for (int i = 0; i < 8000; i++)
+				insert(file, AttrType.attrString, i);
+			for (int levels : new int[] { 3, 1, 5, 0, 2 }) {
+				file.setPinnedLevels(levels);
+				if (verify(file, AttrType.attrString, levels, false) == FAIL)
+					return FAIL;
+			}
+			file.close();
+			file = null;
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUM_BUFFERS) {
+				System.out.println("  *** " + (NUM_BUFFERS - SystemDefs.JavabaseBM.getNumUnpinnedBuffers())
+						+ " pages pinned after close");
+				return FAIL;
+			}
+			System.out.println("  the kept pages follow the levels asked for");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Threads inserting at once on a ConcurrentBufMgr while two levels are kept,
+	 * so that root splits make the kept pages stale under running operations.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: 8 threads inserting with two levels pinned, ConcurrentBufMgr\n");
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			ConcurrentBufMgr.install("Clock");
+			file = new BTreeFile(FILE_NAME, AttrType.attrString, KEY_SIZE, DeleteFashion.NAIVE_DELETE);
+			baseline = NUM_BUFFERS - SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			model = new HashMap<Integer, Integer>();
+			file.setPinnedLevels(2);
+
+			final BTreeFile tree = file;
+			final int threads = 8;
+			final int each = 1500;
+			final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				workers[t] = new Thread() {
+					public void run() {
+						try {
+							for (int i = 0; i < each && errors.isEmpty(); i++) {
+								int id = i * threads + thread;
+								tree.insert(key(AttrType.attrString, scramble(id)), new RID(new PageId(id), 0));
+							}
+						} catch (Exception e) {
+							errors.add(e.toString());
+						}
+					}
+				};
+				workers[t].start();
+			}
+			for (Thread worker : workers)
+				worker.join();
+			if (!errors.isEmpty()) {
+				System.out.println("  *** " + errors.get(0));
+				return FAIL;
+			}
+			for (int id = 0; id < threads * each; id++)
+				model.put(scramble(id), 1);
+			if (verify(file, AttrType.attrString, 2, true) == FAIL)
+				return FAIL;
+			System.out.println("  " + threads * each + " entries, " + file.getTreeStats().getHeight() + " levels");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/*
+	 * Insert count entries in a random order with the given levels kept,
+	 * checking the tree every CHECK_EVERY inserts; then, if asked, delete them
+	 * all again in a FULL_DELETE tree, checking it as it shrinks.
+	 */
+	private boolean grow(int keyType, int levels, int count, boolean shrink) {
+		BTreeFile file = null;
+		try {
+			file = open(keyType);
+			file.setPinnedLevels(levels);
+			int roots = 0;
+			int height = 0;
+			for (int i = 0; i < count; i++) {
+				insert(file, keyType, i);
+				if (i % CHECK_EVERY == CHECK_EVERY - 1) {
+					if (verify(file, keyType, levels, true) == FAIL)
+						return FAIL;
+					int grown = file.getTreeStats().getHeight();
+					roots += grown - height;
+					height = grown;
+				}
+			}
+			System.out.println("  " + count + " entries inserted, " + height + " levels, " + (roots - 1)
+					+ " root splits");
+			if (!shrink)
+				return OK;
+
+			ArrayList<Integer> keys = new ArrayList<Integer>(model.keySet());
+			Collections.shuffle(keys, random);
+			for (int i = 0; i < keys.size(); i++) {
+				int key = keys.get(i);
+				if (!file.Delete(key(keyType, key), new RID(new PageId(key), 0))) {
+					System.out.println("  *** key " + key + " is not deleted");
+					return FAIL;
+				}
+				model.remove(key);
+				if (i % CHECK_EVERY == 0 && verify(file, keyType, levels, true) == FAIL)
+					return FAIL;
+			}
+			if (verify(file, keyType, levels, true) == FAIL)
+				return FAIL;
+			System.out.println("  every entry deleted again, " + file.getTreeStats().getHeight() + " levels left");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/*
+	 * The tree is sound and holds the entries of the model; the buffer pool
+	 * holds the index pages of the kept levels pinned, and lookups pin the pages
+	 * below them only.
+	 */
+	private boolean verify(BTreeFile file, int keyType, int levels, boolean lookups) throws Exception {
+		String error = TreeCheck.check(file, keyType);
+		if (error != null) {
+			System.out.println("  *** " + error);
+			return FAIL;
+		}
+		long entries = TreeCheck.entries(file, keyType);
+		if (entries != model.size()) {
+			System.out.println("  *** the tree holds " + entries + " entries, " + model.size() + " expected");
+			return FAIL;
+		}
+
+		// getTreeStats collects the kept pages again if a split made them stale
+		TreeStats stats = file.getTreeStats();
+		int kept = 0;
+		for (int level = 0; level < Math.min(levels, stats.getHeight() - 1); level++)
+			kept += stats.getPages(level);
+		int pinned = NUM_BUFFERS - SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		if (pinned != baseline + kept) {
+			System.out.println("  *** " + pinned + " frames pinned, " + (baseline + kept) + " expected with "
+					+ kept + " pages kept of a tree of " + stats.getHeight() + " levels");
+			return FAIL;
+		}
+		if (!lookups)
+			return OK;
+
+		// a pin and an unpin of each page below the kept levels, and one page
+		// more where the key is the last of its leaf
+		int below = Math.max(stats.getHeight() - levels, 1);
+		for (int key : model.keySet()) {
+			long calls = file.getBufMgrCalls();
+			int found = file.lookup(key(keyType, key)).size();
+			calls = file.getBufMgrCalls() - calls;
+			if (found != model.get(key)) {
+				System.out.println("  *** lookup of " + key + " finds " + found + " entries, " + model.get(key)
+						+ " expected");
+				return FAIL;
+			}
+			if (calls < 2 * below || calls > 2 * below + 2) {
+				System.out.println("  *** lookup of " + key + " makes " + calls + " buffer manager calls, "
+						+ 2 * below + " expected below " + levels + " kept levels of " + stats.getHeight());
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	private BTreeFile open(int keyType) throws Exception {
+		new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+		BTreeFile file = new BTreeFile(FILE_NAME, keyType, keyType == AttrType.attrInteger ? 4 : KEY_SIZE,
+				DeleteFashion.FULL_DELETE);
+		baseline = NUM_BUFFERS - SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		model = new HashMap<Integer, Integer>();
+		return file;
+	}
+
+	private void insert(BTreeFile file, int keyType, int id) throws Exception {
+		int key = scramble(id);
+		file.insert(key(keyType, key), new RID(new PageId(key), 0));
+		model.put(key, 1);
+	}
+
+	private void close(BTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// distinct ids in a scattered order, small enough for BT.keyCompare to
+	// subtract
+	private static int scramble(int id) {
+		return (id * 0x9e3779b1) & 0x3fffffff;
+	}
+
+	// long string keys that differ at their end only, so that separators
+	// cannot be truncated and the tree grows a few levels
+	private static KeyClass key(int keyType, int key) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(key);
+		StringBuffer buffer = new StringBuffer();
+		while (buffer.length() < KEY_SIZE - 18)
+			buffer.append('.');
+		return new StringKey(buffer.append(String.format("%010d", key)).toString());
+	}
+}
+
+public class PinnedLevelsTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			PinnedLevelsDriver pinnedlevelstest = new PinnedLevelsDriver();
+			if (!pinnedlevelstest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during pinned levels tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the deletes of a BTreeFile with posting lists. The lists of some
+ * keys grow past one leaf, and one past a level of index pages, then their rids
+ * are deleted in a random order. A list must go back into the entry of its key
+ * once it is down to one rid, whatever its height, and the entry must go once
+ * the key has no rid left; either way the pages of the list are freed.
+ *
+ * The deletes run against a model of the rids of each key: lookup, lookupInt
+ * and a scan of the entries and their lists must give back exactly the rids of
+ * the model, and the database must have as many free pages as before the
+ * lists grew.
+ */
+class PostingDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "PostingTest";
+	private final static int NUM_BUFFERS = 200;
+	private final static int NUM_PAGES = 4000;
+	private final static int KEYS = 20;
+	// deletes between two checks against the model
+	private final static int CHECK_EVERY = 1000;
+
+	private Random random = new Random(18);
+
+	// the rid page numbers of each key
+	private HashMap<Integer, HashSet<Integer>> model;
+
+	public PostingDriver() {
+		super("postingtest");
+	}
+
+	protected String testName() {
+		return "Posting list";
+	}
+
+	protected boolean test1() {
+		System.out.println("\n  Test 1: lists deleted down to one rid, NAIVE_DELETE\n");
+		return deletes(DeleteFashion.NAIVE_DELETE, false);
+	}
+
+	protected boolean test2() {
+		System.out.println("\n  Test 2: lists deleted down to one rid, FULL_DELETE\n");
+		return deletes(DeleteFashion.FULL_DELETE, false);
+	}
+
+	protected boolean test3() {
+		System.out.println("\n  Test 3: every rid deleted, NAIVE_DELETE\n");
+		return deletes(DeleteFashion.NAIVE_DELETE, true);
+	}
+
+	protected boolean test4() {
+		System.out.println("\n  Test 4: every rid deleted, FULL_DELETE\n");
+		return deletes(DeleteFashion.FULL_DELETE, true);
+	}
+
+	/*
+	 * Insert one rid per key, count the free pages, then grow the lists and
+	 * delete their rids again in a random order: all of them, or all but the
+	 * first of each key.
+	 */
+	private boolean deletes(int fashion, boolean all) {
+		BTreeFile file = null;
+		try {
+			new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+			file = new BTreeFile(FILE_NAME, AttrType.attrInteger, 4, fashion, true);
+			model = new HashMap<Integer, HashSet<Integer>>();
+
+			int id = 0;
+			for (int key = 0; key < KEYS; key++) {
+				file.insert(new IntegerKey(key), new RID(new PageId(id), key));
+				model.put(key, new HashSet<Integer>(Collections.singleton(id++)));
+			}
+			int freePages = freePages();
+
+			// one list of several levels, lists of a few leaves, short lists and
+			// keys of one rid
+			ArrayList<int[]> entries = new ArrayList<int[]>();
+			for (int key = 0; key < KEYS; key++) {
+				int count = key == 0 ? 9000 : key % 3 == 0 ? 2000 : key % 3 == 1 ? random.nextInt(200) : 0;
+				for (int i = 0; i < count; i++, id++) {
+					entries.add(new int[] { key, id });
+					model.get(key).add(id);
+				}
+			}
+			Collections.shuffle(entries, random);
+			for (int[] entry : entries)
+				file.insert(new IntegerKey(entry[0]), new RID(new PageId(entry[1]), entry[0]));
+			if (verify(file) == FAIL)
+				return FAIL;
+			System.out.println("  " + id + " rids inserted, " + (freePages - freePages()) + " pages of lists");
+
+			if (all) {
+				for (int key = 0; key < KEYS; key++)
+					entries.add(new int[] { key, key });
+				Collections.shuffle(entries, random);
+			}
+			for (int i = 0; i < entries.size(); i++) {
+				int[] entry = entries.get(i);
+				if (!file.Delete(new IntegerKey(entry[0]), new RID(new PageId(entry[1]), entry[0]))) {
+					System.out.println("  *** rid " + entry[1] + " of key " + entry[0] + " is not deleted");
+					return FAIL;
+				}
+				model.get(entry[0]).remove(entry[1]);
+				if (i % CHECK_EVERY == 0 && verify(file) == FAIL)
+					return FAIL;
+			}
+			if (verify(file) == FAIL)
+				return FAIL;
+			// a second delete of a rid finds nothing
+			if (file.Delete(new IntegerKey(0), new RID(new PageId(KEYS), 0))) {
+				System.out.println("  *** a deleted rid is deleted again");
+				return FAIL;
+			}
+
+			// FULL_DELETE may free leaves of the tree as well
+			int freed = freePages();
+			if (fashion == DeleteFashion.NAIVE_DELETE ? freed != freePages : freed < freePages) {
+				System.out.println("  *** " + freed + " free pages, " + freePages + " before the lists grew");
+				return FAIL;
+			}
+			System.out.println("  " + (all ? "every rid" : "all but one rid per key") + " deleted, the pages of "
+					+ "the lists are free again");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/*
+	 * lookup, lookupInt and a scan give back the rids of the model. An entry
+	 * refers to a list only if its key has two rids or more, and there is no
+	 * entry for a key without any.
+	 */
+	private boolean verify(BTreeFile file) throws Exception {
+		String error = TreeCheck.check(file, AttrType.attrInteger);
+		if (error != null) {
+			System.out.println("  *** " + error);
+			return FAIL;
+		}
+
+		RID[] rids = new RID[1];
+		for (Map.Entry<Integer, HashSet<Integer>> key : model.entrySet()) {
+			HashSet<Integer> ids = new HashSet<Integer>();
+			for (RID rid : file.lookup(new IntegerKey(key.getKey()))) {
+				if (rid.slotNo != key.getKey()) {
+					System.out.println("  *** lookup of " + key.getKey() + " returns " + rid.pageNo.pid + "/"
+							+ rid.slotNo);
+					return FAIL;
+				}
+				ids.add(rid.pageNo.pid);
+			}
+			if (!ids.equals(key.getValue())) {
+				System.out.println("  *** lookup of " + key.getKey() + " finds " + ids.size() + " rids, "
+						+ key.getValue().size() + " expected");
+				return FAIL;
+			}
+			int count = file.lookupInt(key.getKey(), rids);
+			if (count != ids.size()) {
+				System.out.println("  *** lookupInt of " + key.getKey() + " counts " + count + " rids, "
+						+ ids.size() + " expected");
+				return FAIL;
+			}
+		}
+
+		HashSet<Integer> keys = new HashSet<Integer>();
+		BTFileScan scan = file.new_scan(null, null);
+		KeyDataEntry entry;
+		RID rid = new RID();
+		while ((entry = scan.get_next()) != null) {
+			int key = ((IntegerKey) entry.key).getKey();
+			RID ref = ((LeafData) entry.data).getData();
+			HashSet<Integer> expected = model.get(key);
+			if (expected == null || expected.isEmpty() || !keys.add(key)) {
+				System.out.println("  *** the scan returns key " + key + " with " + ref.pageNo.pid + "/"
+						+ ref.slotNo);
+				scan.DestroyBTreeFileScan();
+				return FAIL;
+			}
+			if (expected.size() == 1 && ref.slotNo != key) {
+				System.out.println("  *** the entry of key " + key + " with one rid holds " + ref.pageNo.pid + "/"
+						+ ref.slotNo);
+				scan.DestroyBTreeFileScan();
+				return FAIL;
+			}
+			HashSet<Integer> ids = new HashSet<Integer>();
+			PostingScan postings = file.postings(ref);
+			while (postings.next(rid))
+				ids.add(rid.pageNo.pid);
+			if (!ids.equals(expected)) {
+				System.out.println("  *** the list of key " + key + " holds " + ids.size() + " rids, "
+						+ expected.size() + " expected");
+				scan.DestroyBTreeFileScan();
+				return FAIL;
+			}
+		}
+		scan.DestroyBTreeFileScan();
+		for (Map.Entry<Integer, HashSet<Integer>> key : model.entrySet()) {
+			if (!key.getValue().isEmpty() && !keys.contains(key.getKey())) {
+				System.out.println("  *** the scan misses key " + key.getKey());
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	// the pages the database can still allocate, each allocated and freed again
+	private static int freePages() throws Exception {
+		ArrayList<PageId> pages = new ArrayList<PageId>();
+		try {
+			while (true) {
+				PageId pageno = new PageId();
+				SystemDefs.JavabaseDB.allocate_page(pageno);
+				pages.add(pageno);
+			}
+		} catch (OutOfSpaceException e) {
+		}
+		for (PageId pageno : pages)
+			SystemDefs.JavabaseDB.deallocate_page(pageno);
+		return pages.size();
+	}
+
+	private void close(BTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
+
+public class PostingTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			PostingDriver postingtest = new PostingDriver();
+			if (!postingtest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during posting list tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the scans that read leaves ahead, see BTreeFile.setScanPrefetch. A
+ * scan that reads ahead must return exactly the entries a plain scan of the
+ * same range returns, in the same order, on either buffer manager and with a
+ * buffer pool much smaller than the tree. Once it is destroyed, whether it ran
+ * to the end or not, it must leave nothing pinned, and its delete_current must
+ * behave like that of a plain scan.
+ */
+class PrefetchDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "PrefetchTest";
+	private final static int NUM_BUFFERS = 60;
+	private final static int NUM_PAGES = 10000;
+	private final static int ENTRIES = 30000;
+	private final static int PREFETCH = 16;
+	private final static int KEY_SIZE = 32;
+
+	private Random random = new Random(13);
+
+	public PrefetchDriver() {
+		super("prefetchtest");
+	}
+
+	protected String testName() {
+		return "Prefetching scan";
+	}
+
+	protected boolean test1() {
+		System.out.println("\n  Test 1: full and range scans of integer keys, BufMgr\n");
+		return equivalence(AttrType.attrInteger, false);
+	}
+
+	protected boolean test2() {
+		System.out.println("\n  Test 2: full and range scans of integer keys, ConcurrentBufMgr\n");
+		return equivalence(AttrType.attrInteger, true);
+	}
+
+	protected boolean test3() {
+		System.out.println("\n  Test 3: full and range scans of string keys, ConcurrentBufMgr\n");
+		return equivalence(AttrType.attrString, true);
+	}
+
+	/**
+	 * Scans given up after a few entries, while the I/O thread may still be
+	 * reading ahead for them.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: scans destroyed before their end\n");
+		BTreeFile file = null;
+		try {
+			file = fill(AttrType.attrInteger, true);
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			file.setScanPrefetch(PREFETCH);
+			for (int i = 0; i < 200; i++) {
+				BTFileScan scan = file.new_scan(key(AttrType.attrInteger, random.nextInt(ENTRIES)), null);
+				int steps = random.nextInt(2000);
+				for (int step = 0; step < steps && scan.get_next() != null; step++)
+					;
+				scan.DestroyBTreeFileScan();
+				if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+					System.out.println("  *** scan " + i + " leaves "
+							+ (unpinned - SystemDefs.JavabaseBM.getNumUnpinnedBuffers()) + " pages pinned");
+					return FAIL;
+				}
+			}
+			System.out.println("  200 scans destroyed, nothing left pinned");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file, true);
+		}
+	}
+
+	/**
+	 * Every third entry deleted by delete_current during a scan, on two copies
+	 * of a tree, one scan reading ahead and one not: the scans must return the
+	 * same entries and leave the same ones. A scan past its end has nothing to
+	 * delete, which it reports by an exception.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: delete_current while reading ahead\n");
+		BTreeFile plain = null;
+		BTreeFile ahead = null;
+		try {
+			plain = fill(AttrType.attrInteger, false);
+			ahead = fill(FILE_NAME + "Copy", AttrType.attrInteger);
+			int entries = scan(plain, null, null, 0).size();
+			List<String> returned = deleteThirds(plain, 0);
+			List<String> returnedAhead = deleteThirds(ahead, PREFETCH);
+			if (returned == null || returnedAhead == null)
+				return FAIL;
+			if (!returnedAhead.equals(returned)) {
+				System.out.println("  *** the scan returns " + returnedAhead.size() + " entries reading ahead, "
+						+ returned.size() + " without");
+				return FAIL;
+			}
+			List<String> left = scan(plain, null, null, 0);
+			List<String> leftAhead = scan(ahead, null, null, 0);
+			if (!leftAhead.equals(left)) {
+				System.out.println("  *** " + leftAhead.size() + " entries left reading ahead, " + left.size()
+						+ " without");
+				return FAIL;
+			}
+			System.out.println("  " + (entries - left.size()) + " of " + entries + " entries deleted by each scan");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			try {
+				if (ahead != null)
+					ahead.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			close(plain, false);
+		}
+	}
+
+	/*
+	 * Scan the whole tree, deleting every third entry returned; returns the
+	 * entries returned, or null if delete_current past the end of a scan that
+	 * reads ahead does not fail.
+	 */
+	private static List<String> deleteThirds(BTreeFile file, int prefetch) throws Exception {
+		file.setScanPrefetch(prefetch);
+		BTFileScan scan = file.new_scan(null, null);
+		List<String> returned = new ArrayList<String>();
+		KeyDataEntry entry;
+		for (int i = 0; (entry = scan.get_next()) != null; i++) {
+			returned.add(entry(entry));
+			if (i % 3 == 0)
+				scan.delete_current();
+		}
+		// a plain scan reports this on stdout too
+		boolean thrown = prefetch == 0;
+		try {
+			if (!thrown)
+				scan.delete_current();
+		} catch (ScanDeleteException e) {
+			thrown = true;
+		}
+		scan.DestroyBTreeFileScan();
+		if (!thrown) {
+			System.out.println("  *** delete_current past the end of the scan does not fail");
+			return null;
+		}
+		return returned;
+	}
+
+	/*
+	 * The same ranges scanned without and with read-ahead: the whole tree, open
+	 * ranges at either end, single keys, and ranges of random width.
+	 */
+	private boolean equivalence(int keyType, boolean concurrent) {
+		BTreeFile file = null;
+		try {
+			file = fill(keyType, concurrent);
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			int ranges = 0;
+			long entries = 0;
+			for (int i = 0; i < 40; i++) {
+				int lo = random.nextInt(ENTRIES);
+				int hi = i % 4 == 0 ? lo : lo + random.nextInt(ENTRIES / 2);
+				KeyClass lo_key = i % 10 == 1 ? null : key(keyType, lo);
+				KeyClass hi_key = i % 10 == 2 || i == 0 ? null : key(keyType, hi);
+				if (i == 0)
+					lo_key = null;
+				List<String> plain = scan(file, lo_key, hi_key, 0);
+				List<String> ahead = scan(file, lo_key, hi_key, PREFETCH);
+				if (!ahead.equals(plain)) {
+					System.out.println("  *** the scan from " + lo_key + " to " + hi_key + " returns "
+							+ ahead.size() + " entries reading ahead, " + plain.size() + " without");
+					return FAIL;
+				}
+				if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+					System.out.println("  *** the scan from " + lo_key + " to " + hi_key + " leaves pages pinned");
+					return FAIL;
+				}
+				ranges++;
+				entries += plain.size();
+			}
+			System.out.println("  " + ranges + " ranges of " + entries + " entries scanned both ways");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file, concurrent);
+		}
+	}
+
+	/*
+	 * A new database and a tree of ENTRIES entries in a random order, a few keys
+	 * repeated often enough to span several leaves.
+	 */
+	private BTreeFile fill(int keyType, boolean concurrent) throws Exception {
+		new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+		if (concurrent)
+			ConcurrentBufMgr.install("Clock");
+		return fill(FILE_NAME, keyType);
+	}
+
+	// the same entries in the same order for every file of a test
+	private BTreeFile fill(String name, int keyType) throws Exception {
+		BTreeFile file = new BTreeFile(name, keyType, keyType == AttrType.attrInteger ? 4 : KEY_SIZE,
+				DeleteFashion.NAIVE_DELETE);
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (int i = 0; i < ENTRIES; i++)
+			ids.add(i);
+		Collections.shuffle(ids, new Random(ENTRIES));
+		for (int id : ids) {
+			int key = id % 50 == 0 ? ENTRIES / 2 : id;
+			file.insert(key(keyType, key), new RID(new PageId(id), key));
+		}
+		return file;
+	}
+
+	// the entries of a range, read with the given read-ahead
+	private static List<String> scan(BTreeFile file, KeyClass lo_key, KeyClass hi_key, int prefetch)
+			throws Exception {
+		file.setScanPrefetch(prefetch);
+		List<String> entries = new ArrayList<String>();
+		BTFileScan scan = file.new_scan(lo_key, hi_key);
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			entries.add(entry(entry));
+		scan.DestroyBTreeFileScan();
+		return entries;
+	}
+
+	private static String entry(KeyDataEntry entry) {
+		RID rid = ((LeafData) entry.data).getData();
+		return entry.key + "/" + rid.pageNo.pid + "/" + rid.slotNo;
+	}
+
+	private void close(BTreeFile file, boolean concurrent) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			if (concurrent)
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// zero-padded, so that string keys sort like the numbers
+	private static KeyClass key(int keyType, int key) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(key);
+		return new StringKey(String.format("%010d", key));
+	}
+}
+
+public class PrefetchTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			PrefetchDriver prefetchtest = new PrefetchDriver();
+			if (!prefetchtest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during prefetching scan tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,464 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the split policies of BTreeFile, see SplitPolicy. Under every
+ * policy, and under policies that return split points out of range, a tree
+ * filled by random, ordered, interleaved and clustered keys, of both key
+ * types, must stay sound and hold the entries of a model. Each policy must
+ * also do what it is for: the append policy packs the leaves that ascending
+ * keys leave behind, the insert point policy those of interleaved runs, the
+ * key gap policy those of clustered keys, and a fill factor policy keeps its
+ * share of the bytes on the split page.
+ */
+class SplitPolicyDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "SplitPolicyTest";
+	private final static int NUM_BUFFERS = 100;
+	private final static int NUM_PAGES = 20000;
+	private final static int ENTRIES = 20000;
+	private final static int KEY_SIZE = 40;
+
+	private final static String[] POLICIES = { SplitPolicy.MEDIAN, SplitPolicy.APPEND, SplitPolicy.INSERT_POINT,
+			SplitPolicy.KEY_GAP, "fill-0.5", "fill-0.9", "fill-1.0" };
+
+	// the key orders filled in
+	private final static int RANDOM = 0;
+	private final static int ASCENDING = 1;
+	private final static int DESCENDING = 2;
+	// RUNS ascending runs, inserted in turn
+	private final static int INTERLEAVED = 3;
+	// blocks of ids with wide gaps between them, filled in a random order
+	private final static int CLUSTERED = 4;
+	private final static int RUNS = 8;
+
+	private Random random = new Random(23);
+
+	// the number of entries of each key
+	private TreeMap<Integer, Integer> model;
+
+	public SplitPolicyDriver() {
+		super("splitpolicytest");
+	}
+
+	protected String testName() {
+		return "Split policies";
+	}
+
+	/**
+	 * Policies by name, the default of a file, and names and policies
+	 * refused.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: policies by name\n");
+		BTreeFile file = null;
+		try {
+			for (String name : POLICIES) {
+				SplitPolicy policy = SplitPolicy.forName(name.toUpperCase());
+				if (!SplitPolicy.forName(policy.getName()).getName().equals(policy.getName())) {
+					System.out.println("  *** policy " + policy.getName() + " does not round-trip by name");
+					return FAIL;
+				}
+			}
+			for (String name : new String[] { "middle", "fill-", "fill-0", "fill-1.5", "fill-x" }) {
+				try {
+					SplitPolicy.forName(name);
+					System.out.println("  *** policy " + name + " is made");
+					return FAIL;
+				} catch (IllegalArgumentException e) {
+				}
+			}
+
+			file = open(AttrType.attrInteger);
+			if (!file.getSplitPolicy().getName().equals(SplitPolicy.APPEND)) {
+				System.out.println("  *** a new file splits by " + file.getSplitPolicy());
+				return FAIL;
+			}
+			try {
+				file.setSplitPolicy(null);
+				System.out.println("  *** a file takes no split policy");
+				return FAIL;
+			} catch (IllegalArgumentException e) {
+			}
+			file.setSplitPolicy(SplitPolicy.forName(SplitPolicy.KEY_GAP));
+			fill(file, AttrType.attrInteger, RANDOM, 2000);
+			SplitStats stats = file.getSplitStats();
+			if (!stats.getPolicy().equals(SplitPolicy.KEY_GAP) || stats.getLeafSplits() == 0) {
+				System.out.println("  *** the split counts are " + stats);
+				return FAIL;
+			}
+			file.close();
+			file = new BTreeFile(FILE_NAME);
+			if (!file.getSplitPolicy().getName().equals(SplitPolicy.APPEND) || file.getSplitStats().getLeafSplits() != 0) {
+				System.out.println("  *** the file opens again with " + file.getSplitStats());
+				return FAIL;
+			}
+			System.out.println("  " + POLICIES.length + " policies by name");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Every policy on every order of integer keys, then half of the entries
+	 * fully deleted.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: every policy and key order, integer keys\n");
+		return everyPolicy(AttrType.attrInteger);
+	}
+
+	protected boolean test3() {
+		System.out.println("\n  Test 3: every policy and key order, string keys\n");
+		return everyPolicy(AttrType.attrString);
+	}
+
+	/**
+	 * Policies that return split points out of range, or that leave one of
+	 * the pages without room, on string keys of very different lengths: the
+	 * split points are clamped, or replaced by the median.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: split points out of range\n");
+		SplitPolicy[] hostile = { new FixedPoint(-5), new FixedPoint(0), new FixedPoint(1),
+				new FixedPoint(Integer.MAX_VALUE), new FixedPoint(-1) };
+		for (SplitPolicy policy : hostile) {
+			for (int keyType : new int[] { AttrType.attrInteger, AttrType.attrString }) {
+				BTreeFile file = null;
+				try {
+					file = open(keyType);
+					file.setSplitPolicy(policy);
+					fill(file, keyType, RANDOM, ENTRIES / 4);
+					fill(file, keyType, ASCENDING, ENTRIES / 4);
+					if (verify(file, keyType) == FAIL) {
+						System.out.println("  *** under the split point " + policy);
+						return FAIL;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					return FAIL;
+				} finally {
+					close(file);
+				}
+			}
+		}
+		System.out.println("  " + hostile.length + " policies out of range on both key types");
+		return OK;
+	}
+
+	/**
+	 * Ascending and descending keys: the append policy packs the leaves left
+	 * behind by ascending keys where the median leaves them half empty, and a
+	 * fill factor policy keeps its share on the split page.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: ordered keys\n");
+		try {
+			double median = leafFill(SplitPolicy.MEDIAN, ASCENDING, AttrType.attrInteger);
+			double append = leafFill(SplitPolicy.APPEND, ASCENDING, AttrType.attrInteger);
+			double appendStrings = leafFill(SplitPolicy.APPEND, ASCENDING, AttrType.attrString);
+			if (median < 0 || append < 0 || appendStrings < 0)
+				return FAIL;
+			if (median > 0.6 || append < 0.85 || appendStrings < 0.85) {
+				System.out.println("  *** ascending keys fill the leaves " + percent(median) + " under the median, "
+						+ percent(append) + " and " + percent(appendStrings) + " under appends");
+				return FAIL;
+			}
+			// descending keys never append; they split at the median
+			double descending = leafFill(SplitPolicy.APPEND, DESCENDING, AttrType.attrInteger);
+			if (descending < 0)
+				return FAIL;
+			if (descending > 0.6) {
+				System.out.println("  *** descending keys fill the leaves " + percent(descending)
+						+ " under appends");
+				return FAIL;
+			}
+			for (String name : new String[] { SplitPolicy.MEDIAN, "fill-0.5", "fill-0.9" }) {
+				BTreeFile file = null;
+				try {
+					file = open(AttrType.attrInteger);
+					file.setSplitPolicy(SplitPolicy.forName(name));
+					fill(file, AttrType.attrInteger, RANDOM, ENTRIES);
+					double kept = file.getSplitStats().getLeafKeptShare();
+					double expected = name.equals(SplitPolicy.MEDIAN) ? 0.5
+							: Double.parseDouble(name.substring(SplitPolicy.FILL.length()));
+					if (Math.abs(kept - expected) > 0.05) {
+						System.out.println("  *** " + name + " keeps " + percent(kept) + " on split leaves");
+						return FAIL;
+					}
+				} finally {
+					close(file);
+				}
+			}
+			System.out.println("  ascending keys fill the leaves " + percent(median) + " under the median, "
+					+ percent(append) + " under appends");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * Interleaved ascending runs under the insert point policy, and clustered
+	 * keys under the key gap policy, fill the leaves more than the median.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: interleaved runs and clustered keys\n");
+		try {
+			double median = leafFill(SplitPolicy.MEDIAN, INTERLEAVED, AttrType.attrInteger);
+			double insertPoint = leafFill(SplitPolicy.INSERT_POINT, INTERLEAVED, AttrType.attrInteger);
+			double medianClustered = leafFill(SplitPolicy.MEDIAN, CLUSTERED, AttrType.attrInteger);
+			double keyGap = leafFill(SplitPolicy.KEY_GAP, CLUSTERED, AttrType.attrInteger);
+			if (median < 0 || insertPoint < 0 || medianClustered < 0 || keyGap < 0)
+				return FAIL;
+			if (insertPoint < 0.8 || insertPoint < median + 0.2) {
+				System.out.println("  *** " + RUNS + " interleaved runs fill the leaves " + percent(insertPoint)
+						+ " under the insert point policy, " + percent(median) + " under the median");
+				return FAIL;
+			}
+			if (keyGap < medianClustered + 0.1) {
+				System.out.println("  *** clustered keys fill the leaves " + percent(keyGap)
+						+ " under the key gap policy, " + percent(medianClustered) + " under the median");
+				return FAIL;
+			}
+			System.out.println("  interleaved runs fill the leaves " + percent(insertPoint) + " at the insert point, "
+					+ percent(median) + " at the median");
+			System.out.println("  clustered keys fill the leaves " + percent(keyGap) + " at key gaps, "
+					+ percent(medianClustered) + " at the median");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/*
+	 * Every policy on every key order, then half of the entries fully
+	 * deleted; the tree is checked after each.
+	 */
+	private boolean everyPolicy(int keyType) {
+		int trees = 0;
+		for (String name : POLICIES) {
+			for (int order = RANDOM; order <= CLUSTERED; order++) {
+				BTreeFile file = null;
+				try {
+					file = open(keyType);
+					file.setSplitPolicy(SplitPolicy.forName(name));
+					fill(file, keyType, order, ENTRIES / 2);
+					// and duplicates of keys already there
+					for (int i = 0; i < ENTRIES / 20; i++)
+						insert(file, keyType, model.firstKey() + random.nextInt(ENTRIES / 2));
+					if (verify(file, keyType) == FAIL || shrink(file, keyType) == FAIL
+							|| verify(file, keyType) == FAIL) {
+						System.out.println("  *** under " + name + " in key order " + order);
+						return FAIL;
+					}
+					trees++;
+				} catch (Exception e) {
+					e.printStackTrace();
+					return FAIL;
+				} finally {
+					close(file);
+				}
+			}
+		}
+		System.out.println("  " + trees + " trees filled and halved");
+		return OK;
+	}
+
+	/*
+	 * The mean fill of the leaves of a tree filled under a policy, or -1 if
+	 * the tree is not that of the model.
+	 */
+	private double leafFill(String name, int order, int keyType) throws Exception {
+		BTreeFile file = null;
+		try {
+			file = open(keyType);
+			file.setSplitPolicy(SplitPolicy.forName(name));
+			fill(file, keyType, order, ENTRIES);
+			if (verify(file, keyType) == FAIL)
+				return -1;
+			TreeStats stats = file.getTreeStats();
+			return stats.getFill(stats.getHeight() - 1);
+		} finally {
+			close(file);
+		}
+	}
+
+	/*
+	 * Insert count entries in the given order, of keys from the largest of the
+	 * model on, which may be repeated under RANDOM.
+	 */
+	private void fill(BTreeFile file, int keyType, int order, int count) throws Exception {
+		int base = model.isEmpty() ? 0 : model.lastKey() + 1;
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		switch (order) {
+		case RANDOM:
+			for (int i = 0; i < count; i++)
+				keys.add(base + random.nextInt(count));
+			break;
+		case ASCENDING:
+		case DESCENDING:
+			for (int i = 0; i < count; i++)
+				keys.add(base + i);
+			if (order == DESCENDING)
+				Collections.reverse(keys);
+			break;
+		case INTERLEAVED:
+			for (int i = 0; i < count; i++)
+				keys.add(base + (i % RUNS) * count + i / RUNS);
+			break;
+		case CLUSTERED:
+			// blocks of 200 ids a million apart, each filled in order, the
+			// blocks in turn
+			int blocks = count / 200;
+			for (int i = 0; i < count; i++)
+				keys.add(base + (i % blocks) * 1000000 + i / blocks);
+			break;
+		}
+		for (int key : keys)
+			insert(file, keyType, key);
+	}
+
+	// delete half of the entries, in a random order
+	private boolean shrink(BTreeFile file, int keyType) throws Exception {
+		ArrayList<Integer> entries = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> count : model.entrySet())
+			for (int i = 0; i < count.getValue(); i++)
+				entries.add(count.getKey());
+		Collections.shuffle(entries, random);
+		for (int key : entries.subList(0, entries.size() / 2)) {
+			if (!file.Delete(key(keyType, key), new RID(new PageId(key), 0))) {
+				System.out.println("  *** an entry of key " + key + " is not deleted");
+				return FAIL;
+			}
+			int count = model.get(key);
+			if (count == 1)
+				model.remove(key);
+			else
+				model.put(key, count - 1);
+		}
+		return OK;
+	}
+
+	// the tree is sound and holds the entries of the model
+	private boolean verify(BTreeFile file, int keyType) throws Exception {
+		String error = TreeCheck.check(file, keyType);
+		if (error != null) {
+			System.out.println("  *** " + error);
+			return FAIL;
+		}
+		long total = 0;
+		for (Map.Entry<Integer, Integer> count : model.entrySet()) {
+			int size = file.lookup(key(keyType, count.getKey())).size();
+			if (size != count.getValue()) {
+				System.out.println("  *** lookup of " + count.getKey() + " finds " + size + " entries, "
+						+ count.getValue() + " expected");
+				return FAIL;
+			}
+			total += size;
+		}
+		long entries = TreeCheck.entries(file, keyType);
+		if (entries != total) {
+			System.out.println("  *** the tree holds " + entries + " entries, " + total + " expected");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	private void insert(BTreeFile file, int keyType, int key) throws Exception {
+		file.insert(key(keyType, key), new RID(new PageId(key), 0));
+		Integer count = model.get(key);
+		model.put(key, count == null ? 1 : count + 1);
+	}
+
+	private BTreeFile open(int keyType) throws Exception {
+		new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+		model = new TreeMap<Integer, Integer>();
+		return new BTreeFile(FILE_NAME, keyType, keyType == AttrType.attrInteger ? 4 : KEY_SIZE,
+				DeleteFashion.FULL_DELETE);
+	}
+
+	private void close(BTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Zero-padded, so that string keys sort like the numbers; keys of every
+	 * seventh number are long, so that entries differ much in length.
+	 */
+	private static KeyClass key(int keyType, int key) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(key);
+		String number = String.format("%010d", key);
+		if (key % 7 != 0)
+			return new StringKey(number);
+		StringBuffer buffer = new StringBuffer(number);
+		while (buffer.length() < KEY_SIZE - 2)
+			buffer.append('x');
+		return new StringKey(buffer.toString());
+	}
+
+	private static String percent(double share) {
+		return Math.round(share * 100) + "%";
+	}
+
+	/*
+	 * A policy that returns the same split point, counted from the end of the
+	 * page if it is negative, whatever the page.
+	 */
+	private static class FixedPoint extends SplitPolicy {
+
+		private final int point;
+
+		FixedPoint(int point) {
+			this.point = point;
+		}
+
+		public int splitPoint(Entries page) {
+			if (point == -1)
+				return page.count();
+			return point;
+		}
+
+		public String getName() {
+			return "fixed-" + point;
+		}
+	}
+}
+
+public class SplitPolicyTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			SplitPolicyDriver splitpolicytest = new SplitPolicyDriver();
+			if (!splitpolicytest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during split policy tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
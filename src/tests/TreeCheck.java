@@ -0,0 +1,158 @@
+package tests;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Walks a BTreeFile page by page and checks its structure: the keys of every
+ * page are in order and within the range its parent gives it, every non-root
+ * index page has a key, all leaves are on one level, and the leaf chain links
+ * them left to right in both directions.
+ *
+ * The bounds are inclusive on both sides, since a run of duplicates may
+ * straddle the separator between two pages.
+ */
+class TreeCheck implements GlobalConst {
+
+	private final int keyType;
+	private final ArrayList<Integer> leaves = new ArrayList<Integer>();
+	private final ArrayList<Integer> prevLinks = new ArrayList<Integer>();
+	private final ArrayList<Integer> nextLinks = new ArrayList<Integer>();
+	private int leafLevel;
+	private long entries;
+	private String error;
+
+	private TreeCheck(int keyType) {
+		this.keyType = keyType;
+	}
+
+	/**
+	 * Check the structure of a tree.
+	 *
+	 * @param file
+	 *            the tree. Input parameter.
+	 * @param keyType
+	 *            the key type of the tree. Input parameter.
+	 * @return null if the tree is sound, else what is wrong with it
+	 */
+	static String check(BTreeFile file, int keyType) throws Exception {
+		TreeCheck check = new TreeCheck(keyType);
+		int root = ((HFPage) file.getHeaderPage()).getNextPage().pid;
+		if (root == INVALID_PAGE)
+			return null;
+		check.leafLevel = -1;
+		check.walk(root, 0, null, null, true);
+		if (check.error == null)
+			check.checkChain();
+		return check.error;
+	}
+
+	/**
+	 * The number of leaf entries of a tree, counted page by page.
+	 */
+	static long entries(BTreeFile file, int keyType) throws Exception {
+		TreeCheck check = new TreeCheck(keyType);
+		int root = ((HFPage) file.getHeaderPage()).getNextPage().pid;
+		if (root == INVALID_PAGE)
+			return 0;
+		check.leafLevel = -1;
+		check.walk(root, 0, null, null, true);
+		return check.entries;
+	}
+
+	private void walk(int pid, int level, KeyClass lo, KeyClass hi, boolean root) throws Exception {
+		if (error != null)
+			return;
+		PageId pageId = new PageId(pid);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(pageId, page, false);
+		try {
+			short type = new BTSortedPage(page, keyType).getType();
+			if (type == NodeType.LEAF)
+				walkLeaf(new BTLeafPage(page, keyType), pid, level, lo, hi);
+			else if (type == NodeType.INDEX)
+				walkIndex(new BTIndexPage(page, keyType), pid, level, lo, hi, root);
+			else
+				error = "page " + pid + " is neither an index nor a leaf page";
+		} finally {
+			SystemDefs.JavabaseBM.unpinPage(pageId, false);
+		}
+	}
+
+	private void walkLeaf(BTLeafPage leaf, int pid, int level, KeyClass lo, KeyClass hi) throws Exception {
+		if (leafLevel == -1)
+			leafLevel = level;
+		if (level != leafLevel) {
+			error = "leaf " + pid + " is on level " + level + ", not " + leafLevel;
+			return;
+		}
+		leaves.add(pid);
+		prevLinks.add(leaf.getPrevPage().pid);
+		nextLinks.add(leaf.getNextPage().pid);
+		RID rid = new RID();
+		KeyClass last = null;
+		for (KeyDataEntry entry = leaf.getFirst(rid); entry != null; entry = leaf.getNext(rid)) {
+			checkKey(entry.key, last, lo, hi, "leaf " + pid);
+			last = entry.key;
+			entries++;
+		}
+	}
+
+	private void walkIndex(BTIndexPage index, int pid, int level, KeyClass lo, KeyClass hi, boolean root)
+			throws Exception {
+		ArrayList<KeyClass> keys = new ArrayList<KeyClass>();
+		ArrayList<Integer> children = new ArrayList<Integer>();
+		children.add(index.getPrevPage().pid);
+		RID rid = new RID();
+		KeyClass last = null;
+		for (KeyDataEntry entry = index.getFirst(rid); entry != null; entry = index.getNext(rid)) {
+			checkKey(entry.key, last, lo, hi, "index page " + pid);
+			last = entry.key;
+			keys.add(entry.key);
+			children.add(child(index, rid.slotNo));
+		}
+		if (keys.isEmpty() && !root)
+			error = "index page " + pid + " has no key";
+		for (int i = 0; i < children.size() && error == null; i++)
+			walk(children.get(i), level + 1, i == 0 ? lo : keys.get(i - 1), i == keys.size() ? hi : keys.get(i),
+					false);
+	}
+
+	/*
+	 * The child page number at the end of an index record.
+	 */
+	private static int child(BTIndexPage index, int slot) {
+		ByteBuffer data = ByteBuffer.wrap(index.getpage());
+		int length = data.getShort(HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT);
+		int offset = data.getShort(HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2);
+		return data.getInt(offset + length - 4);
+	}
+
+	private void checkKey(KeyClass key, KeyClass last, KeyClass lo, KeyClass hi, String page) throws Exception {
+		if (error != null)
+			return;
+		if (last != null && BT.keyCompare(key, last) < 0)
+			error = page + " holds " + key + " after " + last;
+		else if (lo != null && BT.keyCompare(key, lo) < 0)
+			error = page + " holds " + key + ", below its lower bound " + lo;
+		else if (hi != null && BT.keyCompare(key, hi) > 0)
+			error = page + " holds " + key + ", above its upper bound " + hi;
+	}
+
+	private void checkChain() {
+		for (int i = 0; i < leaves.size() && error == null; i++) {
+			int prev = i == 0 ? INVALID_PAGE : leaves.get(i - 1);
+			int next = i == leaves.size() - 1 ? INVALID_PAGE : leaves.get(i + 1);
+			if (prevLinks.get(i) != prev || nextLinks.get(i) != next)
+				error = "leaf " + leaves.get(i) + " links to " + prevLinks.get(i) + " and " + nextLinks.get(i)
+						+ ", not " + prev + " and " + next;
+		}
+	}
+}
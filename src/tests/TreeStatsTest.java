@@ -0,0 +1,516 @@
+package tests;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of BTreeFile.getTreeStats. The statistics of a tree are checked
+ * against a walk of its pages made here, level by level: the pages of each
+ * level, their fill and its histogram, the leaf entries, the empty leaves and
+ * the key sizes must be exactly those of the walk when every leaf is read, for
+ * integer and string keys, after naive and full deletes, and with pages larger
+ * than MINIBASE_PAGESIZE. Sampled statistics must read the index levels whole,
+ * the share of leaves asked for, and estimate the leaf figures from them.
+ */
+class TreeStatsDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "TreeStatsTest";
+	private final static int NUM_BUFFERS = 100;
+	private final static int NUM_PAGES = 10000;
+	private final static int ENTRIES = 20000;
+	private final static int KEY_SIZE = 40;
+
+	private Random random = new Random(25);
+
+	public TreeStatsDriver() {
+		super("treestatstest");
+	}
+
+	protected String testName() {
+		return "Tree statistics";
+	}
+
+	/**
+	 * An empty tree, a tree of one leaf, and sample rates out of range.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: an empty tree and a root leaf\n");
+		BTreeFile file = null;
+		try {
+			file = open(AttrType.attrInteger, DeleteFashion.NAIVE_DELETE, 0);
+			TreeStats stats = file.getTreeStats();
+			if (stats.getHeight() != 0 || stats.getPageCount() != 0 || stats.getLeafPages() != 0
+					|| stats.getEntries() != 0 || stats.getEstimatedScanPages() != 0
+					|| stats.estimateScanPages(10) != 0 || stats.getMeanKeySize() != 0) {
+				System.out.println("  *** an empty tree has " + stats);
+				return FAIL;
+			}
+			file.insert(new IntegerKey(5), new RID(new PageId(5), 0));
+			stats = file.getTreeStats();
+			if (stats.getHeight() != 1 || stats.getLeafPages() != 1 || stats.getEntries() != 1
+					|| stats.getEstimatedScanPages() != 1 || stats.estimateScanPages(0) != 1
+					|| stats.getMeanKeySize() != 4) {
+				System.out.println("  *** a tree of one entry has " + stats);
+				return FAIL;
+			}
+			if (compare(file, stats) == FAIL)
+				return FAIL;
+			for (double rate : new double[] { 0, -1, 1.5, Double.NaN }) {
+				try {
+					file.getTreeStats(rate);
+					System.out.println("  *** statistics are made at the sample rate " + rate);
+					return FAIL;
+				} catch (IllegalArgumentException e) {
+				}
+			}
+			System.out.println("  a root leaf of " + stats.getEntries() + " entry, fill " + stats.getFill(0));
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Integer keys with duplicates, then naive deletes of whole key ranges,
+	 * which leave empty leaves behind.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: integer keys, naive deletes\n");
+		BTreeFile file = null;
+		try {
+			file = open(AttrType.attrInteger, DeleteFashion.NAIVE_DELETE, 0);
+			ArrayList<Integer> keys = fill(file, AttrType.attrInteger, ENTRIES);
+			if (compare(file, file.getTreeStats()) == FAIL)
+				return FAIL;
+			// the entries of two fifths of the key range, in runs
+			int deleted = 0;
+			for (int i = 0; i < keys.size(); i++) {
+				if (keys.get(i) % 5000 < 2000) {
+					if (!file.Delete(key(AttrType.attrInteger, keys.get(i)), new RID(new PageId(i), 0))) {
+						System.out.println("  *** entry " + i + " of key " + keys.get(i) + " is not deleted");
+						return FAIL;
+					}
+					deleted++;
+				}
+			}
+			TreeStats stats = file.getTreeStats();
+			if (compare(file, stats) == FAIL)
+				return FAIL;
+			if (stats.getEmptyLeaves() == 0) {
+				System.out.println("  *** naive deletes of whole key ranges leave no empty leaf");
+				return FAIL;
+			}
+			System.out.println("  " + deleted + " of " + ENTRIES + " entries deleted, " + stats.getEmptyLeaves()
+					+ " of " + stats.getLeafPages() + " leaves left empty");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * String keys of many lengths, then full deletes of half of them.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: string keys of many lengths, full deletes\n");
+		BTreeFile file = null;
+		try {
+			file = open(AttrType.attrString, DeleteFashion.FULL_DELETE, 0);
+			ArrayList<Integer> keys = fill(file, AttrType.attrString, ENTRIES);
+			TreeStats stats = file.getTreeStats();
+			if (compare(file, stats) == FAIL)
+				return FAIL;
+			double before = stats.getMeanKeySize();
+			for (int i = 0; i < keys.size(); i += 2) {
+				if (!file.Delete(key(AttrType.attrString, keys.get(i)), new RID(new PageId(i), 0))) {
+					System.out.println("  *** entry " + i + " of key " + keys.get(i) + " is not deleted");
+					return FAIL;
+				}
+			}
+			stats = file.getTreeStats();
+			if (compare(file, stats) == FAIL)
+				return FAIL;
+			System.out.println("  mean key size " + Math.round(before * 10) / 10.0 + " bytes, "
+					+ stats.getLeafPages() + " leaves after half of the entries are deleted");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Sampled leaves: the index levels and the page counts stay exact, the
+	 * share of leaves asked for is read, and the leaf figures are estimated.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: sampled leaves\n");
+		BTreeFile file = null;
+		try {
+			file = open(AttrType.attrString, DeleteFashion.NAIVE_DELETE, 0);
+			fill(file, AttrType.attrString, ENTRIES * 2);
+			TreeStats whole = file.getTreeStats();
+			if (compare(file, whole) == FAIL)
+				return FAIL;
+			int leafLevel = whole.getHeight() - 1;
+			for (double rate : new double[] { 0.05, 0.25, 0.5, 0.9 }) {
+				TreeStats stats = file.getTreeStats(rate);
+				if (stats.getHeight() != whole.getHeight()) {
+					System.out.println("  *** sampled at " + rate + ", the tree has " + stats.getHeight() + " levels");
+					return FAIL;
+				}
+				for (int level = 0; level < stats.getHeight(); level++) {
+					if (stats.getPages(level) != whole.getPages(level)
+							|| level < leafLevel && (stats.getFill(level) != whole.getFill(level)
+									|| !Arrays.equals(stats.getFillHistogram(level), whole.getFillHistogram(level)))) {
+						System.out.println("  *** sampled at " + rate + ", level " + level + " differs");
+						return FAIL;
+					}
+				}
+				long read = stats.getLeavesRead();
+				if (Math.abs(read - rate * whole.getLeafPages()) > 1) {
+					System.out.println("  *** sampled at " + rate + ", " + read + " of " + whole.getLeafPages()
+							+ " leaves are read");
+					return FAIL;
+				}
+				double error = Math.abs(stats.getEntries() - whole.getEntries()) / (double) whole.getEntries();
+				double fillError = Math.abs(stats.getFill(leafLevel) - whole.getFill(leafLevel));
+				if (error > 0.1 || fillError > 0.1 || Math.abs(stats.getMeanKeySize() - whole.getMeanKeySize()) > 2) {
+					System.out.println("  *** sampled at " + rate + ", " + stats.getEntries() + " entries, fill "
+							+ stats.getFill(leafLevel) + ", key size " + stats.getMeanKeySize() + " for "
+							+ whole.getEntries() + ", " + whole.getFill(leafLevel) + ", " + whole.getMeanKeySize());
+					return FAIL;
+				}
+			}
+			System.out.println("  " + whole.getLeafPages() + " leaves sampled at 4 rates");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Pages of 8 KB on a MappedDB, under another split policy.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: 8 KB pages\n");
+		BTreeFile file = null;
+		try {
+			file = open(AttrType.attrInteger, DeleteFashion.FULL_DELETE, 8192);
+			file.setSplitPolicy(SplitPolicy.forName(SplitPolicy.MEDIAN));
+			fill(file, AttrType.attrInteger, ENTRIES * 2);
+			TreeStats stats = file.getTreeStats();
+			if (stats.getPageSize() != 8192 || !stats.getPolicy().equals(SplitPolicy.MEDIAN)) {
+				System.out.println("  *** the statistics are of pages of " + stats.getPageSize() + " bytes under "
+						+ stats.getPolicy());
+				return FAIL;
+			}
+			if (compare(file, stats) == FAIL)
+				return FAIL;
+			System.out.println("  " + stats.getLeafPages() + " leaves of 8192 bytes, " + stats.getHeight()
+					+ " levels");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Statistics taken while threads insert, on a ConcurrentBufMgr: they count
+	 * no more entries than there are at the end, and exactly those once the
+	 * threads are done; nothing is left pinned.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: statistics taken while threads insert\n");
+		BTreeFile file = null;
+		try {
+			file = open(AttrType.attrInteger, DeleteFashion.NAIVE_DELETE, -1);
+			final BTreeFile tree = file;
+			final int threads = 4;
+			final int each = ENTRIES / threads;
+			final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				workers[t] = new Thread() {
+					public void run() {
+						try {
+							for (int i = 0; i < each && errors.isEmpty(); i++) {
+								int id = i * threads + thread;
+								tree.insert(new IntegerKey(id), new RID(new PageId(id), 0));
+							}
+						} catch (Exception e) {
+							errors.add(e.toString());
+						}
+					}
+				};
+				workers[t].start();
+			}
+			long last = 0;
+			int taken = 0;
+			for (boolean running = true; running; taken++) {
+				running = false;
+				for (Thread worker : workers)
+					running |= worker.isAlive();
+				TreeStats stats = file.getTreeStats();
+				if (stats.getEntries() > threads * each) {
+					System.out.println("  *** the statistics count " + stats.getEntries() + " entries of "
+							+ threads * each);
+					return FAIL;
+				}
+				last = stats.getEntries();
+			}
+			for (Thread worker : workers)
+				worker.join();
+			if (!errors.isEmpty()) {
+				System.out.println("  *** " + errors.get(0));
+				return FAIL;
+			}
+			TreeStats stats = file.getTreeStats();
+			if (stats.getEntries() != threads * each || compare(file, stats) == FAIL) {
+				System.out.println("  *** the statistics count " + stats.getEntries() + " entries of "
+						+ threads * each + " at the end");
+				return FAIL;
+			}
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUM_BUFFERS - 1) {
+				System.out.println("  *** " + (NUM_BUFFERS - SystemDefs.JavabaseBM.getNumUnpinnedBuffers())
+						+ " pages pinned, the header page only expected");
+				return FAIL;
+			}
+			System.out.println("  " + taken + " statistics taken meanwhile, the last before the end counting "
+					+ last + " entries");
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			close(file);
+		}
+	}
+
+	/*
+	 * The statistics of every leaf are those of a walk of the tree.
+	 */
+	private boolean compare(BTreeFile file, TreeStats stats) throws Exception {
+		Walk walk = new Walk(file);
+		String differs = null;
+		if (stats.getHeight() != walk.pages.size())
+			differs = "the height";
+		else if (stats.getEntries() != walk.entries || stats.getLeavesRead() != stats.getLeafPages())
+			differs = "the leaf entries";
+		else if (stats.getEmptyLeaves() != walk.emptyLeaves)
+			differs = "the empty leaves";
+		else if (!Arrays.equals(trim(stats.getKeySizeHistogram()), trim(walk.keySizes())))
+			differs = "the key sizes";
+		else if (stats.getEstimatedScanPages() != (walk.pages.isEmpty() ? 0 : walk.pages.size() - 1
+				+ walk.pages.get(walk.pages.size() - 1)))
+			differs = "the pages of a scan";
+		long pageCount = 0;
+		for (int level = 0; level < walk.pages.size() && differs == null; level++) {
+			pageCount += walk.pages.get(level);
+			double fill = (double) walk.usedBytes.get(level) / (walk.pages.get(level) * (walk.pageSize - HFPage.DPFIXED));
+			if (stats.getPages(level) != walk.pages.get(level))
+				differs = "the pages of level " + level;
+			else if (Math.abs(stats.getFill(level) - fill) > 1e-9)
+				differs = "the fill of level " + level;
+			else if (!Arrays.equals(stats.getFillHistogram(level), walk.fill.get(level)))
+				differs = "the fill histogram of level " + level;
+		}
+		if (differs == null && stats.getPageCount() != pageCount)
+			differs = "the page count";
+		if (differs != null) {
+			System.out.println("  *** " + differs + " differs from a walk of the tree: " + stats);
+			return FAIL;
+		}
+
+		// the pages a range scan reads, from the share of the entries it takes
+		if (!walk.pages.isEmpty() && walk.entries > 0) {
+			int leaves = walk.pages.get(walk.pages.size() - 1);
+			long index = walk.pages.size() - 1;
+			if (stats.estimateScanPages(walk.entries) != index + leaves
+					|| stats.estimateScanPages(1) != index + 1
+					|| stats.estimateScanPages(walk.entries / 2) != index
+							+ Math.max(1, (long) Math.ceil((double) (walk.entries / 2) * leaves / walk.entries))) {
+				System.out.println("  *** a range scan is estimated to read " + stats.estimateScanPages(walk.entries / 2)
+						+ " pages for half of the entries");
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	// a histogram without its empty buckets at the end
+	private static long[] trim(long[] counts) {
+		int length = counts.length;
+		while (length > 0 && counts[length - 1] == 0)
+			length--;
+		return Arrays.copyOf(counts, length);
+	}
+
+	/*
+	 * Insert count entries of random keys, a few of them repeated; returns
+	 * the keys, the key of entry i at i.
+	 */
+	private ArrayList<Integer> fill(BTreeFile file, int keyType, int count) throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++) {
+			int key = i % 20 == 0 ? random.nextInt(100) : random.nextInt(count * 4);
+			file.insert(key(keyType, key), new RID(new PageId(i), 0));
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	/*
+	 * A new database and tree; with a ConcurrentBufMgr if pageSize is not 0,
+	 * and on a MappedDB of pages of pageSize bytes if it is more.
+	 */
+	private BTreeFile open(int keyType, int deleteFashion, int pageSize) throws Exception {
+		new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+		if (pageSize > 0)
+			MappedDB.install(pageSize);
+		if (pageSize != 0)
+			ConcurrentBufMgr.install("Clock");
+		return new BTreeFile(FILE_NAME, keyType, keyType == AttrType.attrInteger ? 4 : KEY_SIZE, deleteFashion);
+	}
+
+	private void close(BTreeFile file) {
+		try {
+			if (file != null)
+				file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).stopFlusher();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * String keys of 1 to KEY_SIZE - 3 characters, the number first, so that
+	 * they differ in length but not in order by it.
+	 */
+	private static KeyClass key(int keyType, int key) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(key);
+		StringBuffer buffer = new StringBuffer(Integer.toString(key));
+		int length = 1 + key % (KEY_SIZE - 3);
+		while (buffer.length() < length)
+			buffer.append('-');
+		return new StringKey(buffer.toString());
+	}
+
+	/*
+	 * The figures of a tree, read page by page from its root down, level by
+	 * level.
+	 */
+	private static class Walk {
+
+		// a leaf record is the key, then the rid
+		private final static int RID_SIZE = 8;
+
+		final int pageSize;
+		final ArrayList<Integer> pages = new ArrayList<Integer>();
+		final ArrayList<Long> usedBytes = new ArrayList<Long>();
+		final ArrayList<long[]> fill = new ArrayList<long[]>();
+		long entries;
+		long emptyLeaves;
+		final TreeMap<Integer, Long> keySizes = new TreeMap<Integer, Long>();
+
+		Walk(BTreeFile file) throws Exception {
+			pageSize = file.getPageSize();
+			int root = ((HFPage) file.getHeaderPage()).getNextPage().pid;
+			ArrayList<Integer> level = new ArrayList<Integer>();
+			if (root != INVALID_PAGE)
+				level.add(root);
+			while (!level.isEmpty()) {
+				ArrayList<Integer> children = new ArrayList<Integer>();
+				long used = 0;
+				long[] buckets = new long[TreeStats.FILL_BUCKETS];
+				for (int pid : level) {
+					PageId pageno = new PageId(pid);
+					Page page = new Page();
+					SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+					try {
+						ByteBuffer data = ByteBuffer.wrap(page.getpage());
+						int count = data.getShort(HFPage.SLOT_CNT);
+						boolean leaf = data.getShort(HFPage.TYPE) == NodeType.LEAF;
+						int pageUsed = 0;
+						for (int slot = 0; slot < count; slot++) {
+							int length = data.getShort(HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT);
+							int offset = data.getShort(HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2);
+							pageUsed += length + HFPage.SIZE_OF_SLOT;
+							if (leaf) {
+								Long keys = keySizes.get(length - RID_SIZE);
+								keySizes.put(length - RID_SIZE, keys == null ? 1 : keys + 1);
+							} else
+								children.add(data.getInt(offset + length - 4));
+						}
+						if (!leaf)
+							children.add(0, data.getInt(HFPage.PREV_PAGE));
+						else {
+							entries += count;
+							if (count == 0)
+								emptyLeaves++;
+						}
+						used += pageUsed;
+						buckets[Math.min(TreeStats.FILL_BUCKETS - 1, pageUsed * TreeStats.FILL_BUCKETS
+								/ (pageSize - HFPage.DPFIXED))]++;
+					} finally {
+						SystemDefs.JavabaseBM.unpinPage(pageno, false);
+					}
+				}
+				pages.add(level.size());
+				usedBytes.add(used);
+				fill.add(buckets);
+				level = children;
+			}
+		}
+
+		long[] keySizes() {
+			long[] counts = new long[keySizes.isEmpty() ? 0 : keySizes.lastKey() + 1];
+			for (Map.Entry<Integer, Long> size : keySizes.entrySet())
+				counts[size.getKey()] = size.getValue();
+			return counts;
+		}
+	}
+}
+
+public class TreeStatsTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			TreeStatsDriver treestatstest = new TreeStatsDriver();
+			if (!treestatstest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during tree statistics tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
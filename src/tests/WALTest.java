@@ -0,0 +1,306 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Crash tests of the WriteAheadLog. Every case runs a workload of inserts and
+ * deletes on a B+ tree in a child JVM that halts itself at a crash point of the
+ * log, then opens the database again here, which recovers it from the log, and
+ * checks the tree: it must hold exactly the operations the child finished,
+ * plus perhaps the one it was in, and it must still take inserts.
+ *
+ * The child runs with a small buffer pool, so that pages are written to the
+ * database file while the workload runs, and with a small checkpoint size, so
+ * that crashes also hit checkpoints.
+ */
+class WALDriver extends TestDriver implements GlobalConst {
+
+	private final static String FILE_NAME = "WALTest";
+	private final static int KEY_SIZE = 64;
+	private final static int NUM_BUFFERS = 30;
+	private final static int NUM_PAGES = 5000;
+	private final static long CHECKPOINT_SIZE = 32 << 10;
+	// crash points tried per test
+	private final static int CASES = 8;
+
+	private Random random = new Random(7);
+
+	public WALDriver() {
+		super("waltest");
+	}
+
+	protected String testName() {
+		return "Write-ahead log";
+	}
+
+	/**
+	 * Crashes while keys are inserted.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: crash during inserts\n");
+		boolean status = OK;
+		for (int i = 0; i < CASES && status == OK; i++)
+			status = runCase(400, 0, 0, false, random.nextInt(3000));
+		return status;
+	}
+
+	/**
+	 * Crashes while keys are deleted, with pages merged and freed.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: crash during full deletes\n");
+		boolean status = OK;
+		for (int i = 0; i < CASES && status == OK; i++)
+			status = runCase(400, 300, 400, false, random.nextInt(1500));
+		return status;
+	}
+
+	/**
+	 * Crashes that leave a torn unit at the end of the log.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: crash with a torn log tail\n");
+		boolean status = OK;
+		for (int i = 0; i < CASES && status == OK; i++)
+			status = runCase(400, 200, 0, true, random.nextInt(3500));
+		return status;
+	}
+
+	/*
+	 * Run the workload in a child JVM up to the crash point, armed before
+	 * operation arm, and check the recovered tree.
+	 */
+	private boolean runCase(int inserts, int deletes, int arm, boolean torn, int point) {
+		int[] ops = workload(inserts, deletes);
+		new File(dbpath).delete();
+		new File(dbpath + WriteAheadLog.LOG_SUFFIX).delete();
+		try {
+			ProcessBuilder builder = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin"
+					+ File.separator + "java", "-cp", System.getProperty("java.class.path"), "tests.WALTest", "child",
+					dbpath, Integer.toString(inserts), Integer.toString(deletes), Integer.toString(arm),
+					Integer.toString(point));
+			builder.redirectErrorStream(true);
+			Process child = builder.start();
+			BufferedReader in = new BufferedReader(new InputStreamReader(child.getInputStream()));
+			int done = -1;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("done "))
+					done = Integer.parseInt(line.substring(5));
+				else if (line.length() > 0 && !line.startsWith("Replacer"))
+					System.out.println("    child: " + line);
+			}
+			int status = child.waitFor();
+			if (status != WriteAheadLog.CRASH_STATUS && status != 0) {
+				System.out.println("  *** child failed with status " + status);
+				return FAIL;
+			}
+			if (torn)
+				tearLog(dbpath + WriteAheadLog.LOG_SUFFIX);
+			System.out.println("  crash point " + point + ": " + (done + 1) + " of " + ops.length
+					+ " operations done" + (status == 0 ? ", no crash" : ""));
+			return verify(ops, done);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/*
+	 * Open the database, which recovers it, and compare the tree with the
+	 * operations done, with and without the one in flight.
+	 */
+	private boolean verify(int[] ops, int done) throws Exception {
+		new SystemDefs(dbpath, 0, NUM_BUFFERS, "Clock");
+		WriteAheadLog.install();
+		BTreeFile file = new BTreeFile(FILE_NAME);
+		try {
+			TreeSet<Integer> expected = new TreeSet<Integer>();
+			for (int i = 0; i <= done; i++)
+				apply(expected, ops[i]);
+			TreeSet<Integer> found = scan(file);
+			if (found == null)
+				return FAIL;
+			if (!found.equals(expected) && done + 1 < ops.length)
+				apply(expected, ops[done + 1]);
+			if (!found.equals(expected)) {
+				System.out.println("  *** the tree holds " + found.size() + " keys, " + expected.size()
+						+ " expected");
+				return FAIL;
+			}
+			for (int key : expected) {
+				List<RID> rids = file.lookup(key(key));
+				if (rids.size() != 1 || rids.get(0).pageNo.pid != key) {
+					System.out.println("  *** key " + key + " is not found");
+					return FAIL;
+				}
+			}
+
+			// the tree goes on
+			for (int key = -1; key >= -100; key--) {
+				file.insert(key(key), new RID(new PageId(key), key));
+				expected.add(key);
+			}
+			found = scan(file);
+			if (found == null || !found.equals(expected)) {
+				System.out.println("  *** inserts after recovery went wrong");
+				return FAIL;
+			}
+			return OK;
+		} finally {
+			file.close();
+			WriteAheadLog.uninstall();
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+		}
+	}
+
+	/*
+	 * The keys of a full scan, or null if they are out of order.
+	 */
+	private TreeSet<Integer> scan(BTreeFile file) throws Exception {
+		TreeSet<Integer> keys = new TreeSet<Integer>();
+		BTFileScan scan = file.new_scan(null, null);
+		KeyDataEntry entry;
+		String last = null;
+		while ((entry = scan.get_next()) != null) {
+			String key = ((StringKey) entry.key).getKey();
+			if (last != null && key.compareTo(last) <= 0) {
+				System.out.println("  *** the scan returns " + key + " after " + last);
+				scan.DestroyBTreeFileScan();
+				return null;
+			}
+			last = key;
+			keys.add(Integer.parseInt(key.substring(0, 7).trim()));
+		}
+		scan.DestroyBTreeFileScan();
+		return keys;
+	}
+
+	/*
+	 * Append a damaged copy of the last unit of the log, cut at a random byte,
+	 * as a crash in the middle of writing the next unit would leave it. None
+	 * of the pages of that unit reached the database file.
+	 */
+	private void tearLog(String name) throws IOException {
+		RandomAccessFile log = new RandomAccessFile(name, "rw");
+		try {
+			long size = log.length();
+			long position = 0, last = -1;
+			while (position + 12 <= size) {
+				log.seek(position + 4);
+				int length = log.readInt();
+				if (position + 12 + length > size)
+					break;
+				last = position;
+				position += 12 + length;
+			}
+			byte[] tail;
+			if (last < 0) {
+				tail = new byte[1 + random.nextInt(2000)];
+				random.nextBytes(tail);
+			} else {
+				tail = new byte[(int) (position - last)];
+				log.seek(last);
+				log.readFully(tail);
+				tail[12 + random.nextInt(tail.length - 12)] ^= 0x5a;
+				tail = Arrays.copyOf(tail, 1 + random.nextInt(tail.length));
+			}
+			log.seek(position);
+			log.write(tail);
+			log.setLength(position + tail.length);
+		} finally {
+			log.close();
+		}
+	}
+
+	/*
+	 * Insert the keys 0 to inserts - 1 in a random order, then delete the
+	 * first deletes of them in another. An operation is the key to insert, or
+	 * -1 - key for a delete.
+	 */
+	static int[] workload(int inserts, int deletes) {
+		Random random = new Random(inserts);
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for (int key = 0; key < inserts; key++)
+			keys.add(key);
+		Collections.shuffle(keys, random);
+		int[] ops = new int[inserts + deletes];
+		for (int i = 0; i < inserts; i++)
+			ops[i] = keys.get(i);
+		Collections.shuffle(keys, random);
+		for (int i = 0; i < deletes; i++)
+			ops[inserts + i] = -1 - keys.get(i);
+		return ops;
+	}
+
+	private static void apply(Set<Integer> keys, int op) {
+		if (op >= 0)
+			keys.add(op);
+		else
+			keys.remove(-1 - op);
+	}
+
+	// long keys keep the pages small, so that the tree grows a few levels
+	static StringKey key(int key) {
+		StringBuffer buffer = new StringBuffer(String.format("%7d", key));
+		while (buffer.length() < KEY_SIZE - 8)
+			buffer.append('.');
+		return new StringKey(buffer.toString());
+	}
+
+	/**
+	 * The child: run the workload, print every operation done and halt at the
+	 * crash point.
+	 */
+	static void child(String[] args) throws Exception {
+		String dbpath = args[1];
+		int[] ops = workload(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+		int arm = Integer.parseInt(args[4]);
+		int point = Integer.parseInt(args[5]);
+
+		new SystemDefs(dbpath, NUM_PAGES, NUM_BUFFERS, "Clock");
+		WriteAheadLog log = WriteAheadLog.install();
+		log.setCheckpointSize(CHECKPOINT_SIZE);
+		BTreeFile file = new BTreeFile(FILE_NAME, AttrType.attrString, KEY_SIZE, DeleteFashion.FULL_DELETE);
+		for (int i = 0; i < ops.length; i++) {
+			if (i == arm)
+				log.setCrashPoint(point);
+			int key = ops[i] >= 0 ? ops[i] : -1 - ops[i];
+			if (ops[i] >= 0)
+				file.insert(key(key), new RID(new PageId(key), key));
+			else if (!file.Delete(key(key), new RID(new PageId(key), key)))
+				throw new Exception("key " + key + " is not deleted");
+			System.out.println("done " + i);
+			System.out.flush();
+		}
+		Runtime.getRuntime().halt(0);
+	}
+}
+
+public class WALTest implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		try {
+			if (argvs.length > 0 && argvs[0].equals("child")) {
+				WALDriver.child(argvs);
+				return;
+			}
+			WALDriver waltest = new WALDriver();
+			if (!waltest.runTests())
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during write-ahead log tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}